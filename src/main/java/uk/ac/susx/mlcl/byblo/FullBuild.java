@@ -47,6 +47,8 @@ import uk.ac.susx.mlcl.byblo.commands.ExternalCountCommand;
 import uk.ac.susx.mlcl.byblo.commands.ExternalKnnSimsCommand;
 import uk.ac.susx.mlcl.byblo.commands.FilterCommand;
 import uk.ac.susx.mlcl.byblo.commands.IndexingCommands;
+import uk.ac.susx.mlcl.byblo.commands.ReenumerateCommand;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.measures.CrMi;
 import uk.ac.susx.mlcl.byblo.measures.Lee;
@@ -152,6 +154,16 @@ public final class FullBuild extends AbstractCommand {
     @Parameter(names = {"-ffp", "--filter-feature-pattern"},
     description = "Regular expresion that accepted features must match.")
     private String filterFeaturePattern;
+
+    @Parameter(names = {"--reenumerate"},
+    description = "Renumber features by descending document frequency after filtering.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean reenumerate = false;
+
+    @Parameter(names = {"--reenumerate-entries"},
+    description = "Also renumber entries by descending document frequency after filtering.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean reenumerateEntries = false;
     /*
      * === ALL-PAIRS PARAMATERISATION ===
      */
@@ -209,6 +221,37 @@ public final class FullBuild extends AbstractCommand {
     description = "Number of entries to compare per work unit. Larger value increase performance and memory usage.",
     hidden = HIDE_UNCOMMON_PARAMTERS)
     private int chunkSize = ThreadedApssTask.DEFAULT_MAX_CHUNK_SIZE;
+
+    @Parameter(names = {"--allpairs-chunk-non-zeros"},
+    description = "Also close each all-pairs work unit once it holds this many non-zero features. (0 limits work units only by entry count.)",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private long chunkNonZeros = 0;
+
+    @Parameter(names = {"--allpairs-order-by-cost"},
+    description = "Estimate the cost of all-pairs work units, and queue the most expensive first.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean orderByCost = false;
+
+    @Parameter(names = {"--allpairs-max-heap-fraction"},
+    description = "Fraction of the maximum heap size that running all-pairs work units may hold, by their estimated footprint. (0 limits work units only by thread count.)",
+    hidden = HIDE_UNCOMMON_PARAMTERS,
+    converter = DoubleConverter.class)
+    private double maxHeapFraction = 0;
+
+    @Parameter(names = {"--allpairs-work-stealing"},
+    description = "Schedule all-pairs work units on a work-stealing fork/join pool.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean workStealing = false;
+
+    @Parameter(names = {"--allpairs-spill-runs"},
+    description = "Have each all-pairs worker write sorted runs to temporary files, which are merged when the search completes.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean spillRuns = false;
+
+    @Parameter(names = {"--allpairs-checkpoint"},
+    description = "Journal completed all-pairs work units alongside the output, so that an interrupted build resumes the search where it stopped.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean checkpoint = false;
     /*
      * === K-NEAREST-NEIGHBOURS PARAMATERISATION ===
      */
@@ -222,6 +265,11 @@ public final class FullBuild extends AbstractCommand {
     hidden = HIDE_UNCOMMON_PARAMTERS)
     private int knnMaxChunkSize = AbstractExternalSortCommand.DEFAULT_MAX_CHUNK_SIZE;
 
+    @Parameter(names = {"--knn-external"},
+    description = "Write every pair to a sims file during all-pairs, and find the nearest neighbours with an external sort, rather than collecting them during all-pairs.",
+    hidden = HIDE_UNCOMMON_PARAMTERS)
+    private boolean externalKnn = false;
+
     /**
      * Should only be instantiated through the main method.
      */
@@ -319,21 +367,61 @@ public final class FullBuild extends AbstractCommand {
                   featureEnumeratorFile);
         System.gc();
 
+        if (reenumerate || reenumerateEntries) {
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 3b of 6: Re-Enumerating ===\n");
+
+            File entriesReenumeratedFile = suffixed(entriesFilteredFile, ".reenumerated");
+            File featuresReenumeratedFile = suffixed(featuresFilteredFile, ".reenumerated");
+            File eventsReenumeratedFile = suffixed(eventsFilteredFile, ".reenumerated");
+            File entryReenumeratorFile = reenumerateEntries
+                                         ? suffixed(entryEnumeratorFile, ".reenumerated")
+                                         : entryEnumeratorFile;
+            File featureReenumeratorFile = suffixed(featureEnumeratorFile, ".reenumerated");
+
+            System.gc();
+            runReenumerate(entriesFilteredFile, featuresFilteredFile,
+                           eventsFilteredFile, entriesReenumeratedFile,
+                           featuresReenumeratedFile, eventsReenumeratedFile,
+                           entryEnumeratorFile, featureEnumeratorFile,
+                           entryReenumeratorFile, featureReenumeratorFile);
+            System.gc();
+
+            entriesFilteredFile = entriesReenumeratedFile;
+            featuresFilteredFile = featuresReenumeratedFile;
+            eventsFilteredFile = eventsReenumeratedFile;
+            entryEnumeratorFile = entryReenumeratorFile;
+            featureEnumeratorFile = featureReenumeratorFile;
+        }
+
         if (LOG.isInfoEnabled())
             LOG.info("\n=== Stage 4 of 6: All-Pairs ===\n");
         File simsFile = new File(outputDir, instancesFile.getName() + ".sims");
 
+        File neighboursFile = suffixed(simsFile, ".neighbours");
+
         System.gc();
-        runAllpairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
+        if (externalKnn) {
+            runAllpairs(entriesFilteredFile, featuresFilteredFile,
+                        eventsFilteredFile, simsFile, 0);
+        } else {
+            // The k nearest neighbours are collected during all-pairs, so the
+            // sims file is never written.
+            runAllpairs(entriesFilteredFile, featuresFilteredFile,
+                        eventsFilteredFile, neighboursFile, k);
+        }
         System.gc();
 
-        File neighboursFile = suffixed(simsFile, ".neighbours");
         if (LOG.isInfoEnabled())
             LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n");
 
-        System.gc();
-        runKNN(simsFile, neighboursFile);
-        System.gc();
+        if (externalKnn) {
+            System.gc();
+            runKNN(simsFile, neighboursFile);
+            System.gc();
+        } else if (LOG.isInfoEnabled()) {
+            LOG.info("Skipped; neighbours were collected during all-pairs.\n");
+        }
 
         File neighboursStringsFile = suffixed(neighboursFile, ".strings");
 
@@ -583,13 +671,83 @@ public final class FullBuild extends AbstractCommand {
         }
     }
 
+    private void runReenumerate(File entriesFile, File featuresFile,
+                                File eventsFile, File entriesReenumeratedFile,
+                                File featuresReenumeratedFile,
+                                File eventsReenumeratedFile,
+                                File entryEnumeratorFile,
+                                File featureEnumeratorFile,
+                                File entryReenumeratorFile,
+                                File featureReenumeratorFile)
+            throws Exception {
+        checkValidInputFile("Entries file", entriesFile);
+        checkValidInputFile("Features file", featuresFile);
+        checkValidInputFile("Events file", eventsFile);
+        checkValidOutputFile("Re-enumerated entries file", entriesReenumeratedFile);
+        checkValidOutputFile("Re-enumerated features file", featuresReenumeratedFile);
+        checkValidOutputFile("Re-enumerated events file", eventsReenumeratedFile);
+
+        File reenumerateTempDir = createTempSubdirDir(tempBaseDir);
+        FileFactory reenumerateTmpFact = new TempFileFactory(reenumerateTempDir);
+
+        final long startTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\nConfiguration:\n");
+            sb.append(MessageFormat.format(" * Input entries file: {0}\n", entriesFile));
+            sb.append(MessageFormat.format(" * Input features file: {0}\n", featuresFile));
+            sb.append(MessageFormat.format(" * Input events file: {0}\n", eventsFile));
+            sb.append(MessageFormat.format(" * Output entries file: {0}\n", entriesReenumeratedFile));
+            sb.append(MessageFormat.format(" * Output features file: {0}\n", featuresReenumeratedFile));
+            sb.append(MessageFormat.format(" * Output events file: {0}\n", eventsReenumeratedFile));
+            sb.append(MessageFormat.format(" * Output entries index file: {0}\n", entryReenumeratorFile));
+            sb.append(MessageFormat.format(" * Output features index file: {0}\n", featureReenumeratorFile));
+            sb.append(MessageFormat.format(" * Renumber entries: {0}\n", reenumerateEntries));
+            sb.append(MessageFormat.format(" * Start time: {0,time,full} {0,date,full}\n", startTime));
+            sb.append(MessageFormat.format(" * {0}\n", MiscUtil.memoryInfoString()));
+            sb.append("\n");
+            LOG.info(sb.toString());
+        }
+
+        ReenumerateCommand reenumerateCmd = new ReenumerateCommand(
+                entriesFile, featuresFile, eventsFile, entriesReenumeratedFile,
+                featuresReenumeratedFile, eventsReenumeratedFile, getCharset(),
+                new DoubleEnumeratingDeligate(enumeratorType, true, true,
+                                              entryEnumeratorFile,
+                                              featureEnumeratorFile));
+        reenumerateCmd.setReenumerateEntries(reenumerateEntries);
+        reenumerateCmd.setOutputEntryEnumeratorFile(entryReenumeratorFile);
+        reenumerateCmd.setOutputFeatureEnumeratorFile(featureReenumeratorFile);
+        reenumerateCmd.setTempFiles(reenumerateTmpFact);
+
+        reenumerateCmd.runCommand();
+
+        checkValidInputFile("Re-enumerated entries file", entriesReenumeratedFile);
+        checkValidInputFile("Re-enumerated features file", featuresReenumeratedFile);
+        checkValidInputFile("Re-enumerated events file", eventsReenumeratedFile);
+
+        deleteTempDir(reenumerateTempDir, "Re-Enumerate");
+
+        final long endTime = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\nStats:\n");
+            sb.append(MessageFormat.format(" * End time: {0,time,full} {0,date,full}\n", endTime));
+            sb.append(MessageFormat.format(" * Ellapsed time: {0}\n", formatElapsedTime(endTime - startTime)));
+            sb.append(MessageFormat.format(" * {0}\n", MiscUtil.memoryInfoString()));
+            sb.append("\n");
+            LOG.info(sb.toString());
+        }
+    }
+
     private void runAllpairs(File entriesFilteredFile, File featuresFilteredFile,
-                             File eventsFilteredFile, File simsFile)
+                             File eventsFilteredFile, File outputFile, int topK)
             throws Exception {
+        final String outputName = topK > 0 ? "Neighbours file" : "Sims file";
         checkValidInputFile("Filtered entries file", entriesFilteredFile);
         checkValidInputFile("Filtered features file", featuresFilteredFile);
         checkValidInputFile("Filtered events file", eventsFilteredFile);
-        checkValidOutputFile("Sims file", simsFile);
+        checkValidOutputFile(outputName, outputFile);
 
         final long startTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
@@ -598,7 +756,10 @@ public final class FullBuild extends AbstractCommand {
             sb.append(MessageFormat.format(" * Input entries file: {0}\n", entriesFilteredFile));
             sb.append(MessageFormat.format(" * Input features file: {0}\n", featuresFilteredFile));
             sb.append(MessageFormat.format(" * Input events file: {0}\n", eventsFilteredFile));
-            sb.append(MessageFormat.format(" * Ouput sims file: {0}\n", simsFile));
+            sb.append(MessageFormat.format(" * Ouput {0}: {1}\n",
+                                           outputName.toLowerCase(), outputFile));
+            if (topK > 0)
+                sb.append(MessageFormat.format(" * K: {0}\n", topK));
             sb.append(MessageFormat.format(" * Measure: {0}{1}\n", measureName,
                                            measureReversed ? "(reversed)" : ""));
             sb.append(MessageFormat.format(" * Accept sims range: {0} to {1}\n",
@@ -616,10 +777,24 @@ public final class FullBuild extends AbstractCommand {
         allpairsCmd.setEntriesFile(entriesFilteredFile);
         allpairsCmd.setFeaturesFile(featuresFilteredFile);
         allpairsCmd.setEventsFile(eventsFilteredFile);
-        allpairsCmd.setOutputFile(simsFile);
+        allpairsCmd.setOutputFile(outputFile);
+        allpairsCmd.setTopK(topK);
 
         allpairsCmd.setNumThreads(numThreads);
         allpairsCmd.setChunkSize(chunkSize);
+        allpairsCmd.setChunkNonZeros(chunkNonZeros);
+        allpairsCmd.setOrderByCost(orderByCost);
+        allpairsCmd.setMaxHeapFraction(maxHeapFraction);
+        allpairsCmd.setWorkStealing(workStealing);
+        allpairsCmd.setSpillRuns(spillRuns);
+        if (checkpoint) {
+            // Kept outside the temporary directory, which is not reused
+            allpairsCmd.setCheckpointDir(
+                    new File(outputFile.getPath() + ".checkpoint"));
+        }
+
+        File allpairsTempDir = createTempSubdirDir(tempBaseDir);
+        allpairsCmd.setTempFileFactory(new TempFileFactory(allpairsTempDir));
 
         allpairsCmd.setMinSimilarity(minSimilarity);
         allpairsCmd.setMaxSimilarity(maxSimilarity);
@@ -638,7 +813,9 @@ public final class FullBuild extends AbstractCommand {
 
 
         allpairsCmd.runCommand();
-        checkValidInputFile("Sims file", simsFile);
+        checkValidInputFile(outputName, outputFile);
+
+        deleteTempDir(allpairsTempDir, "All-Pairs");
 
         final long endTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
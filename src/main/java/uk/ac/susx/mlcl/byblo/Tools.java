@@ -34,6 +34,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsMergeCommand;
 import uk.ac.susx.mlcl.byblo.commands.ExternalCountCommand;
 import uk.ac.susx.mlcl.byblo.commands.ExternalKnnSimsCommand;
 import uk.ac.susx.mlcl.byblo.commands.ExternalSortEntriesCommand;
@@ -43,6 +44,7 @@ import uk.ac.susx.mlcl.byblo.commands.IndexingCommands;
 import uk.ac.susx.mlcl.byblo.commands.MergeEntriesCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeEventsCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeInstancesCommand;
+import uk.ac.susx.mlcl.byblo.commands.ReenumerateCommand;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
 import uk.ac.susx.mlcl.lib.commands.Command;
 
@@ -71,8 +73,10 @@ public final class Tools extends AbstractCommand {
         tmp.put("merge-events", MergeEntriesCommand.class);
         tmp.put("knn-sims", ExternalKnnSimsCommand.class);
         tmp.put("allpairs", AllPairsCommand.class);
+        tmp.put("merge-allpairs", AllPairsMergeCommand.class);
         tmp.put("count", ExternalCountCommand.class);
         tmp.put("filter", FilterCommand.class);
+        tmp.put("reenumerate", ReenumerateCommand.class);
         tmp.put("index", IndexingCommands.IndexInstances.class);
         tmp.put("index-instances", IndexingCommands.IndexInstances.class);
         tmp.put("index-entries", IndexingCommands.IndexEntries.class);
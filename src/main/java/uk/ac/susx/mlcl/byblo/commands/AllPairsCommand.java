@@ -34,21 +34,24 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.google.common.base.Objects.ToStringHelper;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.zip.Adler32;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
@@ -57,9 +60,13 @@ import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDeligates;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.BybloIO;
 import uk.ac.susx.mlcl.byblo.io.FastWeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.io.MappedVectorStore;
 import uk.ac.susx.mlcl.byblo.io.Token;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.WeightSumReducerObjectSink;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairPredicate;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource.WTStatsSource;
@@ -70,20 +77,36 @@ import uk.ac.susx.mlcl.byblo.measures.Lee;
 import uk.ac.susx.mlcl.byblo.measures.Lp;
 import uk.ac.susx.mlcl.byblo.measures.Proximity;
 import uk.ac.susx.mlcl.byblo.measures.ReversedProximity;
+import uk.ac.susx.mlcl.byblo.tasks.AllPairsJournal;
 import uk.ac.susx.mlcl.byblo.tasks.InvertedApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.LshApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.LshSignatures;
 import uk.ac.susx.mlcl.byblo.tasks.NaiveApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.PositiveInformationSource;
+import uk.ac.susx.mlcl.byblo.tasks.PrefixFilterApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.Shard;
+import uk.ac.susx.mlcl.byblo.tasks.ShardHeader;
+import uk.ac.susx.mlcl.byblo.tasks.SizeFilterApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.SortedPairRuns;
 import uk.ac.susx.mlcl.byblo.tasks.ThreadedApssTask;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.MiscUtil;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
 import uk.ac.susx.mlcl.lib.commands.DoubleConverter;
 import uk.ac.susx.mlcl.lib.commands.FileDeligate;
 import uk.ac.susx.mlcl.lib.commands.InputFileValidator;
 import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.KFirstReducingObjectSink;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.io.Tell;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.events.ProgressEvent;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
 
@@ -110,6 +133,11 @@ public class AllPairsCommand extends AbstractCommand {
     validateWith = InputFileValidator.class)
     private File eventsFile;
 
+    @Parameter(names = {"--query-events"},
+    description = "Event frequency vectors of query entries, which are compared against those of the input events file, rather than comparing all pairs of the input. Pairs are produced with the query entry first. The entries must be enumerated consistently with the input.",
+    validateWith = InputFileValidator.class)
+    private File queryEventsFile = null;
+
     @Parameter(names = {"-if", "--input-features"},
     description = "Feature frequencies file",
     validateWith = InputFileValidator.class)
@@ -130,10 +158,49 @@ public class AllPairsCommand extends AbstractCommand {
     description = "Number of entries to compare per work unit. Larger value increase performance and memory usage.")
     private int chunkSize = ThreadedApssTask.DEFAULT_MAX_CHUNK_SIZE;
 
+    @Parameter(names = {"--chunk-non-zeros"},
+    description = "Also close each work unit once its entries hold this many non-zero features in total, so that work units have similar costs on skewed data. (0 limits work units only by --chunk-size.)")
+    private long chunkNonZeros = 0;
+
+    @Parameter(names = {"--order-by-cost"},
+    description = "Estimate the cost of every pair of work units before the search, and queue the most expensive first.")
+    private boolean orderByCost = false;
+
     @Parameter(names = {"-t", "--threads"},
     description = "Number of conccurent processing threads.")
     private int numThreads = Runtime.getRuntime().availableProcessors() + 1;
 
+    @Parameter(names = {"--max-heap-fraction"},
+    description = "Fraction of the maximum heap size that the running work units may hold, by their estimated footprint. Work units wait to start until enough is free. (0 limits work units only by --threads.)",
+    converter = DoubleConverter.class)
+    private double maxHeapFraction = 0;
+
+    @Parameter(names = {"--work-stealing"},
+    description = "Schedule work units on a work-stealing fork/join pool, splitting expensive units so that idle threads can share them.")
+    private boolean workStealing = false;
+
+    @Parameter(names = {"--spill-runs"},
+    description = "Have each worker write sorted binary runs to temporary files, rather than writing to the output directly; the runs are merged once the search is complete.")
+    private boolean spillRuns = false;
+
+    @Parameter(names = {"--reparse-events"},
+    description = "Parse the events file on every pass over it, rather than first converting it to a memory-mapped binary vector store.")
+    private boolean reparseEvents = false;
+
+    @Parameter(names = {"--checkpoint-dir"},
+    description = "Directory in which to journal completed work units, so that an interrupted run can be resumed by repeating the command.")
+    private File checkpointDir = null;
+
+    @Parameter(names = {"--shard"},
+    description = "Perform only the given portion of the search, of the form \"number/count\", so it can be divided between independent processes. The output is a binary file of unreduced pairs, to be combined with merge-allpairs.",
+    converter = ShardConverter.class)
+    private Shard shard = Shard.ALL;
+
+    @Parameter(names = {"-T", "--temporary-directory"},
+    description = "Directory which will be used for storing temporary files.",
+    converter = TempFileFactoryConverter.class)
+    private FileFactory tempFileFactory = new TempFileFactory();
+
     public static final double DEFAULT_MIN_SIMILARITY = Double.NEGATIVE_INFINITY;
 
     public static final double DEFAULT_MAX_SIMILARITY = Double.POSITIVE_INFINITY;
@@ -152,6 +219,11 @@ public class AllPairsCommand extends AbstractCommand {
     description = "Produce similarity between pair of identical entries.")
     private boolean outputIdentityPairs = false;
 
+    @Parameter(names = {"-k", "--top-k"},
+    description = "Produce only the k nearest neighbours of each entry, written "
+    + "directly as a neighbours file. (0 produces every pair as a sims file.)")
+    private int topK = 0;
+
     public static final String DEFAULT_MEASURE = "Lin";
 
     @Parameter(names = {"-m", "--measure"},
@@ -185,7 +257,27 @@ public class AllPairsCommand extends AbstractCommand {
     public enum Algorithm {
 
         Naive(NaiveApssTask.class),
-        Inverted(InvertedApssTask.class);
+        Inverted(InvertedApssTask.class),
+        /**
+         * Prunes the search using --similarity-min; only effective for
+         * normalised measures (Cosine, Jaccard, Dice, Tanimoto, Overlap, Lin).
+         */
+        PrefixFilter(PrefixFilterApssTask.class),
+        /**
+         * Orders the entries of each work unit by size, comparing only those
+         * whose sizes allow them to reach --similarity-min (or the k-th
+         * nearest neighbour found so far); only effective for Jaccard, Dice
+         * and Tanimoto.
+         */
+        SizeFilter(SizeFilterApssTask.class),
+        /**
+         * Approximate search, comparing only those entries whose
+         * locality-sensitive hash signatures collide in some band. Random
+         * hyperplanes are used for Cosine and CosineMi, MinHash otherwise.
+         * The pairs found have exact similarities, but some pairs may be
+         * missed; recall is estimated on a sample of entries.
+         */
+        Lsh(LshApssTask.class);
 
         private Class<? extends NaiveApssTask> implementation;
 
@@ -208,6 +300,27 @@ public class AllPairsCommand extends AbstractCommand {
     description = "APPS algorithm to use.")
     private Algorithm algorithm = Algorithm.Inverted;
 
+    @Parameter(names = {"--lsh-bands"},
+    hidden = true,
+    description = "Number of signature bands used by the Lsh algorithm. More bands increase recall and cost.")
+    private int lshBands = LshSignatures.DEFAULT_BANDS;
+
+    @Parameter(names = {"--lsh-rows"},
+    hidden = true,
+    description = "Number of hashes per signature band used by the Lsh algorithm. More rows increase precision and reduce recall. (0 uses the default for the measure.)")
+    private int lshRows = 0;
+
+    @Parameter(names = {"--lsh-seed"},
+    hidden = true,
+    description = "Seed from which the Lsh algorithm's hash functions are generated.")
+    private long lshSeed = LshSignatures.DEFAULT_SEED;
+
+    @Parameter(names = {"--lsh-recall-sample"},
+    hidden = true,
+    description = "Fraction of entries for which the Lsh algorithm estimates recall against an exact search.",
+    converter = DoubleConverter.class)
+    private double lshRecallSample = LshSignatures.DEFAULT_RECALL_SAMPLE_RATE;
+
     public AllPairsCommand(File entriesFile, File featuresFile,
                            File eventsFile, File outputFile,
                            Charset charset, DoubleEnumerating indexDeligate) {
@@ -276,6 +389,14 @@ public class AllPairsCommand extends AbstractCommand {
                 throw e;
             }
         }
+        // The positive information of each feature depends only on the vector
+        // that holds it, so when the measure allows it the vectors are
+        // weighted once as they are read, rather than on every comparison.
+        final AbstractMIProximity weighting =
+                prox instanceof AbstractMIProximity
+                && ((AbstractMIProximity) prox).isPreWeightingSupported()
+                ? (AbstractMIProximity) prox : null;
+
         //XXX This needs to be sorted out --- filter id must be read from the
         // stored enumeration, for optimal robustness
         prox.setFilteredFeatureId(FilterCommand.FILTERED_ID);
@@ -291,16 +412,145 @@ public class AllPairsCommand extends AbstractCommand {
         // combinations of vectors, so will be looking at two differnt points
         // in the file. Also this allows for the possibility of having differnt
         // files, e.g compare fruit words with cake words
-        final FastWeightedTokenPairVectorSource sourceA = openEventsSource();
-        final FastWeightedTokenPairVectorSource sourceB = openEventsSource();
+        //
+        // Unless otherwise requested, the events are parsed only once, into a
+        // binary store, which is then scanned for each pass.
+        SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceA;
+        SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceB;
+        final MappedVectorStore store;
+        final MappedVectorStore queryStore;
+        if (isReparseEvents()) {
+            store = null;
+            queryStore = null;
+            sourceA = openVectorSource(getEventsFile(), weighting);
+            sourceB = getQueryEventsFile() == null
+                      ? openVectorSource(getEventsFile(), weighting)
+                      : openVectorSource(getQueryEventsFile(), weighting);
+        } else {
+            store = openVectorStore(getEventsFile(), weighting);
+            queryStore = getQueryEventsFile() == null ? null
+                         : openVectorStore(getQueryEventsFile(), weighting);
+            sourceA = store.openSource();
+            sourceB = queryStore == null ? store.openSource()
+                      : queryStore.openSource();
+        }
+        if (weighting != null) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Vectors are weighted by positive information.");
+            }
+            weighting.setPreWeighted(true);
+        }
+
+        // When comparing queries against the events, the entries of source B
+        // are the queries, and those of source A are indexed. If the queries
+        // are the smaller side they are indexed instead, and the pairs
+        // transposed. When the indexed side fits in memory it is read whole,
+        // and the other side streamed through it once.
+        boolean transposed = false;
+        boolean streaming = false;
+        if (getQueryEventsFile() != null) {
+            final long[] sizeA = profile(sourceA);
+            final long[] sizeB = profile(sourceB);
+            transposed = sizeB[1] < sizeA[1];
+            final long[] indexed = transposed ? sizeB : sizeA;
+            final long footprint = ThreadedApssTask.estimateIndexFootprint(
+                    indexed[0], indexed[1]);
+            final long available = getMaxHeapFraction() > 0
+                                   ? (long) (getMaxHeapFraction()
+                                             * Runtime.getRuntime().maxMemory())
+                                   : Runtime.getRuntime().maxMemory() / 2;
+            streaming = footprint <= available;
+            if (!streaming) {
+                // The grid of chunk pairs collects the neighbours of source
+                // B, so the queries must remain there.
+                transposed = false;
+            }
+            if (transposed) {
+                final SeekableObjectSource<Indexed<SparseDoubleVector>, ?> tmp =
+                        sourceA;
+                sourceA = sourceB;
+                sourceB = tmp;
+                if (!prox.isSymmetric())
+                    prox = new ReversedProximity(prox);
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info(MessageFormat.format(
+                        "Comparing {0} query entries ({1} non-zeros) with {2} "
+                        + "entries ({3} non-zeros); indexing the {4}, {5}.",
+                        sizeB[0], sizeB[1], sizeA[0], sizeA[1],
+                        transposed ? "queries" : "entries",
+                        streaming
+                        ? "which fit in memory (estimated "
+                          + MiscUtil.humanReadableBytes(footprint) + ")"
+                        : "in chunks, since they do not fit in memory "
+                          + "(estimated "
+                          + MiscUtil.humanReadableBytes(footprint) + ")"));
+            }
+        }
 
 
         // Create a sink object that will act as a recipient for all pairs that
         // are produced by the algorithm.
 
-        final ObjectSink<Weighted<TokenPair>> sink = openSimsSink();
+        //
+        // A checkpointed run writes its output to journalled segments, which
+        // are merged in the same manner as spilled runs.
+        //
+        // A shard can not reduce its output to the nearest neighbours, since
+        // other shards hold the remaining pairs, so all its pairs are merged
+        // into a single run file, to be combined by AllPairsMergeCommand.
+        final boolean merging = isSpillRuns() || getCheckpointDir() != null
+                || !getShard().isAll();
+        final WeightedTokenPairBuffer.Order order = getTopK() > 0
+                ? WeightedTokenPairBuffer.Order.NEIGHBOURS
+                : WeightedTokenPairBuffer.Order.INDEX;
+
+        final ObjectSink<Weighted<TokenPair>> sink;
+        if (!getShard().isAll()) {
+            sink = SortedPairRuns.openRunSink(
+                    getOutputFile(),
+                    new ShardHeader(getShard(), searchFingerprint()));
+        } else if (merging && getTopK() > 0) {
+            // The runs are sorted as for nearest-neighbours, so the merge can
+            // be handed straight to the k-first reduction, without an external
+            // sort of the sims.
+            sink = new KFirstReducingObjectSink<Weighted<TokenPair>>(
+                    new WeightSumReducerObjectSink<TokenPair>(openNeighboursSink()),
+                    Weighted.recordOrder(TokenPair.firstIndexOrder()),
+                    getTopK());
+        } else if (merging) {
+            sink = openSimsSink();
+        } else {
+            sink = getTopK() > 0 ? openNeighboursSink() : openSimsSink();
+        }
 
-        final NaiveApssTask apss = newAlgorithmInstance();
+        final AllPairsJournal journal;
+        final SortedPairRuns runs;
+        if (getCheckpointDir() != null) {
+            journal = new AllPairsJournal(
+                    getCheckpointDir(), checkpointFingerprint(), order);
+            runs = null;
+        } else if (merging) {
+            journal = null;
+            runs = new SortedPairRuns(getTempFileFactory(), order);
+        } else {
+            journal = null;
+            runs = null;
+        }
+
+        final NaiveApssTask apss = newAlgorithmInstance(journal, streaming);
+        if (getAlgorithm() == Algorithm.Lsh) {
+            final LshSignatures.Scheme scheme =
+                    LshSignatures.Scheme.forMeasure(prox);
+            final LshSignatures signatures = new LshSignatures(
+                    scheme, getLshBands(),
+                    getLshRows() > 0 ? getLshRows() : scheme.getDefaultRows(),
+                    getLshSeed(), getLshRecallSample(), prox);
+            if (apss instanceof ThreadedApssTask)
+                ((ThreadedApssTask) apss).setLshSignatures(signatures);
+            else
+                ((LshApssTask) apss).setSignatures(signatures);
+        }
 
 
         // Parameterise the all-pairs algorithm
@@ -309,6 +559,10 @@ public class AllPairsCommand extends AbstractCommand {
         apss.setSink(sink);
         apss.setMeasure(prox);
         apss.setProducatePair(getProductionFilter());
+        apss.setMinSimilarity(getMinSimilarity());
+        apss.setK(merging ? 0 : getTopK());
+        apss.setSpillRuns(runs);
+        apss.setTransposed(transposed);
 
 
         apss.addProgressListener(new ProgressListener() {
@@ -323,6 +577,36 @@ public class AllPairsCommand extends AbstractCommand {
 
         apss.run();
 
+        if (getAlgorithm() == Algorithm.Lsh && LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Estimated recall {0} ({1} of {2} sampled pairs found.)",
+                    apss.getStats().getRecallEstimate(),
+                    apss.getStats().getRecallSampleFoundCount(),
+                    apss.getStats().getRecallSampleExactCount()));
+        }
+
+        if (runs != null) {
+            if (!apss.isExceptionTrapped()) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info(MessageFormat.format(
+                            "Merging {0} pairs from {1} runs.",
+                            runs.getPairCount(), runs.getRunCount()));
+                }
+                runs.mergeTo(sink, getNumThreads());
+            }
+            runs.delete();
+        }
+
+        if (journal != null) {
+            if (!apss.isExceptionTrapped()) {
+                journal.mergeTo(sink, getTempFileFactory(), getNumThreads());
+                journal.delete();
+            } else {
+                // Leave the journal in place, so the run can be resumed
+                journal.close();
+            }
+        }
+
         if (sink instanceof Flushable)
             ((Flushable) sink).flush();
         if (sink instanceof Closeable)
@@ -334,6 +618,12 @@ public class AllPairsCommand extends AbstractCommand {
         if (sourceB instanceof Closeable)
             ((Closeable) sourceB).close();
 
+        if (store != null && !store.getFile().delete())
+            LOG.warn("Failed to delete vector store " + store.getFile());
+
+        if (queryStore != null && !queryStore.getFile().delete())
+            LOG.warn("Failed to delete vector store " + queryStore.getFile());
+
         if (apss.isExceptionTrapped())
             apss.throwTrappedException();
 
@@ -391,16 +681,31 @@ public class AllPairsCommand extends AbstractCommand {
         return entryFreqs;
     }
 
-    private NaiveApssTask newAlgorithmInstance()
+    private NaiveApssTask newAlgorithmInstance(AllPairsJournal journal,
+                                               boolean streaming)
             throws InstantiationException, IllegalAccessException {
 
-        if (getNumThreads() == 1) {
+        // Only the threaded task divides the work into chunk pairs, which
+        // are the units of work recorded by the journal, and divided between
+        // shards.
+        if (getNumThreads() == 1 && journal == null && getShard().isAll()) {
             return getAlgorithm().newInstance();
         } else {
             ThreadedApssTask<Tell> tapss = new ThreadedApssTask<Tell>();
             tapss.setInnerAlgorithm(getAlgorithm().getImplementation());
             tapss.setNumThreads(getNumThreads());
             tapss.setMaxChunkSize(getChunkSize());
+            tapss.setMaxChunkNonZeros(getChunkNonZeros());
+            tapss.setCostOrdered(isOrderByCost());
+            tapss.setMemoryBudget((long) (getMaxHeapFraction()
+                                          * Runtime.getRuntime().maxMemory()));
+            // Both sources are read from the same events file, unless
+            // comparing queries against it
+            tapss.setSymmetric(getQueryEventsFile() == null);
+            tapss.setStreaming(streaming);
+            tapss.setWorkStealing(isWorkStealing());
+            tapss.setJournal(journal);
+            tapss.setShard(getShard());
             return tapss;
         }
 
@@ -412,12 +717,126 @@ public class AllPairsCommand extends AbstractCommand {
                 EnumeratingDeligates.toSingleFeatures(getIndexDeligate()));
     }
 
-    private FastWeightedTokenPairVectorSource openEventsSource() throws IOException {
+    private FastWeightedTokenPairVectorSource openEventsSource(File eventsFile)
+            throws IOException {
         return BybloIO.openEventsVectorSource(
-                getEventsFile(), getCharset(),
+                eventsFile, getCharset(),
                 getIndexDeligate());
     }
 
+    /**
+     * Open the vectors of the given events file, weighted by their positive
+     * information if a weighting measure is given.
+     */
+    private SeekableObjectSource<Indexed<SparseDoubleVector>, Tell> openVectorSource(
+            File eventsFile, AbstractMIProximity weighting)
+            throws IOException {
+        final FastWeightedTokenPairVectorSource events =
+                openEventsSource(eventsFile);
+        return weighting == null ? events
+               : new PositiveInformationSource<Tell>(events, weighting);
+    }
+
+    private MappedVectorStore openVectorStore(File eventsFile,
+                                              AbstractMIProximity weighting)
+            throws IOException {
+        final File file = getTempFileFactory().createFile("vectors", ".bin");
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Converting events file " + eventsFile
+                    + " to vector store " + file);
+        }
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, Tell> events =
+                openVectorSource(eventsFile, weighting);
+        final int count = MappedVectorStore.write(events, file);
+        if (events instanceof Closeable)
+            ((Closeable) events).close();
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Stored {0} vectors ({1}.)", count,
+                    MiscUtil.humanReadableBytes(file.length())));
+        }
+        return MappedVectorStore.open(file);
+    }
+
+    /**
+     * Count the vectors and non-zero elements of the given source, leaving it
+     * at the position it started from.
+     *
+     * @return the number of vectors, followed by the number of non-zeros
+     */
+    private static <P> long[] profile(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, P> source)
+            throws IOException {
+        final P start = source.position();
+        long vectors = 0;
+        long nonZeros = 0;
+        while (source.hasNext()) {
+            nonZeros += source.read().value().size;
+            ++vectors;
+        }
+        source.position(start);
+        return new long[]{vectors, nonZeros};
+    }
+
+    /**
+     * Describe the inputs and parameters that determine the output of each
+     * chunk pair, so a journal written by a different run is not resumed.
+     */
+    private String checkpointFingerprint() throws IOException {
+        return searchFingerprint() + " shard=" + getShard();
+    }
+
+    /**
+     * Describe the inputs and parameters that determine the output of the
+     * search as a whole, so that the output of shards from different
+     * searches is not merged. Input files are identified by their content
+     * rather than their modification time, since a full build regenerates
+     * them.
+     */
+    private String searchFingerprint() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("events=").append(checksum(getEventsFile()));
+        if (getQueryEventsFile() != null)
+            sb.append(" queryEvents=").append(checksum(getQueryEventsFile()));
+        if (getFeaturesFile() != null && getFeaturesFile().isFile())
+            sb.append(" features=").append(checksum(getFeaturesFile()));
+        sb.append(" measure=").append(getMeasureName());
+        sb.append(" measureReversed=").append(isMeasureReversed());
+        sb.append(" leeAlpha=").append(getLeeAlpha());
+        sb.append(" crmiBeta=").append(getCrmiBeta());
+        sb.append(" crmiGamma=").append(getCrmiGamma());
+        sb.append(" minkP=").append(getMinkP());
+        sb.append(" minSimilarity=").append(getMinSimilarity());
+        sb.append(" maxSimilarity=").append(getMaxSimilarity());
+        sb.append(" outputIdentityPairs=").append(isOutputIdentityPairs());
+        sb.append(" topK=").append(getTopK());
+        sb.append(" chunkSize=").append(getChunkSize());
+        sb.append(" chunkNonZeros=").append(getChunkNonZeros());
+        sb.append(" algorithm=").append(getAlgorithm());
+        if (getAlgorithm() == Algorithm.Lsh) {
+            sb.append(" lshBands=").append(getLshBands());
+            sb.append(" lshRows=").append(getLshRows());
+            sb.append(" lshSeed=").append(getLshSeed());
+        }
+        return sb.toString();
+    }
+
+    private static String checksum(File file) throws IOException {
+        final Adler32 checksum = new Adler32();
+        final InputStream in = new BufferedInputStream(
+                new FileInputStream(file));
+        try {
+            final byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                checksum.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return file.length() + ":" + Long.toHexString(checksum.getValue());
+    }
+
     private WeightedTokenPairSink openSimsSink() throws IOException {
         return BybloIO.openSimsSink(
                 getOutputFile(), getCharset(),
@@ -425,32 +844,31 @@ public class AllPairsCommand extends AbstractCommand {
 
     }
 
-    private Predicate<Weighted<TokenPair>> getProductionFilter() {
-        List<Predicate<Weighted<TokenPair>>> pairFilters =
-                new ArrayList<Predicate<Weighted<TokenPair>>>();
+    private WeightedTokenPairSink openNeighboursSink() throws IOException {
+        return BybloIO.openNeighboursSink(
+                getOutputFile(), getCharset(),
+                EnumeratingDeligates.toSingleEntries(getIndexDeligate()));
+    }
+
+    private WeightedTokenPairPredicate getProductionFilter() {
+        List<WeightedTokenPairPredicate> pairFilters =
+                new ArrayList<WeightedTokenPairPredicate>();
 
         if (getMinSimilarity() != Double.NEGATIVE_INFINITY) {
-            pairFilters.add(Weighted.<TokenPair>greaterThanOrEqualTo(
+            pairFilters.add(WeightedTokenPairPredicate.weightAtLeast(
                     getMinSimilarity()));
         }
 
         if (getMaxSimilarity() != Double.POSITIVE_INFINITY) {
-            pairFilters.add(Weighted.<TokenPair>lessThanOrEqualTo(
+            pairFilters.add(WeightedTokenPairPredicate.weightAtMost(
                     getMaxSimilarity()));
         }
 
         if (!isOutputIdentityPairs()) {
-            pairFilters.add(Predicates.not(Predicates.compose(
-                    TokenPair.identity(), Weighted.<TokenPair>recordFunction())));
+            pairFilters.add(WeightedTokenPairPredicate.notIdentity());
         }
 
-        if (pairFilters.size() == 1) {
-            return pairFilters.get(0);
-        } else if (pairFilters.size() > 1) {
-            return Predicates.<Weighted<TokenPair>>and(pairFilters);
-        } else {
-            return Predicates.alwaysTrue();
-        }
+        return WeightedTokenPairPredicate.and(pairFilters);
     }
 
     @SuppressWarnings("unchecked")
@@ -500,21 +918,37 @@ public class AllPairsCommand extends AbstractCommand {
     protected ToStringHelper toStringHelper() {
         return super.toStringHelper().
                 add("eventsIn", getEventsFile()).
+                add("queryEventsIn", getQueryEventsFile()).
                 add("entriesIn", getEntriesFile()).
                 add("featuresIn", getFeaturesFile()).
                 add("simsOut", getOutputFile()).
                 add("charset", getCharset()).
                 add("chunkSize", getChunkSize()).
+                add("chunkNonZeros", getChunkNonZeros()).
+                add("orderByCost", isOrderByCost()).
                 add("threads", getNumThreads()).
+                add("maxHeapFraction", getMaxHeapFraction()).
+                add("workStealing", isWorkStealing()).
+                add("spillRuns", isSpillRuns()).
+                add("reparseEvents", isReparseEvents()).
+                add("checkpointDir", getCheckpointDir()).
+                add("shard", getShard()).
+                add("temp", getTempFileFactory()).
                 add("minSimilarity", getMinSimilarity()).
                 add("maxSimilarity", getMaxSimilarity()).
                 add("outputIdentityPairs", isOutputIdentityPairs()).
+                add("topK", getTopK()).
                 add("measure", getMeasureName()).
                 add("measureReversed", isMeasureReversed()).
                 add("leeAlpha", getLeeAlpha()).
                 add("crmiBeta", getCrmiBeta()).
                 add("crmiGamma", getCrmiGamma()).
-                add("minkP", getMinkP());
+                add("minkP", getMinkP()).
+                add("algorithm", getAlgorithm()).
+                add("lshBands", getLshBands()).
+                add("lshRows", getLshRows()).
+                add("lshSeed", getLshSeed()).
+                add("lshRecallSample", getLshRecallSample());
     }
 
     public Algorithm getAlgorithm() {
@@ -535,6 +969,20 @@ public class AllPairsCommand extends AbstractCommand {
         this.eventsFile = eventsFile;
     }
 
+    public final File getQueryEventsFile() {
+        return queryEventsFile;
+    }
+
+    /**
+     * Set the events file of query entries, which are compared against the
+     * events file, or null to compare all pairs of the events file.
+     *
+     * @param queryEventsFile query events file, or null
+     */
+    public final void setQueryEventsFile(File queryEventsFile) {
+        this.queryEventsFile = queryEventsFile;
+    }
+
     public final File getFeaturesFile() {
         return featuresFile;
     }
@@ -580,6 +1028,23 @@ public class AllPairsCommand extends AbstractCommand {
         this.chunkSize = chunkSize;
     }
 
+    public final long getChunkNonZeros() {
+        return chunkNonZeros;
+    }
+
+    public final void setChunkNonZeros(long chunkNonZeros) {
+        Checks.checkRangeIncl("chunkNonZeros", chunkNonZeros, 0, Long.MAX_VALUE);
+        this.chunkNonZeros = chunkNonZeros;
+    }
+
+    public final boolean isOrderByCost() {
+        return orderByCost;
+    }
+
+    public final void setOrderByCost(boolean orderByCost) {
+        this.orderByCost = orderByCost;
+    }
+
     public final int getNumThreads() {
         return numThreads;
     }
@@ -589,6 +1054,65 @@ public class AllPairsCommand extends AbstractCommand {
         this.numThreads = nThreads;
     }
 
+    public final double getMaxHeapFraction() {
+        return maxHeapFraction;
+    }
+
+    public final void setMaxHeapFraction(double maxHeapFraction) {
+        Checks.checkRangeIncl("maxHeapFraction", maxHeapFraction, 0, 1);
+        this.maxHeapFraction = maxHeapFraction;
+    }
+
+    public final boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    public final void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    public final boolean isSpillRuns() {
+        return spillRuns;
+    }
+
+    public final void setSpillRuns(boolean spillRuns) {
+        this.spillRuns = spillRuns;
+    }
+
+    public final boolean isReparseEvents() {
+        return reparseEvents;
+    }
+
+    public final void setReparseEvents(boolean reparseEvents) {
+        this.reparseEvents = reparseEvents;
+    }
+
+    public final File getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    public final void setCheckpointDir(File checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    public final Shard getShard() {
+        return shard;
+    }
+
+    public final void setShard(Shard shard) {
+        Checks.checkNotNull("shard", shard);
+        this.shard = shard;
+    }
+
+    public final FileFactory getTempFileFactory() {
+        return tempFileFactory;
+    }
+
+    public final void setTempFileFactory(FileFactory tempFileFactory) {
+        Checks.checkNotNull("tempFileFactory", tempFileFactory);
+        this.tempFileFactory = tempFileFactory;
+    }
+
     public final double getMinSimilarity() {
         return minSimilarity;
     }
@@ -615,6 +1139,15 @@ public class AllPairsCommand extends AbstractCommand {
         this.outputIdentityPairs = outputIdentityPairs;
     }
 
+    public final int getTopK() {
+        return topK;
+    }
+
+    public final void setTopK(int topK) {
+        Checks.checkRangeIncl("topK", topK, 0, Integer.MAX_VALUE);
+        this.topK = topK;
+    }
+
     public final String getMeasureName() {
         return measureName;
     }
@@ -665,6 +1198,41 @@ public class AllPairsCommand extends AbstractCommand {
         this.minkP = minkP;
     }
 
+    public final int getLshBands() {
+        return lshBands;
+    }
+
+    public final void setLshBands(int lshBands) {
+        Checks.checkRangeIncl("lshBands", lshBands, 1, Integer.MAX_VALUE);
+        this.lshBands = lshBands;
+    }
+
+    public final int getLshRows() {
+        return lshRows;
+    }
+
+    public final void setLshRows(int lshRows) {
+        Checks.checkRangeIncl("lshRows", lshRows, 0, Integer.MAX_VALUE);
+        this.lshRows = lshRows;
+    }
+
+    public final long getLshSeed() {
+        return lshSeed;
+    }
+
+    public final void setLshSeed(long lshSeed) {
+        this.lshSeed = lshSeed;
+    }
+
+    public final double getLshRecallSample() {
+        return lshRecallSample;
+    }
+
+    public final void setLshRecallSample(double lshRecallSample) {
+        Checks.checkRangeIncl("lshRecallSample", lshRecallSample, 0, 1);
+        this.lshRecallSample = lshRecallSample;
+    }
+
     public final DoubleEnumerating getIndexDeligate() {
         return indexDeligate;
     }
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects.ToStringHelper;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDeligates;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.WeightSumReducerObjectSink;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.tasks.Shard;
+import uk.ac.susx.mlcl.byblo.tasks.ShardHeader;
+import uk.ac.susx.mlcl.byblo.tasks.SortedPairRuns;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDeligate;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.KFirstReducingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+
+/**
+ * Combines the output of every shard of a divided all-pairs search (produced
+ * by {@link AllPairsCommand} with the shard option) into a single sims file,
+ * or a neighbours file when k is given. The value of k must be the same as
+ * that given to each shard, since it determines the order of their output.
+ * <p/>
+ * Every shard file begins with a header identifying the shard, and the
+ * search it belongs to. The merge refuses to run unless it is given each
+ * shard of a single search exactly once.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Merge the output files of every shard of an all-pairs similarity search.")
+public class AllPairsMergeCommand extends AbstractCommand {
+
+    private static final Log LOG = LogFactory.getLog(AllPairsMergeCommand.class);
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDeligate = new DoubleEnumeratingDeligate();
+
+    @ParametersDelegate
+    private FileDeligate fileDeligate = new FileDeligate();
+
+    @Parameter(names = {"-i", "--input"},
+    description = "Shard output files. Every shard of the search must be given.",
+    required = true)
+    private List<File> shardFiles = new ArrayList<File>();
+
+    @Parameter(names = {"-o", "--output"},
+    description = "Output similarity matrix file.",
+    required = true,
+    validateWith = OutputFileValidator.class)
+    private File outputFile;
+
+    @Parameter(names = {"-k", "--top-k"},
+    description = "Output only the top K neighbours for each entry; as given to each shard.")
+    private int topK = 0;
+
+    @Parameter(names = {"-t", "--threads"},
+    description = "Number of concurrent intermediate merges, when there are many shards.")
+    private int numThreads = Runtime.getRuntime().availableProcessors() + 1;
+
+    @Parameter(names = {"-T", "--temporary-directory"},
+    description = "Directory which will be used for storing temporary files.",
+    converter = TempFileFactoryConverter.class)
+    private FileFactory tempFileFactory = new TempFileFactory();
+
+    public AllPairsMergeCommand(List<File> shardFiles, File outputFile,
+                                Charset charset,
+                                DoubleEnumerating indexDeligate) {
+        setShardFiles(shardFiles);
+        setOutputFile(outputFile);
+        setCharset(charset);
+        setIndexDeligate(indexDeligate);
+    }
+
+    public AllPairsMergeCommand() {
+    }
+
+    @Override
+    public void runCommand() throws Exception {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Merging all-pairs shards.");
+        }
+
+        final List<ShardHeader> headers = readShardHeaders(getShardFiles());
+
+        final SortedPairRuns runs = new SortedPairRuns(
+                getTempFileFactory(), getTopK() > 0
+                                      ? WeightedTokenPairBuffer.Order.NEIGHBOURS
+                                      : WeightedTokenPairBuffer.Order.INDEX);
+        for (int i = 0; i < getShardFiles().size(); i++) {
+            runs.addRun(getShardFiles().get(i), headers.get(i));
+        }
+
+        final ObjectSink<Weighted<TokenPair>> sink;
+        if (getTopK() > 0) {
+            sink = new KFirstReducingObjectSink<Weighted<TokenPair>>(
+                    new WeightSumReducerObjectSink<TokenPair>(
+                    BybloIO.openNeighboursSink(
+                    getOutputFile(), getCharset(),
+                    EnumeratingDeligates.toSingleEntries(getIndexDeligate()))),
+                    Weighted.recordOrder(TokenPair.firstIndexOrder()),
+                    getTopK());
+        } else {
+            sink = BybloIO.openSimsSink(
+                    getOutputFile(), getCharset(),
+                    EnumeratingDeligates.toSingleEntries(getIndexDeligate()));
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Merging {0} pairs from {1} shards.",
+                    runs.getPairCount(), runs.getRunCount()));
+        }
+        runs.mergeTo(sink, getNumThreads());
+
+        if (sink instanceof Flushable)
+            ((Flushable) sink).flush();
+        if (sink instanceof Closeable)
+            ((Closeable) sink).close();
+
+        if (indexDeligate.isEnumeratorOpen()) {
+            indexDeligate.saveEnumerator();
+            indexDeligate.closeEnumerator();
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Completed merging all-pairs shards.");
+        }
+    }
+
+    /**
+     * Read the header of every shard file, checking that together the files
+     * hold every shard of the same search exactly once.
+     *
+     * @param files shard output files
+     * @return the header of each file, in the same order
+     * @throws IOException if a file can not be read, or is not a shard file
+     * @throws IllegalArgumentException if a file does not exist, the files
+     *      are from different searches, or a shard is missing or repeated
+     */
+    static List<ShardHeader> readShardHeaders(List<File> files)
+            throws IOException {
+        Checks.checkNotNull("files", files);
+        if (files.isEmpty())
+            throw new IllegalArgumentException("No shard files given.");
+
+        final List<ShardHeader> headers = new ArrayList<ShardHeader>();
+        for (File file : files) {
+            if (!file.isFile())
+                throw new IllegalArgumentException(
+                        "Shard file does not exist: " + file);
+            headers.add(ShardHeader.read(file));
+        }
+
+        final ShardHeader first = headers.get(0);
+        final int count = first.getShard().getCount();
+        final File[] seen = new File[count];
+        for (int i = 0; i < files.size(); i++) {
+            final ShardHeader header = headers.get(i);
+            if (!header.getFingerprint().equals(first.getFingerprint())
+                    || header.getShard().getCount() != count)
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "Shard files {0} and {1} are from different searches.",
+                        files.get(0), files.get(i)));
+            final int index = header.getShard().getIndex();
+            if (seen[index] != null)
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "Shard files {0} and {1} are both shard {2}.",
+                        seen[index], files.get(i), header.getShard()));
+            seen[index] = files.get(i);
+        }
+        for (int index = 0; index < count; index++) {
+            if (seen[index] == null)
+                throw new IllegalArgumentException(
+                        "Shard " + new Shard(index + 1, count) + " is missing.");
+        }
+        return headers;
+    }
+
+    public final List<File> getShardFiles() {
+        return shardFiles;
+    }
+
+    public final void setShardFiles(List<File> shardFiles) {
+        Checks.checkNotNull("shardFiles", shardFiles);
+        this.shardFiles = shardFiles;
+    }
+
+    public final File getOutputFile() {
+        return outputFile;
+    }
+
+    public final void setOutputFile(File outputFile) {
+        Checks.checkNotNull("outputFile", outputFile);
+        this.outputFile = outputFile;
+    }
+
+    public final Charset getCharset() {
+        return fileDeligate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        Checks.checkNotNull("charset", charset);
+        this.fileDeligate.setCharset(charset);
+    }
+
+    public final int getTopK() {
+        return topK;
+    }
+
+    public final void setTopK(int topK) {
+        Checks.checkRangeIncl("topK", topK, 0, Integer.MAX_VALUE);
+        this.topK = topK;
+    }
+
+    public final int getNumThreads() {
+        return numThreads;
+    }
+
+    public final void setNumThreads(int numThreads) {
+        Checks.checkRangeIncl("numThreads", numThreads, 1, Integer.MAX_VALUE);
+        this.numThreads = numThreads;
+    }
+
+    public final FileFactory getTempFileFactory() {
+        return tempFileFactory;
+    }
+
+    public final void setTempFileFactory(FileFactory tempFileFactory) {
+        Checks.checkNotNull("tempFileFactory", tempFileFactory);
+        this.tempFileFactory = tempFileFactory;
+    }
+
+    public final DoubleEnumerating getIndexDeligate() {
+        return indexDeligate;
+    }
+
+    public final void setIndexDeligate(DoubleEnumerating indexDeligate) {
+        Checks.checkNotNull("indexDeligate", indexDeligate);
+        this.indexDeligate = indexDeligate;
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("shardsIn", getShardFiles()).
+                add("simsOut", getOutputFile()).
+                add("charset", getCharset()).
+                add("topK", getTopK()).
+                add("threads", getNumThreads()).
+                add("temp", getTempFileFactory()).
+                add("indexing", getIndexDeligate());
+    }
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects.ToStringHelper;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import static java.text.MessageFormat.format;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import static uk.ac.susx.mlcl.byblo.commands.FilterCommand.FILTERED_ID;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenSink;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.MiscUtil;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDeligate;
+import uk.ac.susx.mlcl.lib.commands.InputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+
+/**
+ * Renumbers the features (and optionally the entries) of an enumerated set of
+ * frequency files, so that ids are assigned in order of descending document
+ * frequency; i.e the number of events in which each occurs. Features with the
+ * longest posting lists then have the smallest ids, so the data touched most
+ * often during all-pairs is kept together at the start of every vector and
+ * index.
+ * <p/>
+ * The events, features, and entries files are rewritten, along with the string
+ * enumerators of every renumbered column. Ties are broken by descending total
+ * frequency then by the original id, and the special filtered token always
+ * retains id {@link FilterCommand#FILTERED_ID}.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Renumber features (and optionally entries) by descending document frequency.")
+public class ReenumerateCommand extends AbstractCommand implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log LOG = LogFactory.getLog(ReenumerateCommand.class);
+
+    /**
+     * Number of records to read or write between progress updates.
+     */
+    private static final int PROGRESS_INTERVAL = 10000000;
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDeligate = new DoubleEnumeratingDeligate(
+            EnumeratorType.Memory, true, true, null, null);
+
+    @ParametersDelegate
+    private FileDeligate fileDeligate = new FileDeligate();
+
+    @Parameter(names = {"-iv", "--input-events"},
+    required = true,
+    description = "Input event frequencies file.",
+    validateWith = InputFileValidator.class)
+    private File inputEventsFile;
+
+    @Parameter(names = {"-ie", "--input-entries"},
+    required = true,
+    description = "Input entry frequencies file.",
+    validateWith = InputFileValidator.class)
+    private File inputEntriesFile;
+
+    @Parameter(names = {"-if", "--input-features"},
+    required = true,
+    description = "Input features frequencies file.",
+    validateWith = InputFileValidator.class)
+    private File inputFeaturesFile;
+
+    @Parameter(names = {"-ov", "--output-events"},
+    required = true,
+    description = "Output event frequencies file.",
+    validateWith = OutputFileValidator.class)
+    private File outputEventsFile;
+
+    @Parameter(names = {"-oe", "--output-entries"},
+    required = true,
+    description = "Output entry frequencies file",
+    validateWith = OutputFileValidator.class)
+    private File outputEntriesFile;
+
+    @Parameter(names = {"-of", "--output-features"},
+    required = true,
+    description = "Output features frequencies file.",
+    validateWith = OutputFileValidator.class)
+    private File outputFeaturesFile;
+
+    @Parameter(names = {"-oXe", "--output-entries-index-file"},
+    description = "Output index file for enumerating entries. Required when entries are renumbered.")
+    private File outputEntryEnumeratorFile = null;
+
+    @Parameter(names = {"-oXf", "--output-features-index-file"},
+    description = "Output index file for enumerating features.",
+    required = true)
+    private File outputFeatureEnumeratorFile = null;
+
+    @Parameter(names = {"-re", "--reenumerate-entries"},
+    description = "Also renumber entries by descending document frequency.")
+    private boolean reenumerateEntries = false;
+
+    @Parameter(names = {"-T", "--temp-dir"},
+    description = "Temorary directory which will be used during re-enumeration.",
+    converter = TempFileFactoryConverter.class)
+    private FileFactory tempFiles = new TempFileFactory();
+
+    public ReenumerateCommand(File inputEntriesFile, File inputFeaturesFile,
+                              File inputEventsFile, File outputEntriesFile,
+                              File outputFeaturesFile, File outputEventsFile,
+                              Charset charset, DoubleEnumerating indexDeligate) {
+        setInputEntriesFile(inputEntriesFile);
+        setInputFeaturesFile(inputFeaturesFile);
+        setInputEventsFile(inputEventsFile);
+        setOutputEntriesFile(outputEntriesFile);
+        setOutputFeaturesFile(outputFeaturesFile);
+        setOutputEventsFile(outputEventsFile);
+        setCharset(charset);
+        setIndexDeligate(indexDeligate);
+    }
+
+    public ReenumerateCommand() {
+    }
+
+    @Override
+    public void runCommand() throws Exception {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Running re-enumeration.");
+        }
+
+        checkState();
+
+        final Int2IntMap entryDocFreqs = new Int2IntOpenHashMap();
+        final Int2IntMap featureDocFreqs = new Int2IntOpenHashMap();
+        countDocumentFrequencies(entryDocFreqs, featureDocFreqs);
+
+        final Int2IntMap entryIds;
+        if (isReenumerateEntries()) {
+            final WeightedTokenSource entriesSource = BybloIO.openEntriesSource(
+                    getInputEntriesFile(), getCharset(), getIndexDeligate());
+            final WeightedTokenSink entriesSink = BybloIO.openEntriesSink(
+                    getOutputEntriesFile(), getCharset(), getIndexDeligate());
+            entryIds = reenumerate(
+                    "entries", entriesSource, entriesSink, entryDocFreqs,
+                    getIndexDeligate().getEntryEnumerator(),
+                    getOutputEntryEnumeratorFile());
+        } else {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Copying entries file.");
+            }
+            getOutputEntriesFile().delete();
+            com.google.common.io.Files.copy(
+                    getInputEntriesFile(), getOutputEntriesFile());
+            entryIds = null;
+        }
+
+        final WeightedTokenSource featuresSource = BybloIO.openFeaturesSource(
+                getInputFeaturesFile(), getCharset(), getIndexDeligate());
+        final WeightedTokenSink featuresSink = BybloIO.openFeaturesSink(
+                getOutputFeaturesFile(), getCharset(), getIndexDeligate());
+        final Int2IntMap featureIds = reenumerate(
+                "features", featuresSource, featuresSink, featureDocFreqs,
+                getIndexDeligate().getFeatureEnumerator(),
+                getOutputFeatureEnumeratorFile());
+
+        // The input enumerators are unchanged, so they are closed without
+        // being saved.
+        getIndexDeligate().closeEnumerator();
+
+        final File unsortedEventsFile = tempFiles.createFile();
+        renumberEvents(unsortedEventsFile, entryIds, featureIds);
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Sorting renumbered events.");
+        }
+        final ExternalSortEventsCommand sortCmd = new ExternalSortEventsCommand(
+                unsortedEventsFile, getOutputEventsFile(), getCharset(),
+                getIndexDeligate());
+        sortCmd.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+        sortCmd.setTempFileFactory(tempFiles);
+        sortCmd.runCommand();
+
+        if (!unsortedEventsFile.delete() && LOG.isWarnEnabled()) {
+            LOG.warn(format("Unable to delete temporary file {0}",
+                            unsortedEventsFile));
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Completed re-enumeration.");
+        }
+    }
+
+    private void checkState() {
+        if (!getIndexDeligate().isEnumeratedFeatures())
+            throw new IllegalStateException(
+                    "Features must be enumerated to be renumbered.");
+        if (!getIndexDeligate().isEnumeratedEntries())
+            throw new IllegalStateException(
+                    "Entries must be enumerated to be renumbered.");
+        if (getIndexDeligate().getFeatureEnumeratorFile() == null)
+            throw new IllegalStateException(
+                    "Features index file has not been set.");
+        Checks.checkNotNull("outputFeatureEnumeratorFile",
+                            getOutputFeatureEnumeratorFile());
+        if (isReenumerateEntries()) {
+            if (getIndexDeligate().getEntryEnumeratorFile() == null)
+                throw new IllegalStateException(
+                        "Entries index file has not been set.");
+            Checks.checkNotNull("outputEntryEnumeratorFile",
+                                getOutputEntryEnumeratorFile());
+        }
+    }
+
+    /**
+     * Count the number of events in which every entry and feature occurs.
+     */
+    private void countDocumentFrequencies(Int2IntMap entryDocFreqs,
+                                          Int2IntMap featureDocFreqs)
+            throws IOException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Counting document frequencies.");
+        }
+
+        final WeightedTokenPairSource eventsSource = BybloIO.openEventsSource(
+                getInputEventsFile(), getCharset(), getIndexDeligate());
+        long readCount = 0;
+        while (eventsSource.hasNext()) {
+            final TokenPair event = eventsSource.read().record();
+            entryDocFreqs.put(event.id1(), entryDocFreqs.get(event.id1()) + 1);
+            featureDocFreqs.put(event.id2(), featureDocFreqs.get(event.id2()) + 1);
+            ++readCount;
+
+            if (readCount % PROGRESS_INTERVAL == 0 && LOG.isInfoEnabled()) {
+                LOG.info(format("Counted {0} events.", readCount));
+                LOG.debug(MiscUtil.memoryInfoString());
+            }
+        }
+        eventsSource.close();
+    }
+
+    /**
+     * Read every token frequency from the source, and write them to the sink
+     * under new ids assigned in descending document frequency order. The new
+     * ids are taken from a fresh enumerator at the output file, which is saved
+     * on completion.
+     *
+     * @return mapping from the old ids to the new ids
+     */
+    private Int2IntMap reenumerate(
+            String name, WeightedTokenSource source, WeightedTokenSink sink,
+            final Int2IntMap docFreqs, Enumerator<String> inputEnumerator,
+            File outputEnumeratorFile)
+            throws IOException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info(format("Renumbering {0}.", name));
+        }
+
+        final IntArrayList idList = new IntArrayList();
+        final DoubleArrayList weightList = new DoubleArrayList();
+        while (source.hasNext()) {
+            final Weighted<Token> record = source.read();
+            idList.add(record.record().id());
+            weightList.add(record.weight());
+        }
+        source.close();
+
+        final int[] ids = idList.toIntArray();
+        final double[] weights = weightList.toDoubleArray();
+        final int[] order = new int[ids.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int a, int b) {
+                if ((ids[a] == FILTERED_ID) != (ids[b] == FILTERED_ID))
+                    return ids[a] == FILTERED_ID ? -1 : 1;
+                final int dfA = docFreqs.get(ids[a]);
+                final int dfB = docFreqs.get(ids[b]);
+                if (dfA != dfB)
+                    return dfA > dfB ? -1 : 1;
+                final int c = Double.compare(weights[b], weights[a]);
+                if (c != 0)
+                    return c;
+                return ids[a] < ids[b] ? -1 : ids[a] > ids[b] ? 1 : 0;
+            }
+
+        });
+
+        final EnumeratorType type = getIndexDeligate().getEnuemratorType();
+        outputEnumeratorFile.delete();
+        final Enumerator<String> outputEnumerator = type.open(
+                outputEnumeratorFile);
+
+        final Int2IntMap newIds = new Int2IntOpenHashMap(ids.length + 1);
+        newIds.defaultReturnValue(Enumerator.NULL_INDEX);
+        newIds.put(FILTERED_ID, FILTERED_ID);
+
+        int expectedId = FILTERED_ID + 1;
+        for (int i : order) {
+            final int newId = outputEnumerator.indexOf(
+                    inputEnumerator.valueOf(ids[i]));
+            if (ids[i] == FILTERED_ID ? newId != FILTERED_ID
+                : newId != expectedId++) {
+                throw new IllegalStateException(format(
+                        "Output {0} index file {1} is not empty.",
+                        name, outputEnumeratorFile));
+            }
+            newIds.put(ids[i], newId);
+            sink.write(new Weighted<Token>(new Token(newId), weights[i]));
+        }
+        sink.flush();
+        sink.close();
+
+        type.save(outputEnumerator);
+        type.close(outputEnumerator);
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info(format("Renumbered {0} {1}.", ids.length, name));
+        }
+        return newIds;
+    }
+
+    /**
+     * Rewrite every event under the new entry and feature ids. When the entries
+     * are not renumbered <tt>entryIds</tt> is null. The output is not sorted.
+     */
+    private void renumberEvents(File outputFile, Int2IntMap entryIds,
+                                Int2IntMap featureIds)
+            throws IOException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Renumbering events.");
+        }
+
+        final WeightedTokenPairSource eventsSource = BybloIO.openEventsSource(
+                getInputEventsFile(), getCharset(), getIndexDeligate());
+        final WeightedTokenPairSink eventsSink = BybloIO.openEventsSink(
+                outputFile, getCharset(), getIndexDeligate());
+
+        long readCount = 0;
+        while (eventsSource.hasNext()) {
+            final Weighted<TokenPair> record = eventsSource.read();
+            final int entryId = entryIds == null
+                                ? record.record().id1()
+                                : entryIds.get(record.record().id1());
+            final int featureId = featureIds.get(record.record().id2());
+            if (entryId == Enumerator.NULL_INDEX
+                    || featureId == Enumerator.NULL_INDEX) {
+                throw new IllegalStateException(format(
+                        "Event {0} refers to a token that does not occur in "
+                        + "the entries or features file.", record));
+            }
+            eventsSink.write(new Weighted<TokenPair>(
+                    new TokenPair(entryId, featureId), record.weight()));
+            ++readCount;
+
+            if (readCount % PROGRESS_INTERVAL == 0 && LOG.isInfoEnabled()) {
+                LOG.info(format("Renumbered {0} events.", readCount));
+                LOG.debug(MiscUtil.memoryInfoString());
+            }
+        }
+        eventsSource.close();
+        eventsSink.flush();
+        eventsSink.close();
+    }
+
+    public final File getInputEventsFile() {
+        return inputEventsFile;
+    }
+
+    public final void setInputEventsFile(File inputEventsFile) {
+        Checks.checkNotNull("inputEventsFile", inputEventsFile);
+        this.inputEventsFile = inputEventsFile;
+    }
+
+    public final File getInputEntriesFile() {
+        return inputEntriesFile;
+    }
+
+    public final void setInputEntriesFile(File inputEntriesFile) {
+        Checks.checkNotNull("inputEntriesFile", inputEntriesFile);
+        this.inputEntriesFile = inputEntriesFile;
+    }
+
+    public final File getInputFeaturesFile() {
+        return inputFeaturesFile;
+    }
+
+    public final void setInputFeaturesFile(File inputFeaturesFile) {
+        Checks.checkNotNull("inputFeaturesFile", inputFeaturesFile);
+        this.inputFeaturesFile = inputFeaturesFile;
+    }
+
+    public final File getOutputEventsFile() {
+        return outputEventsFile;
+    }
+
+    public final void setOutputEventsFile(File outputEventsFile) {
+        Checks.checkNotNull("outputEventsFile", outputEventsFile);
+        this.outputEventsFile = outputEventsFile;
+    }
+
+    public final File getOutputEntriesFile() {
+        return outputEntriesFile;
+    }
+
+    public final void setOutputEntriesFile(File outputEntriesFile) {
+        Checks.checkNotNull("outputEntriesFile", outputEntriesFile);
+        this.outputEntriesFile = outputEntriesFile;
+    }
+
+    public final File getOutputFeaturesFile() {
+        return outputFeaturesFile;
+    }
+
+    public final void setOutputFeaturesFile(File outputFeaturesFile) {
+        Checks.checkNotNull("outputFeaturesFile", outputFeaturesFile);
+        this.outputFeaturesFile = outputFeaturesFile;
+    }
+
+    public final File getOutputEntryEnumeratorFile() {
+        return outputEntryEnumeratorFile;
+    }
+
+    public final void setOutputEntryEnumeratorFile(File outputEntryEnumeratorFile) {
+        this.outputEntryEnumeratorFile = outputEntryEnumeratorFile;
+    }
+
+    public final File getOutputFeatureEnumeratorFile() {
+        return outputFeatureEnumeratorFile;
+    }
+
+    public final void setOutputFeatureEnumeratorFile(File outputFeatureEnumeratorFile) {
+        Checks.checkNotNull("outputFeatureEnumeratorFile",
+                            outputFeatureEnumeratorFile);
+        this.outputFeatureEnumeratorFile = outputFeatureEnumeratorFile;
+    }
+
+    public final boolean isReenumerateEntries() {
+        return reenumerateEntries;
+    }
+
+    public final void setReenumerateEntries(boolean reenumerateEntries) {
+        this.reenumerateEntries = reenumerateEntries;
+    }
+
+    public final FileFactory getTempFiles() {
+        return tempFiles;
+    }
+
+    public final void setTempFiles(FileFactory tempFiles) {
+        Checks.checkNotNull("tempFiles", tempFiles);
+        this.tempFiles = tempFiles;
+    }
+
+    public final Charset getCharset() {
+        return fileDeligate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        Checks.checkNotNull("charset", charset);
+        this.fileDeligate.setCharset(charset);
+    }
+
+    public final DoubleEnumerating getIndexDeligate() {
+        return indexDeligate;
+    }
+
+    public final void setIndexDeligate(DoubleEnumerating indexDeligate) {
+        Checks.checkNotNull("indexDeligate", indexDeligate);
+        this.indexDeligate = indexDeligate;
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("eventsIn", getInputEventsFile()).
+                add("entriesIn", getInputEntriesFile()).
+                add("featuresIn", getInputFeaturesFile()).
+                add("eventsOut", getOutputEventsFile()).
+                add("entriesOut", getOutputEntriesFile()).
+                add("featuresOut", getOutputFeaturesFile()).
+                add("entriesIndexOut", getOutputEntryEnumeratorFile()).
+                add("featuresIndexOut", getOutputFeatureEnumeratorFile()).
+                add("reenumerateEntries", isReenumerateEntries()).
+                add("charset", getCharset()).
+                add("tmp", getTempFiles()).
+                add("indexing", getIndexDeligate());
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * A read-only store of pre-parsed feature vectors, held in a binary file that
+ * is memory mapped.
+ * <p/>
+ * Vectors read from the events file must be lexed, de-delta'd, enumerated and
+ * assembled every time the file is scanned. All-pairs scans source B once for
+ * every chunk of source A, so the parsing cost becomes quadratic in the
+ * number of entries. Converting the vectors once to this store makes every
+ * subsequent scan a simple copy out of the mapped file.
+ * <p/>
+ * The file holds one record per vector, consisting of the entry id, the
+ * cardinality, the number of non-zero elements, the sum of the values, then
+ * the keys and the values. The sum is stored rather than recomputed, so
+ * vectors read back are identical to those written. The records are followed by a table of record offsets, and finally
+ * a trailer giving the offset of the table, the number of records, and a
+ * magic number.
+ * <p/>
+ * A store can be read by any number of sources concurrently. Sources are
+ * positioned by the index of the next record.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MappedVectorStore {
+
+    private static final int MAGIC = 0x42595644;
+
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    /**
+     * Largest number of bytes mapped by a single buffer. A record never
+     * spans buffers.
+     */
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+
+    private final int size;
+
+    private final long[] offsets;
+
+    private final MappedByteBuffer[] segments;
+
+    private final long[] segmentStarts;
+
+    private final int[] recordSegments;
+
+    private MappedVectorStore(File file, long[] offsets,
+                              MappedByteBuffer[] segments,
+                              long[] segmentStarts, int[] recordSegments) {
+        this.file = file;
+        this.size = offsets.length;
+        this.offsets = offsets;
+        this.segments = segments;
+        this.segmentStarts = segmentStarts;
+        this.recordSegments = recordSegments;
+    }
+
+    /**
+     * Read every vector from the given source, writing them to a new store
+     * file.
+     *
+     * @param source vectors to store
+     * @param file destination file
+     * @return the number of vectors written
+     * @throws IOException if reading the source or writing the file fails
+     */
+    public static int write(ObjectSource<Indexed<SparseDoubleVector>> source,
+                            File file) throws IOException {
+        Checks.checkNotNull("source", source);
+        Checks.checkNotNull("file", file);
+
+        final List<Long> offsets = new ArrayList<Long>();
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            long offset = 0;
+            while (source.hasNext()) {
+                final Indexed<SparseDoubleVector> entry = source.read();
+                final SparseDoubleVector v = entry.value();
+                offsets.add(offset);
+                out.writeInt(entry.key());
+                out.writeInt(v.cardinality);
+                out.writeInt(v.size);
+                out.writeDouble(v.sum);
+                for (int i = 0; i < v.size; i++)
+                    out.writeInt(v.keys[i]);
+                for (int i = 0; i < v.size; i++)
+                    out.writeDouble(v.values[i]);
+                offset += RECORD_HEADER_SIZE + 12L * v.size;
+            }
+            for (long o : offsets)
+                out.writeLong(o);
+            out.writeLong(offset);
+            out.writeInt(offsets.size());
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        return offsets.size();
+    }
+
+    /**
+     * Open an existing store file, mapping it into memory.
+     *
+     * @param file store file, as produced by {@link #write}
+     * @return the store
+     * @throws IOException if the file can not be read, or is not a store
+     */
+    public static MappedVectorStore open(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            if (length < TRAILER_SIZE)
+                throw new IOException("Not a vector store: " + file);
+
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, length - TRAILER_SIZE);
+            trailer.flip();
+            final long tableOffset = trailer.getLong();
+            final int size = trailer.getInt();
+            if (trailer.getInt() != MAGIC
+                    || tableOffset + 8L * size + TRAILER_SIZE != length)
+                throw new IOException("Not a vector store: " + file);
+
+            final long[] offsets = new long[size];
+            final ByteBuffer table = ByteBuffer.allocate(8 * size);
+            readFully(channel, table, tableOffset);
+            table.flip();
+            final LongBuffer longs = table.asLongBuffer();
+            longs.get(offsets);
+
+            // Split the records into segments of at most MAX_SEGMENT_SIZE
+            // bytes, starting each segment on a record boundary.
+            final List<Long> starts = new ArrayList<Long>();
+            final int[] recordSegments = new int[size];
+            for (int i = 0; i < size; i++) {
+                final long end = i + 1 < size ? offsets[i + 1] : tableOffset;
+                if (starts.isEmpty()
+                        || end - starts.get(starts.size() - 1) > MAX_SEGMENT_SIZE)
+                    starts.add(offsets[i]);
+                recordSegments[i] = starts.size() - 1;
+            }
+
+            final MappedByteBuffer[] segments =
+                    new MappedByteBuffer[starts.size()];
+            final long[] segmentStarts = new long[starts.size()];
+            for (int s = 0; s < segments.length; s++) {
+                segmentStarts[s] = starts.get(s);
+                final long end = s + 1 < segments.length
+                                 ? starts.get(s + 1) : tableOffset;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          segmentStarts[s],
+                                          end - segmentStarts[s]);
+            }
+
+            return new MappedVectorStore(file, offsets, segments,
+                                         segmentStarts, recordSegments);
+        } finally {
+            // The mappings remain valid once the channel is closed
+            raf.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+            position += n;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of vectors in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Read the vector at the given index.
+     *
+     * @param index record index
+     * @param segments buffers to read from, duplicated from those of the
+     *                 store, so reads from different sources don't interfere
+     * @return the vector at the index
+     */
+    private Indexed<SparseDoubleVector> read(int index,
+                                             ByteBuffer[] segments) {
+        final int s = recordSegments[index];
+        final ByteBuffer buffer = segments[s];
+        buffer.position((int) (offsets[index] - segmentStarts[s]));
+        final int id = buffer.getInt();
+        final int cardinality = buffer.getInt();
+        final int nnz = buffer.getInt();
+        final double sum = buffer.getDouble();
+        final int[] keys = new int[nnz];
+        final double[] values = new double[nnz];
+        buffer.asIntBuffer().get(keys);
+        buffer.position(buffer.position() + 4 * nnz);
+        buffer.asDoubleBuffer().get(values);
+        final SparseDoubleVector vec =
+                new SparseDoubleVector(keys, values, cardinality, nnz);
+        vec.sum = sum;
+        return new Indexed<SparseDoubleVector>(id, vec);
+    }
+
+    /**
+     * Open a new source over every vector in the store. Each source has its
+     * own position, so a source must only be used by one thread at a time,
+     * but any number of sources may be used concurrently.
+     *
+     * @return a new source, positioned at the first vector
+     */
+    public SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> openSource() {
+        final ByteBuffer[] duplicates = new ByteBuffer[segments.length];
+        for (int s = 0; s < segments.length; s++)
+            duplicates[s] = segments[s].duplicate();
+
+        return new SeekableObjectSource<Indexed<SparseDoubleVector>, Integer>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Indexed<SparseDoubleVector> read() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return MappedVectorStore.this.read(next++, duplicates);
+            }
+
+            @Override
+            public void position(Integer offset) {
+                Checks.checkRangeIncl("offset", offset, 0, size);
+                next = offset;
+            }
+
+            @Override
+            public Integer position() {
+                return next;
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("file", file).
+                add("size", size).
+                add("segments", segments.length).
+                toString();
+    }
+
+}
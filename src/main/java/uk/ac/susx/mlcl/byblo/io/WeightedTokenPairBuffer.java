@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.util.Comparator;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.Comparators;
+
+/**
+ * A growable buffer of weighted token pairs, held in parallel primitive
+ * arrays rather than as {@link Weighted}&lt;{@link TokenPair}&gt; objects.
+ * <p/>
+ * Adding a pair to the buffer allocates nothing (except when the buffer
+ * grows), and the buffer can be sorted in place, so large numbers of pairs
+ * can be produced, sorted, and written out without creating garbage.
+ * <p/>
+ * Instances are not thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class WeightedTokenPairBuffer {
+
+    /**
+     * Orders in which the buffer can be sorted.
+     */
+    public enum Order {
+
+        /**
+         * Ascending by first id, then by second id; the order of sims files.
+         */
+        INDEX {
+
+            @Override
+            int compare(WeightedTokenPairBuffer b, int i, int j) {
+                int c = compareInts(b.id1s[i], b.id1s[j]);
+                return c != 0 ? c : compareInts(b.id2s[i], b.id2s[j]);
+            }
+
+            @Override
+            public Comparator<Weighted<TokenPair>> comparator() {
+                return Weighted.recordOrder(TokenPair.indexOrder());
+            }
+
+        },
+        /**
+         * Ascending by first id, then descending by weight, then ascending by
+         * second id; the order of neighbours files.
+         */
+        NEIGHBOURS {
+
+            @Override
+            int compare(WeightedTokenPairBuffer b, int i, int j) {
+                int c = compareInts(b.id1s[i], b.id1s[j]);
+                if (c != 0)
+                    return c;
+                c = Double.compare(b.weights[j], b.weights[i]);
+                return c != 0 ? c : compareInts(b.id2s[i], b.id2s[j]);
+            }
+
+            @Override
+            public Comparator<Weighted<TokenPair>> comparator() {
+                return Comparators.fallback(
+                        Weighted.recordOrder(TokenPair.firstIndexOrder()),
+                        Comparators.fallback(
+                        Comparators.reverse(Weighted.<TokenPair>weightOrder()),
+                        Weighted.recordOrder(TokenPair.secondIndexOrder())));
+            }
+
+        };
+
+        abstract int compare(WeightedTokenPairBuffer buffer, int i, int j);
+
+        /**
+         * @return comparator of pair objects that is consistent with this
+         *         order
+         */
+        public abstract Comparator<Weighted<TokenPair>> comparator();
+
+        private static int compareInts(int x, int y) {
+            return x < y ? -1 : x > y ? 1 : 0;
+        }
+
+    }
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    private int[] id1s;
+
+    private int[] id2s;
+
+    private double[] weights;
+
+    private int size = 0;
+
+    public WeightedTokenPairBuffer(int initialCapacity) {
+        Checks.checkRangeIncl("initialCapacity", initialCapacity,
+                              1, Integer.MAX_VALUE);
+        id1s = new int[initialCapacity];
+        id2s = new int[initialCapacity];
+        weights = new double[initialCapacity];
+    }
+
+    public WeightedTokenPairBuffer() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public void add(int id1, int id2, double weight) {
+        if (size == id1s.length)
+            grow();
+        id1s[size] = id1;
+        id2s[size] = id2;
+        weights[size] = weight;
+        ++size;
+    }
+
+    private void grow() {
+        final int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                                            2L * id1s.length);
+        id1s = java.util.Arrays.copyOf(id1s, capacity);
+        id2s = java.util.Arrays.copyOf(id2s, capacity);
+        weights = java.util.Arrays.copyOf(weights, capacity);
+    }
+
+    public int id1(int i) {
+        checkIndex(i);
+        return id1s[i];
+    }
+
+    public int id2(int i) {
+        checkIndex(i);
+        return id2s[i];
+    }
+
+    public double weight(int i) {
+        checkIndex(i);
+        return weights[i];
+    }
+
+    /**
+     * Instantiate the pair at the given index as an object. This allocates,
+     * so should be avoided on performance critical paths.
+     *
+     * @param i index of the pair
+     * @return a new object holding the pair at index i
+     */
+    public Weighted<TokenPair> get(int i) {
+        checkIndex(i);
+        return new Weighted<TokenPair>(
+                new TokenPair(id1s[i], id2s[i]), weights[i]);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException(
+                    "index " + i + " out of bounds for size " + size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all the pairs from the buffer, retaining its capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sort the pairs in the buffer in place.
+     *
+     * @param order order to sort into
+     */
+    public void sort(final Order order) {
+        Checks.checkNotNull("order", order);
+        Arrays.quickSort(0, size, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                return order.compare(WeightedTokenPairBuffer.this, i, j);
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final int id1 = id1s[i];
+                id1s[i] = id1s[j];
+                id1s[j] = id1;
+                final int id2 = id2s[i];
+                id2s[i] = id2s[j];
+                id2s[j] = id2;
+                final double weight = weights[i];
+                weights[i] = weights[j];
+                weights[j] = weight;
+            }
+
+        });
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("size", size).
+                add("capacity", id1s.length).
+                toString();
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Predicate;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * A predicate over weighted token pairs that can be applied directly to the
+ * primitive components of a pair, so pairs can be filtered without first
+ * being instantiated as objects.
+ * <p/>
+ * Predicates over pair objects can be adapted with {@link #of(Predicate)},
+ * though this loses the benefit of primitive application.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public abstract class WeightedTokenPairPredicate
+        implements Predicate<Weighted<TokenPair>> {
+
+    /**
+     * @param id1 first token id
+     * @param id2 second token id
+     * @param weight weight of the pair
+     * @return true if the pair is accepted, false otherwise
+     */
+    public abstract boolean apply(int id1, int id2, double weight);
+
+    @Override
+    public final boolean apply(Weighted<TokenPair> pair) {
+        return apply(pair.record().id1(), pair.record().id2(), pair.weight());
+    }
+
+    public static WeightedTokenPairPredicate alwaysTrue() {
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "AlwaysTrue";
+            }
+
+        };
+    }
+
+    public static WeightedTokenPairPredicate weightAtLeast(final double min) {
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                return weight >= min;
+            }
+
+            @Override
+            public String toString() {
+                return "WeightAtLeast{" + min + "}";
+            }
+
+        };
+    }
+
+    public static WeightedTokenPairPredicate weightAtMost(final double max) {
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                return weight <= max;
+            }
+
+            @Override
+            public String toString() {
+                return "WeightAtMost{" + max + "}";
+            }
+
+        };
+    }
+
+    /**
+     * @return predicate that rejects pairs where both ids are the same
+     */
+    public static WeightedTokenPairPredicate notIdentity() {
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                return id1 != id2;
+            }
+
+            @Override
+            public String toString() {
+                return "NotIdentity";
+            }
+
+        };
+    }
+
+    /**
+     * @param components predicates to combine
+     * @return predicate that accepts pairs accepted by every component
+     */
+    public static WeightedTokenPairPredicate and(
+            List<? extends WeightedTokenPairPredicate> components) {
+        Checks.checkNotNull("components", components);
+        final WeightedTokenPairPredicate[] array =
+                components.toArray(new WeightedTokenPairPredicate[0]);
+        if (array.length == 0)
+            return alwaysTrue();
+        if (array.length == 1)
+            return array[0];
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                for (WeightedTokenPairPredicate p : array) {
+                    if (!p.apply(id1, id2, weight))
+                        return false;
+                }
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "And" + java.util.Arrays.toString(array);
+            }
+
+        };
+    }
+
+    /**
+     * Adapt a predicate over pair objects. If the predicate is already a
+     * <tt>WeightedTokenPairPredicate</tt> it is returned as is; otherwise
+     * each application instantiates the pair.
+     *
+     * @param predicate predicate to adapt
+     * @return primitive predicate equivalent to the given one
+     */
+    public static WeightedTokenPairPredicate of(
+            final Predicate<? super Weighted<TokenPair>> predicate) {
+        Checks.checkNotNull("predicate", predicate);
+        if (predicate instanceof WeightedTokenPairPredicate)
+            return (WeightedTokenPairPredicate) predicate;
+        return new WeightedTokenPairPredicate() {
+
+            @Override
+            public boolean apply(int id1, int id2, double weight) {
+                return predicate.apply(new Weighted<TokenPair>(
+                        new TokenPair(id1, id2), weight));
+            }
+
+            @Override
+            public String toString() {
+                return predicate.toString();
+            }
+
+        };
+    }
+
+}
@@ -90,12 +90,36 @@ public class WeightedTokenPairSink
 
     @Override
     public void write(Weighted<TokenPair> record) throws IOException {
-        inner.writeInt(record.record().id1());
-        inner.writeInt(record.record().id2());
-        inner.writeDouble(record.weight());
+        write(record.record().id1(), record.record().id2(), record.weight());
+    }
+
+    /**
+     * Write a pair given as its primitive components, without requiring it
+     * to be instantiated as an object.
+     *
+     * @param id1 first token id
+     * @param id2 second token id
+     * @param weight weight of the pair
+     * @throws IOException if the underlying sink fails to write
+     */
+    public void write(int id1, int id2, double weight) throws IOException {
+        inner.writeInt(id1);
+        inner.writeInt(id2);
+        inner.writeDouble(weight);
         inner.endOfRecord();
     }
 
+    /**
+     * Write every pair in the buffer, in the order they are held.
+     *
+     * @param buffer pairs to write
+     * @throws IOException if the underlying sink fails to write
+     */
+    public void writeAll(WeightedTokenPairBuffer buffer) throws IOException {
+        for (int i = 0; i < buffer.size(); i++)
+            write(buffer.id1(i), buffer.id2(i), buffer.weight(i));
+    }
+
     @Override
     public void close() throws IOException {
         if (inner instanceof Closeable)
@@ -68,6 +68,13 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      */
     private long occuringFeatureCount;
 
+    /**
+     * Whether the vectors being compared have already been transformed by
+     * {@link #positiveInformation(SparseDoubleVector)}, so that the value of
+     * each feature is its positive information.
+     */
+    private boolean preWeighted = false;
+
     /**
      *
      */
@@ -114,6 +121,66 @@ public abstract class AbstractMIProximity extends AbstractProximity {
         return occuringFeatureCount;
     }
 
+    /**
+     * Whether the measure can be calculated from vectors that have been
+     * transformed by {@link #positiveInformation(SparseDoubleVector)}. Measures
+     * that depend on the feature probabilities directly, rather than only on
+     * their positive information, should return false.
+     *
+     * @return true if the measure supports pre-weighted vectors
+     */
+    public boolean isPreWeightingSupported() {
+        return true;
+    }
+
+    public final boolean isPreWeighted() {
+        return preWeighted;
+    }
+
+    /**
+     * Set whether the vectors being compared have already been transformed by
+     * {@link #positiveInformation(SparseDoubleVector)}. The positive
+     * information of each feature is then read from the vector, rather than
+     * being calculated on every comparison.
+     *
+     * @param preWeighted true if the vectors have been transformed
+     * @throws UnsupportedOperationException if the measure does not support
+     *      pre-weighted vectors
+     */
+    public void setPreWeighted(boolean preWeighted) {
+        if (preWeighted && !isPreWeightingSupported())
+            throw new UnsupportedOperationException(
+                    "Pre-weighted vectors are not supported by " + this);
+        this.preWeighted = preWeighted;
+    }
+
+    /**
+     * Transform the vector into its positive information weights, with
+     * respect to the feature information held by this class. Features without
+     * positive information are retained with a weight of zero, so that the
+     * transformed vectors share exactly the same features as the originals.
+     * The sum of the transformed vector is the total positive information,
+     * as pre-weighted measures read it in place of summing the weights.
+     *
+     * @param V vector of feature frequencies
+     * @return vector of positive information weights
+     */
+    public final SparseDoubleVector positiveInformation(
+            final SparseDoubleVector V) {
+        final int[] keys = new int[V.size];
+        final double[] values = new double[V.size];
+        double sum = 0;
+        for (int i = 0; i < V.size; i++) {
+            keys[i] = V.keys[i];
+            values[i] = calcPosInf(V.keys[i], V.values[i], V.sum);
+            sum += values[i];
+        }
+        final SparseDoubleVector W =
+                new SparseDoubleVector(keys, values, V.cardinality, V.size);
+        W.sum = sum;
+        return W;
+    }
+
     /**
      * Return the frequency of a particular feature, denoted by the index k.
      *
@@ -165,20 +232,56 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      * @return information content of V at i if positive, otherwise 0
      */
     protected final double posInf(final SparseDoubleVector V, final int i) {
-        final double tmp = (V.values[i] / V.sum) / featurePrior(V.keys[i]);
+        return preWeighted ? V.values[i]
+               : calcPosInf(V.keys[i], V.values[i], V.sum);
+    }
+
+    /**
+     * Calculate the positive information given by a feature with the given
+     * value, in a vector with the given sum.
+     *
+     * @param key feature id
+     * @param value the value of the feature in some vector
+     * @param sum the sum of all values in that vector
+     * @return information content of the feature if positive, otherwise 0
+     */
+    protected final double posInf(final int key, final double value,
+                                  final double sum) {
+        return preWeighted ? value : calcPosInf(key, value, sum);
+    }
+
+    private double calcPosInf(final int key, final double value,
+                              final double sum) {
+        final double tmp = (value / sum) / featurePrior(key);
         return tmp > 1 ? (Math.log(tmp) / LOG_2) : 0;
     }
 
+    // The ratio of probabilities is compared with 1, exactly as it is in
+    // calcPosInf, so that a feature has positive information if and only if
+    // it survives the positiveInformation transform.
+
     public boolean hasPosInf(final SparseDoubleVector V, final int i) {
-        return prob(V, i) > featurePrior(V.keys[i]);
+        return preWeighted ? V.values[i] > 0
+               : prob(V, i) / featurePrior(V.keys[i]) > 1;
     }
 
     // Calculate if the features would both have positive
     // information content w.r.t the feature data.
     public boolean hasPosInf(final SparseDoubleVector A, final int i,
                              final SparseDoubleVector B, final int j) {
+        if (preWeighted)
+            return A.values[i] > 0 && B.values[j] > 0;
         final double pC = featurePrior(A.keys[i]);
-        return prob(A, i) > pC && prob(B, j) > pC;
+        return prob(A, i) / pC > 1 && prob(B, j) / pC > 1;
+    }
+
+    public boolean hasPosInf(final int key,
+                             final double valueA, final double sumA,
+                             final double valueB, final double sumB) {
+        if (preWeighted)
+            return valueA > 0 && valueB > 0;
+        final double pC = featurePrior(key);
+        return (valueA / sumA) / pC > 1 && (valueB / sumB) / pC > 1;
     }
 
     protected final double prob(final SparseDoubleVector V, final int k) {
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * BatchProximity is an optional extension of {@link Proximity} for measures
+ * that can calculate the shared component of one vector against many others
+ * more cheaply than with repeated calls to
+ * {@link Proximity#shared(SparseDoubleVector, SparseDoubleVector)}.
+ * <p/>
+ * Any state that depends only on the fixed vector, such as a lookup table of
+ * its features, is built once for the whole batch. The vector may be fixed on
+ * either side, so that asymmetric measures can be batched whichever of the
+ * two sources is being iterated. Each result must be exactly the value that
+ * would have been returned by
+ * {@link Proximity#shared(SparseDoubleVector, SparseDoubleVector)}.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface BatchProximity extends Proximity {
+
+    /**
+     * Calculate the shared component of vector A with each of the first
+     * count vectors of Bs.
+     *
+     * @param A the first feature vector, common to every pair
+     * @param Bs the second feature vectors
+     * @param count number of vectors in Bs to compare
+     * @param out receives shared(A, Bs[i]) at each offset i
+     */
+    void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                    int count, double[] out);
+
+    /**
+     * Calculate the shared component of each of the first count vectors of
+     * As with vector B.
+     *
+     * @param As the first feature vectors
+     * @param B the second feature vector, common to every pair
+     * @param count number of vectors in As to compare
+     * @param out receives shared(As[i], B) at each offset i
+     */
+    void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                    int count, double[] out);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * BoundedProximity is an optional extension of {@link Proximity} for
+ * divergence based measures, whose similarity falls as a divergence is
+ * accumulated over the features of the vectors.
+ * <p/>
+ * When the similarity of a pair need only be known if it reaches some
+ * threshold, such as a minimum similarity or the similarity of the k-th
+ * nearest neighbour found so far, the accumulation can be abandoned as soon
+ * as the partial divergence shows the threshold can not be reached.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface BoundedProximity extends Proximity {
+
+    /**
+     * Allowance for rounding error when comparing a partial divergence with
+     * the divergence at which the threshold is crossed, relative to the
+     * larger of 1 and that divergence. The calculated divergence could
+     * otherwise end fractionally below a partial sum that had already
+     * exceeded it.
+     */
+    double ROUNDING_TOLERANCE = 1e-6;
+
+    /**
+     * Calculate the shared component of vectors A and B, unless it becomes
+     * certain part way through that their similarity is less than
+     * minSimilarity.
+     *
+     * @param A the first feature vector
+     * @param B the second feature vector
+     * @param minSimilarity similarity that the pair must reach to be of
+     *      interest
+     * @return exactly the value of
+     *      {@link Proximity#shared(SparseDoubleVector, SparseDoubleVector)},
+     *      or if minSimilarity is positive and the similarity is certainly
+     *      less than it, positive infinity (which the measure combines to a
+     *      similarity of 0)
+     */
+    double sharedBounded(SparseDoubleVector A, SparseDoubleVector B,
+                         double minSimilarity);
+}
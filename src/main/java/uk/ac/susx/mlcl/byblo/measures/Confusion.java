@@ -49,30 +49,27 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 @Beta
-public final class Confusion extends AbstractMIProximity {
+public final class Confusion extends AbstractMIProximity
+        implements BatchProximity {
+
+    private final SparseIntersection.Visitor sharedFeatures =
+            new SparseIntersection.Visitor() {
+
+                @Override
+                public double visit(SparseDoubleVector a, int i,
+                                    SparseDoubleVector b, int j) {
+                    if (isFiltered(a.keys[i]))
+                        return 0;
+                    return prob(a, i) * prob(b, j)
+                            / featurePrior(a.keys[i]);
+                }
+
+            };
 
     @Override
     public double shared(final SparseDoubleVector a,
                          final SparseDoubleVector b) {
-        double total = 0.0;
-
-        int i = 0, j = 0;
-        while (i < a.size && j < b.size) {
-            if (a.keys[i] < b.keys[j]) {
-                i++;
-            } else if (a.keys[i] > b.keys[j]) {
-                j++;
-            } else if (isFiltered(a.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                total += prob(a, i) * prob(b, j)
-                        / featurePrior(a.keys[i]);
-
-                i++;
-                j++;
-            }
-        }
+        double total = SparseIntersection.sum(a, b, sharedFeatures);
         total *= entryPrior(a);
 
         assert total >= 0.0 && total <= 1.0
@@ -80,6 +77,31 @@ public final class Confusion extends AbstractMIProximity {
         return total;
     }
 
+    @Override
+    public void sharedMany(final SparseDoubleVector a,
+                           final SparseDoubleVector[] bs,
+                           final int count, final double[] out) {
+        SparseIntersection.sumMany(a, bs, count, sharedFeatures, out);
+        final double prior = entryPrior(a);
+        for (int i = 0; i < count; i++) {
+            out[i] *= prior;
+            assert out[i] >= 0.0 && out[i] <= 1.0
+                    : "Expecting output in the range 0 to 1";
+        }
+    }
+
+    @Override
+    public void sharedMany(final SparseDoubleVector[] as,
+                           final SparseDoubleVector b,
+                           final int count, final double[] out) {
+        SparseIntersection.sumMany(as, b, count, sharedFeatures, out);
+        for (int i = 0; i < count; i++) {
+            out[i] *= entryPrior(as[i]);
+            assert out[i] >= 0.0 && out[i] <= 1.0
+                    : "Expecting output in the range 0 to 1";
+        }
+    }
+
     @Override
     public double left(final SparseDoubleVector a) {
         return 0;
@@ -96,6 +118,15 @@ public final class Confusion extends AbstractMIProximity {
         return shared;
     }
 
+    /**
+     * The measure depends on the feature probabilities, not only on their
+     * positive information.
+     */
+    @Override
+    public boolean isPreWeightingSupported() {
+        return false;
+    }
+
     @Override
     public boolean isSymmetric() {
         return false;
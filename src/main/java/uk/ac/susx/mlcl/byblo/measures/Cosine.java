@@ -37,30 +37,72 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Cosine extends AbstractProximity {
+public class Cosine extends AbstractProximity
+        implements DecomposableProximity, PrefixBoundedProximity,
+        BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0;
-
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += (A.values[i] / A.sum) * (B.values[j] / B.sum);
-                i++;
-                j++;
-            }
+        return SparseIntersection.sum(A, B, components);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        return isFiltered(key) ? 0 : (valueA / sumA) * (valueB / sumB);
+    }
+
+    @Override
+    public double prefixWeight(SparseDoubleVector V, int i) {
+        return V.values[i] * V.values[i];
+    }
+
+    @Override
+    public double maxSuffixWeight(SparseDoubleVector V, double threshold) {
+        // By Cauchy-Schwarz, the cosine of a pair sharing only suffix
+        // features is at most sqrt(suffix / norm)
+        if (threshold <= 0)
+            return 0;
+        final double t = maxSuffixCosine(threshold);
+        double normSquared = 0;
+        for (int i = 0; i < V.size; i++) {
+            normSquared += V.values[i] * V.values[i];
         }
+        return t * t * normSquared;
+    }
+
+    /**
+     * @param threshold minimum similarity
+     * @return maximum cosine of the suffix for which the threshold cannot be
+     *      reached
+     */
+    protected double maxSuffixCosine(double threshold) {
+        return threshold;
+    }
+
+    @Override
+    public boolean isPrefixOverlapRequired() {
+        return true;
+    }
 
-        return numerator;
+    @Override
+    public double upperBound(double left, double right) {
+        return 1;
     }
 
     @Override
@@ -35,29 +35,34 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class CosineMi extends AbstractMIProximity {
+public class CosineMi extends AbstractMIProximity
+        implements DecomposableProximity, BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0;
+        return SparseIntersection.sum(A, B, components);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += posInf(A, i) * posInf(B, j);
-                i++;
-                j++;
-            }
-        }
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
 
-        return numerator;
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        return isFiltered(key) ? 0
+                : posInf(key, valueA, sumA) * posInf(key, valueB, sumB);
     }
 
     @Override
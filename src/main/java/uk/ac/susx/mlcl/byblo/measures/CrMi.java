@@ -52,7 +52,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class CrMi extends AbstractMIProximity {
+public class CrMi extends AbstractMIProximity implements BatchProximity {
 
     public static final double DEFAULT_BETA = 0.5;
 
@@ -82,6 +82,12 @@ public class CrMi extends AbstractMIProximity {
         super.setFeatureFrequencySum(contextSum);
     }
 
+    @Override
+    public void setPreWeighted(boolean preWeighted) {
+        recallMi.setPreWeighted(preWeighted);
+        super.setPreWeighted(preWeighted);
+    }
+
     public final void setBeta(final double beta) {
         if (beta < 0 || beta > 1)
             throw new IllegalArgumentException(
@@ -108,7 +114,38 @@ public class CrMi extends AbstractMIProximity {
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         final double recall = recallMi.shared(A, B) / recallMi.left(A);
         final double precision = recallMi.shared(B, A) / recallMi.left(B);
+        return mean(precision, recall);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        final double[] reverse = new double[count];
+        recallMi.sharedMany(A, Bs, count, out);
+        recallMi.sharedMany(Bs, A, count, reverse);
+        final double leftA = recallMi.left(A);
+        for (int i = 0; i < count; i++) {
+            out[i] = mean(reverse[i] / recallMi.left(Bs[i]), out[i] / leftA);
+        }
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        final double[] reverse = new double[count];
+        recallMi.sharedMany(As, B, count, out);
+        recallMi.sharedMany(B, As, count, reverse);
+        final double leftB = recallMi.left(B);
+        for (int i = 0; i < count; i++) {
+            out[i] = mean(reverse[i] / leftB, out[i] / recallMi.left(As[i]));
+        }
+    }
 
+    /**
+     * Combine the precision and recall of a pair with the weighted arithmetic
+     * and harmonic means.
+     */
+    private double mean(final double precision, final double recall) {
         // arithmetic mean
         final double am = (beta * precision) + ((1 - beta) * recall);
 
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+/**
+ * DecomposableProximity is an optional extension of {@link Proximity} for
+ * measures whose shared component is a simple sum of independent
+ * contributions, one for each feature that occurs in both vectors.
+ * <p/>
+ * Such measures can be calculated without a pair-wise intersection of
+ * vectors: an inverted index is traversed and each feature's contribution is
+ * accumulated for every candidate pair, with
+ * {@link Proximity#combine(double, double, double)} called once per pair at
+ * the end. Summing the contributions in ascending order of feature id must
+ * produce exactly the value returned by
+ * {@link Proximity#shared(uk.ac.susx.mlcl.lib.collect.SparseDoubleVector, uk.ac.susx.mlcl.lib.collect.SparseDoubleVector)}.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface DecomposableProximity extends Proximity {
+
+    /**
+     * Calculate the contribution of a single feature, occurring in both
+     * vectors A and B, to the shared component of the measure. Implementations
+     * should return 0 for filtered features.
+     *
+     * @param key the feature id
+     * @param valueA value of the feature in vector A
+     * @param sumA sum of all values in vector A
+     * @param valueB value of the feature in vector B
+     * @param sumB sum of all values in vector B
+     * @return portion of the shared component contributed by the feature
+     */
+    double sharedComponent(int key, double valueA, double sumA,
+                           double valueB, double sumB);
+}
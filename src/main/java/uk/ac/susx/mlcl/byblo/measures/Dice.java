@@ -40,6 +40,20 @@ public class Dice extends Jaccard {
         return 2 * shared / (left + right);
     }
 
+    /**
+     * A pair sharing only u suffix features has Dice at most 2u / (n + u),
+     * where n is the size of the vector.
+     */
+    @Override
+    protected double maxSuffixFraction(double threshold) {
+        return threshold / (2 - threshold);
+    }
+
+    @Override
+    public double upperBound(double left, double right) {
+        return 2 * Math.min(left, right) / (left + right);
+    }
+
     @Override
     public String toString() {
         return "Dice{}";
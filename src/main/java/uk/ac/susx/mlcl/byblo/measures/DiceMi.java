@@ -35,30 +35,34 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class DiceMi extends AbstractMIProximity {
+public class DiceMi extends AbstractMIProximity
+        implements DecomposableProximity, BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        int shared = 0;
+        return SparseIntersection.sum(A, B, components);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (hasPosInf(A, i, B, j))
-                    ++shared;
-                i++;
-                j++;
-            }
-        }
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
 
-        return shared;
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        return !isFiltered(key)
+                && hasPosInf(key, valueA, sumA, valueB, sumB) ? 1 : 0;
     }
 
     @Override
@@ -35,37 +35,43 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Hindle extends AbstractMIProximity {
+public class Hindle extends AbstractMIProximity
+        implements DecomposableProximity, BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double sim = 0;
+        return SparseIntersection.sum(A, B, components);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
 
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
 
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                final double pC = featurePrior(A.keys[i]);
-                final double pA = prob(A, i);
-                if (pA > pC) {
-                    final double pB = prob(B, j);
-                    if (pB > pC) {
-                        sim += Math.log(Math.min(pA / pC, pB / pC));
-                    }
-                }
-                i++;
-                j++;
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        if (isFiltered(key))
+            return 0;
+        final double pC = featurePrior(key);
+        final double pA = valueA / sumA;
+        if (pA > pC) {
+            final double pB = valueB / sumB;
+            if (pB > pC) {
+                return Math.log(Math.min(pA / pC, pB / pC));
             }
         }
-        return sim;
+        return 0;
     }
 
     @Override
@@ -83,6 +89,15 @@ public class Hindle extends AbstractMIProximity {
         return shared;
     }
 
+    /**
+     * The measure depends on the feature probabilities, not only on their
+     * positive information.
+     */
+    @Override
+    public boolean isPreWeightingSupported() {
+        return false;
+    }
+
     @Override
     public boolean isSymmetric() {
         return true;
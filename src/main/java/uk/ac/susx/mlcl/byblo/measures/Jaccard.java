@@ -38,28 +38,67 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Jaccard extends AbstractProximity {
+public class Jaccard extends AbstractProximity
+        implements DecomposableProximity, PrefixBoundedProximity,
+        BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(final SparseDoubleVector A, final SparseDoubleVector B) {
-        int shared = 0;
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                ++shared;
-                i++;
-                j++;
-            }
-        }
-        return shared;
+        return SparseIntersection.sum(A, B, components);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        return isFiltered(key) ? 0 : 1;
+    }
+
+    @Override
+    public double prefixWeight(SparseDoubleVector V, int i) {
+        return 1;
+    }
+
+    @Override
+    public double maxSuffixWeight(SparseDoubleVector V, double threshold) {
+        // A pair sharing only the u suffix features is maximally similar when
+        // the other vector consists of just those features.
+        if (threshold <= 0)
+            return 0;
+        return maxSuffixFraction(threshold) * V.size;
+    }
+
+    /**
+     * @param threshold minimum similarity
+     * @return maximum fraction of features in the suffix for which the
+     *      threshold cannot be reached
+     */
+    protected double maxSuffixFraction(double threshold) {
+        return threshold;
+    }
+
+    @Override
+    public boolean isPrefixOverlapRequired() {
+        return true;
+    }
+
+    @Override
+    public double upperBound(double left, double right) {
+        return Math.min(left, right) / Math.max(left, right);
     }
 
     @Override
@@ -39,7 +39,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * 
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Jensen extends AbstractProximity {
+public class Jensen extends AbstractProximity implements BoundedProximity {
 
     private static final Log LOG = LogFactory.getLog(Jensen.class);
 
@@ -51,8 +51,31 @@ public class Jensen extends AbstractProximity {
                     + "thoughoughly test and is likely to contain bugs.");
     }
 
-   @Override
+    @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        return divergence(A, B, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public double sharedBounded(SparseDoubleVector A, SparseDoubleVector B,
+                                double minSimilarity) {
+        if (!(minSimilarity > 0))
+            return shared(A, B);
+        // The similarity is the inverse of half the accumulated divergence
+        final double limit = 2 / minSimilarity;
+        return divergence(A, B,
+                          limit + ROUNDING_TOLERANCE * Math.max(1, limit));
+    }
+
+    /**
+     * Accumulate the divergence of A and B over the union of their features.
+     * The contribution of every feature is non-negative, so the accumulation
+     * is abandoned as soon as it exceeds the given limit.
+     *
+     * @return half the divergence, or positive infinity if it was abandoned
+     */
+    private double divergence(SparseDoubleVector A, SparseDoubleVector B,
+                              double abandon) {
         double comp = 0;
 
         int i = 0, j = 0;
@@ -75,16 +98,22 @@ public class Jensen extends AbstractProximity {
                 i++;
                 j++;
             }
+            if (comp > abandon)
+                return Double.POSITIVE_INFINITY;
         }
 
         while (i < A.size) {
             comp += (A.values[i] / A.sum) * LN2;
             i++;
+            if (comp > abandon)
+                return Double.POSITIVE_INFINITY;
         }
 
         while (j < B.size) {
             comp += (B.values[j] / B.sum) * LN2;
             j++;
+            if (comp > abandon)
+                return Double.POSITIVE_INFINITY;
         }
 
         return comp / 2;
@@ -30,27 +30,35 @@
  */
 package uk.ac.susx.mlcl.byblo.measures;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 
 /**
  * tau(q,r) = sum_i_j( sign((qi - qj)(ri - rj)) / (2 * |V|)  )
+ * <p/>
+ * The sum is calculated with Knight's algorithm: the features are sorted by
+ * their values in the first vector, then merge sorted by their values in the
+ * second vector, counting the swaps (discordant pairs) made along the way.
+ * Only the union of the features of the two vectors is sorted, in
+ * O(n log n) time; the features that occur in neither vector are accounted
+ * for in closed form.
+ * <p/>
+ * A feature that does not occur in a vector ranks below every feature that
+ * does, and features with equal values are tied. Values must not be NaN.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public class KendallTau extends AbstractProximity {
 
-    private static final Log LOG = LogFactory.getLog(KendallTau.class);
+    /**
+     * Value given to features that do not occur in a vector, which ranks
+     * below every feature that does.
+     */
+    private static final double IMPLICIT = Double.NEGATIVE_INFINITY;
 
     private int numFeatures;
 
     public KendallTau() {
         this.numFeatures = 0;
-        if (LOG.isWarnEnabled())
-            LOG.warn("The KendallTau proximity measure is extremely inefficient "
-                    + "(quadratic on the number of features). Consider using a "
-                    + "different measure.");
     }
 
     public final int getNumFeatures() {
@@ -74,145 +82,60 @@ public class KendallTau extends AbstractProximity {
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         checkState();
 
-        int sum = 0;
+        // Pair up the values of each feature in the union of the vectors
+        final double[] x = new double[A.size + B.size];
+        final double[] y = new double[A.size + B.size];
         int intersectionSize = 0;
         int unionSize = 0;
         int ai = 0;
         int bi = 0;
-
         while (ai < A.size && bi < B.size) {
-            ++unionSize;
             if (A.keys[ai] < B.keys[bi]) {
-                int aj = ai + 1;
-                int bj = bi;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        --sum;
-                        ++bj;
-                    } else {
-                        if (A.values[ai] < A.values[aj])
-                            ++sum;
-                        else if (A.values[ai] > A.values[aj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= B.size - bj;
+                x[unionSize] = A.values[ai];
+                y[unionSize] = IMPLICIT;
                 ++ai;
             } else if (A.keys[ai] > B.keys[bi]) {
-                int aj = ai;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        --sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        ++bj;
-                    } else {
-                        if (B.values[bi] < B.values[bj])
-                            ++sum;
-                        else if (B.values[bi] > B.values[bj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= A.size - aj;
+                x[unionSize] = IMPLICIT;
+                y[unionSize] = B.values[bi];
                 ++bi;
             } else {
+                x[unionSize] = A.values[ai];
+                y[unionSize] = B.values[bi];
                 ++intersectionSize;
-                int aj = ai + 1;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        if (A.values[ai] < A.values[aj])
-                            --sum;
-                        else if (A.values[ai] > A.values[aj])
-                            ++sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        if (B.values[bi] < B.values[bj])
-                            --sum;
-                        else if (B.values[bi] > B.values[bj])
-                            ++sum;
-                        ++bj;
-                    } else {
-                        final double diff = (A.values[ai] - A.values[aj])
-                                * (B.values[bi] - B.values[bj]);
-                        if (diff < 0)
-                            --sum;
-                        else if (diff > 0)
-                            ++sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                while (aj < A.size) {
-                    if (A.values[ai] < A.values[aj])
-                        --sum;
-                    else if (A.values[ai] > A.values[aj])
-                        ++sum;
-                    ++aj;
-                }
-                while (bj < B.size) {
-                    if (B.values[bi] < B.values[bj])
-                        --sum;
-                    else if (B.values[bi] > B.values[bj])
-                        ++sum;
-                    ++bj;
-                }
                 ++ai;
                 ++bi;
             }
+            ++unionSize;
         }
         while (ai < A.size) {
-            ++unionSize;
-            int aj = ai + 1;
-            int bj = bi;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    --sum;
-                    ++bj;
-                } else {
-                    if (A.values[ai] < A.values[aj])
-                        ++sum;
-                    else if (A.values[ai] > A.values[aj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= B.size - bj;
+            x[unionSize] = A.values[ai];
+            y[unionSize] = IMPLICIT;
             ++ai;
+            ++unionSize;
         }
         while (bi < B.size) {
-            ++unionSize;
-            int aj = ai;
-            int bj = bi + 1;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    --sum;
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    ++bj;
-                } else {
-                    if (B.values[bi] < B.values[bj])
-                        ++sum;
-                    else if (B.values[bi] > B.values[bj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= A.size - aj;
+            x[unionSize] = IMPLICIT;
+            y[unionSize] = B.values[bi];
             ++bi;
+            ++unionSize;
         }
 
+        final double[] tmpX = new double[unionSize];
+        final double[] tmpY = new double[unionSize];
+
+        // Sort by x, breaking ties by y, and count the pairs tied in x, and
+        // those tied in both
+        sortPairs(x, y, tmpX, tmpY, 0, unionSize);
+        final long xTies = countTies(x, unionSize);
+        final long jointTies = countJointTies(x, y, unionSize);
+
+        // The pairs that are out of order in y are discordant
+        final long discordant = sortCountingSwaps(y, tmpY, 0, unionSize);
+        final long yTies = countTies(y, unionSize);
+
+        final long pairs = (long) unionSize * (unionSize - 1) / 2;
+        long sum = pairs - xTies - yTies + jointTies - 2 * discordant;
+
         // Comparisons are only done in one direction so double the result
         sum <<= 1;
 
@@ -220,13 +143,123 @@ public class KendallTau extends AbstractProximity {
         // between the two sets. For each feature that they both have there
         // should be an addition +2 to the sum.
         // The relationship between these and disjoint features
-        sum += 2 * ((numFeatures - unionSize) * intersectionSize);
+        sum += 2L * (numFeatures - unionSize) * intersectionSize;
         //
-        double sim = (double) (sum) / (double) (numFeatures * (numFeatures - 1));
+        double sim = (double) (sum)
+                / ((double) numFeatures * (numFeatures - 1));
 
         return sim;
     }
 
+    /**
+     * Merge sort the elements of x in the range [from, to), breaking ties by
+     * the elements of y, which are moved with them.
+     */
+    private static void sortPairs(double[] x, double[] y,
+                                  double[] tmpX, double[] tmpY,
+                                  int from, int to) {
+        if (to - from < 2)
+            return;
+        final int mid = (from + to) >>> 1;
+        sortPairs(x, y, tmpX, tmpY, from, mid);
+        sortPairs(x, y, tmpX, tmpY, mid, to);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (x[j] < x[i] || (!(x[i] < x[j]) && y[j] < y[i])) {
+                tmpX[k] = x[j];
+                tmpY[k] = y[j];
+                ++j;
+            } else {
+                tmpX[k] = x[i];
+                tmpY[k] = y[i];
+                ++i;
+            }
+            ++k;
+        }
+        while (i < mid) {
+            tmpX[k] = x[i];
+            tmpY[k] = y[i];
+            ++i;
+            ++k;
+        }
+        // The remainder of the upper half is already in place
+        System.arraycopy(tmpX, from, x, from, k - from);
+        System.arraycopy(tmpY, from, y, from, k - from);
+    }
+
+    /**
+     * Merge sort the elements of y in the range [from, to), returning the
+     * number of pairs of elements that were strictly out of order.
+     */
+    private static long sortCountingSwaps(double[] y, double[] tmp,
+                                          int from, int to) {
+        if (to - from < 2)
+            return 0;
+        final int mid = (from + to) >>> 1;
+        long swaps = sortCountingSwaps(y, tmp, from, mid)
+                + sortCountingSwaps(y, tmp, mid, to);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (y[j] < y[i]) {
+                // Every remaining element of the lower half is greater
+                swaps += mid - i;
+                tmp[k] = y[j];
+                ++j;
+            } else {
+                tmp[k] = y[i];
+                ++i;
+            }
+            ++k;
+        }
+        while (i < mid) {
+            tmp[k] = y[i];
+            ++i;
+            ++k;
+        }
+        System.arraycopy(tmp, from, y, from, k - from);
+        return swaps;
+    }
+
+    /**
+     * @return the number of pairs of tied elements in the sorted array
+     */
+    private static long countTies(double[] v, int size) {
+        long ties = 0;
+        long run = 1;
+        for (int i = 1; i < size; i++) {
+            if (v[i] < v[i - 1] || v[i] > v[i - 1]) {
+                ties += run * (run - 1) / 2;
+                run = 1;
+            } else {
+                ++run;
+            }
+        }
+        return ties + run * (run - 1) / 2;
+    }
+
+    /**
+     * @return the number of pairs of elements tied in both of the arrays,
+     *      sorted by x then y
+     */
+    private static long countJointTies(double[] x, double[] y, int size) {
+        long ties = 0;
+        long run = 1;
+        for (int i = 1; i < size; i++) {
+            if (x[i] < x[i - 1] || x[i] > x[i - 1]
+                    || y[i] < y[i - 1] || y[i] > y[i - 1]) {
+                ties += run * (run - 1) / 2;
+                run = 1;
+            } else {
+                ++run;
+            }
+        }
+        return ties + run * (run - 1) / 2;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         return 0;
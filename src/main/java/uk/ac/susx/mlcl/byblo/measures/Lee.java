@@ -46,7 +46,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lee extends AbstractProximity {
+public class Lee extends AbstractProximity implements BatchProximity {
 
     private static final Log LOG = LogFactory.getLog(Lee.class);
 
@@ -54,6 +54,23 @@ public class Lee extends AbstractProximity {
 
     private double alpha;
 
+    private final SparseIntersection.Visitor sharedFeatures =
+            new SparseIntersection.Visitor() {
+
+                @Override
+                public double visit(SparseDoubleVector A, int i,
+                                    SparseDoubleVector B, int j) {
+                    if (isFiltered(A.keys[i]))
+                        return 0;
+                    final double pA = A.values[i] / A.sum;
+                    final double pB = (B.values[j] / B.sum);
+                    return pA * (2 * Math.log(pA)
+                                 - Math.log(pB * alpha + pA * (1 - alpha))
+                                 + Math.log((1.0 - alpha)));
+                }
+
+            };
+
     public Lee() {
         this.alpha = DEFAULT_ALPHA;
         if (LOG.isWarnEnabled())
@@ -71,27 +88,19 @@ public class Lee extends AbstractProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double sim = 0;
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double pA = A.values[i] / A.sum;
-                final double pB = (B.values[j] / B.sum);
-                sim += pA * (2 * Math.log(pA)
-                             - Math.log(pB * alpha + pA * (1 - alpha))
-                             + Math.log((1.0 - alpha)));
-                i++;
-                j++;
-            }
-        }
-        return sim;
+        return SparseIntersection.sum(A, B, sharedFeatures);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, sharedFeatures, out);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, sharedFeatures, out);
     }
 
     @Override
@@ -36,41 +36,74 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lin extends AbstractMIProximity {
+public class Lin extends AbstractMIProximity
+        implements DecomposableProximity, PrefixBoundedProximity,
+        BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0.0;
-
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double infA = posInf(A, i);
-                if (infA > 0) {
-                    final double infB = posInf(B, j);
-                    if (infB > 0) {
-                        numerator += infA + infB;
-                    }
-                }
-
-                ++i;
-                ++j;
+        return SparseIntersection.sum(A, B, components);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        if (isFiltered(key))
+            return 0;
+        final double infA = posInf(key, valueA, sumA);
+        if (infA > 0) {
+            final double infB = posInf(key, valueB, sumB);
+            if (infB > 0) {
+                return infA + infB;
             }
         }
+        return 0;
+    }
 
-        return numerator;
+    @Override
+    public double prefixWeight(SparseDoubleVector V, int i) {
+        return posInf(V, i);
+    }
+
+    @Override
+    public double maxSuffixWeight(SparseDoubleVector V, double threshold) {
+        // Lin is a weighted mean of the shared information fraction of each
+        // vector, so reaching the threshold requires at least one of the two
+        // vectors to share information of at least threshold * left
+        if (threshold <= 0)
+            return 0;
+        return threshold * left(V);
+    }
+
+    @Override
+    public boolean isPrefixOverlapRequired() {
+        return false;
+    }
+
+    @Override
+    public double upperBound(double left, double right) {
+        return 1;
     }
 
     @Override
     public double left(SparseDoubleVector A) {
+        if (isPreWeighted())
+            return A.sum;
         double denominator = 0.0;
 
         for (int i = 0; i < A.size; i++) {
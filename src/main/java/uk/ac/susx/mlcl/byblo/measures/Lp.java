@@ -46,12 +46,43 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lp extends AbstractProximity {
+public class Lp extends AbstractProximity
+        implements BatchProximity, BoundedProximity {
 
     public static final double DEFAULT_P = 2;
 
     private double p;
 
+    private final SparseIntersection.Visitor sharedFeatures =
+            new SparseIntersection.Visitor() {
+
+                @Override
+                public double visit(SparseDoubleVector A, int i,
+                                    SparseDoubleVector B, int j) {
+                    if (isFiltered(A.keys[i]))
+                        return 0;
+                    final double pA = A.values[i] / A.sum;
+                    final double pB = B.values[j] / B.sum;
+                    if (p == 0) {
+                        return Math.signum(Math.abs(pA - pB))
+                                - Math.signum(pB)
+                                - Math.signum(pA);
+                    } else if (p == 1) {
+                        return Math.abs(pA - pB)
+                                - pB
+                                - pA;
+                    } else if (p == 2) {
+                        return (pA - pB) * (pA - pB)
+                                - pB * pB
+                                - pA * pA;
+                    } else {
+                        return Math.pow(Math.abs(pA - pB), p)
+                                - (Math.pow(pB, p) + Math.pow(pA, p));
+                    }
+                }
+
+            };
+
     public Lp() {
         this.p = DEFAULT_P;
     }
@@ -66,118 +97,175 @@ public class Lp extends AbstractProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double shared = 0;
+        if (p != Double.POSITIVE_INFINITY)
+            return SparseIntersection.sum(A, B, sharedFeatures);
+        return maxDifference(A, B, Double.POSITIVE_INFINITY);
+    }
 
-        if (p == 0) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.signum(Math.abs(pA - pB))
-                            - Math.signum(pB)
-                            - Math.signum(pA);
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == 1) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.abs(pA - pB)
-                            - pB
-                            - pA;
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == 2) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += (pA - pB) * (pA - pB)
-                            - pB * pB
-                            - pA * pA;
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == Double.POSITIVE_INFINITY) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    shared = Math.max(shared, (B.values[j] / B.sum));
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
-                    shared = Math.max(shared, (B.values[j] / B.sum));
-                    i++;
-                    j++;
-                } else {
-                    shared = Math.max(shared, Math.abs(
-                            (A.values[i] / A.sum) - (B.values[j] / B.sum)));
-                    i++;
-                    j++;
-                }
-            }
-            while (i < A.size) {
+    @Override
+    public double sharedBounded(SparseDoubleVector A, SparseDoubleVector B,
+                                double minSimilarity) {
+        if (!(minSimilarity > 0) || !(p >= 0))
+            return shared(A, B);
+
+        // The similarity is the inverse of the distance
+        final double distance = 1 / minSimilarity;
+        if (p == Double.POSITIVE_INFINITY)
+            return maxDifference(A, B, abandonAt(distance));
+
+        // The intersection of vectors of very different sizes is found much
+        // more quickly than the whole of both vectors can be merged
+        if ((long) A.size * SparseIntersection.GALLOP_RATIO <= B.size
+                || (long) B.size * SparseIntersection.GALLOP_RATIO <= A.size)
+            return shared(A, B);
+
+        final double limit = (p == 0 || p == 1) ? distance
+                             : p == 2 ? distance * distance
+                             : Math.pow(distance, p);
+        return boundedSum(A, B, abandonAt(limit));
+    }
+
+    private static double abandonAt(double limit) {
+        return limit + ROUNDING_TOLERANCE * Math.max(1, limit);
+    }
+
+    /**
+     * Find the maximum difference between A and B over the union of their
+     * features, abandoning the search as soon as it exceeds the given limit.
+     *
+     * @return the maximum difference, or positive infinity if abandoned
+     */
+    private double maxDifference(SparseDoubleVector A, SparseDoubleVector B,
+                                 double abandon) {
+        // The maximum difference depends on the features that are not shared
+        // as well, so the whole of both vectors must be merged.
+        double shared = 0;
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
                 shared = Math.max(shared, (A.values[i] / A.sum));
                 i++;
-            }
-            while (j < B.size) {
+            } else if (A.keys[i] > B.keys[j]) {
                 shared = Math.max(shared, (B.values[j] / B.sum));
                 j++;
+            } else if (isFiltered(A.keys[i])) {
+                shared = Math.max(shared, (A.values[i] / A.sum));
+                shared = Math.max(shared, (B.values[j] / B.sum));
+                i++;
+                j++;
+            } else {
+                shared = Math.max(shared, Math.abs(
+                        (A.values[i] / A.sum) - (B.values[j] / B.sum)));
+                i++;
+                j++;
             }
-        } else {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
+            if (shared > abandon)
+                return Double.POSITIVE_INFINITY;
+        }
+        while (i < A.size) {
+            shared = Math.max(shared, (A.values[i] / A.sum));
+            i++;
+        }
+        while (j < B.size) {
+            shared = Math.max(shared, (B.values[j] / B.sum));
+            j++;
+        }
+        return shared > abandon ? Double.POSITIVE_INFINITY : shared;
+    }
+
+    /**
+     * Calculate the shared component of A and B, while accumulating the
+     * whole distance (raised to the power p) over the union of their
+     * features. The contribution of every feature to the distance is
+     * non-negative, so the calculation is abandoned as soon as the distance
+     * exceeds the given limit. Shared features are visited in ascending
+     * order, so the shared component is exactly that of
+     * {@link SparseIntersection#sum}.
+     *
+     * @return the shared component, or positive infinity if abandoned
+     */
+    private double boundedSum(SparseDoubleVector A, SparseDoubleVector B,
+                              double abandon) {
+        double shared = 0;
+        double distance = 0;
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                distance += unshared(A.values[i] / A.sum);
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                distance += unshared(B.values[j] / B.sum);
+                j++;
+            } else {
+                final double component = sharedFeatures.visit(A, i, B, j);
+                shared += component;
+                final double pA = A.values[i] / A.sum;
+                final double pB = B.values[j] / B.sum;
+                if (isFiltered(A.keys[i])) {
+                    distance += unshared(pA) + unshared(pB);
+                } else if (p == 0) {
+                    // Both features are counted by left and right
+                    distance += 2 + component;
+                } else if (p == 1) {
+                    distance += Math.abs(pA - pB);
+                } else if (p == 2) {
+                    distance += (pA - pB) * (pA - pB);
                 } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.pow(Math.abs(pA - pB), p)
-                            - (Math.pow(pB, p) + Math.pow(pA, p));
-                    i++;
-                    j++;
+                    distance += Math.pow(Math.abs(pA - pB), p);
                 }
+                i++;
+                j++;
             }
+            if (distance > abandon)
+                return Double.POSITIVE_INFINITY;
+        }
+        while (i < A.size) {
+            distance += unshared(A.values[i] / A.sum);
+            i++;
+        }
+        while (j < B.size) {
+            distance += unshared(B.values[j] / B.sum);
+            j++;
+        }
+        return distance > abandon ? Double.POSITIVE_INFINITY : shared;
+    }
+
+    /**
+     * @return contribution to the distance of a feature with the given
+     *      (normalised) value, that occurs in only one of the vectors
+     */
+    private double unshared(double v) {
+        if (p == 0) {
+            return 1;
+        } else if (p == 1) {
+            return v;
+        } else if (p == 2) {
+            return v * v;
+        } else {
+            return Math.pow(v, p);
+        }
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        if (p != Double.POSITIVE_INFINITY) {
+            SparseIntersection.sumMany(A, Bs, count, sharedFeatures, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = shared(A, Bs[i]);
+        }
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        if (p != Double.POSITIVE_INFINITY) {
+            SparseIntersection.sumMany(As, B, count, sharedFeatures, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = shared(As[i], B);
         }
-        return shared;
     }
 
     @Override
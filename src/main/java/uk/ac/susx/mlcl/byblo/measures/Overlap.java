@@ -41,6 +41,20 @@ public class Overlap extends Jaccard {
         return shared / Math.min(left, right);
     }
 
+    /**
+     * A single shared feature can produce an overlap of 1, so no features can
+     * be excluded from the prefix.
+     */
+    @Override
+    protected double maxSuffixFraction(double threshold) {
+        return 0;
+    }
+
+    @Override
+    public double upperBound(double left, double right) {
+        return 1;
+    }
+
     @Override
     public String toString() {
         return "Overlap{}";
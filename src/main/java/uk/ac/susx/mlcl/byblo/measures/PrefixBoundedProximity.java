@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * PrefixBoundedProximity is an optional extension of {@link Proximity} for
+ * normalised measures, where a minimum similarity threshold can be used to
+ * bound the contribution of any subset of a vector's features. This allows
+ * all-pairs algorithms to index only a prefix of each vector, and to discard
+ * candidate pairs that cannot possibly reach the threshold without
+ * calculating their similarity.
+ * <p/>
+ * Each feature of a vector is assigned a non-negative weight. If the total
+ * weight of some subset of the features (the suffix) is less than
+ * {@link #maxSuffixWeight(SparseDoubleVector, double)}, then any pair of
+ * vectors that share features only in that suffix is guaranteed to have
+ * similarity less than the threshold.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface PrefixBoundedProximity extends Proximity {
+
+    /**
+     * @param V vector
+     * @param i index of the feature in V
+     * @return non-negative weight of the feature at index i in V
+     */
+    double prefixWeight(SparseDoubleVector V, int i);
+
+    /**
+     * Calculate the weight that a suffix of vector V must be strictly less
+     * than, such that no pair of vectors sharing only suffix features can
+     * reach the given similarity threshold.
+     *
+     * @param V vector
+     * @param threshold minimum similarity
+     * @return exclusive upper limit of the total suffix weight
+     */
+    double maxSuffixWeight(SparseDoubleVector V, double threshold);
+
+    /**
+     * Whether a pair of vectors reaching the threshold must share a prefix
+     * feature of <em>both</em> vectors. If false, it is only guaranteed that
+     * the pair share a prefix feature of <em>one</em> of the vectors.
+     *
+     * @return true if both prefixes must intersect the shared features
+     */
+    boolean isPrefixOverlapRequired();
+
+    /**
+     * Calculate an upper bound on the similarity of any pair of vectors with
+     * the given independent components, as produced by
+     * {@link #left(SparseDoubleVector)} and {@link #right(SparseDoubleVector)}.
+     *
+     * @param left component dependent only on the first vector
+     * @param right component dependent only on the second vector
+     * @return maximum possible similarity
+     */
+    double upperBound(double left, double right);
+}
@@ -60,37 +60,40 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class RecallMi extends AbstractMIProximity {
+public class RecallMi extends AbstractMIProximity
+        implements DecomposableProximity, BatchProximity {
+
+    private final SparseIntersection.Visitor components =
+            SparseIntersection.components(this);
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0.0;
+        return SparseIntersection.sum(A, B, components);
+    }
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (posInf(B, j) > 0) {
-                    numerator += posInf(A, i);
-                }
-                
-                ++i;
-                ++j;
-            }
-        }
-        
-        return numerator;
+    @Override
+    public void sharedMany(SparseDoubleVector A, SparseDoubleVector[] Bs,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(A, Bs, count, components, out);
+    }
+
+    @Override
+    public void sharedMany(SparseDoubleVector[] As, SparseDoubleVector B,
+                           int count, double[] out) {
+        SparseIntersection.sumMany(As, B, count, components, out);
+    }
+
+    @Override
+    public double sharedComponent(int key, double valueA, double sumA,
+                                  double valueB, double sumB) {
+        return !isFiltered(key) && posInf(key, valueB, sumB) > 0
+                ? posInf(key, valueA, sumA) : 0;
     }
 
     @Override
     public double left(SparseDoubleVector A) {
+        if (isPreWeighted())
+            return A.sum;
         double denominator = 0.0;
         
         for (int i = 0; i < A.size; i++) {
@@ -38,7 +38,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public final class ReversedProximity implements Proximity {
+public final class ReversedProximity implements BatchProximity {
 
     private final Proximity inner;
 
@@ -51,6 +51,30 @@ public final class ReversedProximity implements Proximity {
         return inner.shared(B, A);
     }
 
+    @Override
+    public void sharedMany(final SparseDoubleVector A,
+                           final SparseDoubleVector[] Bs, final int count,
+                           final double[] out) {
+        if (inner instanceof BatchProximity) {
+            ((BatchProximity) inner).sharedMany(Bs, A, count, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = inner.shared(Bs[i], A);
+        }
+    }
+
+    @Override
+    public void sharedMany(final SparseDoubleVector[] As,
+                           final SparseDoubleVector B, final int count,
+                           final double[] out) {
+        if (inner instanceof BatchProximity) {
+            ((BatchProximity) inner).sharedMany(B, As, count, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = inner.shared(B, As[i]);
+        }
+    }
+
     @Override
     public double left(final SparseDoubleVector A) {
         return inner.right(A);
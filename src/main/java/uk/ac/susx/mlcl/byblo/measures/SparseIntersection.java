@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Static utility class that sums some contribution over the features shared
+ * by a pair of sparse vectors, so that measures need only implement the
+ * contribution of a single feature.
+ * <p/>
+ * The intersection is found by the cheapest of three strategies, chosen by
+ * the relative sizes of the vectors. Vectors of similar size are merged
+ * linearly. When one vector is much larger than the other, each feature of
+ * the smaller is found in the larger by galloping (exponential then binary)
+ * search, so the cost depends mostly on the size of the smaller vector. If
+ * the keys of the larger vector are contiguous, the position of each feature
+ * is calculated directly instead.
+ * <p/>
+ * When one vector is compared with many others (see {@link BatchProximity}),
+ * the offsets of its features are scattered into a lookup table once, and
+ * each feature of the other vectors is found in it directly.
+ * <p/>
+ * Whatever the strategy, shared features are visited in ascending order of
+ * feature id, so the sum is exactly that of a linear merge.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class SparseIntersection {
+
+    /**
+     * Number of times larger than the other that a vector must be for
+     * galloping search to be used rather than a linear merge.
+     */
+    public static final int GALLOP_RATIO = 8;
+
+    /**
+     * Maximum ratio of the range of keys to the number of features, of a
+     * vector whose lookup table is a dense array rather than a hash map.
+     */
+    private static final int DENSE_LOOKUP_RATIO = 8;
+
+    /**
+     * Calculates the contribution of a single shared feature.
+     */
+    public interface Visitor {
+
+        /**
+         * Calculate the contribution of the feature that occurs at offset i
+         * of vector A and offset j of vector B. Implementations should return
+         * 0 for filtered features.
+         *
+         * @param A first vector
+         * @param i offset of the feature in A
+         * @param B second vector
+         * @param j offset of the feature in B
+         * @return contribution of the feature to the sum
+         */
+        double visit(SparseDoubleVector A, int i, SparseDoubleVector B, int j);
+    }
+
+    /**
+     * Static utility class should not be instantiated.
+     */
+    private SparseIntersection() {
+    }
+
+    /**
+     * Adapt a decomposable measure, so that the sum over the intersection is
+     * the shared component of the measure.
+     *
+     * @param measure measure whose shared components are summed
+     * @return visitor calling {@link DecomposableProximity#sharedComponent}
+     */
+    public static Visitor components(final DecomposableProximity measure) {
+        return new Visitor() {
+
+            @Override
+            public double visit(SparseDoubleVector A, int i,
+                                SparseDoubleVector B, int j) {
+                return measure.sharedComponent(
+                        A.keys[i], A.values[i], A.sum, B.values[j], B.sum);
+            }
+
+        };
+    }
+
+    /**
+     * Sum the contributions of every feature shared by vectors A and B, in
+     * ascending order of feature id.
+     *
+     * @param A first vector
+     * @param B second vector
+     * @param visitor calculates the contribution of each shared feature
+     * @return sum of the contributions
+     */
+    public static double sum(final SparseDoubleVector A,
+                             final SparseDoubleVector B,
+                             final Visitor visitor) {
+        if (A.size == 0 || B.size == 0)
+            return 0;
+        if ((long) A.size * GALLOP_RATIO <= B.size) {
+            return isContiguous(B)
+                   ? probeB(A, B, visitor)
+                   : gallopB(A, B, visitor);
+        } else if ((long) B.size * GALLOP_RATIO <= A.size) {
+            return isContiguous(A)
+                   ? probeA(A, B, visitor)
+                   : gallopA(A, B, visitor);
+        } else {
+            return merge(A, B, visitor);
+        }
+    }
+
+    /**
+     * Sum the contributions of every feature shared by vector A and each of
+     * the first count vectors of Bs.
+     *
+     * @param A first vector, common to every pair
+     * @param Bs second vectors
+     * @param count number of vectors in Bs
+     * @param visitor calculates the contribution of each shared feature
+     * @param out receives the sum for each vector of Bs
+     */
+    public static void sumMany(final SparseDoubleVector A,
+                               final SparseDoubleVector[] Bs,
+                               final int count, final Visitor visitor,
+                               final double[] out) {
+        if (count < 2 || A.size == 0) {
+            for (int n = 0; n < count; n++)
+                out[n] = sum(A, Bs[n], visitor);
+            return;
+        }
+        final Lookup lookup = new Lookup(A);
+        for (int n = 0; n < count; n++) {
+            final SparseDoubleVector B = Bs[n];
+            if ((long) A.size * GALLOP_RATIO <= B.size) {
+                // Cheaper to search for the features of A in B
+                out[n] = sum(A, B, visitor);
+                continue;
+            }
+            double sum = 0;
+            for (int j = gallop(B.keys, 0, B.size, lookup.first);
+                 j < B.size && B.keys[j] <= lookup.last; j++) {
+                final int i = lookup.find(B.keys[j]);
+                if (i >= 0)
+                    sum += visitor.visit(A, i, B, j);
+            }
+            out[n] = sum;
+        }
+    }
+
+    /**
+     * Sum the contributions of every feature shared by each of the first
+     * count vectors of As and vector B.
+     *
+     * @param As first vectors
+     * @param B second vector, common to every pair
+     * @param count number of vectors in As
+     * @param visitor calculates the contribution of each shared feature
+     * @param out receives the sum for each vector of As
+     */
+    public static void sumMany(final SparseDoubleVector[] As,
+                               final SparseDoubleVector B,
+                               final int count, final Visitor visitor,
+                               final double[] out) {
+        if (count < 2 || B.size == 0) {
+            for (int n = 0; n < count; n++)
+                out[n] = sum(As[n], B, visitor);
+            return;
+        }
+        final Lookup lookup = new Lookup(B);
+        for (int n = 0; n < count; n++) {
+            final SparseDoubleVector A = As[n];
+            if ((long) B.size * GALLOP_RATIO <= A.size) {
+                // Cheaper to search for the features of B in A
+                out[n] = sum(A, B, visitor);
+                continue;
+            }
+            double sum = 0;
+            for (int i = gallop(A.keys, 0, A.size, lookup.first);
+                 i < A.size && A.keys[i] <= lookup.last; i++) {
+                final int j = lookup.find(A.keys[i]);
+                if (j >= 0)
+                    sum += visitor.visit(A, i, B, j);
+            }
+            out[n] = sum;
+        }
+    }
+
+    /**
+     * Table of the offset of each feature of a (non-empty) vector. Contiguous
+     * keys need no table, keys spread over a moderate range are scattered
+     * into a dense array, and widely spread keys are hashed.
+     */
+    private static final class Lookup {
+
+        final int first;
+
+        final int last;
+
+        /**
+         * Offset plus one of each key in the range first to last, or 0 if
+         * the key does not occur; null unless the dense table is used.
+         */
+        private final int[] dense;
+
+        /**
+         * Offset of each key, or -1 if the key does not occur; null unless
+         * the hash table is used.
+         */
+        private final Int2IntOpenHashMap hashed;
+
+        Lookup(final SparseDoubleVector V) {
+            first = V.keys[0];
+            last = V.keys[V.size - 1];
+            final long range = (long) last - first + 1;
+            if (range == V.size) {
+                dense = null;
+                hashed = null;
+            } else if (range <= (long) V.size * DENSE_LOOKUP_RATIO) {
+                dense = new int[(int) range];
+                for (int i = 0; i < V.size; i++)
+                    dense[V.keys[i] - first] = i + 1;
+                hashed = null;
+            } else {
+                dense = null;
+                hashed = new Int2IntOpenHashMap(V.size);
+                hashed.defaultReturnValue(-1);
+                for (int i = 0; i < V.size; i++)
+                    hashed.put(V.keys[i], i);
+            }
+        }
+
+        /**
+         * @param key feature id in the range first to last
+         * @return offset of the feature, or -1 if it does not occur
+         */
+        int find(final int key) {
+            if (dense != null)
+                return dense[key - first] - 1;
+            else if (hashed != null)
+                return hashed.get(key);
+            else
+                return key - first;
+        }
+
+    }
+
+    private static double merge(final SparseDoubleVector A,
+                                final SparseDoubleVector B,
+                                final Visitor visitor) {
+        double sum = 0;
+        int i = 0;
+        int j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                ++i;
+            } else if (A.keys[i] > B.keys[j]) {
+                ++j;
+            } else {
+                sum += visitor.visit(A, i, B, j);
+                ++i;
+                ++j;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Search for each feature of A in the much larger vector B.
+     */
+    private static double gallopB(final SparseDoubleVector A,
+                                  final SparseDoubleVector B,
+                                  final Visitor visitor) {
+        double sum = 0;
+        int j = 0;
+        for (int i = 0; i < A.size && j < B.size; i++) {
+            j = gallop(B.keys, j, B.size, A.keys[i]);
+            if (j < B.size && B.keys[j] == A.keys[i]) {
+                sum += visitor.visit(A, i, B, j);
+                ++j;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Search for each feature of B in the much larger vector A.
+     */
+    private static double gallopA(final SparseDoubleVector A,
+                                  final SparseDoubleVector B,
+                                  final Visitor visitor) {
+        double sum = 0;
+        int i = 0;
+        for (int j = 0; j < B.size && i < A.size; j++) {
+            i = gallop(A.keys, i, A.size, B.keys[j]);
+            if (i < A.size && A.keys[i] == B.keys[j]) {
+                sum += visitor.visit(A, i, B, j);
+                ++i;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Find each feature of A in the much larger vector B, whose keys are
+     * contiguous.
+     */
+    private static double probeB(final SparseDoubleVector A,
+                                 final SparseDoubleVector B,
+                                 final Visitor visitor) {
+        double sum = 0;
+        final int first = B.keys[0];
+        for (int i = 0; i < A.size; i++) {
+            final long j = (long) A.keys[i] - first;
+            if (j >= 0 && j < B.size)
+                sum += visitor.visit(A, i, B, (int) j);
+        }
+        return sum;
+    }
+
+    /**
+     * Find each feature of B in the much larger vector A, whose keys are
+     * contiguous.
+     */
+    private static double probeA(final SparseDoubleVector A,
+                                 final SparseDoubleVector B,
+                                 final Visitor visitor) {
+        double sum = 0;
+        final int first = A.keys[0];
+        for (int j = 0; j < B.size; j++) {
+            final long i = (long) B.keys[j] - first;
+            if (i >= 0 && i < A.size)
+                sum += visitor.visit(A, (int) i, B, j);
+        }
+        return sum;
+    }
+
+    /**
+     * @return true if the keys of the (non-empty) vector are consecutive
+     *      integers, so the offset of a key can be calculated directly
+     */
+    static boolean isContiguous(final SparseDoubleVector V) {
+        return (long) V.keys[V.size - 1] - V.keys[0] == V.size - 1;
+    }
+
+    /**
+     * Find the first offset, in the range from (inclusive) to to (exclusive),
+     * at which the key is not less than the given key. The range is probed at
+     * exponentially increasing distances from the start, and the final
+     * interval is binary searched, so keys near the start are found quickly.
+     *
+     * @param keys sorted keys to search
+     * @param from offset at which to start the search
+     * @param to offset at which to stop the search
+     * @param key key to search for
+     * @return offset of the first key not less than key, or to if there is
+     *      none
+     */
+    static int gallop(final int[] keys, final int from, final int to,
+                      final int key) {
+        if (from >= to || keys[from] >= key)
+            return from;
+        int bound = 1;
+        while (bound < to - from && keys[from + bound] < key) {
+            bound <<= 1;
+        }
+        // keys[lo - 1] is less than the key, and keys[hi] is not (or hi is
+        // the end of the range.)
+        int lo = from + (bound >> 1) + 1;
+        int hi = from + Math.min(bound, to - from);
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -41,6 +41,22 @@ public class Tanimoto extends Cosine {
         return shared / (left + right - shared);
     }
 
+    /**
+     * The Tanimoto of a pair sharing only suffix features, with cosine c, is
+     * at most c / (2 - c), so the suffix cosine must be less than
+     * 2t / (1 + t).
+     */
+    @Override
+    protected double maxSuffixCosine(double threshold) {
+        return 2 * threshold / (1 + threshold);
+    }
+
+    @Override
+    public double upperBound(double left, double right) {
+        final double q = Math.sqrt(Math.min(left, right) / Math.max(left, right));
+        return q / (q * q - q + 1);
+    }
+
     @Override
     public String toString() {
         return "Tanimoto{}";
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * A durable record of the chunk pairs completed by a threaded all-pairs run,
+ * allowing a run that was killed to be resumed without repeating them.
+ * <p/>
+ * The output of each chunk pair is written to its own segment of sorted run
+ * files in the journal directory. Once a chunk pair is complete its run
+ * files are synced, and a line is appended to the journal file (and synced)
+ * recording the chunk pair and its runs. When the run is repeated, chunk
+ * pairs found in the journal are skipped, and their segments are merged with
+ * the new ones at the end.
+ * <p/>
+ * The first line of the journal is a fingerprint of the inputs and
+ * parameters of the run. If it does not match that of the current run, the
+ * journal is stale, so it is discarded along with its segments. Segment files
+ * that are not recorded in the journal belong to chunk pairs that were in
+ * progress when the run was killed, and are likewise discarded.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class AllPairsJournal {
+
+    private static final Log LOG = LogFactory.getLog(AllPairsJournal.class);
+
+    private static final String JOURNAL_NAME = "journal";
+
+    private static final String SEGMENT_PREFIX = "segment";
+
+    private static final String SEGMENT_SUFFIX = ".run";
+
+    private static final String END_OF_ENTRY = ".";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    private final File journalFile;
+
+    private final WeightedTokenPairBuffer.Order order;
+
+    private final FileFactory segmentFileFactory = new FileFactory() {
+
+        @Override
+        public File createFile() throws IOException {
+            return File.createTempFile(
+                    SEGMENT_PREFIX, SEGMENT_SUFFIX, directory);
+        }
+
+        @Override
+        public File createFile(String prefix, String suffix)
+                throws IOException {
+            return createFile();
+        }
+
+    };
+
+    private final LongSet completed = new LongOpenHashSet();
+
+    private final List<File> segmentFiles = new ArrayList<File>();
+
+    private FileOutputStream journalOut = null;
+
+    private Writer journalWriter = null;
+
+    /**
+     * Open the journal in the given directory, creating it if necessary.
+     *
+     * @param directory directory holding the journal and its segments
+     * @param fingerprint description of the inputs and parameters of the run;
+     *      must not contain line breaks
+     * @param order order of the pairs in every segment
+     * @throws IOException if the journal can not be read or created
+     */
+    public AllPairsJournal(File directory, String fingerprint,
+                           WeightedTokenPairBuffer.Order order)
+            throws IOException {
+        Checks.checkNotNull("directory", directory);
+        Checks.checkNotNull("fingerprint", fingerprint);
+        Checks.checkNotNull("order", order);
+        if (fingerprint.indexOf('\n') != -1 || fingerprint.indexOf('\r') != -1)
+            throw new IllegalArgumentException("fingerprint contains a line break");
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Failed to create directory " + directory);
+        if (!directory.isDirectory())
+            throw new IOException("Not a directory: " + directory);
+
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_NAME);
+        this.order = order;
+
+        final String line = order.name() + " " + fingerprint;
+        final boolean resumed = journalFile.exists() && read(line);
+        discardUnrecordedSegments();
+
+        journalOut = new FileOutputStream(journalFile, resumed);
+        journalWriter = new OutputStreamWriter(journalOut, CHARSET);
+        if (!resumed)
+            append(line);
+
+        if (resumed && LOG.isInfoEnabled()) {
+            LOG.info("Resuming all-pairs from journal " + journalFile
+                    + " with " + completed.size() + " completed chunk pairs.");
+        }
+    }
+
+    /**
+     * Read the existing journal, if it has the given fingerprint.
+     *
+     * @return true if the journal was read, false if it was stale
+     */
+    private boolean read(String fingerprint) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), CHARSET));
+        try {
+            final String header = reader.readLine();
+            if (!fingerprint.equals(header)) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Discarding journal " + journalFile
+                            + ", which was written by a different run.");
+                }
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readEntry(line);
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse a journal entry: chunk ids of the pair, followed by the names of
+     * its segment files, and terminated by {@link #END_OF_ENTRY}. An entry that
+     * was only partially written, or whose segment files are missing or
+     * truncated, is ignored so that the chunk pair is repeated.
+     */
+    private void readEntry(String line) {
+        final String[] fields = line.trim().split("\\s+");
+        if (fields.length < 3
+                || !END_OF_ENTRY.equals(fields[fields.length - 1]))
+            return;
+        try {
+            final int chunkIdA = Integer.parseInt(fields[0]);
+            final int chunkIdB = Integer.parseInt(fields[1]);
+            final List<File> files = new ArrayList<File>();
+            for (int i = 2; i < fields.length - 1; i++) {
+                final File file = new File(directory, fields[i]);
+                if (!file.isFile()
+                        || file.length() % SortedPairRuns.RECORD_SIZE != 0)
+                    return;
+                files.add(file);
+            }
+            completed.add(key(chunkIdA, chunkIdB));
+            segmentFiles.addAll(files);
+        } catch (NumberFormatException e) {
+            // Corrupt entry; repeat the chunk pair
+        }
+    }
+
+    private void discardUnrecordedSegments() {
+        final Set<String> recorded = new HashSet<String>();
+        for (File file : segmentFiles)
+            recorded.add(file.getName());
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_PREFIX)
+                    && file.getName().endsWith(SEGMENT_SUFFIX)
+                    && !recorded.contains(file.getName())
+                    && !file.delete() && LOG.isWarnEnabled()) {
+                LOG.warn("Failed to delete segment " + file);
+            }
+        }
+    }
+
+    private static long key(int chunkIdA, int chunkIdB) {
+        return ((long) chunkIdA << 32) | (chunkIdB & 0xffffffffL);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public WeightedTokenPairBuffer.Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return true if the chunk pair was completed by an earlier run
+     */
+    public synchronized boolean isCompleted(int chunkIdA, int chunkIdB) {
+        return completed.contains(key(chunkIdA, chunkIdB));
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * @return a new segment, to which the output of a single chunk pair
+     *      should be written
+     */
+    public SortedPairRuns newSegment() {
+        final SortedPairRuns segment =
+                new SortedPairRuns(segmentFileFactory, order);
+        segment.setSync(true);
+        return segment;
+    }
+
+    /**
+     * Record that the chunk pair is complete, with its output in the given
+     * segment. Once this method returns the chunk pair will not be repeated.
+     *
+     * @param chunkIdA id of the chunk from source A
+     * @param chunkIdB id of the chunk from source B
+     * @param segment segment holding the output of the chunk pair
+     * @throws IOException if the journal can not be written
+     */
+    public synchronized void commit(int chunkIdA, int chunkIdB,
+                                    SortedPairRuns segment)
+            throws IOException {
+        Checks.checkNotNull("segment", segment);
+        if (journalWriter == null)
+            throw new IllegalStateException("journal is closed");
+
+        final List<File> files = segment.getRunFiles();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(chunkIdA).append(' ').append(chunkIdB);
+        for (File file : files)
+            sb.append(' ').append(file.getName());
+        sb.append(' ').append(END_OF_ENTRY);
+        append(sb.toString());
+        segmentFiles.addAll(files);
+        completed.add(key(chunkIdA, chunkIdB));
+    }
+
+    private void append(String line) throws IOException {
+        journalWriter.write(line);
+        journalWriter.write('\n');
+        journalWriter.flush();
+        journalOut.getFD().sync();
+    }
+
+    /**
+     * Merge the segments of every completed chunk pair into the sink. The
+     * segment files are deleted as they are consumed.
+     *
+     * @param sink destination of the merged pairs
+     * @param tempFileFactory produces the files of intermediate merges
+     * @param nThreads number of intermediate merges to run concurrently
+     * @throws IOException if a segment can not be read, or the sink written
+     * @throws InterruptedException if interrupted during an intermediate merge
+     * @throws ExecutionException if an intermediate merge fails
+     */
+    public synchronized void mergeTo(ObjectSink<Weighted<TokenPair>> sink,
+                                     FileFactory tempFileFactory, int nThreads)
+            throws IOException, InterruptedException, ExecutionException {
+        final SortedPairRuns runs = new SortedPairRuns(tempFileFactory, order);
+        for (File file : segmentFiles)
+            runs.addRun(file);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Merging " + runs.getPairCount() + " pairs from "
+                    + runs.getRunCount() + " journalled runs.");
+        }
+        runs.mergeTo(sink, nThreads);
+    }
+
+    /**
+     * Close the journal, leaving it and its segments in place so that the
+     * run can be resumed.
+     *
+     * @throws IOException if the journal can not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+            journalOut = null;
+        }
+    }
+
+    /**
+     * Close the journal, and delete it along with any remaining segments and
+     * the directory; to be called once the run is complete.
+     *
+     * @throws IOException if the journal can not be closed
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        for (File file : segmentFiles) {
+            if (file.exists() && !file.delete() && LOG.isWarnEnabled())
+                LOG.warn("Failed to delete segment " + file);
+        }
+        segmentFiles.clear();
+        completed.clear();
+        if (!journalFile.delete() && LOG.isWarnEnabled())
+            LOG.warn("Failed to delete journal " + journalFile);
+        if (!directory.delete() && LOG.isWarnEnabled())
+            LOG.warn("Failed to delete journal directory " + directory);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("directory", directory).
+                add("order", order).
+                add("completed", completed.size()).
+                add("segments", segmentFiles.size()).
+                toString();
+    }
+
+}
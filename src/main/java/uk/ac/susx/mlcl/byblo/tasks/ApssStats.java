@@ -35,110 +35,185 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * An instance of ApssStats collects various bits of information about an an
  * All-Pairs process, that can be used for debugging and performance evaluation.
+ * <p/>
+ * Statistics are updated concurrently by every worker thread, so rather than
+ * holding a single shared value per counter (which would make the cache line
+ * holding it a point of contention) the counts are striped across a number
+ * of cells. Each thread updates the cell selected by its id, and the cells
+ * are summed when a count is read. Each stripe is padded to occupy its own
+ * cache line. Reads are exact once all updates have completed.
+ * <p/>
+ * Tasks should accumulate counts locally, and add them in bulk when a unit
+ * of work is complete, rather than updating the statistics per comparison.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public final class ApssStats implements Serializable {
 
     private static final long serialVersionUID = 4248533084667228992L;
-    private final AtomicLong candidates;
-    private final AtomicLong comparisons;
-    private final AtomicLong productions;
-    private final AtomicLong srcReads;
+
+    private static final int CANDIDATES = 0;
+
+    private static final int COMPARISONS = 1;
+
+    private static final int PRODUCTIONS = 2;
+
+    private static final int SOURCE_READS = 3;
+
+    private static final int RECALL_EXACT = 4;
+
+    private static final int RECALL_FOUND = 5;
 
     /**
-     * Dependency injection constructor.
-     *
-     * @param candidates    Count of candidate pairs
-     * @param comparisons   Count of "slow" comparisons (e.g dot products).
-     * @param productions   Count of unique pairs found.
-     * @param srcReads      Count of records read.
+     * Number of longs per stripe; the counters are padded out to 64 bytes so
+     * that no two stripes share a cache line.
      */
-    protected ApssStats(AtomicLong candidates, AtomicLong comparisons,
-            AtomicLong productions, AtomicLong srcReads) {
-        this.candidates = candidates;
-        this.comparisons = comparisons;
-        this.productions = productions;
-        this.srcReads = srcReads;
-    }
+    private static final int STRIDE = 8;
+
+    private static final int STRIPES = stripeCount();
+
+    private transient AtomicLongArray cells;
 
     /**
      * Default constructor initialises everything to 0.
      */
     public ApssStats() {
-        srcReads = new AtomicLong(0);
-        productions = new AtomicLong(0);
-        comparisons = new AtomicLong(0);
-        candidates = new AtomicLong(0);
+        cells = new AtomicLongArray((STRIPES + 1) * STRIDE);
+    }
+
+    /**
+     * @return the smallest power of 2 that is at least twice the number of
+     *         available processors
+     */
+    private static int stripeCount() {
+        final int n = 2 * Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private void add(final int counter, final long delta) {
+        // The first stripe is left empty, as padding between the array header
+        // and the cells that are actually updated.
+        final int stripe = 1 + (int) (Thread.currentThread().getId()
+                                      & (STRIPES - 1));
+        cells.getAndAdd(stripe * STRIDE + counter, delta);
+    }
+
+    private long sum(final int counter) {
+        long sum = 0;
+        for (int stripe = 1; stripe <= STRIPES; stripe++)
+            sum += cells.get(stripe * STRIDE + counter);
+        return sum;
     }
 
     private void writeObject(final ObjectOutputStream out)
             throws IOException {
-        out.writeLong(candidates.get());
-        out.writeLong(comparisons.get());
-        out.writeLong(productions.get());
-        out.writeLong(srcReads.get());
+        out.defaultWriteObject();
+        out.writeLong(getCandidatesCount());
+        out.writeLong(getComparisonCount());
+        out.writeLong(getProductionCount());
+        out.writeLong(getSourceReads());
+        out.writeLong(getRecallSampleExactCount());
+        out.writeLong(getRecallSampleFoundCount());
     }
 
     private void readObject(final ObjectInputStream in)
             throws IOException, ClassNotFoundException {
-        candidates.set(in.readLong());
-        comparisons.set(in.readLong());
-        productions.set(in.readLong());
-        srcReads.set(in.readLong());
+        in.defaultReadObject();
+        cells = new AtomicLongArray((STRIPES + 1) * STRIDE);
+        addCandidatesCount(in.readLong());
+        addComparisonCount(in.readLong());
+        addProductionCount(in.readLong());
+        addSourceReads(in.readLong());
+        addRecallSampleExactCount(in.readLong());
+        addRecallSampleFoundCount(in.readLong());
     }
 
     public long getCandidatesCount() {
-        return candidates.get();
+        return sum(CANDIDATES);
     }
 
     public void incrementCandidatesCount() {
-        candidates.incrementAndGet();
+        add(CANDIDATES, 1);
     }
 
     public void addCandidatesCount(long delta) {
-        candidates.addAndGet(delta);
+        add(CANDIDATES, delta);
     }
 
     public long getComparisonCount() {
-        return comparisons.get();
+        return sum(COMPARISONS);
     }
 
     public void incrementComparisonCount() {
-        comparisons.incrementAndGet();
+        add(COMPARISONS, 1);
     }
 
     public void addComparisonCount(long delta) {
-        comparisons.addAndGet(delta);
+        add(COMPARISONS, delta);
     }
 
     public long getProductionCount() {
-        return productions.get();
+        return sum(PRODUCTIONS);
     }
 
     public void incrementProductionCount() {
-        productions.incrementAndGet();
+        add(PRODUCTIONS, 1);
     }
 
     public void addProductionCount(long delta) {
-        productions.addAndGet(delta);
+        add(PRODUCTIONS, delta);
     }
 
     public long getSourceReads() {
-        return srcReads.get();
+        return sum(SOURCE_READS);
     }
 
     public void incrementSourceReads() {
-        srcReads.incrementAndGet();
+        add(SOURCE_READS, 1);
     }
 
     public void addSourceReads(long delta) {
-        srcReads.addAndGet(delta);
+        add(SOURCE_READS, delta);
+    }
+
+    /**
+     * @return number of pairs, over a sample of entries, that an exact search
+     *      would have produced
+     */
+    public long getRecallSampleExactCount() {
+        return sum(RECALL_EXACT);
+    }
+
+    public void addRecallSampleExactCount(long delta) {
+        add(RECALL_EXACT, delta);
+    }
+
+    /**
+     * @return number of pairs, over a sample of entries, that an exact search
+     *      would have produced, and that were also found by an approximate
+     *      search
+     */
+    public long getRecallSampleFoundCount() {
+        return sum(RECALL_FOUND);
+    }
+
+    public void addRecallSampleFoundCount(long delta) {
+        add(RECALL_FOUND, delta);
+    }
+
+    /**
+     * @return estimated proportion of the exact output produced by an
+     *      approximate search, or NaN if recall was not sampled
+     */
+    public double getRecallEstimate() {
+        final long exact = getRecallSampleExactCount();
+        return exact == 0 ? Double.NaN
+               : (double) getRecallSampleFoundCount() / exact;
     }
 
     @Override
@@ -148,9 +223,11 @@ public final class ApssStats implements Serializable {
 
     protected Objects.ToStringHelper toStringHelper() {
         return Objects.toStringHelper(this).
-                add("candidates", candidates).
-                add("comparisons", comparisons).
-                add("productions", productions).
-                add("srcReads", srcReads);
+                add("candidates", getCandidatesCount()).
+                add("comparisons", getComparisonCount()).
+                add("productions", getProductionCount()).
+                add("srcReads", getSourceReads()).
+                add("recallSampleExact", getRecallSampleExactCount()).
+                add("recallSampleFound", getRecallSampleFoundCount());
     }
 }
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.Chunk;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Estimated cost of comparing each pair of chunks of an all-pairs search.
+ * <p/>
+ * An inverted index search of a chunk pair considers every pair of entries
+ * that share a feature, once for each feature they share. The cost of a
+ * chunk pair is therefore estimated as the posting-list overlap product:
+ * the sum, over every feature, of the number of entries in chunk A with the
+ * feature multiplied by the number in chunk B. This is exact for the number
+ * of postings visited, where the product of the chunks' non-zero counts can
+ * be out by orders of magnitude on Zipfian data.
+ * <p/>
+ * Profiles hold the distinct features of each chunk with their counts, so
+ * occupy at most 8 bytes per non-zero of the source.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ChunkCosts {
+
+    /**
+     * The features of each chunk of a source, and the number of entries of
+     * the chunk with each.
+     */
+    static final class Profile {
+
+        private final long[] nonZeros;
+
+        private final int[][] features;
+
+        private final int[][] counts;
+
+        private Profile(long[] nonZeros, int[][] features, int[][] counts) {
+            this.nonZeros = nonZeros;
+            this.features = features;
+            this.counts = counts;
+        }
+
+        int getChunkCount() {
+            return nonZeros.length;
+        }
+
+        /**
+         * @return number of non-zero features in each chunk
+         */
+        long[] getNonZeros() {
+            return nonZeros;
+        }
+
+        private int maxFeatureId() {
+            int max = -1;
+            for (int[] f : features) {
+                if (f.length > 0)
+                    max = Math.max(max, f[f.length - 1]);
+            }
+            return max;
+        }
+
+    }
+
+    private final int chunkCountA;
+
+    private final int chunkCountB;
+
+    /**
+     * Cost of each chunk pair, indexed by
+     * (chunkIdA - 1) * chunkCountB + (chunkIdB - 1); pairs that are not
+     * compared have a cost of 0.
+     */
+    private final double[] costs;
+
+    private ChunkCosts(int chunkCountA, int chunkCountB, double[] costs) {
+        this.chunkCountA = chunkCountA;
+        this.chunkCountB = chunkCountB;
+        this.costs = costs;
+    }
+
+    /**
+     * Read every chunk, recording its features. The chunker is returned to
+     * its original position.
+     *
+     * @param chunker chunks to profile
+     * @param starts list to which the position of each chunk is added, so
+     *      chunks can later be read in any order
+     * @return profile of the chunks
+     * @throws IOException if the chunks can not be read
+     */
+    static <S> Profile profile(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunker,
+            List<S> starts) throws IOException {
+        Checks.checkNotNull("chunker", chunker);
+        Checks.checkNotNull("starts", starts);
+        final S start = chunker.position();
+        final List<int[]> features = new ArrayList<int[]>();
+        final List<int[]> counts = new ArrayList<int[]>();
+        final LongArrayList nonZeros = new LongArrayList();
+        final Int2IntOpenHashMap df = new Int2IntOpenHashMap();
+        while (chunker.hasNext()) {
+            starts.add(chunker.position());
+            final Chunk<Indexed<SparseDoubleVector>> chunk = chunker.read();
+            df.clear();
+            long n = 0;
+            while (chunk.hasNext()) {
+                final SparseDoubleVector vec = chunk.read().value();
+                for (int i = 0; i < vec.size; i++) {
+                    df.put(vec.keys[i], df.get(vec.keys[i]) + 1);
+                }
+                n += vec.size;
+            }
+            final int[] f = new int[df.size()];
+            final int[] c = new int[df.size()];
+            int i = 0;
+            final ObjectIterator<Int2IntMap.Entry> it =
+                    df.int2IntEntrySet().fastIterator();
+            while (it.hasNext()) {
+                final Int2IntMap.Entry e = it.next();
+                f[i] = e.getIntKey();
+                c[i] = e.getIntValue();
+                ++i;
+            }
+            sort(f, c);
+            features.add(f);
+            counts.add(c);
+            nonZeros.add(n);
+        }
+        chunker.position(start);
+
+        return new Profile(nonZeros.toLongArray(), features.toArray(new int[features.size()][]),
+                           counts.toArray(new int[counts.size()][]));
+    }
+
+    /**
+     * Estimate the cost of every chunk pair that is compared.
+     *
+     * @param a profile of the chunks of source A
+     * @param b profile of the chunks of source B
+     * @param symmetric true if only the pairs on or above the diagonal are
+     *      compared
+     * @return costs of the chunk pairs
+     */
+    static ChunkCosts estimate(Profile a, Profile b, boolean symmetric) {
+        Checks.checkNotNull("a", a);
+        Checks.checkNotNull("b", b);
+        if (symmetric && a.getChunkCount() != b.getChunkCount())
+            throw new IllegalArgumentException(
+                    "symmetric costs require the same number of chunks");
+
+        final int nA = a.getChunkCount();
+        final int nB = b.getChunkCount();
+        final double[] costs = new double[nA * nB];
+
+        // The counts of each A chunk are scattered into a dense array, so the
+        // overlap with each B chunk takes time linear in its features.
+        final int[] dense = new int[
+                Math.max(a.maxFeatureId(), b.maxFeatureId()) + 1];
+        for (int i = 0; i < nA; i++) {
+            final int[] featuresA = a.features[i];
+            final int[] countsA = a.counts[i];
+            for (int k = 0; k < featuresA.length; k++) {
+                dense[featuresA[k]] = countsA[k];
+            }
+            for (int j = symmetric ? i : 0; j < nB; j++) {
+                final int[] featuresB = b.features[j];
+                final int[] countsB = b.counts[j];
+                double cost = 0;
+                for (int k = 0; k < featuresB.length; k++) {
+                    cost += (double) dense[featuresB[k]] * countsB[k];
+                }
+                costs[i * nB + j] = cost;
+            }
+            for (int k = 0; k < featuresA.length; k++) {
+                dense[featuresA[k]] = 0;
+            }
+        }
+        return new ChunkCosts(nA, nB, costs);
+    }
+
+    int getChunkCountA() {
+        return chunkCountA;
+    }
+
+    int getChunkCountB() {
+        return chunkCountB;
+    }
+
+    /**
+     * @param chunkIdA id of the chunk from source A (starting at 1)
+     * @param chunkIdB id of the chunk from source B (starting at 1)
+     * @return estimated cost of the chunk pair, or 0 if it is not compared
+     */
+    double cost(int chunkIdA, int chunkIdB) {
+        Checks.checkRangeIncl("chunkIdA", chunkIdA, 1, chunkCountA);
+        Checks.checkRangeIncl("chunkIdB", chunkIdB, 1, chunkCountB);
+        return costs[(chunkIdA - 1) * chunkCountB + (chunkIdB - 1)];
+    }
+
+    /**
+     * @return total estimated cost of every chunk pair
+     */
+    double total() {
+        double total = 0;
+        for (double cost : costs) {
+            total += cost;
+        }
+        return total;
+    }
+
+    /**
+     * Order chunk ids by decreasing cost, breaking ties on the id, so that
+     * the most expensive work is scheduled first.
+     *
+     * @param ids chunk ids (starting at 1), sorted in place
+     * @param idCosts cost of each id, indexed by id - 1
+     */
+    static void sortByDecreasingCost(final int[] ids, final double[] idCosts) {
+        Arrays.quickSort(0, ids.length, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                final int c = Double.compare(
+                        idCosts[ids[j] - 1], idCosts[ids[i] - 1]);
+                return c != 0 ? c : ids[i] < ids[j] ? -1
+                                    : ids[i] > ids[j] ? 1 : 0;
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final int id = ids[i];
+                ids[i] = ids[j];
+                ids[j] = id;
+            }
+
+        });
+    }
+
+    private static void sort(final int[] features, final int[] counts) {
+        Arrays.quickSort(0, features.length, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                return features[i] < features[j] ? -1
+                       : features[i] > features[j] ? 1 : 0;
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final int feature = features[i];
+                features[i] = features[j];
+                features[j] = feature;
+                final int count = counts[i];
+                counts[i] = counts[j];
+                counts[j] = count;
+            }
+
+        });
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("chunkCountA", chunkCountA).
+                add("chunkCountB", chunkCountB).
+                add("total", total()).
+                toString();
+    }
+
+}
@@ -30,28 +30,29 @@
  */
 package uk.ac.susx.mlcl.byblo.tasks;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import uk.ac.susx.mlcl.byblo.io.TokenPair;
-import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.ObjectIO;
-import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 
 /**
  * An all-pairs similarity search implementation that improves efficiency by
  * building a reverse index of one of the input sources. This allows candidate
  * pairs to be found relatively quickly given sufficient sparsity
+ * <p/>
+ * When the measure is a {@link DecomposableProximity} the shared component of
+ * each candidate pair is accumulated while the posting lists are traversed,
+ * so the vectors need not be intersected again. Other measures fall back to
+ * calculating the shared component of the candidate pairs directly, in
+ * batches of candidates for each query.
  *
  * @param <S>
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -60,7 +61,21 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     private static final Log LOG = LogFactory.getLog(InvertedApssTask.class);
 
-    private Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index;
+    private InvertedIndex index;
+
+    /**
+     * Stamp of the last query in which each index slot was found as a
+     * candidate; used to de-duplicate candidates without a hash set.
+     */
+    private int[] seen = null;
+
+    private int stamp = 0;
+
+    /**
+     * Dense per-slot accumulators of the shared component of the measure,
+     * only allocated when the measure is a {@link DecomposableProximity}.
+     */
+    private double[] accumulators = null;
 
     public InvertedApssTask() {
         index = null;
@@ -70,7 +85,23 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
     protected void initialiseTask() throws Exception {
         super.initialiseTask();
         if (index == null) {
-            index = buildIndex();
+            if (getSharedIndex() != null) {
+                index = getSharedIndex().get(new SharedInvertedIndex.Builder() {
+
+                    @Override
+                    public InvertedIndex build() throws IOException {
+                        return buildIndex();
+                    }
+
+                });
+            } else {
+                index = buildIndex();
+            }
+        }
+        seen = new int[index.size()];
+        stamp = 0;
+        if (getMeasure() instanceof DecomposableProximity) {
+            accumulators = new double[index.size()];
         }
     }
 
@@ -85,42 +116,51 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
         progress.endAdjusting();
 
         final S startB = getSourceB().position();
-        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final IntArrayList candidates = new IntArrayList();
+        final List<Indexed<SparseDoubleVector>> batch =
+                new ArrayList<Indexed<SparseDoubleVector>>(BATCH_SIZE);
+        final SparseDoubleVector[] batchVectors =
+                new SparseDoubleVector[BATCH_SIZE];
+        final double[] batchShared = new double[BATCH_SIZE];
 
         while (getSourceB().hasNext()) {
             Indexed<SparseDoubleVector> b = getSourceB().read();
             if (!getProcessRecord().apply(b))
                 continue;
 
-            Set<Indexed<SparseDoubleVector>> candidates = findCandidates(b);
+            if (accumulators != null) {
+                accumulateCandidates(b, candidates);
+            } else {
+                findCandidates(b, candidates);
+            }
 
-            for (Indexed<SparseDoubleVector> a : candidates) {
+            final int[] candidateSlots = candidates.elements();
+            final int nCandidates = candidates.size();
+            for (int i = 0; i < nCandidates; i++) {
+                final int slot = candidateSlots[i];
+                final Indexed<SparseDoubleVector> a = index.entry(slot);
                 if (!getProcessRecord().apply(a))
                     continue;
-                getStats().incrementCandidatesCount();
-
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(b.key(), a.key()), sim);
-                if (getProducatePair().apply(pair)) {
-                    pairs.add(pair);
-                    getStats().incrementProductionCount();
-
-
-
-
-
-                    if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
-                        writeOutPairs(pairs);
-                    }
-
+                countCandidate();
+                if (isPrunable(a, b))
+                    continue;
 
+                if (accumulators != null) {
+                    produce(b.key(), a.key(), sim(a, b, accumulators[slot]),
+                            pairs);
+                    continue;
                 }
+                batchVectors[batch.size()] = a.value();
+                batch.add(a);
+                if (batch.size() == BATCH_SIZE)
+                    compareBatch(batch, batchVectors, b, batchShared, pairs);
             }
+            compareBatch(batch, batchVectors, b, batchShared, pairs);
         }
 
         writeOutPairs(pairs);
-
+        flushNeighbours();
 
         getSourceB().position(startB);
 
@@ -131,46 +171,149 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     }
 
-    protected Set<Indexed<SparseDoubleVector>> findCandidates(
-            Indexed<SparseDoubleVector> b) {
+    @Override
+    protected void finaliseTask() throws Exception {
+        seen = null;
+        accumulators = null;
+        if (getSharedIndex() != null)
+            index = null;
+        super.finaliseTask();
+    }
+
+    /**
+     * Compare a batch of candidate entries from the index with the query
+     * vector b, producing the resultant pairs, then empty the batch.
+     *
+     * @param batch candidate entries from source A
+     * @param batchVectors vectors of the entries in the batch
+     * @param b query vector
+     * @param batchShared scratch space for the shared components
+     * @param pairs output buffer
+     * @throws IOException if the sink fails to write
+     */
+    private void compareBatch(final List<Indexed<SparseDoubleVector>> batch,
+                              final SparseDoubleVector[] batchVectors,
+                              final Indexed<SparseDoubleVector> b,
+                              final double[] batchShared,
+                              final WeightedTokenPairBuffer pairs)
+            throws IOException {
+        final int batchSize = batch.size();
+        if (isBounded()) {
+            for (int i = 0; i < batchSize; i++)
+                batchShared[i] = sharedBounded(batch.get(i), b);
+        } else {
+            sharedMany(batchVectors, b.value(), batchSize, batchShared);
+        }
+        for (int i = 0; i < batchSize; i++) {
+            produce(b.key(), batch.get(i).key(),
+                    sim(batch.get(i), b, batchShared[i]), pairs);
+        }
+        batch.clear();
+    }
 
-        final Set<Indexed<SparseDoubleVector>> candidates =
-                new ObjectOpenHashSet<Indexed<SparseDoubleVector>>();
+    /**
+     * Find the index slots of all entries that share at least one feature
+     * with the query vector b. The postings of each feature in b are walked
+     * directly, with each slot being added to the result the first time it is
+     * encountered.
+     *
+     * @param b query vector
+     * @param candidates list to populate with candidate slots (cleared first)
+     */
+    protected void findCandidates(
+            Indexed<SparseDoubleVector> b, IntArrayList candidates) {
+        candidates.clear();
+        if (++stamp == 0) {
+            // The stamp has wrapped around so previous marks are ambiguous
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
 
-        for (int k : b.value().keys) {
-            if (index.containsKey(k)) {
-                candidates.addAll(index.get(k));
+        final int[] offsets = index.offsets();
+        final int[] slots = index.slots();
+        final SparseDoubleVector vec = b.value();
+
+        int row = 0;
+        for (int i = 0; i < vec.size && row < index.featureCount(); i++) {
+            row = index.findRow(vec.keys[i], row);
+            if (row < 0) {
+                row = -row - 1;
+                continue;
             }
+            for (int p = offsets[row]; p < offsets[row + 1]; p++) {
+                final int slot = slots[p];
+                if (seen[slot] != stamp) {
+                    seen[slot] = stamp;
+                    candidates.add(slot);
+                }
+            }
+            ++row;
         }
-        return candidates;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> buildIndex()
-            throws IOException {
-        SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
-        final Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> result =
-                new Int2ObjectOpenHashMap<Set<Indexed<SparseDoubleVector>>>();
-        final S startA = src.position();
-        while (src.hasNext()) {
-            final Indexed<SparseDoubleVector> a = src.read();
-            for (int k : a.value().keys) {
-                if (!result.containsKey(k)) {
-                    result.put(k,
-                               new ObjectOpenHashSet<Indexed<SparseDoubleVector>>());
+    /**
+     * Find the index slots of all entries that share at least one feature
+     * with the query vector b, while simultaneously accumulating the shared
+     * component of the (decomposable) measure for each candidate. Once
+     * complete the accumulator of each candidate slot holds exactly the value
+     * that would have been returned by
+     * {@link uk.ac.susx.mlcl.byblo.measures.Proximity#shared(SparseDoubleVector, SparseDoubleVector)},
+     * so no further vector intersection is required.
+     *
+     * @param b query vector
+     * @param candidates list to populate with candidate slots (cleared first)
+     */
+    protected void accumulateCandidates(
+            Indexed<SparseDoubleVector> b, IntArrayList candidates) {
+        candidates.clear();
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+
+        final DecomposableProximity measure =
+                (DecomposableProximity) getMeasure();
+        final int[] offsets = index.offsets();
+        final int[] slots = index.slots();
+        final double[] weights = index.weights();
+        final double[] sums = index.sums();
+        final SparseDoubleVector vec = b.value();
+
+        int row = 0;
+        for (int i = 0; i < vec.size && row < index.featureCount(); i++) {
+            final int key = vec.keys[i];
+            row = index.findRow(key, row);
+            if (row < 0) {
+                row = -row - 1;
+                continue;
+            }
+            for (int p = offsets[row]; p < offsets[row + 1]; p++) {
+                final int slot = slots[p];
+                final double component = measure.sharedComponent(
+                        key, weights[p], sums[slot], vec.values[i], vec.sum);
+                if (seen[slot] != stamp) {
+                    seen[slot] = stamp;
+                    accumulators[slot] = component;
+                    candidates.add(slot);
+                } else {
+                    accumulators[slot] += component;
                 }
-                result.get(k).add(a);
             }
+            ++row;
         }
-        src.position(startA);
-        return result;
     }
 
-    protected void setIndex(Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index) {
-        Checks.checkNotNull("index is null", index);
+    protected InvertedIndex buildIndex()
+            throws IOException {
+        return InvertedIndex.build(getSourceA());
+    }
+
+    protected void setIndex(InvertedIndex index) {
+        Checks.checkNotNull("index", index);
         this.index = index;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> getIndex() {
+    protected InvertedIndex getIndex() {
         return index;
     }
 
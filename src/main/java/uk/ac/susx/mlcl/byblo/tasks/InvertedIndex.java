@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * A compact, immutable, inverted index from feature ids to the entry vectors
+ * in which that feature occurs.
+ * <p/>
+ * The index is stored in compressed sparse row (CSR) form: a sorted array of
+ * the distinct feature ids, an array of offsets delimiting each feature's
+ * postings, and flat arrays holding the entry slot and feature weight of every
+ * posting. Entries themselves are held in an array, so a slot is simply the
+ * position of the entry in the order it was read from the source.
+ * <p/>
+ * Compared to a map of sets this removes all per-posting object overhead, and
+ * allows candidate generation to walk contiguous primitive arrays.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class InvertedIndex {
+
+    /**
+     * The entry vectors, indexed by slot.
+     */
+    private final List<Indexed<SparseDoubleVector>> entries;
+
+    /**
+     * Sum of the values of each entry vector, indexed by slot.
+     */
+    private final double[] sums;
+
+    /**
+     * Distinct feature ids, in ascending order.
+     */
+    private final int[] features;
+
+    /**
+     * Postings for the feature at row r are stored in the range
+     * offsets[r] (inclusive) to offsets[r+1] (exclusive).
+     */
+    private final int[] offsets;
+
+    /**
+     * Postings for the feature at row r that come from entry prefixes are
+     * stored in the range offsets[r] (inclusive) to prefixEnds[r] (exclusive);
+     * the remainder, up to offsets[r+1], come from entry suffixes. When no
+     * prefix has been defined every posting is in the prefix range.
+     */
+    private final int[] prefixEnds;
+
+    /**
+     * Slot of the entry for each posting.
+     */
+    private final int[] slots;
+
+    /**
+     * Weight of the feature in the entry vector for each posting.
+     */
+    private final double[] weights;
+
+    private InvertedIndex(List<Indexed<SparseDoubleVector>> entries,
+                          double[] sums, int[] features, int[] offsets,
+                          int[] prefixEnds, int[] slots, double[] weights) {
+        this.entries = entries;
+        this.sums = sums;
+        this.features = features;
+        this.offsets = offsets;
+        this.prefixEnds = prefixEnds;
+        this.slots = slots;
+        this.weights = weights;
+    }
+
+    /**
+     * Build an index of all the entries in the given list.
+     *
+     * The index is constructed in two passes: the first counts the number of
+     * postings for each feature, from which the offsets are calculated, and
+     * the second fills in the posting slots and weights.
+     *
+     * @param entryList entry vectors to index
+     * @return new index
+     */
+    public static InvertedIndex build(
+            List<? extends Indexed<SparseDoubleVector>> entryList) {
+        return build(entryList, null);
+    }
+
+    /**
+     * Build an index of all the entries in the given list, where the features
+     * of each entry are split in to a prefix and a suffix. Within the
+     * postings of each feature, those from entry prefixes are stored before
+     * those from entry suffixes, so either can be traversed independently.
+     *
+     * @param entryList entry vectors to index
+     * @param suffixes for each entry (by slot), a flag for each feature
+     *      denoting whether it is in the suffix, or null if every feature is
+     *      in the prefix
+     * @return new index
+     */
+    static InvertedIndex build(
+            List<? extends Indexed<SparseDoubleVector>> entryList,
+            boolean[][] suffixes) {
+        Checks.checkNotNull("entryList", entryList);
+
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>(entryList);
+
+        // First pass: count the postings of every feature
+        final Int2IntMap rows = new Int2IntOpenHashMap();
+        rows.defaultReturnValue(0);
+        final Int2IntMap prefixCounts = new Int2IntOpenHashMap();
+        prefixCounts.defaultReturnValue(0);
+        final double[] sums = new double[entries.size()];
+        int nPostings = 0;
+        for (int slot = 0; slot < entries.size(); slot++) {
+            final SparseDoubleVector vec = entries.get(slot).value();
+            sums[slot] = vec.sum;
+            for (int i = 0; i < vec.size; i++) {
+                rows.put(vec.keys[i], rows.get(vec.keys[i]) + 1);
+                if (suffixes == null || !suffixes[slot][i]) {
+                    prefixCounts.put(vec.keys[i],
+                                     prefixCounts.get(vec.keys[i]) + 1);
+                }
+            }
+            nPostings += vec.size;
+        }
+
+        final int[] features = rows.keySet().toIntArray();
+        Arrays.sort(features);
+
+        // Calculate the offsets and replace the counts with row numbers, so
+        // the map can be re-used to locate the row of a feature.
+        final int[] offsets = new int[features.length + 1];
+        final int[] prefixEnds = new int[features.length];
+        for (int r = 0; r < features.length; r++) {
+            offsets[r + 1] = offsets[r] + rows.get(features[r]);
+            prefixEnds[r] = offsets[r] + prefixCounts.get(features[r]);
+            rows.put(features[r], r);
+        }
+
+        // Second pass: fill in the postings
+        final int[] slots = new int[nPostings];
+        final double[] weights = new double[nPostings];
+        final int[] prefixCursors = Arrays.copyOf(offsets, features.length);
+        final int[] suffixCursors = Arrays.copyOf(prefixEnds, features.length);
+        for (int slot = 0; slot < entries.size(); slot++) {
+            final SparseDoubleVector vec = entries.get(slot).value();
+            for (int i = 0; i < vec.size; i++) {
+                final int r = rows.get(vec.keys[i]);
+                final int p = (suffixes == null || !suffixes[slot][i])
+                              ? prefixCursors[r]++
+                              : suffixCursors[r]++;
+                slots[p] = slot;
+                weights[p] = vec.values[i];
+            }
+        }
+
+        return new InvertedIndex(entries, sums, features, offsets,
+                                 prefixEnds, slots, weights);
+    }
+
+    /**
+     * Build an index of all the entries remaining in the given source. The
+     * source is returned to it's original position once the index has been
+     * built.
+     *
+     * @param <P> type of source offset positions
+     * @param src source of entry vectors to index
+     * @return new index
+     * @throws IOException if the source fails to read
+     */
+    public static <P> InvertedIndex build(
+            SeekableObjectSource<? extends Indexed<SparseDoubleVector>, P> src)
+            throws IOException {
+        Checks.checkNotNull("src", src);
+        final List<Indexed<SparseDoubleVector>> entryList =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final P start = src.position();
+        while (src.hasNext()) {
+            entryList.add(src.read());
+        }
+        src.position(start);
+        return build(entryList);
+    }
+
+    /**
+     * @return number of entries in the index
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of distinct features in the index
+     */
+    public int featureCount() {
+        return features.length;
+    }
+
+    /**
+     * @return total number of postings across all features
+     */
+    public int postingsCount() {
+        return slots.length;
+    }
+
+    /**
+     * @param slot position of the entry in the index
+     * @return the entry vector stored at the given slot
+     */
+    public Indexed<SparseDoubleVector> entry(int slot) {
+        return entries.get(slot);
+    }
+
+    /**
+     * Locate the row of the given feature, searching only within rows from
+     * (inclusive) to features.length (exclusive). Since query vectors are
+     * sorted by key, callers can pass the previous row found as a lower bound.
+     *
+     * @param feature feature id to find
+     * @param from the lowest row to search
+     * @return row of the feature if found; otherwise (-(insertion point) - 1)
+     */
+    int findRow(int feature, int from) {
+        return Arrays.binarySearch(features, from, features.length, feature);
+    }
+
+    double[] sums() {
+        return sums;
+    }
+
+    int[] features() {
+        return features;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] prefixEnds() {
+        return prefixEnds;
+    }
+
+    int[] slots() {
+        return slots;
+    }
+
+    double[] weights() {
+        return weights;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("entries", entries.size()).
+                add("features", features.length).
+                add("postings", slots.length).
+                toString();
+    }
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An approximate all-pairs similarity search implementation, that uses
+ * locality-sensitive hashing to find candidate pairs. Every vector is given
+ * a banded signature (see {@link LshSignatures}), and pairs of vectors with
+ * at least one identical band are candidates. Candidates are then scored
+ * exactly with the measure, so every pair produced has its true similarity,
+ * but pairs that are not candidates are missed.
+ * <p/>
+ * To estimate the proportion of pairs missed, a sample of entries are also
+ * compared exhaustively with every entry of the other source that shares a
+ * feature (i.e. every pair the exact inverted index search would compare.)
+ * Each pair is sampled by the entry whose neighbours it is among, so that
+ * when only the k nearest neighbours are produced they can be ranked as the
+ * exact search would rank them (see {@link RecallSample}.) The number of
+ * sampled pairs the exact search would produce, and the number of them that
+ * were also candidates, are added to the {@link ApssStats}, from which the
+ * recall is estimated.
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class LshApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(LshApssTask.class);
+
+    private LshSignatures signatures = null;
+
+    /**
+     * Entries of source A, indexed by slot.
+     */
+    private List<Indexed<SparseDoubleVector>> entries = null;
+
+    /**
+     * Band keys of the entries of source A, sorted, for each band.
+     */
+    private long[][] bucketKeys = null;
+
+    /**
+     * Slot of the entry with each key in bucketKeys.
+     */
+    private int[][] bucketSlots = null;
+
+    private int[] seen = null;
+
+    private int stamp = 0;
+
+    /**
+     * Slots of the entries of source A that are in the recall sample.
+     */
+    private IntArrayList sampledSlots = null;
+
+    private RecallSample recallSample = null;
+
+    /**
+     * Whether the recall sample was created by this task, rather than being
+     * shared with other tasks, so its counts are added to the statistics
+     * when this task completes.
+     */
+    private boolean ownsRecallSample = false;
+
+    public LshApssTask() {
+    }
+
+    public LshSignatures getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * Set the signatures used to find candidates. Tasks comparing different
+     * chunks of the same sources should share signatures, so that those of
+     * each entry are calculated only once. If not set, signatures suited to
+     * the measure are created with default parameters.
+     *
+     * @param signatures locality-sensitive hash signatures
+     */
+    public void setSignatures(LshSignatures signatures) {
+        Checks.checkNotNull("signatures", signatures);
+        this.signatures = signatures;
+    }
+
+    /**
+     * Set the recall sample shared by every task comparing chunks of the
+     * same sources. Its counts must be added to the statistics by the caller
+     * once all of the tasks have completed.
+     *
+     * @param recallSample shared recall sample
+     */
+    void setRecallSample(RecallSample recallSample) {
+        Checks.checkNotNull("recallSample", recallSample);
+        this.recallSample = recallSample;
+        ownsRecallSample = false;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        if (signatures == null) {
+            signatures = LshSignatures.forMeasure(getMeasure());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Using default signatures: " + signatures);
+            }
+        }
+        buildBuckets();
+        seen = new int[entries.size()];
+        stamp = 0;
+        sampledSlots = new IntArrayList();
+        for (int slot = 0; slot < entries.size(); slot++) {
+            if (signatures.isRecallSampled(entries.get(slot).key()))
+                sampledSlots.add(slot);
+        }
+        if (recallSample == null || ownsRecallSample) {
+            recallSample = new RecallSample(getK());
+            ownsRecallSample = true;
+        }
+    }
+
+    @Override
+    protected void runTask() throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running locality-sensitive hashing all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final IntArrayList candidates = new IntArrayList();
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            findCandidates(signatures.get(b), candidates);
+
+            final int[] candidateSlots = candidates.elements();
+            final int nCandidates = candidates.size();
+            for (int i = 0; i < nCandidates; i++) {
+                final Indexed<SparseDoubleVector> a =
+                        entries.get(candidateSlots[i]);
+                // Colliding entries need not share a feature; those that
+                // don't are never produced by the exact search either.
+                if (!getProcessRecord().apply(a)
+                        || !sharesFeature(a.value(), b.value()))
+                    continue;
+                countCandidate();
+                if (isPrunable(a, b))
+                    continue;
+
+                final double sim = sim(a, b);
+                produce(b.key(), a.key(), sim, pairs);
+            }
+
+            sampleRecall(b);
+        }
+
+        writeOutPairs(pairs);
+        flushNeighbours();
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        if (ownsRecallSample)
+            recallSample.addTo(getStats());
+        sampledSlots = null;
+        entries = null;
+        bucketKeys = null;
+        bucketSlots = null;
+        seen = null;
+        super.finaliseTask();
+    }
+
+    /**
+     * Find the slots of all entries of source A that share a band key with
+     * the query. Each slot is added once, and marked with the current stamp.
+     *
+     * @param keys band keys of the query vector, or null
+     * @param candidates list to populate with candidate slots (cleared first)
+     */
+    private void findCandidates(long[] keys, IntArrayList candidates) {
+        candidates.clear();
+        if (++stamp == 0) {
+            java.util.Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+        if (keys == null)
+            return;
+
+        for (int band = 0; band < keys.length; band++) {
+            final long[] bucket = bucketKeys[band];
+            final int[] slots = bucketSlots[band];
+            for (int p = lowerBound(bucket, keys[band]);
+                 p < bucket.length && bucket[p] == keys[band]; p++) {
+                final int slot = slots[p];
+                if (seen[slot] != stamp) {
+                    seen[slot] = stamp;
+                    candidates.add(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the pairs of b that are in the recall sample. When b is sampled
+     * it is compared with every entry of source A with which it shares a
+     * feature, and each sampled entry of source A is compared with b if they
+     * share a feature; in either case only if the sampled entry is the one
+     * whose neighbours the pair is among. Must be called immediately after
+     * the candidates of b have been found.
+     */
+    private void sampleRecall(Indexed<SparseDoubleVector> b) {
+        // The pair is among the neighbours of b when it is produced as is,
+        // or only in reverse, but not when it is only produced transposed.
+        if ((!isTransposed() || isMirrored())
+                && signatures.isRecallSampled(b.key())) {
+            for (int slot = 0; slot < entries.size(); slot++)
+                sampleRecall(entries.get(slot), b, slot, false);
+        }
+        if (isTransposed() || isMirrored()) {
+            final int[] slots = sampledSlots.elements();
+            for (int i = 0; i < sampledSlots.size(); i++)
+                sampleRecall(entries.get(slots[i]), b, slots[i], true);
+        }
+    }
+
+    /**
+     * Record the pair of a and b in the recall sample, if the exact search
+     * would compare them and the pair is accepted by the production filter.
+     *
+     * @param a entry from source A
+     * @param b entry from source B
+     * @param slot slot of a
+     * @param ofA whether the pair is among the neighbours of a, rather than
+     *      those of b
+     */
+    private void sampleRecall(Indexed<SparseDoubleVector> a,
+                              Indexed<SparseDoubleVector> b, int slot,
+                              boolean ofA) {
+        if (!getProcessRecord().apply(a)
+                || !sharesFeature(a.value(), b.value()))
+            return;
+        // Calculated directly, so as not to be counted as a comparison
+        final double sim = getMeasure().combine(
+                getMeasure().shared(a.value(), b.value()),
+                getPrecalcA().get(a.key()), getPrecalcB().get(b.key()));
+        final int entryId = ofA ? a.key() : b.key();
+        final int neighbourId = ofA ? b.key() : a.key();
+        if (isAccepted(entryId, neighbourId, sim))
+            recallSample.add(entryId, neighbourId, sim, seen[slot] == stamp);
+    }
+
+    private static boolean sharesFeature(SparseDoubleVector a,
+                                         SparseDoubleVector b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j])
+                i++;
+            else if (a.keys[i] > b.keys[j])
+                j++;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of the first element of the sorted array that is not
+     *      less than the key
+     */
+    private static int lowerBound(long[] sorted, long key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Read source A, and sort the band keys of its entries so that the
+     * entries sharing a key can be found by binary search.
+     */
+    private void buildBuckets() throws IOException {
+        entries = new ArrayList<Indexed<SparseDoubleVector>>();
+        final List<long[]> keys = new ArrayList<long[]>();
+        final S startA = getSourceA().position();
+        while (getSourceA().hasNext()) {
+            final Indexed<SparseDoubleVector> a = getSourceA().read();
+            entries.add(a);
+            keys.add(signatures.get(a));
+        }
+        getSourceA().position(startA);
+
+        int n = 0;
+        for (long[] k : keys) {
+            if (k != null)
+                ++n;
+        }
+
+        final int nBands = signatures.getBands();
+        bucketKeys = new long[nBands][];
+        bucketSlots = new int[nBands][];
+        for (int band = 0; band < nBands; band++) {
+            final long[] bandKeys = new long[n];
+            final int[] bandSlots = new int[n];
+            int i = 0;
+            for (int slot = 0; slot < keys.size(); slot++) {
+                if (keys.get(slot) != null) {
+                    bandKeys[i] = keys.get(slot)[band];
+                    bandSlots[i] = slot;
+                    ++i;
+                }
+            }
+            sort(bandKeys, bandSlots);
+            bucketKeys[band] = bandKeys;
+            bucketSlots[band] = bandSlots;
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Built " + nBands + " bucket tables of " + n
+                    + " entries.");
+        }
+    }
+
+    /**
+     * Sort the keys, and slots with them, by key then slot.
+     */
+    private static void sort(final long[] keys, final int[] slots) {
+        Arrays.quickSort(0, keys.length, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                return keys[i] < keys[j] ? -1 : keys[i] > keys[j] ? 1
+                       : slots[i] - slots[j];
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final long key = keys[i];
+                keys[i] = keys[j];
+                keys[j] = key;
+                final int slot = slots[i];
+                slots[i] = slots[j];
+                slots[j] = slot;
+            }
+
+        });
+    }
+
+    @Override
+    public String getName() {
+        return "lsh-allpairs";
+    }
+
+}
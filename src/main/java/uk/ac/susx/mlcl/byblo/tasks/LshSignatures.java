@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.ac.susx.mlcl.byblo.measures.AbstractProximity;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.CosineMi;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.byblo.measures.ReversedProximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Locality-sensitive hash signatures of feature vectors, split into bands,
+ * for use by {@link LshApssTask}. Two vectors are candidates if the keys of
+ * any of their bands are equal.
+ * <p/>
+ * Two hash families are supported: random hyperplane signatures, which
+ * collide with probability increasing with the cosine of the vectors, and
+ * MinHash signatures, which collide with probability equal to the Jaccard
+ * coefficient of the vectors' feature sets. When the measure is a
+ * {@link DecomposableProximity} each feature is projected with the weight the
+ * measure gives it (the square root of its shared component with itself),
+ * so that, for example, CosineMi is approximated in the space of positive
+ * mutual information rather than raw frequencies. The random components of each
+ * family are derived by hashing the feature id with the seed, so they need
+ * not be stored, and are identical in every process given the same seed.
+ * <p/>
+ * The band keys of each entry are cached by entry id, so that tasks comparing
+ * different chunks of the same sources calculate them only once. Entry ids
+ * must therefore identify the same vector in both sources. Instances are
+ * thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class LshSignatures {
+
+    /**
+     * The family of hash functions from which signatures are drawn.
+     */
+    public enum Scheme {
+
+        /**
+         * Each row is the sign of the projection of the vector onto a random
+         * hyperplane (with components of +/-1); approximates cosine.
+         */
+        HYPERPLANE(8),
+        /**
+         * Each row is the minimum of a random hash of the (non-filtered)
+         * features of the vector; approximates the Jaccard coefficient.
+         */
+        MINHASH(3);
+
+        private final int defaultRows;
+
+        private Scheme(int defaultRows) {
+            this.defaultRows = defaultRows;
+        }
+
+        /**
+         * @return number of rows per band that gives a useful trade-off
+         *      between recall and the number of candidates for typical
+         *      distributional vectors
+         */
+        public int getDefaultRows() {
+            return defaultRows;
+        }
+
+        /**
+         * @param measure proximity measure the candidates are scored with
+         * @return the family best approximating the measure; MinHash for any
+         *      measure that is not cosine based
+         */
+        public static Scheme forMeasure(Proximity measure) {
+            while (measure instanceof ReversedProximity)
+                measure = ((ReversedProximity) measure).getInner();
+            return measure instanceof Cosine || measure instanceof CosineMi
+                   ? HYPERPLANE : MINHASH;
+        }
+
+    }
+
+    public static final int DEFAULT_BANDS = 32;
+
+    public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+    public static final double DEFAULT_RECALL_SAMPLE_RATE = 0.01;
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private final Scheme scheme;
+
+    private final int bands;
+
+    private final int rows;
+
+    private final long seed;
+
+    private final double recallSampleRate;
+
+    /**
+     * Feature treated as absent from every vector, or -1.
+     */
+    private final int filteredFeatureId;
+
+    /**
+     * Measure giving the weight of each feature in hyperplane projections, or
+     * null to use the raw feature values.
+     */
+    private final DecomposableProximity weighting;
+
+    private final ConcurrentMap<Integer, long[]> cache =
+            new ConcurrentHashMap<Integer, long[]>();
+
+    /**
+     * @param scheme family of hash functions
+     * @param bands number of bands
+     * @param rows number of hash functions per band; at most 64 for
+     *      hyperplane signatures
+     * @param seed seed of the hash functions
+     * @param recallSampleRate fraction of entries whose recall is measured
+     * @param measure proximity measure the candidates are scored with
+     */
+    public LshSignatures(Scheme scheme, int bands, int rows, long seed,
+                         double recallSampleRate, Proximity measure) {
+        Checks.checkNotNull("scheme", scheme);
+        Checks.checkRangeIncl("bands", bands, 1, Integer.MAX_VALUE);
+        Checks.checkRangeIncl("rows", rows, 1,
+                              scheme == Scheme.HYPERPLANE ? 64 : 1024);
+        Checks.checkRangeIncl("recallSampleRate", recallSampleRate, 0, 1);
+        Checks.checkNotNull("measure", measure);
+        this.scheme = scheme;
+        this.bands = bands;
+        this.rows = rows;
+        this.seed = seed;
+        this.recallSampleRate = recallSampleRate;
+        Proximity inner = measure;
+        while (inner instanceof ReversedProximity)
+            inner = ((ReversedProximity) inner).getInner();
+        this.filteredFeatureId = inner instanceof AbstractProximity
+                                 ? ((AbstractProximity) inner).getFilteredFeatureId()
+                                 : -1;
+        this.weighting = inner instanceof DecomposableProximity
+                         ? (DecomposableProximity) inner : null;
+    }
+
+    /**
+     * Construct signatures suited to the given measure, with default
+     * parameters.
+     *
+     * @param measure proximity measure the candidates are scored with
+     * @return signatures
+     */
+    public static LshSignatures forMeasure(Proximity measure) {
+        final Scheme scheme = Scheme.forMeasure(measure);
+        return new LshSignatures(scheme, DEFAULT_BANDS,
+                                 scheme.getDefaultRows(), DEFAULT_SEED,
+                                 DEFAULT_RECALL_SAMPLE_RATE, measure);
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public double getRecallSampleRate() {
+        return recallSampleRate;
+    }
+
+    /**
+     * Determine whether an entry is in the sample whose recall is measured.
+     * The sample is chosen by hashing the entry id, so is the same in every
+     * task.
+     *
+     * @param id entry id
+     * @return true if recall should be measured for the entry
+     */
+    public boolean isRecallSampled(int id) {
+        if (recallSampleRate <= 0)
+            return false;
+        final long h = mix(seed ^ (GOLDEN * (id + 1L)) ^ 0x7265636C6CL);
+        return (h >>> 11) * 0x1.0p-53 < recallSampleRate;
+    }
+
+    /**
+     * Get the band keys of an entry, calculating them if they are not
+     * already cached.
+     *
+     * @param entry the entry
+     * @return key of each band, or null if the entry has no features, in
+     *      which case it is not a candidate for any pair
+     */
+    public long[] get(Indexed<SparseDoubleVector> entry) {
+        final Integer id = entry.key();
+        long[] keys = cache.get(id);
+        if (keys == null) {
+            keys = bandKeys(entry.value());
+            if (keys == null)
+                return null;
+            final long[] existing = cache.putIfAbsent(id, keys);
+            if (existing != null)
+                keys = existing;
+        }
+        return keys;
+    }
+
+    /**
+     * Release the cached band keys.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Calculate the band keys of a vector, without caching.
+     *
+     * @param vec the vector
+     * @return key of each band, or null if the vector has no features
+     */
+    long[] bandKeys(SparseDoubleVector vec) {
+        boolean empty = true;
+        for (int i = 0; i < vec.size && empty; i++)
+            empty = vec.keys[i] == filteredFeatureId;
+        if (empty)
+            return null;
+        return scheme == Scheme.HYPERPLANE
+               ? hyperplaneKeys(vec) : minHashKeys(vec);
+    }
+
+    private long[] hyperplaneKeys(SparseDoubleVector vec) {
+        final int nPlanes = bands * rows;
+        final int nBlocks = (nPlanes + 63) >>> 6;
+        final double[] projections = new double[nPlanes];
+        for (int i = 0; i < vec.size; i++) {
+            if (vec.keys[i] == filteredFeatureId)
+                continue;
+            final long base = seed ^ (GOLDEN * (vec.keys[i] + 1L));
+            final double value = weighting == null ? vec.values[i]
+                                 : Math.sqrt(Math.abs(weighting.sharedComponent(
+                    vec.keys[i], vec.values[i], vec.sum,
+                    vec.values[i], vec.sum)));
+            for (int block = 0; block < nBlocks; block++) {
+                // Each bit of the hash is the sign of the feature's component
+                // on one hyperplane
+                final long signs = mix(base + block * 0xD1B54A32D192ED03L);
+                final int end = Math.min(64, nPlanes - (block << 6));
+                for (int bit = 0; bit < end; bit++) {
+                    projections[(block << 6) + bit] +=
+                            ((signs >>> bit) & 1) != 0 ? value : -value;
+                }
+            }
+        }
+        final long[] keys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long key = 0;
+            for (int row = 0; row < rows; row++) {
+                if (projections[band * rows + row] > 0)
+                    key |= 1L << row;
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    private long[] minHashKeys(SparseDoubleVector vec) {
+        final int nHashes = bands * rows;
+        final long[] minima = new long[nHashes];
+        java.util.Arrays.fill(minima, Long.MAX_VALUE);
+        for (int i = 0; i < vec.size; i++) {
+            if (vec.keys[i] == filteredFeatureId)
+                continue;
+            final long base = seed ^ (GOLDEN * (vec.keys[i] + 1L));
+            for (int h = 0; h < nHashes; h++) {
+                final long value = mix(base + h * 0xD1B54A32D192ED03L);
+                if (value < minima[h])
+                    minima[h] = value;
+            }
+        }
+        final long[] keys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long key = 0;
+            for (int row = 0; row < rows; row++) {
+                key = mix(key ^ minima[band * rows + row]);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * The finalisation step of the 64 bit MurmurHash3; a bijective mixing
+     * function with good avalanche behaviour.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("scheme", scheme).
+                add("bands", bands).
+                add("rows", rows).
+                add("seed", seed).
+                add("recallSampleRate", recallSampleRate).
+                add("filteredFeatureId", filteredFeatureId).
+                add("cached", cache.size()).
+                toString();
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+
+/**
+ * Limits the estimated memory held by concurrently running all-pairs tasks.
+ * Each task acquires its estimated footprint before it is admitted, blocking
+ * until enough of the budget has been released by the tasks already running.
+ * A task estimated to be larger than the whole budget is admitted once
+ * nothing else is running, rather than never.
+ * <p/>
+ * The heap usage is sampled whenever the budget changes, so the estimates can
+ * be compared with the memory actually used.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class MemoryBudget {
+
+    /**
+     * Estimated bytes held by each vector, other than its non-zero elements;
+     * i.e the headers of the indexed record, the vector and its arrays.
+     */
+    static final long VECTOR_BYTES = 80;
+
+    /**
+     * Estimated bytes held by each non-zero element of a vector; an int key
+     * and a double value.
+     */
+    static final long NON_ZERO_BYTES = 12;
+
+    /**
+     * Estimated bytes held by each posting of an inverted index, including
+     * the growth slack of the posting lists.
+     */
+    static final long POSTING_BYTES = 16;
+
+    /**
+     * Bytes held by each pair in an output buffer; two int ids and a double
+     * weight.
+     */
+    static final long PAIR_BYTES = 16;
+
+    private final long capacity;
+
+    private long used = 0;
+
+    private long peakUsed = 0;
+
+    private long peakHeapUsed = 0;
+
+    MemoryBudget(long capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity <= 0");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Estimate the memory required to compare two chunks; the vectors of both
+     * chunks, an inverted index of chunk A, and the output pair buffer.
+     *
+     * @param vectorsA number of vectors in chunk A
+     * @param nonZerosA number of non-zero elements in chunk A
+     * @param vectorsB number of vectors in chunk B
+     * @param nonZerosB number of non-zero elements in chunk B
+     * @param bufferedPairs number of pairs buffered before being written out
+     * @return estimated footprint in bytes
+     */
+    static long estimateFootprint(long vectorsA, long nonZerosA,
+                                  long vectorsB, long nonZerosB,
+                                  long bufferedPairs) {
+        return (vectorsA + vectorsB) * VECTOR_BYTES
+                + (nonZerosA + nonZerosB) * NON_ZERO_BYTES
+                + nonZerosA * POSTING_BYTES
+                + bufferedPairs * PAIR_BYTES;
+    }
+
+    /**
+     * @return bytes currently used by the heap
+     */
+    static long heapUsed() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Block until the given number of bytes can be admitted within the
+     * budget, then take them.
+     *
+     * @param bytes estimated footprint of the task being admitted
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytes < 0)
+            throw new IllegalArgumentException("bytes < 0");
+        while (used > 0 && used + bytes > capacity)
+            wait();
+        used += bytes;
+        peakUsed = Math.max(peakUsed, used);
+        sampleHeap();
+    }
+
+    /**
+     * Return the given number of bytes to the budget, admitting any waiting
+     * tasks that now fit.
+     *
+     * @param bytes estimated footprint of the completed task
+     */
+    synchronized void release(long bytes) {
+        if (bytes < 0 || bytes > used)
+            throw new IllegalArgumentException(
+                    "bytes must be between 0 and " + used + ": " + bytes);
+        used -= bytes;
+        sampleHeap();
+        notifyAll();
+    }
+
+    private void sampleHeap() {
+        peakHeapUsed = Math.max(peakHeapUsed, heapUsed());
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    synchronized long getPeakUsed() {
+        return peakUsed;
+    }
+
+    synchronized long getPeakHeapUsed() {
+        return peakHeapUsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("capacity", capacity).
+                add("used", used).
+                add("peakUsed", peakUsed).
+                add("peakHeapUsed", peakHeapUsed).
+                toString();
+    }
+
+}
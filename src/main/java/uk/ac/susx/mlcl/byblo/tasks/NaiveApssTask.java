@@ -33,22 +33,26 @@ package uk.ac.susx.mlcl.byblo.tasks;
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairPredicate;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
+import uk.ac.susx.mlcl.byblo.measures.BatchProximity;
+import uk.ac.susx.mlcl.byblo.measures.BoundedProximity;
 import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.PrefixBoundedProximity;
 import uk.ac.susx.mlcl.byblo.measures.Proximity;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
@@ -94,19 +98,83 @@ public class NaiveApssTask<P> extends AbstractTask
      * Filters that determine which resultant pairs are output
      */
     private Predicate<Weighted<TokenPair>> pruducePair = Predicates.alwaysTrue();
+
+    /**
+     * The production filter, applicable to the primitive components of pairs
+     */
+    private WeightedTokenPairPredicate producePairPrimitive =
+            WeightedTokenPairPredicate.alwaysTrue();
+
+    /**
+     * A lower bound on the similarity of pairs that will be accepted by the
+     * production filter. Algorithms may use it to prune candidates early, but
+     * it is the production filter that actually determines the output.
+     */
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
+
+    /**
+     * When non-null, only the k nearest neighbours of each entry are produced,
+     * and they are written to the sink grouped by entry; i.e as a neighbours
+     * file rather than a sims file.
+     */
+    private NeighbourCollector neighbours = null;
+
+    /**
+     * Whether this task is responsible for writing out the neighbours, or
+     * whether that is done by some other task that shares the collector.
+     */
+    private boolean neighboursOwned = false;
+
+    /**
+     * When true, every pair is also produced in the reverse direction. Used
+     * when the measure is symmetric, and the comparisons of B to A are not
+     * being run separately.
+     */
+    private boolean mirrored = false;
+
+    /**
+     * When true, source A holds the entries whose neighbours are being found,
+     * and source B the entries they are compared against, so every pair is
+     * produced with its ids swapped. Used when the query entries are fewer
+     * than the entries they are compared against, so it is the queries that
+     * are indexed. Non-symmetric measures must be reversed by the caller.
+     */
+    private boolean transposed = false;
+
+    /**
+     * When non-null, the index of source A is shared with other tasks that
+     * compare against the same vectors. This task holds one reference to it,
+     * released when the task completes.
+     */
+    private SharedInvertedIndex sharedIndex = null;
+
+    /**
+     * When non-null, produced pairs are written to sorted runs rather than
+     * the sink, to be merged into the sink once all-pairs is complete.
+     */
+    private SortedPairRuns spillRuns = null;
     // Stat collection
 
     private ApssStats stats = new ApssStats();
+
+    // Counts accumulated by this task, which are added to the (shared) stats
+    // in bulk when the task is finalised.
+
+    private long candidatesCount = 0;
+
+    private long comparisonCount = 0;
+
+    private long productionCount = 0;
     // Component of the similarity calculation that depends only on the sourceA
     // feature vectorx - can be precalculated to save time during the
     // quadratic part of the algorithm
 
-    private Int2DoubleMap precalcA = null;
+    private PrecalcTable precalcA = null;
     // Component of the similarity calculation that depends only on the sourceB
     // feature vectors - can be precalculated to save time during the
     // quadratic part of the algorithm
 
-    private Int2DoubleMap precalcB = null;
+    private PrecalcTable precalcB = null;
 
     /**
      * Constructor of minimal parameterisation, taking arguments that must be
@@ -135,9 +203,113 @@ public class NaiveApssTask<P> extends AbstractTask
         return pruducePair;
     }
 
+    /**
+     * Set the filter that pairs must be accepted by to be produced. The
+     * filter should be a {@link WeightedTokenPairPredicate}, so that it can be
+     * applied without instantiating each pair; other predicates are adapted,
+     * at the cost of an allocation per application.
+     *
+     * @param pruducePair production filter
+     */
     public void setProducatePair(Predicate<Weighted<TokenPair>> pruducePair) {
         Checks.checkNotNull("pruducePair");
         this.pruducePair = pruducePair;
+        this.producePairPrimitive = WeightedTokenPairPredicate.of(pruducePair);
+    }
+
+    public final double getMinSimilarity() {
+        return minSimilarity;
+    }
+
+    public final void setMinSimilarity(double minSimilarity) {
+        if (Double.isNaN(minSimilarity))
+            throw new IllegalArgumentException("minSimilarity is NaN");
+        this.minSimilarity = minSimilarity;
+    }
+
+    /**
+     * @return the number of nearest neighbours produced for each entry, or 0
+     *      if all pairs accepted by the production filter are produced
+     */
+    public final int getK() {
+        return neighbours == null ? 0 : neighbours.getK();
+    }
+
+    /**
+     * Set the number of nearest neighbours to be produced for each entry. When
+     * k is positive pairs are written in neighbours file order, rather than
+     * sims file order.
+     *
+     * @param k number of neighbours, or 0 to produce all pairs
+     */
+    public final void setK(int k) {
+        Checks.checkRangeIncl("k", k, 0, Integer.MAX_VALUE);
+        if (k == 0) {
+            neighbours = null;
+            neighboursOwned = false;
+        } else if (k != getK()) {
+            neighbours = new NeighbourCollector(k);
+            neighboursOwned = true;
+        }
+    }
+
+    final NeighbourCollector getNeighbourCollector() {
+        return neighbours;
+    }
+
+    /**
+     * Share a neighbour collector that is owned by some other task, which is
+     * responsible for writing it out.
+     */
+    final void setNeighbourCollector(NeighbourCollector neighbours) {
+        this.neighbours = neighbours;
+        this.neighboursOwned = false;
+    }
+
+    final boolean isMirrored() {
+        return mirrored;
+    }
+
+    final void setMirrored(boolean mirrored) {
+        this.mirrored = mirrored;
+    }
+
+    public final boolean isTransposed() {
+        return transposed;
+    }
+
+    /**
+     * Set whether pairs are produced with the entry from source A first,
+     * rather than the entry from source B.
+     *
+     * @param transposed true if the entries of source A are the queries
+     */
+    public final void setTransposed(boolean transposed) {
+        this.transposed = transposed;
+    }
+
+    public final SortedPairRuns getSpillRuns() {
+        return spillRuns;
+    }
+
+    /**
+     * Set whether pairs are spilled to sorted runs, rather than written to the
+     * sink. Runs are written without any shared lock, but the caller is
+     * responsible for merging them into the destination once the task is
+     * complete.
+     *
+     * @param spillRuns destination of the runs, or null to write to the sink
+     */
+    public final void setSpillRuns(SortedPairRuns spillRuns) {
+        this.spillRuns = spillRuns;
+    }
+
+    final SharedInvertedIndex getSharedIndex() {
+        return sharedIndex;
+    }
+
+    final void setSharedIndex(SharedInvertedIndex sharedIndex) {
+        this.sharedIndex = sharedIndex;
     }
 
     public Predicate<Indexed<SparseDoubleVector>> getProcessRecord() {
@@ -219,14 +391,45 @@ public class NaiveApssTask<P> extends AbstractTask
 
     protected final int PAIR_OUTPUT_BUFFER_SIZE = 100000;
 
-    protected void writeOutPairs(List<Weighted<TokenPair>> pairs) throws IOException {
+    /**
+     * Number of candidates whose shared components are calculated together,
+     * in a single call to the measure, when it is a {@link BatchProximity}.
+     */
+    protected static final int BATCH_SIZE = 64;
+
+    /**
+     * When collecting nearest neighbours, pairs are passed on immediately so
+     * the dynamic thresholds are raised as early as possible.
+     *
+     * @return number of pairs that may be buffered before being written out
+     */
+    protected final int getPairBufferSize() {
+        return neighbours == null ? PAIR_OUTPUT_BUFFER_SIZE : 0;
+    }
+
+    protected void writeOutPairs(WeightedTokenPairBuffer pairs) throws IOException {
         if (pairs.isEmpty())
             return;
+        if (neighbours != null) {
+            neighbours.offerAll(pairs);
+            pairs.clear();
+            return;
+        }
+        if (spillRuns != null) {
+            spillRuns.write(pairs);
+            pairs.clear();
+            return;
+        }
         // Sorting the pairs reduces disk space usage due to compact format and
         // skip indexing.
-        Collections.sort(pairs, Weighted.recordOrder(TokenPair.indexOrder()));
+        pairs.sort(WeightedTokenPairBuffer.Order.INDEX);
         synchronized (getSink()) {
-            ObjectIO.copy(pairs, getSink());
+            if (getSink() instanceof WeightedTokenPairSink) {
+                ((WeightedTokenPairSink) getSink()).writeAll(pairs);
+            } else {
+                for (int i = 0; i < pairs.size(); i++)
+                    getSink().write(pairs.get(i));
+            }
         }
         pairs.clear();
 //        System.out.println(".");
@@ -234,9 +437,17 @@ public class NaiveApssTask<P> extends AbstractTask
 
     @Override
     protected void runTask() throws Exception {
-        List<Weighted<TokenPair>> pairBuffer = new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairBuffer pairBuffer = new WeightedTokenPairBuffer();
         final P restartB = getSourceB().position();
 
+        // Candidates from source B are compared with each vector (a) in
+        // batches, so the measure can reuse its work on a between them.
+        final List<Indexed<SparseDoubleVector>> batch =
+                new ArrayList<Indexed<SparseDoubleVector>>(BATCH_SIZE);
+        final SparseDoubleVector[] batchVectors =
+                new SparseDoubleVector[BATCH_SIZE];
+        final double[] batchShared = new double[BATCH_SIZE];
+
         progress.startAdjusting();
         progress.setState(State.RUNNING);
         progress.setMessage("Reading feature vectors.");
@@ -256,28 +467,24 @@ public class NaiveApssTask<P> extends AbstractTask
                 sourceB.position(restartB);
             }
             while (getSourceB().hasNext()) {
-                stats.incrementCandidatesCount();
+                ++candidatesCount;
 
                 Indexed<SparseDoubleVector> b = sourceB.read();
-                if (!processRecord.apply(b)) {
+                if (!processRecord.apply(b) || isPrunable(a, b)) {
                     continue;
                 }
 
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(b.key(), a.key()), sim);
-                if (pruducePair.apply(pair)) {
-                    pairBuffer.add(pair);
-                    stats.incrementProductionCount();
-
-                    if (pairBuffer.size() > PAIR_OUTPUT_BUFFER_SIZE) {
-                        writeOutPairs(pairBuffer);
-                    }
-                }
+                batchVectors[batch.size()] = b.value();
+                batch.add(b);
+                if (batch.size() == BATCH_SIZE)
+                    compareBatch(a, batch, batchVectors, batchShared,
+                                 pairBuffer);
             }
+            compareBatch(a, batch, batchVectors, batchShared, pairBuffer);
         }
 
         writeOutPairs(pairBuffer);
+        flushNeighbours();
 
 //        progress.startAdjusting();
 //        progress.setMessage("Sorting pairs.");
@@ -304,10 +511,221 @@ public class NaiveApssTask<P> extends AbstractTask
 
     }
 
+    /**
+     * Compare vector a with a batch of vectors from source B, producing the
+     * resultant pairs, then empty the batch.
+     *
+     * @param a vector from source A
+     * @param batch entries from source B
+     * @param batchVectors vectors of the entries in the batch
+     * @param batchShared scratch space for the shared components
+     * @param pairs output buffer
+     * @throws IOException if the sink fails to write
+     */
+    private void compareBatch(final Indexed<SparseDoubleVector> a,
+                              final List<Indexed<SparseDoubleVector>> batch,
+                              final SparseDoubleVector[] batchVectors,
+                              final double[] batchShared,
+                              final WeightedTokenPairBuffer pairs)
+            throws IOException {
+        final int batchSize = batch.size();
+        if (isBounded()) {
+            for (int i = 0; i < batchSize; i++)
+                batchShared[i] = sharedBounded(a, batch.get(i));
+        } else {
+            sharedMany(a.value(), batchVectors, batchSize, batchShared);
+        }
+        for (int i = 0; i < batchSize; i++) {
+            produce(batch.get(i).key(), a.key(),
+                    sim(a, batch.get(i), batchShared[i]), pairs);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Add the pair to the output buffer if it should be produced, along with
+     * its reverse when the task is mirrored, writing out the buffer once it is
+     * full. When the task is transposed the ids are swapped first.
+     *
+     * @param id1 first token id of the pair
+     * @param id2 second token id of the pair
+     * @param sim similarity of the pair
+     * @param pairs output buffer
+     * @throws IOException if the sink fails to write
+     */
+    protected final void produce(int id1, int id2, double sim,
+                                 WeightedTokenPairBuffer pairs)
+            throws IOException {
+        if (transposed) {
+            final int tmp = id1;
+            id1 = id2;
+            id2 = tmp;
+        }
+        if (isProduced(id1, id2, sim)) {
+            pairs.add(id1, id2, sim);
+            ++productionCount;
+        }
+        if (mirrored && isProduced(id2, id1, sim)) {
+            pairs.add(id2, id1, sim);
+            ++productionCount;
+        }
+        if (pairs.size() > getPairBufferSize()) {
+            writeOutPairs(pairs);
+        }
+    }
+
+    /**
+     * Determine whether a pair should be produced; it must be accepted by the
+     * production filter, and if only the k nearest neighbours are being
+     * produced, it must be competitive with those found so far.
+     *
+     * @param id1 first token id of the pair
+     * @param id2 second token id of the pair
+     * @param sim similarity of the pair
+     * @return true if the pair should be produced, false otherwise
+     */
+    protected final boolean isProduced(int id1, int id2, double sim) {
+        return isAccepted(id1, id2, sim)
+                && (neighbours == null
+                    || neighbours.isCompetitive(id1, id2, sim));
+    }
+
+    /**
+     * Determine whether a pair is accepted by the production filter,
+     * regardless of the neighbours found so far.
+     *
+     * @param id1 first token id of the pair
+     * @param id2 second token id of the pair
+     * @param sim similarity of the pair
+     * @return true if the pair passes the production filter
+     */
+    protected final boolean isAccepted(int id1, int id2, double sim) {
+        return producePairPrimitive.apply(id1, id2, sim);
+    }
+
+    /**
+     * Determine whether the comparison of a and b can be skipped entirely,
+     * because only the k nearest neighbours are being produced, and an upper
+     * bound on their similarity is less than that of the k-th nearest
+     * neighbour of b found so far (and of a, if the task is mirrored, or only
+     * of a if it is transposed.)
+     *
+     * @param a entry vector from source A
+     * @param b entry vector from source B
+     * @return true if the pair cannot be produced, false if it might be
+     */
+    protected final boolean isPrunable(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        if (neighbours == null || !(measure instanceof PrefixBoundedProximity))
+            return false;
+        final double floor = neighboursFloor(a, b);
+        if (floor == Double.NEGATIVE_INFINITY)
+            return false;
+        final double bound = ((PrefixBoundedProximity) measure).upperBound(
+                precalcA.get(a.key()), precalcB.get(b.key()));
+        return bound < floor;
+    }
+
+    /**
+     * @return the similarity of the k-th nearest neighbour of b found so far
+     *      (and of a, if the task is mirrored, or only of a if it is
+     *      transposed), or negative infinity if there are fewer than k
+     */
+    private double neighboursFloor(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        return mirrored
+               ? Math.min(neighbours.floor(a.key()), neighbours.floor(b.key()))
+               : transposed ? neighbours.floor(a.key())
+               : neighbours.floor(b.key());
+    }
+
+    /**
+     * Determine the similarity that a pair of a and b must reach to be
+     * produced: the minimum similarity, or if only the k nearest neighbours
+     * are being produced, that of the k-th nearest neighbour found so far if
+     * it is greater.
+     *
+     * @param a entry vector from source A
+     * @param b entry vector from source B
+     * @return similarity below which the pair will not be produced
+     */
+    protected final double similarityFloor(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        return neighbours == null ? minSimilarity
+               : Math.max(minSimilarity, neighboursFloor(a, b));
+    }
+
+    /**
+     * @return true if the measure is a {@link BoundedProximity}, and pairs
+     *      may be rejected for falling below a similarity floor
+     */
+    protected final boolean isBounded() {
+        return measure instanceof BoundedProximity
+                && (minSimilarity > 0 || neighbours != null);
+    }
+
+    /**
+     * Calculate the shared component of the measure for a and b, which
+     * must be a {@link BoundedProximity}, abandoning the calculation if
+     * their similarity falls below the floor they must reach to be produced.
+     *
+     * @param a entry vector from source A
+     * @param b entry vector from source B
+     * @return the shared component, or positive infinity if abandoned
+     */
+    protected final double sharedBounded(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b) {
+        return ((BoundedProximity) measure).sharedBounded(
+                a.value(), b.value(), similarityFloor(a, b));
+    }
+
+    /**
+     * Write out all the neighbours that have been collected, if this task is
+     * responsible for doing so.
+     *
+     * @throws IOException if the sink fails to write
+     */
+    protected void flushNeighbours() throws IOException {
+        if (neighbours == null || !neighboursOwned)
+            return;
+        synchronized (getSink()) {
+            neighbours.flushAll(getSink());
+        }
+    }
+
+    /**
+     * Record that a candidate pair has been considered. Counts are held
+     * locally, and added to the stats when the task is finalised.
+     */
+    protected final void countCandidate() {
+        ++candidatesCount;
+    }
+
+    /**
+     * Add the counts accumulated by this task to the stats.
+     */
+    private void flushStats() {
+        stats.addCandidatesCount(candidatesCount);
+        stats.addComparisonCount(comparisonCount);
+        stats.addProductionCount(productionCount);
+        candidatesCount = 0;
+        comparisonCount = 0;
+        productionCount = 0;
+    }
+
     @Override
     protected void finaliseTask() throws Exception {
+        flushStats();
         precalcA = null;
         precalcB = null;
+        if (sharedIndex != null) {
+            sharedIndex.release();
+            sharedIndex = null;
+        }
     }
 
     /**
@@ -356,42 +774,118 @@ public class NaiveApssTask<P> extends AbstractTask
 
     }
 
-    protected Int2DoubleMap getPrecalcA() {
+    protected PrecalcTable getPrecalcA() {
         return precalcA;
     }
 
-    protected Int2DoubleMap getPrecalcB() {
+    protected PrecalcTable getPrecalcB() {
         return precalcB;
     }
 
-    protected Int2DoubleMap buildPrecalcA() throws IOException {
+    /**
+     * Set tables of the left and right hand components of the measure,
+     * covering every entry in sources A and B respectively, that have been
+     * calculated elsewhere. The task will then use these tables rather than
+     * building its own.
+     *
+     * @param precalcA left hand components of entries in source A
+     * @param precalcB right hand components of entries in source B
+     */
+    void setPrecalcs(PrecalcTable precalcA, PrecalcTable precalcB) {
+        this.precalcA = precalcA;
+        this.precalcB = precalcB;
+    }
+
+    protected PrecalcTable buildPrecalcA() throws IOException {
         final P startA = sourceA.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
+        IntArrayList ids = new IntArrayList();
+        DoubleArrayList values = new DoubleArrayList();
         while (sourceA.hasNext()) {
             Indexed<SparseDoubleVector> p = sourceA.read();
-            result.put(p.key(), getMeasure().left(p.value()));
+            ids.add(p.key());
+            values.add(getMeasure().left(p.value()));
         }
         sourceA.position(startA);
-        return result;
+        return PrecalcTable.of(ids.elements(), values.elements(), ids.size());
     }
 
-    protected Int2DoubleMap buildPrecalcB() throws IOException {
+    protected PrecalcTable buildPrecalcB() throws IOException {
         final P startB = sourceB.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
+        IntArrayList ids = new IntArrayList();
+        DoubleArrayList values = new DoubleArrayList();
         while (sourceB.hasNext()) {
             Indexed<SparseDoubleVector> p = sourceB.read();
-            result.put(p.key(), getMeasure().right(p.value()));
+            ids.add(p.key());
+            values.add(getMeasure().right(p.value()));
         }
         sourceB.position(startB);
-        return result;
+        return PrecalcTable.of(ids.elements(), values.elements(), ids.size());
     }
 
     protected final double sim(
             final Indexed<SparseDoubleVector> a,
             final Indexed<SparseDoubleVector> b) {
-        stats.incrementComparisonCount();
+        return sim(a, b, measure.shared(a.value(), b.value()));
+    }
+
+    /**
+     * Calculate the shared component of the measure for vector a with each of
+     * the first count vectors of bs, in a single batch if the measure is a
+     * {@link BatchProximity}.
+     *
+     * @param a vector from source A
+     * @param bs vectors from source B
+     * @param count number of vectors in bs
+     * @param out receives the shared component for each vector of bs
+     */
+    protected final void sharedMany(final SparseDoubleVector a,
+                                    final SparseDoubleVector[] bs,
+                                    final int count, final double[] out) {
+        if (measure instanceof BatchProximity) {
+            ((BatchProximity) measure).sharedMany(a, bs, count, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = measure.shared(a, bs[i]);
+        }
+    }
+
+    /**
+     * Calculate the shared component of the measure for each of the first
+     * count vectors of as with vector b, in a single batch if the measure is
+     * a {@link BatchProximity}.
+     *
+     * @param as vectors from source A
+     * @param b vector from source B
+     * @param count number of vectors in as
+     * @param out receives the shared component for each vector of as
+     */
+    protected final void sharedMany(final SparseDoubleVector[] as,
+                                    final SparseDoubleVector b,
+                                    final int count, final double[] out) {
+        if (measure instanceof BatchProximity) {
+            ((BatchProximity) measure).sharedMany(as, b, count, out);
+        } else {
+            for (int i = 0; i < count; i++)
+                out[i] = measure.shared(as[i], b);
+        }
+    }
+
+    /**
+     * Calculate the similarity of a and b, where the shared component of the
+     * measure has already been calculated by some other means.
+     *
+     * @param a entry vector from source A
+     * @param b entry vector from source B
+     * @param shared portion of the measure dependent on both a and b
+     * @return similarity of a and b
+     */
+    protected final double sim(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b,
+            final double shared) {
+        ++comparisonCount;
         return measure.combine(
-                measure.shared(a.value(), b.value()),
+                shared,
                 precalcA.get(a.key()),
                 precalcB.get(b.key()));
     }
@@ -445,6 +939,9 @@ public class NaiveApssTask<P> extends AbstractTask
                 add("sink", sink).
                 add("processRecord", processRecord).
                 add("pruducePair", pruducePair).
+                add("minSimilarity", minSimilarity).
+                add("k", getK()).
+                add("spillRuns", spillRuns).
                 add("stats", stats);
     }
 
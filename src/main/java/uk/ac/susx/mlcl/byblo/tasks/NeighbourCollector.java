@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Collects the k nearest neighbours of each entry, so that all-pairs search
+ * can produce a neighbours file directly rather than writing every pair to a
+ * sims file to be sorted externally.
+ * <p/>
+ * A bounded min-heap is held for each entry. Once an entry's heap is full
+ * the weight of its worst neighbour becomes a dynamic threshold, or floor,
+ * that subsequent candidates must exceed; this can be used by the all-pairs
+ * algorithms to prune candidates. Neighbours are ordered by descending weight,
+ * with ties broken by ascending neighbour id, so the result is independent of
+ * the order in which pairs are offered.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class NeighbourCollector {
+
+    private final int k;
+
+    private final Int2ObjectMap<Heap> heaps = new Int2ObjectOpenHashMap<Heap>();
+
+    public NeighbourCollector(int k) {
+        Checks.checkRangeIncl("k", k, 1, Integer.MAX_VALUE);
+        this.k = k;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return number of entries that currently have neighbours held
+     */
+    public int size() {
+        synchronized (heaps) {
+            return heaps.size();
+        }
+    }
+
+    /**
+     * Get the current dynamic threshold of the given entry. Any neighbour
+     * with weight strictly less than the floor will be rejected.
+     *
+     * @param entryId entry id
+     * @return weight of the k-th nearest neighbour found so far, or negative
+     *      infinity if fewer than k neighbours have been found
+     */
+    public double floor(int entryId) {
+        final Heap heap;
+        synchronized (heaps) {
+            heap = heaps.get(entryId);
+        }
+        return heap == null ? Double.NEGATIVE_INFINITY : heap.floor;
+    }
+
+    /**
+     * @param pair pair where the first token is the entry, and second token
+     *      is the neighbour
+     * @return true if the pair would be accepted were it offered now
+     */
+    public boolean isCompetitive(Weighted<TokenPair> pair) {
+        return isCompetitive(pair.record().id1(), pair.record().id2(),
+                             pair.weight());
+    }
+
+    /**
+     * @param entryId id of the entry
+     * @param neighbourId id of the neighbour
+     * @param weight similarity of the entry and neighbour
+     * @return true if the pair would be accepted were it offered now
+     */
+    public boolean isCompetitive(int entryId, int neighbourId, double weight) {
+        if (Double.isNaN(weight))
+            return false;
+        final Heap heap;
+        synchronized (heaps) {
+            heap = heaps.get(entryId);
+        }
+        if (heap == null)
+            return true;
+        synchronized (heap) {
+            return heap.isCompetitive(neighbourId, weight);
+        }
+    }
+
+    /**
+     * Offer a pair, where the first token is the entry and second token is
+     * the neighbour.
+     *
+     * @param pair pair to offer
+     */
+    public void offer(Weighted<TokenPair> pair) {
+        offer(pair.record().id1(), pair.record().id2(), pair.weight());
+    }
+
+    /**
+     * Offer a pair, given as its primitive components.
+     *
+     * @param entryId id of the entry
+     * @param neighbourId id of the neighbour
+     * @param weight similarity of the entry and neighbour
+     */
+    public void offer(int entryId, int neighbourId, double weight) {
+        if (Double.isNaN(weight))
+            return;
+        final Heap heap;
+        synchronized (heaps) {
+            if (heaps.containsKey(entryId)) {
+                heap = heaps.get(entryId);
+            } else {
+                heap = new Heap(k);
+                heaps.put(entryId, heap);
+            }
+        }
+        synchronized (heap) {
+            heap.offer(neighbourId, weight);
+        }
+    }
+
+    public void offerAll(Collection<Weighted<TokenPair>> pairs) {
+        for (Weighted<TokenPair> pair : pairs) {
+            offer(pair);
+        }
+    }
+
+    public void offerAll(WeightedTokenPairBuffer pairs) {
+        for (int i = 0; i < pairs.size(); i++) {
+            offer(pairs.id1(i), pairs.id2(i), pairs.weight(i));
+        }
+    }
+
+    /**
+     * Write the neighbours of the given entries to the sink, in the order the
+     * entries are given, and release them from the collector.
+     *
+     * @param entryIds entries to write
+     * @param sink destination of the neighbour pairs
+     * @throws IOException if the sink fails to write
+     */
+    public void flush(int[] entryIds, ObjectSink<Weighted<TokenPair>> sink)
+            throws IOException {
+        for (int entryId : entryIds) {
+            final Heap heap;
+            synchronized (heaps) {
+                heap = heaps.remove(entryId);
+            }
+            if (heap == null)
+                continue;
+            synchronized (heap) {
+                heap.drainTo(entryId, sink);
+            }
+        }
+    }
+
+    /**
+     * Write the neighbours of all entries to the sink, in ascending order of
+     * entry id, and release them from the collector.
+     *
+     * @param sink destination of the neighbour pairs
+     * @throws IOException if the sink fails to write
+     */
+    public void flushAll(ObjectSink<Weighted<TokenPair>> sink)
+            throws IOException {
+        final int[] entryIds;
+        synchronized (heaps) {
+            entryIds = heaps.keySet().toIntArray();
+        }
+        Arrays.sort(entryIds);
+        flush(entryIds, sink);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("k", k).
+                add("entries", size()).
+                toString();
+    }
+
+    /**
+     * A bounded binary min-heap of neighbours for a single entry, where the
+     * root is the worst neighbour held.
+     */
+    private static final class Heap {
+
+        private final int[] ids;
+
+        private final double[] weights;
+
+        private int size = 0;
+
+        private volatile double floor = Double.NEGATIVE_INFINITY;
+
+        Heap(int k) {
+            ids = new int[k];
+            weights = new double[k];
+        }
+
+        /**
+         * @return true if neighbour x is worse than neighbour y
+         */
+        private static boolean worse(double wx, int x, double wy, int y) {
+            return wx < wy || (wx == wy && x > y);
+        }
+
+        boolean isCompetitive(int id, double weight) {
+            return size < ids.length || worse(weights[0], ids[0], weight, id);
+        }
+
+        void offer(int id, double weight) {
+            if (size < ids.length) {
+                ids[size] = id;
+                weights[size] = weight;
+                siftUp(size++);
+            } else if (worse(weights[0], ids[0], weight, id)) {
+                ids[0] = id;
+                weights[0] = weight;
+                siftDown(0);
+            } else {
+                return;
+            }
+            if (size == ids.length)
+                floor = weights[0];
+        }
+
+        /**
+         * Write all neighbours from best to worst, leaving the heap empty.
+         */
+        void drainTo(int entryId, ObjectSink<Weighted<TokenPair>> sink)
+                throws IOException {
+            // Repeatedly removing the root produces the neighbours from worst
+            // to best, so fill the arrays from the back.
+            final int n = size;
+            final int[] sortedIds = new int[n];
+            final double[] sortedWeights = new double[n];
+            for (int i = n - 1; i >= 0; i--) {
+                sortedIds[i] = ids[0];
+                sortedWeights[i] = weights[0];
+                --size;
+                ids[0] = ids[size];
+                weights[0] = weights[size];
+                siftDown(0);
+            }
+            floor = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                sink.write(new Weighted<TokenPair>(
+                        new TokenPair(entryId, sortedIds[i]), sortedWeights[i]));
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!worse(weights[i], ids[i], weights[parent], ids[parent]))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= size)
+                    break;
+                int worst = left;
+                final int right = left + 1;
+                if (right < size && worse(weights[right], ids[right],
+                                          weights[left], ids[left]))
+                    worst = right;
+                if (!worse(weights[worst], ids[worst], weights[i], ids[i]))
+                    break;
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            final double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+
+    }
+
+}
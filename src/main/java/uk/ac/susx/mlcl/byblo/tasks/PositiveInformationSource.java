@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.io.Closeable;
+import java.io.IOException;
+import uk.ac.susx.mlcl.byblo.measures.AbstractMIProximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Transforms each vector read from the inner source into its positive
+ * information weights, as calculated by a mutual information based measure.
+ * <p/>
+ * The measures recalculate the information of every feature of both vectors
+ * on each comparison, which requires a logarithm per feature. Since the
+ * information of a feature depends only on the vector that holds it, the
+ * transform can instead be applied once per vector, when it is read from
+ * the events file, and the measure told that its vectors are pre-weighted
+ * (see {@link AbstractMIProximity#setPreWeighted(boolean)}.)
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PositiveInformationSource<S>
+        implements SeekableObjectSource<Indexed<SparseDoubleVector>, S>,
+        Closeable {
+
+    private final SeekableObjectSource<Indexed<SparseDoubleVector>, S> inner;
+
+    private final AbstractMIProximity measure;
+
+    public PositiveInformationSource(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> inner,
+            AbstractMIProximity measure) {
+        Checks.checkNotNull("inner", inner);
+        Checks.checkNotNull("measure", measure);
+        this.inner = inner;
+        this.measure = measure;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return inner.hasNext();
+    }
+
+    @Override
+    public Indexed<SparseDoubleVector> read() throws IOException {
+        final Indexed<SparseDoubleVector> entry = inner.read();
+        return new Indexed<SparseDoubleVector>(
+                entry.key(), measure.positiveInformation(entry.value()));
+    }
+
+    @Override
+    public S position() throws IOException {
+        return inner.position();
+    }
+
+    @Override
+    public void position(S offset) throws IOException {
+        inner.position(offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inner instanceof Closeable)
+            ((Closeable) inner).close();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("inner", inner).
+                add("measure", measure).
+                toString();
+    }
+
+}
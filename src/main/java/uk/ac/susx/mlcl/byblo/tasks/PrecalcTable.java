@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * Read-only table of the per-entry components of a similarity measure (the
+ * left or right hand side), indexed by entry id.
+ * <p/>
+ * Entry ids are usually enumerated, so they are dense and the table is a
+ * plain array offset by the smallest id; looking a value up is then a single
+ * array access rather than a hash probe. When the ids are too sparse for an
+ * array to be reasonable, the table falls back to a hash map. In both cases
+ * ids that were not added to the table map to 0.
+ * <p/>
+ * Instances are immutable once built, so a single table can be shared by any
+ * number of concurrent tasks.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PrecalcTable {
+
+    /**
+     * The greatest ratio of id range to number of entries for which a dense
+     * array is used.
+     */
+    public static final int MAX_DENSE_SPARSITY = 4;
+
+    /**
+     * Id ranges of up to this size are always stored densely.
+     */
+    private static final int MIN_DENSE_RANGE = 1 << 10;
+
+    private final int offset;
+
+    private final double[] dense;
+
+    private final Int2DoubleMap sparse;
+
+    private final int size;
+
+    private PrecalcTable(int offset, double[] dense, Int2DoubleMap sparse,
+                         int size) {
+        this.offset = offset;
+        this.dense = dense;
+        this.sparse = sparse;
+        this.size = size;
+    }
+
+    /**
+     * Build a table from parallel arrays of ids and values. Only the first
+     * <code>size</code> elements of each array are used, and ids need not be
+     * in any particular order.
+     *
+     * @param ids entry ids
+     * @param values component value of each entry
+     * @param size number of entries
+     * @return table of the given values
+     */
+    public static PrecalcTable of(int[] ids, double[] values, int size) {
+        Checks.checkNotNull("ids", ids);
+        Checks.checkNotNull("values", values);
+        Checks.checkRangeIncl("size", size, 0, Math.min(ids.length, values.length));
+
+        if (size == 0)
+            return new PrecalcTable(0, new double[0], null, 0);
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, ids[i]);
+            max = Math.max(max, ids[i]);
+        }
+
+        final long range = (long) max - min + 1;
+        if (range <= Math.max(MIN_DENSE_RANGE, (long) MAX_DENSE_SPARSITY * size)) {
+            final double[] dense = new double[(int) range];
+            for (int i = 0; i < size; i++)
+                dense[ids[i] - min] = values[i];
+            return new PrecalcTable(min, dense, null, size);
+        } else {
+            final Int2DoubleMap sparse = new Int2DoubleOpenHashMap(size);
+            for (int i = 0; i < size; i++)
+                sparse.put(ids[i], values[i]);
+            return new PrecalcTable(0, null, sparse, size);
+        }
+    }
+
+    /**
+     * @param id entry id
+     * @return the value for the given entry, or 0 if it is not in the table
+     */
+    public double get(final int id) {
+        if (dense != null) {
+            final int i = id - offset;
+            return i >= 0 && i < dense.length ? dense[i] : 0;
+        } else {
+            return sparse.get(id);
+        }
+    }
+
+    /**
+     * @return the number of entries added to the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the table is backed by an array, false if by a hash map
+     */
+    public boolean isDense() {
+        return dense != null;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("size", size).
+                add("dense", isDense()).
+                add("offset", offset).
+                toString();
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.PrefixBoundedProximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An all-pairs similarity search implementation that uses a minimum
+ * similarity threshold to prune the search space, in the style of the AllPairs
+ * and PPJoin algorithms.
+ * <p/>
+ * The features of every vector are ordered by increasing document frequency
+ * (with respect to source A), and split into a prefix and a suffix, such that
+ * pairs sharing only suffix features cannot reach the threshold. Only the
+ * prefix postings of source A need be traversed to find candidates, so the
+ * long postings of frequent features are mostly skipped. Candidates are then
+ * discarded if an upper bound on their similarity, calculated from the
+ * independent components of the measure alone, is below the threshold.
+ * <p/>
+ * Pruning requires a measure implementing {@link PrefixBoundedProximity}, and
+ * a positive minimum similarity; otherwise every feature is in the prefix and
+ * the algorithm degrades to a plain inverted index search.
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PrefixFilterApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(PrefixFilterApssTask.class);
+
+    /**
+     * Slack subtracted from the threshold before pruning, so that rounding
+     * errors can not cause a pair at the threshold to be discarded.
+     */
+    private static final double EPSILON = 1e-9;
+
+    private InvertedIndex index = null;
+
+    /**
+     * The measure, if pruning is possible; otherwise null.
+     */
+    private PrefixBoundedProximity bounded = null;
+
+    private double threshold = Double.NEGATIVE_INFINITY;
+
+    private int[] seen = null;
+
+    private int stamp = 0;
+
+    public PrefixFilterApssTask() {
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+
+        if (getMeasure() instanceof PrefixBoundedProximity
+                && getMinSimilarity() > 0) {
+            bounded = (PrefixBoundedProximity) getMeasure();
+            threshold = getMinSimilarity() - EPSILON;
+        } else {
+            bounded = null;
+            threshold = Double.NEGATIVE_INFINITY;
+            if (LOG.isWarnEnabled()) {
+                LOG.warn("Prefix filtering requires a positive minimum "
+                        + "similarity and a prefix-bounded measure (found "
+                        + getMeasure() + " and " + getMinSimilarity()
+                        + "); no pruning will be performed.");
+            }
+        }
+
+        if (getSharedIndex() != null) {
+            // The prefixes depend only on the measure and threshold, which are
+            // the same for every task sharing the index.
+            index = getSharedIndex().get(new SharedInvertedIndex.Builder() {
+
+                @Override
+                public InvertedIndex build() throws IOException {
+                    return buildIndex();
+                }
+
+            });
+        } else {
+            index = buildIndex();
+        }
+        seen = new int[index.size()];
+        stamp = 0;
+    }
+
+    @Override
+    protected void runTask() throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running prefix filtering all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final IntArrayList candidates = new IntArrayList();
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            findCandidates(b, candidates);
+
+            final double right = getPrecalcB().get(b.key());
+            final int[] candidateSlots = candidates.elements();
+            final int nCandidates = candidates.size();
+            for (int i = 0; i < nCandidates; i++) {
+                final Indexed<SparseDoubleVector> a =
+                        index.entry(candidateSlots[i]);
+                if (!getProcessRecord().apply(a))
+                    continue;
+                countCandidate();
+
+                if (bounded != null && bounded.upperBound(
+                        getPrecalcA().get(a.key()), right) < threshold)
+                    continue;
+                if (isPrunable(a, b))
+                    continue;
+
+                final double sim = sim(a, b);
+                produce(b.key(), a.key(), sim, pairs);
+            }
+        }
+
+        writeOutPairs(pairs);
+        flushNeighbours();
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        index = null;
+        seen = null;
+        super.finaliseTask();
+    }
+
+    /**
+     * Find the index slots of all entries that may reach the threshold with
+     * query vector b.
+     *
+     * If the measure requires both prefixes to overlap, only the prefix
+     * features of b are probed, against the prefix postings of the index.
+     * Otherwise the prefix features of b are probed against all postings,
+     * and the suffix features of b against the prefix postings.
+     *
+     * @param b query vector
+     * @param candidates list to populate with candidate slots (cleared first)
+     */
+    private void findCandidates(
+            Indexed<SparseDoubleVector> b, IntArrayList candidates) {
+        candidates.clear();
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+
+        final SparseDoubleVector vec = b.value();
+        final int[] offsets = index.offsets();
+        final int[] prefixEnds = index.prefixEnds();
+        final int[] slots = index.slots();
+
+        // Locate the index row, and hence frequency, of every feature in b
+        final int[] rows = new int[vec.size];
+        final int[] frequencies = new int[vec.size];
+        int row = 0;
+        for (int i = 0; i < vec.size; i++) {
+            row = index.findRow(vec.keys[i], row);
+            if (row < 0) {
+                rows[i] = -1;
+                row = -row - 1;
+            } else {
+                rows[i] = row;
+                frequencies[i] = offsets[row + 1] - offsets[row];
+            }
+        }
+
+        final boolean[] suffix = findSuffix(vec, frequencies);
+        final boolean overlapRequired =
+                bounded == null || bounded.isPrefixOverlapRequired();
+
+        for (int i = 0; i < vec.size; i++) {
+            if (rows[i] < 0 || (overlapRequired && suffix[i]))
+                continue;
+            final int r = rows[i];
+            final int end = suffix[i] || overlapRequired
+                            ? prefixEnds[r] : offsets[r + 1];
+            for (int p = offsets[r]; p < end; p++) {
+                final int slot = slots[p];
+                if (seen[slot] != stamp) {
+                    seen[slot] = stamp;
+                    candidates.add(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build an index of source A where the features of each entry are split
+     * into a prefix and suffix.
+     */
+    private InvertedIndex buildIndex() throws IOException {
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final S startA = getSourceA().position();
+        while (getSourceA().hasNext()) {
+            entries.add(getSourceA().read());
+        }
+        getSourceA().position(startA);
+
+        if (bounded == null)
+            return InvertedIndex.build(entries);
+
+        // Count the document frequency of every feature in source A
+        final Int2IntMap df = new Int2IntOpenHashMap();
+        df.defaultReturnValue(0);
+        for (Indexed<SparseDoubleVector> entry : entries) {
+            final SparseDoubleVector vec = entry.value();
+            for (int i = 0; i < vec.size; i++) {
+                df.put(vec.keys[i], df.get(vec.keys[i]) + 1);
+            }
+        }
+
+        final boolean[][] suffixes = new boolean[entries.size()][];
+        for (int slot = 0; slot < entries.size(); slot++) {
+            final SparseDoubleVector vec = entries.get(slot).value();
+            final int[] frequencies = new int[vec.size];
+            for (int i = 0; i < vec.size; i++) {
+                frequencies[i] = df.get(vec.keys[i]);
+            }
+            suffixes[slot] = findSuffix(vec, frequencies);
+        }
+
+        final InvertedIndex result = InvertedIndex.build(entries, suffixes);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Built prefix index " + result + "; "
+                    + countPrefixPostings(result) + " postings in prefixes.");
+        }
+        return result;
+    }
+
+    /**
+     * Split the features of the given vector into a prefix and a suffix. The
+     * features are ordered by increasing frequency (breaking ties on feature
+     * id), and the suffix is the longest tail of that ordering with total
+     * weight below the measure's limit.
+     *
+     * @param vec vector to split
+     * @param frequencies document frequency of each feature of vec
+     * @return flag for each feature of vec denoting whether it is in the
+     *      suffix
+     */
+    private boolean[] findSuffix(SparseDoubleVector vec, int[] frequencies) {
+        final boolean[] suffix = new boolean[vec.size];
+        if (bounded == null || vec.size == 0)
+            return suffix;
+
+        // Pack frequency and index into a long so the order can be found with
+        // a primitive sort. Since keys are sorted, index order is key order.
+        final long[] order = new long[vec.size];
+        for (int i = 0; i < vec.size; i++) {
+            order[i] = ((long) frequencies[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        final double limit = bounded.maxSuffixWeight(vec, threshold);
+        double weight = 0;
+        for (int j = vec.size - 1; j >= 0; j--) {
+            final int i = (int) (order[j] & 0xFFFFFFFFL);
+            weight += bounded.prefixWeight(vec, i);
+            if (!(weight < limit))
+                break;
+            suffix[i] = true;
+        }
+        return suffix;
+    }
+
+    private static long countPrefixPostings(InvertedIndex index) {
+        long count = 0;
+        final int[] offsets = index.offsets();
+        final int[] prefixEnds = index.prefixEnds();
+        for (int r = 0; r < index.featureCount(); r++) {
+            count += prefixEnds[r] - offsets[r];
+        }
+        return count;
+    }
+
+    @Override
+    public String getName() {
+        return "prefix-allpairs";
+    }
+
+}
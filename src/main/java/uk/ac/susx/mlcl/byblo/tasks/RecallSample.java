@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import java.io.IOException;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Collects the pairs of the sampled entries that an exact all-pairs search
+ * would produce, so that the recall of an approximate search can be
+ * estimated. Each pair is recorded under the entry whose neighbours it is
+ * among, together with whether the approximate search found it.
+ * <p/>
+ * When only the k nearest neighbours of each entry are produced, the exact
+ * search would produce a pair only if it is among the k nearest, and that
+ * depends on every pair of the entry, which may be compared by different
+ * tasks. The pairs are therefore ranked with a {@link NeighbourCollector},
+ * and counted only once every task has completed.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class RecallSample {
+
+    /**
+     * The k nearest neighbours of each sampled entry, or null when all pairs
+     * are produced.
+     */
+    private final NeighbourCollector nearest;
+
+    /**
+     * The pairs held by nearest that were found, each packed into a long.
+     */
+    private final LongOpenHashSet found;
+
+    private long exactCount = 0;
+
+    private long foundCount = 0;
+
+    /**
+     * @param k number of nearest neighbours produced for each entry, or 0 if
+     *      all pairs are produced
+     */
+    RecallSample(int k) {
+        nearest = k > 0 ? new NeighbourCollector(k) : null;
+        found = k > 0 ? new LongOpenHashSet() : null;
+    }
+
+    /**
+     * Record a pair the exact search would produce, were it not for the k
+     * nearest neighbours limit.
+     *
+     * @param entryId entry whose neighbours the pair is among
+     * @param neighbourId neighbour of the entry
+     * @param sim similarity of the pair
+     * @param wasFound whether the approximate search found the pair
+     */
+    void add(int entryId, int neighbourId, double sim, boolean wasFound) {
+        if (nearest == null) {
+            count(wasFound);
+            return;
+        }
+        nearest.offer(entryId, neighbourId, sim);
+        if (wasFound) {
+            synchronized (found) {
+                found.add(pack(entryId, neighbourId));
+            }
+        }
+    }
+
+    /**
+     * Add the counts of the pairs recorded so far to the given statistics,
+     * and clear them. When ranking the k nearest neighbours, this must only
+     * be called once every pair of the sampled entries has been recorded.
+     *
+     * @param stats statistics to add to
+     */
+    void addTo(ApssStats stats) throws IOException {
+        if (nearest != null) {
+            nearest.flushAll(new ObjectSink<Weighted<TokenPair>>() {
+
+                @Override
+                public void write(Weighted<TokenPair> pair) {
+                    final boolean wasFound;
+                    synchronized (found) {
+                        wasFound = found.contains(pack(
+                                pair.record().id1(), pair.record().id2()));
+                    }
+                    count(wasFound);
+                }
+
+            });
+            synchronized (found) {
+                found.clear();
+            }
+        }
+        final long exact;
+        final long foundPairs;
+        synchronized (this) {
+            exact = exactCount;
+            foundPairs = foundCount;
+            exactCount = 0;
+            foundCount = 0;
+        }
+        stats.addRecallSampleExactCount(exact);
+        stats.addRecallSampleFoundCount(foundPairs);
+    }
+
+    private synchronized void count(boolean wasFound) {
+        ++exactCount;
+        if (wasFound)
+            ++foundCount;
+    }
+
+    private static long pack(int entryId, int neighbourId) {
+        return ((long) entryId << 32) | (neighbourId & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("nearest", nearest).
+                add("exactCount", exactCount).
+                add("foundCount", foundCount).
+                toString();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.Serializable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * Identifies one of a number of independent processes between which the
+ * work of an all-pairs search is divided. Shards are numbered from 1 to the
+ * shard count, and written as "number/count", e.g "2/4".
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class Shard implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The single shard of an undivided search.
+     */
+    public static final Shard ALL = new Shard(1, 1);
+
+    private static final Pattern PATTERN =
+            Pattern.compile("^\\s*(\\d+)\\s*/\\s*(\\d+)\\s*$");
+
+    private final int number;
+
+    private final int count;
+
+    /**
+     * @param number shard number, from 1 to count inclusive
+     * @param count total number of shards
+     */
+    public Shard(int number, int count) {
+        Checks.checkRangeIncl("count", count, 1, Integer.MAX_VALUE);
+        Checks.checkRangeIncl("number", number, 1, count);
+        this.number = number;
+        this.count = count;
+    }
+
+    /**
+     * Parse a shard of the form "number/count".
+     *
+     * @param value string to parse
+     * @return the shard
+     * @throws IllegalArgumentException if the string is malformed, or the
+     *      number is out of range
+     */
+    public static Shard parse(String value) {
+        Checks.checkNotNull("value", value);
+        final Matcher m = PATTERN.matcher(value);
+        if (!m.matches())
+            throw new IllegalArgumentException(
+                    "Expected shard of the form \"number/count\" but found \""
+                    + value + "\"");
+        try {
+            return new Shard(Integer.parseInt(m.group(1)),
+                             Integer.parseInt(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Shard number or count is too large: \"" + value + "\"", e);
+        }
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return zero based index of this shard
+     */
+    public int getIndex() {
+        return number - 1;
+    }
+
+    public boolean isAll() {
+        return count == 1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final Shard other = (Shard) obj;
+        return number == other.number && count == other.count;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * number + count;
+    }
+
+    @Override
+    public String toString() {
+        return number + "/" + count;
+    }
+
+}
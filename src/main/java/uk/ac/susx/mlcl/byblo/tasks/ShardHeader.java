@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * The header of a shard output file, identifying which shard of the search
+ * wrote it, and the search it belongs to.
+ * <p/>
+ * Shard files are merged by another process, possibly long after they were
+ * written, so the header allows the merge to check that it has been given
+ * every shard of the same search exactly once. The fingerprint describes the
+ * inputs and parameters of the search; it must be the same for every shard.
+ * <p/>
+ * The header consists of a magic number, the shard number and count, then the
+ * length of the fingerprint in bytes followed by the fingerprint in UTF-8.
+ * The pairs follow immediately after it.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ShardHeader {
+
+    private static final int MAGIC = 0x42595348;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final Shard shard;
+
+    private final String fingerprint;
+
+    /**
+     * @param shard the shard that wrote the file
+     * @param fingerprint description of the inputs and parameters of the
+     *      search, excluding the shard
+     */
+    public ShardHeader(Shard shard, String fingerprint) {
+        Checks.checkNotNull("shard", shard);
+        Checks.checkNotNull("fingerprint", fingerprint);
+        this.shard = shard;
+        this.fingerprint = fingerprint;
+    }
+
+    public Shard getShard() {
+        return shard;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return size of the header in bytes, and so the offset of the first
+     *      pair in the file
+     */
+    public long size() {
+        return 4 + 4 + 4 + 4 + fingerprint.getBytes(CHARSET).length;
+    }
+
+    void write(DataOutput out) throws IOException {
+        final byte[] bytes = fingerprint.getBytes(CHARSET);
+        out.writeInt(MAGIC);
+        out.writeInt(shard.getNumber());
+        out.writeInt(shard.getCount());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read the header of a shard output file.
+     *
+     * @param file shard output file
+     * @return the header of the file
+     * @throws IOException if the file can not be read, or is not a shard
+     *      output file
+     */
+    public static ShardHeader read(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        final DataInputStream in = new DataInputStream(
+                new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a shard output file: " + file);
+            final int number = in.readInt();
+            final int count = in.readInt();
+            final int length = in.readInt();
+            if (count < 1 || number < 1 || number > count || length < 0
+                    || length > file.length())
+                throw new IOException("Corrupt shard output file: " + file);
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new ShardHeader(new Shard(number, count),
+                                   new String(bytes, CHARSET));
+        } catch (EOFException e) {
+            throw new IOException("Not a shard output file: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final ShardHeader other = (ShardHeader) obj;
+        return shard.equals(other.shard)
+                && fingerprint.equals(other.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * shard.hashCode() + fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + shard + " of " + fingerprint;
+    }
+
+}
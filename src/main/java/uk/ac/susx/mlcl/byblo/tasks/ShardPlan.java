@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * A deterministic assignment of the chunk pairs of an all-pairs search to
+ * shards, such that every shard has roughly the same estimated cost.
+ * <p/>
+ * The cost of a chunk pair is estimated as the product of the number of
+ * non-zero features in each chunk. Chunk pairs are assigned in order of
+ * decreasing cost (breaking ties on the chunk ids) to the shard with the
+ * least total cost so far (breaking ties on the shard index.) The plan
+ * depends only on the chunk costs, so independent processes reading the same
+ * input agree on it without communicating, even if they order their chunk
+ * pairs differently.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class ShardPlan {
+
+    private final int chunkCountA;
+
+    private final int chunkCountB;
+
+    /**
+     * Shard index of each chunk pair, indexed by
+     * (chunkIdA - 1) * chunkCountB + (chunkIdB - 1), or -1 for pairs that
+     * are not compared.
+     */
+    private final int[] shards;
+
+    private final double[] loads;
+
+    private ShardPlan(int chunkCountA, int chunkCountB, int[] shards,
+                      double[] loads) {
+        this.chunkCountA = chunkCountA;
+        this.chunkCountB = chunkCountB;
+        this.shards = shards;
+        this.loads = loads;
+    }
+
+    /**
+     * Plan the assignment of chunk pairs to shards.
+     *
+     * @param costsA number of non-zero features in each chunk of source A
+     * @param costsB number of non-zero features in each chunk of source B
+     * @param symmetric true if only the pairs on or above the diagonal are
+     *      compared
+     * @param shardCount number of shards
+     * @return the plan
+     */
+    static ShardPlan build(long[] costsA, long[] costsB, boolean symmetric,
+                           int shardCount) {
+        Checks.checkNotNull("costsA", costsA);
+        Checks.checkNotNull("costsB", costsB);
+        Checks.checkRangeIncl("shardCount", shardCount, 1, Integer.MAX_VALUE);
+        if (symmetric && costsA.length != costsB.length)
+            throw new IllegalArgumentException(
+                    "symmetric plan requires the same number of chunks");
+
+        final int nA = costsA.length;
+        final int nB = costsB.length;
+        final double[] pairCosts = new double[nA * nB];
+        for (int a = 0; a < nA; a++) {
+            for (int b = symmetric ? a : 0; b < nB; b++) {
+                pairCosts[a * nB + b] = (double) costsA[a] * costsB[b];
+            }
+        }
+        return build(nA, nB, pairCosts, symmetric, shardCount);
+    }
+
+    private static ShardPlan build(int nA, int nB, double[] pairCosts,
+                                   boolean symmetric, int shardCount) {
+        final int[] shards = new int[nA * nB];
+        java.util.Arrays.fill(shards, -1);
+
+        final int[] pairs = new int[symmetric ? nA * (nA + 1) / 2 : nA * nB];
+        final double[] costs = new double[pairs.length];
+        int n = 0;
+        for (int a = 0; a < nA; a++) {
+            for (int b = symmetric ? a : 0; b < nB; b++) {
+                pairs[n] = a * nB + b;
+                costs[n] = pairCosts[a * nB + b];
+                ++n;
+            }
+        }
+
+        Arrays.quickSort(0, n, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                final int c = Double.compare(costs[j], costs[i]);
+                return c != 0 ? c : pairs[i] < pairs[j] ? -1
+                                    : pairs[i] > pairs[j] ? 1 : 0;
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final int pair = pairs[i];
+                pairs[i] = pairs[j];
+                pairs[j] = pair;
+                final double cost = costs[i];
+                costs[i] = costs[j];
+                costs[j] = cost;
+            }
+
+        });
+
+        final double[] loads = new double[shardCount];
+        for (int i = 0; i < n; i++) {
+            int least = 0;
+            for (int s = 1; s < shardCount; s++) {
+                if (loads[s] < loads[least])
+                    least = s;
+            }
+            shards[pairs[i]] = least;
+            loads[least] += costs[i];
+        }
+        return new ShardPlan(nA, nB, shards, loads);
+    }
+
+    /**
+     * @param chunkIdA id of the chunk from source A (starting at 1)
+     * @param chunkIdB id of the chunk from source B (starting at 1)
+     * @return index of the shard the chunk pair is assigned to, or -1 if the
+     *      chunk pair is not compared
+     */
+    int shardOf(int chunkIdA, int chunkIdB) {
+        Checks.checkRangeIncl("chunkIdA", chunkIdA, 1, chunkCountA);
+        Checks.checkRangeIncl("chunkIdB", chunkIdB, 1, chunkCountB);
+        return shards[(chunkIdA - 1) * chunkCountB + (chunkIdB - 1)];
+    }
+
+    /**
+     * @param shardIndex index of a shard
+     * @return total estimated cost of the chunk pairs assigned to the shard
+     */
+    double getLoad(int shardIndex) {
+        return loads[shardIndex];
+    }
+
+    int getShardCount() {
+        return loads.length;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("chunkCountA", chunkCountA).
+                add("chunkCountB", chunkCountB).
+                add("shards", loads.length).
+                add("loads", java.util.Arrays.toString(loads)).
+                toString();
+    }
+
+}
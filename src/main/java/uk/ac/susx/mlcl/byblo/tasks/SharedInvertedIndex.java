@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.io.IOException;
+
+/**
+ * Holds the inverted index of a single chunk, so that it can be shared by
+ * every task that compares against that chunk rather than being rebuilt by
+ * each of them.
+ * <p/>
+ * The index is built lazily by the first task to require it, so the indices
+ * of different chunks are built concurrently by the worker threads. Tasks
+ * that require the index while it is being built block until it is
+ * available. The holder is reference counted, and the index is released as
+ * soon as the last reference is.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class SharedInvertedIndex {
+
+    /**
+     * Strategy for building the index, supplied by the first task to require
+     * it.
+     */
+    interface Builder {
+
+        InvertedIndex build() throws IOException;
+
+    }
+
+    private InvertedIndex index = null;
+
+    private int references;
+
+    private boolean released = false;
+
+    /**
+     * Construct a new holder with a single reference, belonging to the
+     * caller.
+     */
+    SharedInvertedIndex() {
+        references = 1;
+    }
+
+    synchronized void retain() {
+        if (released)
+            throw new IllegalStateException("index has been released");
+        ++references;
+    }
+
+    synchronized void release() {
+        if (released)
+            throw new IllegalStateException("index has been released");
+        if (--references == 0) {
+            released = true;
+            index = null;
+        }
+    }
+
+    /**
+     * Get the index, building it first if this is the first request.
+     *
+     * @param builder builds the index when it is not yet available
+     * @return the index
+     * @throws IOException if the builder fails
+     */
+    synchronized InvertedIndex get(Builder builder) throws IOException {
+        if (released)
+            throw new IllegalStateException("index has been released");
+        if (index == null)
+            index = builder.build();
+        return index;
+    }
+
+    synchronized boolean isBuilt() {
+        return index != null;
+    }
+
+    synchronized boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("references", references).
+                add("index", index).
+                add("released", released).
+                toString();
+    }
+
+}
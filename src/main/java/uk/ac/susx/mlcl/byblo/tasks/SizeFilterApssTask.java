@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.PrefixBoundedProximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An all-pairs similarity search implementation that orders the vectors of
+ * source A by the independent component of the measure (typically their size
+ * or sum), so that only those of comparable size need be compared.
+ * <p/>
+ * For set-like measures (Jaccard, Dice and Tanimoto) the best similarity two
+ * vectors can achieve is bounded by the ratio of their sizes. Each vector of
+ * source B scans outwards from the vectors of A with the same size, in order
+ * of decreasing bound, and stops once the bound falls below the minimum
+ * similarity, or below the similarity of the k-th nearest neighbour found so
+ * far when neighbours are being collected. No pair that could be produced is
+ * skipped, so the results are exact.
+ * <p/>
+ * Pruning requires a measure implementing {@link PrefixBoundedProximity}, for
+ * which the bound can only decrease as the sizes move apart. For other
+ * measures, or when there is neither a positive minimum similarity nor a
+ * neighbour collector, every pair is compared.
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class SizeFilterApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(SizeFilterApssTask.class);
+
+    /**
+     * Slack subtracted from the threshold before pruning, so that rounding
+     * errors can not cause a pair at the threshold to be discarded.
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * The measure, if pruning is possible; otherwise null.
+     */
+    private PrefixBoundedProximity bounded = null;
+
+    private double threshold = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Vectors of source A, ordered by increasing independent component.
+     */
+    private List<Indexed<SparseDoubleVector>> entriesA = null;
+
+    /**
+     * Independent component of each vector in entriesA.
+     */
+    private double[] leftsA = null;
+
+    public SizeFilterApssTask() {
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+
+        if (getMeasure() instanceof PrefixBoundedProximity) {
+            bounded = (PrefixBoundedProximity) getMeasure();
+            threshold = getMinSimilarity() > 0
+                        ? getMinSimilarity() - EPSILON
+                        : Double.NEGATIVE_INFINITY;
+        } else {
+            bounded = null;
+            threshold = Double.NEGATIVE_INFINITY;
+        }
+        if ((bounded == null || (threshold == Double.NEGATIVE_INFINITY
+                                 && getNeighbourCollector() == null))
+                && LOG.isWarnEnabled()) {
+            LOG.warn("Size filtering requires a prefix-bounded measure, and "
+                    + "either a positive minimum similarity or a neighbour "
+                    + "collector (found " + getMeasure() + " and "
+                    + getMinSimilarity() + "); no pruning will be performed.");
+        }
+
+        readSourceA();
+    }
+
+    /**
+     * Read all the vectors of source A, ordered by their independent
+     * component.
+     */
+    private void readSourceA() throws IOException {
+        final S startA = getSourceA().position();
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        while (getSourceA().hasNext()) {
+            final Indexed<SparseDoubleVector> a = getSourceA().read();
+            if (getProcessRecord().apply(a))
+                entries.add(a);
+        }
+        getSourceA().position(startA);
+
+        final double[] lefts = new double[entries.size()];
+        for (int i = 0; i < lefts.length; i++)
+            lefts[i] = getPrecalcA().get(entries.get(i).key());
+
+        Arrays.quickSort(0, lefts.length, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                return Double.compare(lefts[i], lefts[j]);
+            }
+
+        }, new Swapper() {
+
+            @Override
+            public void swap(int i, int j) {
+                final double tmp = lefts[i];
+                lefts[i] = lefts[j];
+                lefts[j] = tmp;
+                entries.set(i, entries.set(j, entries.get(i)));
+            }
+
+        });
+
+        entriesA = entries;
+        leftsA = lefts;
+    }
+
+    @Override
+    protected void runTask() throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running size filtering all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final int n = leftsA.length;
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            final double right = getPrecalcB().get(b.key());
+
+            // The vectors of A above hi are no smaller than b, and those
+            // below lo are no larger, so the bound decreases along each.
+            int hi = lowerBound(leftsA, right);
+            int lo = hi - 1;
+            while (lo >= 0 || hi < n) {
+                final boolean takeHi;
+                final double bound;
+                if (bounded == null) {
+                    takeHi = hi < n;
+                    bound = Double.POSITIVE_INFINITY;
+                } else {
+                    final double boundHi = hi < n
+                                           ? bounded.upperBound(leftsA[hi], right)
+                                           : Double.NEGATIVE_INFINITY;
+                    final double boundLo = lo >= 0
+                                           ? bounded.upperBound(leftsA[lo], right)
+                                           : Double.NEGATIVE_INFINITY;
+                    takeHi = lo < 0 || (hi < n && !(boundHi < boundLo));
+                    bound = takeHi ? boundHi : boundLo;
+                    // Every remaining pair is bounded by the larger of the
+                    // two, so none of them can be produced.
+                    if (bound < cutoff(b))
+                        break;
+                }
+
+                final Indexed<SparseDoubleVector> a =
+                        entriesA.get(takeHi ? hi++ : lo--);
+                countCandidate();
+                if (isPrunable(a, b))
+                    continue;
+
+                produce(b.key(), a.key(), sim(a, b), pairs);
+            }
+        }
+
+        writeOutPairs(pairs);
+        flushNeighbours();
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    /**
+     * The similarity that a pair with b must reach to be produced; the
+     * threshold, or the similarity of the k-th nearest neighbour of b found so
+     * far if that is greater. When the task is mirrored or transposed the pair
+     * may be a neighbour of a, so only the threshold applies.
+     */
+    private double cutoff(Indexed<SparseDoubleVector> b) {
+        if (getNeighbourCollector() == null || isMirrored() || isTransposed())
+            return threshold;
+        return Math.max(threshold,
+                        getNeighbourCollector().floor(b.key()));
+    }
+
+    /**
+     * @return index of the first element of the sorted array that is not less
+     *      than the key, or the length of the array if there is none
+     */
+    private static int lowerBound(double[] sorted, double key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        entriesA = null;
+        leftsA = null;
+        super.finaliseTask();
+    }
+
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * A set of sorted runs of pairs, spilled to temporary binary files by the
+ * all-pairs workers, and merged once the search is complete.
+ * <p/>
+ * Each worker sorts its own output buffer and writes it to a new run file, so
+ * workers never contend for the shared sink or spend time formatting text.
+ * The runs are then merged in a single k-way pass. When there are more runs
+ * than can reasonably be opened at once, groups of runs are first merged into
+ * intermediate runs, concurrently.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class SortedPairRuns {
+
+    private static final Log LOG = LogFactory.getLog(SortedPairRuns.class);
+
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Size in bytes of each pair in a run file: two ints and a double.
+     */
+    static final int RECORD_SIZE = 4 + 4 + 8;
+
+    private final FileFactory tempFileFactory;
+
+    private final WeightedTokenPairBuffer.Order order;
+
+    private final Comparator<Weighted<TokenPair>> comparator;
+
+    private final List<File> runs = new ArrayList<File>();
+
+    /**
+     * Adopted run files that are left in place once merged.
+     */
+    private final Set<File> retained = new HashSet<File>();
+
+    /**
+     * Offset of the first pair in adopted run files that begin with a
+     * header; other runs start with their first pair.
+     */
+    private final Map<File, Long> offsets = new HashMap<File, Long>();
+
+    private final AtomicLong pairCount = new AtomicLong(0);
+
+    private int maxFanIn = DEFAULT_MAX_FAN_IN;
+
+    private boolean sync = false;
+
+    /**
+     * @param tempFileFactory produces the files runs are written to
+     * @param order order of the pairs in every run, and in the merged output
+     */
+    public SortedPairRuns(FileFactory tempFileFactory,
+                          WeightedTokenPairBuffer.Order order) {
+        Checks.checkNotNull("tempFileFactory", tempFileFactory);
+        Checks.checkNotNull("order", order);
+        this.tempFileFactory = tempFileFactory;
+        this.order = order;
+        this.comparator = order.comparator();
+    }
+
+    public WeightedTokenPairBuffer.Order getOrder() {
+        return order;
+    }
+
+    public int getMaxFanIn() {
+        return maxFanIn;
+    }
+
+    public void setMaxFanIn(int maxFanIn) {
+        Checks.checkRangeIncl("maxFanIn", maxFanIn, 2, Integer.MAX_VALUE);
+        this.maxFanIn = maxFanIn;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * Set whether run files are forced to the storage device as they are
+     * written, so that a completed run survives a crash.
+     *
+     * @param sync true if runs should be synced when written
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * @return the files of every run that has not yet been merged
+     */
+    public List<File> getRunFiles() {
+        synchronized (runs) {
+            return new ArrayList<File>(runs);
+        }
+    }
+
+    /**
+     * Adopt an existing run file, such as one written by another instance,
+     * to be merged along with the runs written to this instance. The file is
+     * deleted once it has been merged.
+     *
+     * @param file run file, sorted in the order of this instance
+     */
+    public void addRun(File file) {
+        addRun(file, false);
+    }
+
+    /**
+     * Adopt an existing run file, such as one written by another instance,
+     * or by another process, to be merged along with the runs written to this
+     * instance.
+     *
+     * @param file run file, sorted in the order of this instance
+     * @param retain true if the file should be left in place once merged
+     */
+    public void addRun(File file, boolean retain) {
+        Checks.checkNotNull("file", file);
+        pairCount.addAndGet(file.length() / RECORD_SIZE);
+        synchronized (runs) {
+            runs.add(file);
+            if (retain)
+                retained.add(file);
+        }
+    }
+
+    /**
+     * Adopt the output file of a shard, written by
+     * {@link #openRunSink(File, ShardHeader) }, to be merged along with the
+     * runs written to this instance. The file is left in place once merged.
+     *
+     * @param file shard output file, sorted in the order of this instance
+     * @param header the header of the file, as read by
+     *      {@link ShardHeader#read(File) }
+     */
+    public void addRun(File file, ShardHeader header) {
+        Checks.checkNotNull("file", file);
+        Checks.checkNotNull("header", header);
+        final long offset = header.size();
+        pairCount.addAndGet((file.length() - offset) / RECORD_SIZE);
+        synchronized (runs) {
+            runs.add(file);
+            retained.add(file);
+            offsets.put(file, offset);
+        }
+    }
+
+    /**
+     * Open a sink that writes the pairs of a shard to a single run file,
+     * beginning with the given header, which can later be adopted by an
+     * instance with {@link #addRun(File, ShardHeader) }. The pairs must be
+     * written in the order of the adopting instance.
+     *
+     * @param file destination run file
+     * @param header identifies the shard and search producing the pairs
+     * @return sink writing to the file, which must be closed
+     * @throws IOException if the file can not be opened
+     */
+    public static ObjectSink<Weighted<TokenPair>> openRunSink(
+            File file, ShardHeader header) throws IOException {
+        Checks.checkNotNull("file", file);
+        Checks.checkNotNull("header", header);
+        final RunWriter writer = new RunWriter(file, false);
+        try {
+            header.write(writer.out);
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        return writer;
+    }
+
+    public int getRunCount() {
+        synchronized (runs) {
+            return runs.size();
+        }
+    }
+
+    public long getPairCount() {
+        return pairCount.get();
+    }
+
+    /**
+     * Sort the given pairs and write them out as a new run. The buffer is
+     * sorted in place.
+     *
+     * @param pairs pairs to write
+     * @throws IOException if the run file can not be written
+     */
+    public void write(WeightedTokenPairBuffer pairs) throws IOException {
+        if (pairs.isEmpty())
+            return;
+        pairs.sort(order);
+        final File file = tempFileFactory.createFile("pairs", ".run");
+        final RunWriter writer = new RunWriter(file, sync);
+        try {
+            for (int i = 0; i < pairs.size(); i++) {
+                writer.write(pairs.id1(i), pairs.id2(i), pairs.weight(i));
+            }
+        } finally {
+            writer.close();
+        }
+        pairCount.addAndGet(pairs.size());
+        synchronized (runs) {
+            runs.add(file);
+        }
+    }
+
+    /**
+     * Merge every run into the given sink, deleting the run files as they
+     * are consumed.
+     *
+     * @param sink destination of the merged pairs
+     * @param nThreads number of intermediate merges to run concurrently
+     * @throws IOException if a run can not be read, or the sink written
+     * @throws InterruptedException if interrupted while waiting for an
+     *      intermediate merge
+     * @throws ExecutionException if an intermediate merge fails
+     */
+    public void mergeTo(ObjectSink<Weighted<TokenPair>> sink, int nThreads)
+            throws IOException, InterruptedException, ExecutionException {
+        Checks.checkNotNull("sink", sink);
+        Checks.checkRangeIncl("nThreads", nThreads, 1, Integer.MAX_VALUE);
+
+        List<File> current;
+        synchronized (runs) {
+            current = new ArrayList<File>(runs);
+            runs.clear();
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Merging " + pairCount.get() + " pairs from "
+                    + current.size() + " runs.");
+        }
+
+        while (current.size() > maxFanIn) {
+            final ExecutorService executor =
+                    Executors.newFixedThreadPool(nThreads);
+            try {
+                final List<Future<File>> futures = new ArrayList<Future<File>>();
+                for (int i = 0; i < current.size(); i += maxFanIn) {
+                    final List<File> group = current.subList(
+                            i, Math.min(current.size(), i + maxFanIn));
+                    futures.add(executor.submit(new Callable<File>() {
+
+                        @Override
+                        public File call() throws IOException {
+                            final File file = tempFileFactory.createFile(
+                                    "pairs", ".run");
+                            final RunWriter writer = new RunWriter(file, false);
+                            try {
+                                merge(group, writer);
+                            } finally {
+                                writer.close();
+                            }
+                            return file;
+                        }
+
+                    }));
+                }
+                final List<File> next = new ArrayList<File>(futures.size());
+                for (Future<File> future : futures) {
+                    next.add(future.get());
+                }
+                current = next;
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        merge(current, sink);
+        pairCount.set(0);
+    }
+
+    /**
+     * Delete all the runs that have not been merged.
+     */
+    public void delete() {
+        synchronized (runs) {
+            for (File file : runs) {
+                if (!retained.contains(file) && !file.delete()
+                        && LOG.isWarnEnabled())
+                    LOG.warn("Failed to delete run file " + file);
+            }
+            runs.clear();
+            retained.clear();
+            offsets.clear();
+        }
+    }
+
+    /**
+     * K-way merge of the given run files into the sink. Pairs that compare
+     * equal are written in the order of the runs containing them. The run
+     * files, other than those retained, are deleted once they have been read.
+     */
+    private void merge(List<File> files, ObjectSink<Weighted<TokenPair>> sink)
+            throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                Math.max(1, files.size()), new Comparator<RunReader>() {
+
+            @Override
+            public int compare(RunReader a, RunReader b) {
+                final int c = comparator.compare(a.head, b.head);
+                return c != 0 ? c : a.index - b.index;
+            }
+
+        });
+
+        final List<RunReader> readers = new ArrayList<RunReader>(files.size());
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final Long offset;
+                synchronized (runs) {
+                    offset = offsets.get(files.get(i));
+                }
+                final RunReader reader = new RunReader(
+                        files.get(i), i, offset == null ? 0 : offset);
+                readers.add(reader);
+                if (reader.advance())
+                    queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                final RunReader reader = queue.poll();
+                final Weighted<TokenPair> head = reader.head;
+                sink.write(head);
+                if (reader.advance()) {
+                    // Adopted runs may have been written in a different order
+                    if (comparator.compare(head, reader.head) > 0)
+                        throw new IOException("Run file "
+                                + files.get(reader.index)
+                                + " is not sorted in " + order + " order.");
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+        for (File file : files) {
+            synchronized (runs) {
+                offsets.remove(file);
+                if (retained.contains(file))
+                    continue;
+            }
+            if (!file.delete() && LOG.isWarnEnabled())
+                LOG.warn("Failed to delete run file " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("temp", tempFileFactory).
+                add("order", order).
+                add("runs", getRunCount()).
+                add("pairs", getPairCount()).
+                add("maxFanIn", maxFanIn).
+                add("sync", sync).
+                toString();
+    }
+
+    /**
+     * Writes pairs to a run file as fixed width binary records.
+     */
+    private static final class RunWriter
+            implements ObjectSink<Weighted<TokenPair>>, Closeable {
+
+        private final FileOutputStream file;
+
+        private final DataOutputStream out;
+
+        private final boolean sync;
+
+        RunWriter(File file, boolean sync) throws IOException {
+            this.file = new FileOutputStream(file);
+            this.sync = sync;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    this.file, BUFFER_SIZE));
+        }
+
+        @Override
+        public void write(Weighted<TokenPair> pair) throws IOException {
+            write(pair.record().id1(), pair.record().id2(), pair.weight());
+        }
+
+        void write(int id1, int id2, double weight) throws IOException {
+            out.writeInt(id1);
+            out.writeInt(id2);
+            out.writeDouble(weight);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (sync) {
+                    out.flush();
+                    file.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+    }
+
+    /**
+     * Reads pairs back from a run file, holding the next pair in the run.
+     */
+    private static final class RunReader implements Closeable {
+
+        private final DataInputStream in;
+
+        private final int index;
+
+        private long remaining;
+
+        private Weighted<TokenPair> head = null;
+
+        RunReader(File file, int index, long offset) throws IOException {
+            this.index = index;
+            remaining = (file.length() - offset) / RECORD_SIZE;
+            final FileInputStream stream = new FileInputStream(file);
+            try {
+                stream.getChannel().position(offset);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            in = new DataInputStream(new BufferedInputStream(
+                    stream, BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            --remaining;
+            final int id1 = in.readInt();
+            final int id2 = in.readInt();
+            final double weight = in.readDouble();
+            head = new Weighted<TokenPair>(new TokenPair(id1, id2), weight);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
@@ -31,28 +31,38 @@
 package uk.ac.susx.mlcl.byblo.tasks;
 
 import com.google.common.base.Objects.ToStringHelper;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.lib.io.Chunk;
-import uk.ac.susx.mlcl.lib.io.Chunker;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.tasks.Task;
@@ -85,8 +95,93 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     private int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
 
+    /**
+     * Budget of non-zero features in each chunk, or 0 if chunks are limited
+     * only by their number of entries.
+     */
+    private long maxChunkNonZeros = 0;
+
+    /**
+     * Whether to estimate the cost of every chunk pair before the search, so
+     * that the most expensive are queued first.
+     */
+    private boolean costOrdered = false;
+
     private Semaphore throttle;
 
+    /**
+     * Bytes of heap that the concurrently running chunk pairs are estimated
+     * to hold at most, or 0 if only their number is limited.
+     */
+    private long memoryBudget = 0;
+
+    private MemoryBudget memory = null;
+
+    /**
+     * Whether sources A and B contain the same vectors, in the same order.
+     */
+    private boolean symmetric = false;
+
+    /**
+     * Whether source A is read as a single chunk, rather than divided into a
+     * grid of chunk pairs.
+     */
+    private boolean streaming = false;
+
+    /**
+     * Whether to schedule chunk pairs on a work-stealing fork/join pool,
+     * rather than a fixed thread pool.
+     */
+    private boolean workStealing = false;
+
+    public static final long DEFAULT_FORK_THRESHOLD = 1 << 14;
+
+    /**
+     * When work stealing, ranges of chunk B with a greater estimated cost
+     * (non-zero features) than this are split in two.
+     */
+    private long forkThreshold = DEFAULT_FORK_THRESHOLD;
+
+    private final AtomicReference<Exception> failure =
+            new AtomicReference<Exception>();
+
+    private Queue<PendingNeighbours> pendingNeighbours = null;
+
+    /**
+     * Number of incomplete tasks that each chunk's neighbours depend on,
+     * indexed by chunk number - 1.
+     */
+    private IntArrayList outstandingTasks = null;
+
+    private Map<Task, int[]> taskChunks = null;
+
+    /**
+     * Journal of completed chunk pairs, or null if the run is not
+     * checkpointed.
+     */
+    private AllPairsJournal journal = null;
+
+    private Map<Task, JournalEntry> taskEntries = null;
+
+    /**
+     * The portion of the chunk pairs compared by this task, when the search
+     * is divided between independent processes.
+     */
+    private Shard shard = Shard.ALL;
+
+    /**
+     * Signatures shared by every inner task, when the inner algorithm is
+     * {@link LshApssTask}.
+     */
+    private LshSignatures lshSignatures = null;
+
+    /**
+     * Recall sample shared by every inner task, when the inner algorithm is
+     * {@link LshApssTask}, so that the neighbours of each sampled entry are
+     * ranked over all of the chunk pairs.
+     */
+    private RecallSample recallSample = null;
+
     public ThreadedApssTask(
             SeekableObjectSource<Indexed<SparseDoubleVector>, S> A,
             SeekableObjectSource<Indexed<SparseDoubleVector>, S> B,
@@ -106,10 +201,183 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         this.maxChunkSize = maxChunkSize;
     }
 
-    @Override
-    protected void buildPrecalcs() throws IOException {
-        // The super class runs this in during initialization, but we don't want
-        // do to it here.
+    public long getMaxChunkNonZeros() {
+        return maxChunkNonZeros;
+    }
+
+    /**
+     * Set the budget of non-zero features in each chunk. A chunk is closed
+     * once it reaches either this budget or the maximum chunk size, so that
+     * chunk pairs take comparable time and memory even when a few entries
+     * hold most of the non-zeros.
+     *
+     * @param maxChunkNonZeros non-zero budget, or 0 to limit chunks only by
+     *      their number of entries
+     */
+    public void setMaxChunkNonZeros(long maxChunkNonZeros) {
+        Checks.checkRangeIncl("maxChunkNonZeros", maxChunkNonZeros,
+                              0, Long.MAX_VALUE);
+        this.maxChunkNonZeros = maxChunkNonZeros;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes of heap that the chunk pairs running
+     * concurrently may hold, by their estimated footprint. A chunk pair is not
+     * started until enough of the budget has been released by those already
+     * running, so a few dense chunks can not exhaust the heap between them.
+     *
+     * @param memoryBudget budget in bytes, or 0 to limit only the number of
+     *      concurrent chunk pairs
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        Checks.checkRangeIncl("memoryBudget", memoryBudget, 0, Long.MAX_VALUE);
+        this.memoryBudget = memoryBudget;
+    }
+
+    public boolean isCostOrdered() {
+        return costOrdered;
+    }
+
+    /**
+     * Set whether the cost of every chunk pair is estimated before the
+     * search (see {@link ChunkCosts}), so that the most expensive chunk pairs
+     * are queued first, rather than left to hold up the end of the run. This
+     * requires an additional pass over both sources. Shards are planned
+     * independently of this setting, so shards of the same search may differ
+     * in it.
+     *
+     * @param costOrdered true to queue chunk pairs by decreasing cost
+     */
+    public void setCostOrdered(boolean costOrdered) {
+        this.costOrdered = costOrdered;
+    }
+
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    /**
+     * Set whether sources A and B contain the same vectors, in the same order.
+     * When they do, and the measure is also symmetric, each unordered pair of
+     * chunks is compared only once, and the results are produced in both
+     * directions.
+     *
+     * @param symmetric true if the sources are identical
+     */
+    public void setSymmetric(boolean symmetric) {
+        this.symmetric = symmetric;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Set whether source A is read as a single chunk, which is indexed once
+     * and shared by every task, while source B is streamed through it in
+     * chunks. Each vector is then read only once, and there is no grid of
+     * chunk pairs. The whole of source A must fit in memory, and the sources
+     * must not be symmetric.
+     *
+     * @param streaming true to index the whole of source A
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Estimate the memory required to hold and index the whole of source A,
+     * so that a caller can decide whether it may be streamed.
+     *
+     * @param vectors number of vectors in source A
+     * @param nonZeros number of non-zero elements in source A
+     * @return estimated footprint in bytes
+     */
+    public static long estimateIndexFootprint(long vectors, long nonZeros) {
+        return MemoryBudget.estimateFootprint(vectors, nonZeros, 0, 0, 0);
+    }
+
+    private boolean isSymmetricRun() {
+        return symmetric && getMeasure().isSymmetric();
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * Set whether chunk pairs are scheduled on a work-stealing fork/join pool.
+     * Expensive chunk pairs are then split recursively, so that threads do
+     * not sit idle while a few slow chunk pairs complete.
+     *
+     * @param workStealing true to use the fork/join pool
+     */
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    public long getForkThreshold() {
+        return forkThreshold;
+    }
+
+    public void setForkThreshold(long forkThreshold) {
+        Checks.checkRangeIncl("forkThreshold", forkThreshold, 1, Long.MAX_VALUE);
+        this.forkThreshold = forkThreshold;
+    }
+
+    public AllPairsJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set the journal used to checkpoint the run. Chunk pairs recorded in the
+     * journal as completed are skipped, and the output of every other chunk
+     * pair is written to its own segment, which is committed to the journal
+     * once the chunk pair completes. The sink is not written to; the output
+     * must be merged from the journal once the run is complete.
+     *
+     * @param journal journal of completed chunk pairs, or null to disable
+     *      checkpointing
+     */
+    public void setJournal(AllPairsJournal journal) {
+        this.journal = journal;
+    }
+
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * Set the portion of the search performed by this task. The chunk pairs
+     * are divided deterministically between the shards, balanced by their
+     * estimated cost, so that the union of the output of every shard is the
+     * output of the whole search.
+     *
+     * @param shard shard of the chunk pairs to compare
+     */
+    public void setShard(Shard shard) {
+        Checks.checkNotNull("shard", shard);
+        this.shard = shard;
+    }
+
+    public LshSignatures getLshSignatures() {
+        return lshSignatures;
+    }
+
+    /**
+     * Set the signatures used when the inner algorithm is
+     * {@link LshApssTask}. They are shared by every inner task, so the
+     * signature of each entry is calculated once. If not set, signatures
+     * suited to the measure are created with default parameters.
+     *
+     * @param lshSignatures locality-sensitive hash signatures
+     */
+    public void setLshSignatures(LshSignatures lshSignatures) {
+        this.lshSignatures = lshSignatures;
     }
 
     public Class<? extends NaiveApssTask> getInnerAlgorithm() {
@@ -123,11 +391,34 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
     @Override
     protected void initialiseTask() throws Exception {
         super.initialiseTask();
-        executor = new ThreadPoolExecutor(
-                nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        if (journal != null && getNeighbourCollector() != null)
+            throw new IllegalStateException(
+                    "journal can not be used with a neighbour collector");
+        if (!shard.isAll() && getNeighbourCollector() != null)
+            throw new IllegalStateException(
+                    "shard can not be used with a neighbour collector");
+        if (journal != null && getSpillRuns() != null)
+            throw new IllegalStateException(
+                    "journal can not be used with spill runs");
+        if (streaming && symmetric)
+            throw new IllegalStateException(
+                    "streaming can not be used with symmetric sources");
+        if (LshApssTask.class.isAssignableFrom(innerAlgorithm)) {
+            if (lshSignatures == null)
+                lshSignatures = LshSignatures.forMeasure(getMeasure());
+            recallSample = new RecallSample(getK());
+        }
+        if (workStealing) {
+            executor = new ForkJoinPool(nThreads);
+        } else {
+            executor = new ThreadPoolExecutor(
+                    nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        failure.set(null);
         futureQueue = new ArrayDeque<Future<? extends Task>>();
         throttle = new Semaphore(nThreads + 1);
+        memory = memoryBudget > 0 ? new MemoryBudget(memoryBudget) : null;
     }
 
     int nChunks = 0;
@@ -148,51 +439,185 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
             LOG.trace("Initialising chunker A.");
         }
         SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerA =
-                Chunker.newSeekableInstance(getSourceA(), maxChunkSize);
+                streaming
+                ? VectorChunker.newInstance(getSourceA(), Integer.MAX_VALUE, 0)
+                : VectorChunker.newInstance(
+                getSourceA(), maxChunkSize, maxChunkNonZeros);
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Initialising chunker B.");
         }
         SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerB =
-                Chunker.newSeekableInstance(getSourceB(), maxChunkSize);
-
-        int i = 0;
-        while (chunkerA.hasNext()) {
+                VectorChunker.newInstance(
+                getSourceB(), maxChunkSize, maxChunkNonZeros);
+
+        // When the sources and measure are both symmetric only the chunk
+        // pairs on or above the diagonal are run, and the tasks off the
+        // diagonal produce each pair in both directions.
+        final boolean symmetricRun = isSymmetricRun();
+
+        // When collecting nearest neighbours the neighbours of an entry in
+        // source B are complete once it has been compared to every chunk of
+        // source A, so B becomes the outer loop and each B chunk is written
+        // out as soon as all of its tasks are completed.
+        //
+        // When streaming there is only one chunk of A, so it is always the
+        // outer loop. The neighbours of each B chunk are then complete once
+        // its only task is completed, or, if the task is transposed, those of
+        // A once every chunk of B has been streamed.
+        final boolean collecting = getNeighbourCollector() != null;
+        final boolean outerIsB = collecting && !streaming;
+        final SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> outerChunker =
+                outerIsB ? chunkerB : chunkerA;
+        final SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> innerChunker =
+                outerIsB ? chunkerA : chunkerB;
+        final boolean neighboursOfInner =
+                collecting && streaming && !isTransposed();
+        pendingNeighbours = new ArrayDeque<PendingNeighbours>();
+        outstandingTasks = new IntArrayList();
+        taskChunks = new IdentityHashMap<Task, int[]>();
+        taskEntries = new IdentityHashMap<Task, JournalEntry>();
+
+        // When the outer chunk is from source A, its index is built once
+        // and shared by all the tasks comparing against it.
+        final boolean outerIsA = symmetricRun || !outerIsB;
+
+        // Position of each chunk. Without cost ordering the inner positions
+        // are recorded during the first pass, so the symmetric run can seek
+        // directly to the diagonal; otherwise every position is recorded
+        // while estimating the costs, so chunks can be read in any order.
+        final List<S> startsA = new ArrayList<S>();
+        final List<S> startsB = new ArrayList<S>();
+        final List<S> outerStarts = outerIsB ? startsB : startsA;
+        final List<S> innerStarts = outerIsB ? startsA : startsB;
+
+        // When streaming every chunk pair shares the same chunk of A, so
+        // there is nothing to be gained by ordering them.
+        final ChunkCosts costs = costOrdered && !streaming
+                                 ? estimateCosts(chunkerA, chunkerB, startsA,
+                                                 startsB, symmetricRun)
+                                 : null;
+
+        final ShardPlan plan = shard.isAll() ? null
+                               : planShards(chunkerA, chunkerB, symmetricRun);
+
+        // Chunk ids in the order they are read, or null to read them in
+        // sequence.
+        final int[] outerOrder = costs == null ? null
+                                 : outerOrder(costs, outerStarts.size(),
+                                              innerStarts.size(), outerIsA,
+                                              collecting, symmetricRun);
+        if (costs != null)
+            nChunks = innerStarts.size();
+
+        int n = 0;
+        while (outerOrder != null ? n < outerOrder.length
+               : outerChunker.hasNext()) {
+            final int i;
+            if (outerOrder != null) {
+                i = outerOrder[n++];
+                outerChunker.position(outerStarts.get(i - 1));
+            } else {
+                i = ++n;
+            }
             if (LOG.isTraceEnabled()) {
-                LOG.trace("Reading chunk A" + i);
+                LOG.trace("Reading outer chunk " + i);
+            }
+            Chunk<Indexed<SparseDoubleVector>> outerChunk = outerChunker.read();
+            outerChunk.setName(Integer.toString(i));
+
+            final SharedInvertedIndex outerIndex =
+                    outerIsA ? new SharedInvertedIndex() : null;
+
+            final int[] innerOrder = costs == null ? null
+                                     : innerOrder(costs, i, innerStarts.size(),
+                                                  outerIsA, symmetricRun);
+            int m = 0;
+            S restartPos = innerChunker.position();
+            if (innerOrder == null && symmetricRun && i > 1) {
+                m = i - 1;
+                innerChunker.position(innerStarts.get(m));
             }
-            Chunk<Indexed<SparseDoubleVector>> chunkA = chunkerA.read();
-            i++;
-            chunkA.setName(Integer.toString(i));
-
             int j = 0;
-            S restartPos = chunkerB.position();
-            while (chunkerB.hasNext()) {
+            while (innerOrder != null ? m < innerOrder.length
+                   : innerChunker.hasNext()) {
+                if (innerOrder != null) {
+                    j = innerOrder[m++];
+                    innerChunker.position(innerStarts.get(j - 1));
+                } else {
+                    if (i == 1)
+                        innerStarts.add(innerChunker.position());
+                    j = ++m;
+                }
                 if (LOG.isTraceEnabled()) {
-                    LOG.trace("Reading chunk B" + j);
+                    LOG.trace("Reading inner chunk " + j);
+                }
+                Chunk<Indexed<SparseDoubleVector>> innerChunk = innerChunker.read();
+                innerChunk.setName(Integer.toString(j));
+
+                final int chunkIdA = outerIsA ? i : j;
+                final int chunkIdB = outerIsA ? j : i;
+
+                if ((plan != null
+                     && plan.shardOf(chunkIdA, chunkIdB) != shard.getIndex())
+                    || (journal != null
+                        && journal.isCompleted(chunkIdA, chunkIdB))) {
+                    synchronized (this) {
+                        ++queuedCount;
+                        ++completedCount;
+                    }
+                    continue;
                 }
-                Chunk<Indexed<SparseDoubleVector>> chunkB = chunkerB.read();
-                j++;
-                chunkB.setName(Integer.toString(j));
+                final JournalEntry entry = journal == null ? null
+                                           : new JournalEntry(journal, chunkIdA, chunkIdB);
 
                 progress.startAdjusting();
                 progress.setMessage(MessageFormat.format(
-                        "Queueing chunk pair {0,number} and {1,number}", i, j));
+                        "Queueing chunk pair {0,number} and {1,number}",
+                        chunkIdA, chunkIdB));
                 updateProgress();
                 progress.endAdjusting();
 
-                @SuppressWarnings("unchecked")
-                NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
-                task.setSourceA(chunkA.clone());
-                task.setSourceB(chunkB);
-                task.setMeasure(getMeasure());
-                task.setProducatePair(getProducatePair());
-                task.setProcessRecord(getProcessRecord());
-                task.setSink(getSink());
-                task.setStats(getStats());
-                task.setProperty("chunkPair", MessageFormat.format("{0,number} and {1,number}", i, j));
-                queueTask(task);
+                final boolean mirrored = symmetricRun && i != j;
+                final String label = MessageFormat.format(
+                        "{0,number} and {1,number}", chunkIdA, chunkIdB);
+                // The neighbours of the outer chunk's entries depend on this
+                // chunk pair, as do those of the inner chunk when mirrored
+                final int[] dependentChunks = !collecting ? null
+                                              : neighboursOfInner ? new int[]{j}
+                                              : mirrored ? new int[]{i, j}
+                                              : new int[]{i};
+
+                if (workStealing) {
+                    forkChunkPair(outerIsA ? outerChunk : innerChunk,
+                                  outerIsA ? innerChunk : outerChunk,
+                                  mirrored, outerIndex, dependentChunks, entry,
+                                  label);
+                    ++queuedCount;
+                    if (neighboursOfInner)
+                        addPendingNeighbours(new PendingNeighbours(
+                                j, entryIds(innerChunk)));
+                    checkFailure();
+                    continue;
+                }
+
+                NaiveApssTask<Integer> task = newInnerTask(
+                        outerIsA ? outerChunk.clone() : innerChunk,
+                        outerIsA ? innerChunk : outerChunk.clone(),
+                        mirrored, outerIndex, spillRuns(entry), label);
+                if (entry != null)
+                    taskEntries.put(task, entry);
+                if (dependentChunks != null) {
+                    chunksStarted(dependentChunks);
+                    taskChunks.put(task, dependentChunks);
+                }
+                queueTask(task, memory == null ? 0
+                                : footprint(outerIsA ? outerChunk : innerChunk,
+                                            outerIsA ? innerChunk : outerChunk));
                 ++queuedCount;
+                if (neighboursOfInner)
+                    addPendingNeighbours(new PendingNeighbours(
+                            j, entryIds(innerChunk)));
 
 
                 // retrieve the results
@@ -200,15 +625,48 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
             }
 
-            nChunks = j;
-            chunkerB.position(restartPos);
+            if (outerIndex != null)
+                outerIndex.release();
+
+            if (collecting && !neighboursOfInner) {
+                addPendingNeighbours(new PendingNeighbours(
+                        i, entryIds(outerChunk)));
+                flushCompletedNeighbours();
+            }
+
+            if (innerOrder == null)
+                nChunks = j;
+            innerChunker.position(restartPos);
         }
+        if (workStealing) {
+            // Every chunk pair in flight holds a permit, so acquiring all of
+            // them waits for the remaining pairs to complete.
+            throttle.acquire(nThreads + 1);
+            throttle.release(nThreads + 1);
+            checkFailure();
+        }
+
         getExecutor().shutdown();
 
         clearCompleted(true);
 
         getExecutor().awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
 
+        if (recallSample != null)
+            recallSample.addTo(getStats());
+
+        flushCompletedNeighbours();
+        flushNeighbours();
+
+        if (memory != null && LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Peak estimated memory of concurrent chunk pairs was {0} "
+                    + "of the {1} budget; peak heap usage was {2}.",
+                    MiscUtil.humanReadableBytes(memory.getPeakUsed()),
+                    MiscUtil.humanReadableBytes(memory.getCapacity()),
+                    MiscUtil.humanReadableBytes(memory.getPeakHeapUsed())));
+        }
+
         progress.startAdjusting();
         progress.setState(State.COMPLETED);
         progress.setProgressPercent(90);
@@ -216,9 +674,145 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         progress.endAdjusting();
     }
 
+    /**
+     * Profile the chunks of both sources, recording their positions, and
+     * estimate the cost of every chunk pair.
+     */
+    private ChunkCosts estimateCosts(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerA,
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerB,
+            List<S> startsA, List<S> startsB, boolean symmetricRun)
+            throws IOException {
+        progress.startAdjusting();
+        progress.setMessage("Estimating chunk pair costs.");
+        progress.endAdjusting();
+        final ChunkCosts.Profile profileA =
+                ChunkCosts.profile(chunkerA, startsA);
+        final ChunkCosts.Profile profileB;
+        if (symmetricRun) {
+            // Both sources hold the same vectors, so only the positions of
+            // the B chunks are needed.
+            profileB = profileA;
+            chunkStarts(chunkerB, startsB);
+        } else {
+            profileB = ChunkCosts.profile(chunkerB, startsB);
+        }
+        final ChunkCosts costs =
+                ChunkCosts.estimate(profileA, profileB, symmetricRun);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Estimated chunk pair costs: " + costs);
+        }
+        return costs;
+    }
+
+    /**
+     * @return ids of the outer chunks, in the order they are to be read
+     */
+    private static int[] outerOrder(ChunkCosts costs, int outerCount,
+                                    int innerCount, boolean outerIsA,
+                                    boolean collecting, boolean symmetricRun) {
+        final int[] ids = new int[outerCount];
+        final double[] rowCosts = new double[outerCount];
+        for (int i = 1; i <= outerCount; i++) {
+            ids[i - 1] = i;
+            for (int j = symmetricRun ? i : 1; j <= innerCount; j++) {
+                rowCosts[i - 1] += outerIsA ? costs.cost(i, j)
+                                   : costs.cost(j, i);
+            }
+        }
+        // Neighbours are written out in chunk order, so collecting runs keep
+        // the outer chunks in sequence.
+        if (!collecting)
+            ChunkCosts.sortByDecreasingCost(ids, rowCosts);
+        return ids;
+    }
+
+    /**
+     * @return ids of the inner chunks compared with the given outer chunk,
+     *      in the order they are to be queued
+     */
+    private static int[] innerOrder(ChunkCosts costs, int outerId,
+                                    int innerCount, boolean outerIsA,
+                                    boolean symmetricRun) {
+        final int first = symmetricRun ? outerId : 1;
+        final int[] ids = new int[innerCount - first + 1];
+        final double[] pairCosts = new double[innerCount];
+        for (int j = first; j <= innerCount; j++) {
+            ids[j - first] = j;
+            pairCosts[j - 1] = outerIsA ? costs.cost(outerId, j)
+                               : costs.cost(j, outerId);
+        }
+        ChunkCosts.sortByDecreasingCost(ids, pairCosts);
+        return ids;
+    }
+
+    /**
+     * Read the chunks of both sources, to find their costs, and plan the
+     * assignment of chunk pairs to shards. The plan is always built from the
+     * number of non-zero features in each chunk, even when the chunk pair
+     * costs have been estimated for ordering, so every shard of a run
+     * computes the same plan whether or not it orders by cost.
+     */
+    private ShardPlan planShards(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerA,
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerB,
+            boolean symmetricRun) throws IOException {
+        progress.startAdjusting();
+        progress.setMessage("Planning shard " + shard);
+        progress.endAdjusting();
+        final long[] costsA = chunkCosts(chunkerA);
+        final long[] costsB = symmetricRun ? costsA : chunkCosts(chunkerB);
+        final ShardPlan plan = ShardPlan.build(
+                costsA, costsB, symmetricRun, shard.getCount());
+        if (LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Running shard {0} with estimated cost {1} ({2}.)",
+                    shard, plan.getLoad(shard.getIndex()), plan));
+        }
+        return plan;
+    }
+
+    /**
+     * @return number of non-zero features in each chunk
+     */
+    private static <S> long[] chunkCosts(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunker)
+            throws IOException {
+        final S start = chunker.position();
+        final LongArrayList costs = new LongArrayList();
+        while (chunker.hasNext()) {
+            final Chunk<Indexed<SparseDoubleVector>> chunk = chunker.read();
+            long cost = 0;
+            while (chunk.hasNext()) {
+                cost += chunk.read().value().size;
+            }
+            costs.add(cost);
+        }
+        chunker.position(start);
+        return costs.toLongArray();
+    }
+
+    /**
+     * Record the position of every chunk, leaving the chunker at its
+     * original position.
+     */
+    private static <S> void chunkStarts(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunker,
+            List<S> starts) throws IOException {
+        final S start = chunker.position();
+        while (chunker.hasNext()) {
+            starts.add(chunker.position());
+            chunker.read();
+        }
+        chunker.position(start);
+    }
+
     void updateProgress() {
         if (nChunks != 0) {
-            double prog = (completedCount + queuedCount) / (double) (nChunks * nChunks * 2);
+            final double nChunkPairs = isSymmetricRun()
+                                       ? nChunks * (nChunks + 1) / 2.0
+                                       : (double) nChunks * nChunks;
+            double prog = (completedCount + queuedCount) / (nChunkPairs * 2);
             progress.setProgressPercent((int) (100 * prog));
         }
     }
@@ -234,20 +828,23 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
                     while (t.isExceptionTrapped()) {
                         t.throwTrappedException();
                     }
-                    ++completedCount;
+                    taskCompleted(t);
 
                     if (completed == null)
                         completed = new ArrayList<Future<? extends Task>>();
                     completed.add(future);
 
                     progress.startAdjusting();
-                    progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
+                    progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair")
+                            + memoryReport());
                     updateProgress();
                     progress.endAdjusting();
                 }
             }
-            if (completed != null && !completed.isEmpty())
+            if (completed != null && !completed.isEmpty()) {
                 getFutureQueue().removeAll(completed);
+                flushCompletedNeighbours();
+            }
 
         } else {
 
@@ -258,10 +855,11 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
                 while (t.isExceptionTrapped()) {
                     t.throwTrappedException();
                 }
-                ++completedCount;
+                taskCompleted(t);
 
                 progress.startAdjusting();
-                progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
+                progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair")
+                        + memoryReport());
                 updateProgress();
                 progress.endAdjusting();
             }
@@ -271,33 +869,492 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     }
 
+    /**
+     * Record that the neighbours of the given chunks cannot be written out
+     * until another chunk pair has completed.
+     */
+    private synchronized void chunksStarted(int[] chunkIds) {
+        for (int chunkId : chunkIds) {
+            while (outstandingTasks.size() < chunkId)
+                outstandingTasks.add(0);
+            outstandingTasks.set(chunkId - 1,
+                                 outstandingTasks.getInt(chunkId - 1) + 1);
+        }
+    }
+
+    private synchronized void chunksCompleted(int[] chunkIds) {
+        for (int chunkId : chunkIds) {
+            outstandingTasks.set(chunkId - 1,
+                                 outstandingTasks.getInt(chunkId - 1) - 1);
+        }
+    }
+
+    private synchronized void taskCompleted(Task task) throws IOException {
+        ++completedCount;
+        if (taskEntries != null) {
+            final JournalEntry entry = taskEntries.remove(task);
+            if (entry != null)
+                entry.commit();
+        }
+        if (taskChunks == null)
+            return;
+        final int[] chunkIds = taskChunks.remove(task);
+        if (chunkIds != null)
+            chunksCompleted(chunkIds);
+    }
+
+    private synchronized void addPendingNeighbours(PendingNeighbours pending) {
+        pendingNeighbours.add(pending);
+    }
+
+    /**
+     * Write out the neighbours of every chunk for which all tasks have
+     * completed, in the order the chunks were read.
+     */
+    private synchronized void flushCompletedNeighbours() throws IOException {
+        if (pendingNeighbours == null)
+            return;
+        while (!pendingNeighbours.isEmpty()
+               && outstandingTasks.getInt(
+                pendingNeighbours.peek().chunkId - 1) == 0) {
+            final int[] entryIds = pendingNeighbours.poll().entryIds;
+            synchronized (getSink()) {
+                getNeighbourCollector().flush(entryIds, getSink());
+            }
+        }
+    }
+
+    /**
+     * @return estimated bytes of heap required to compare the given chunks
+     */
+    private long footprint(Chunk<Indexed<SparseDoubleVector>> chunkA,
+                           Chunk<Indexed<SparseDoubleVector>> chunkB)
+            throws IOException {
+        final Chunk<Indexed<SparseDoubleVector>> copyA = chunkA.clone();
+        long vectorsA = 0;
+        long nonZerosA = 0;
+        while (copyA.hasNext()) {
+            nonZerosA += copyA.read().value().size;
+            ++vectorsA;
+        }
+        final Chunk<Indexed<SparseDoubleVector>> copyB = chunkB.clone();
+        long vectorsB = 0;
+        long nonZerosB = 0;
+        while (copyB.hasNext()) {
+            nonZerosB += copyB.read().value().size;
+            ++vectorsB;
+        }
+        return MemoryBudget.estimateFootprint(
+                vectorsA, nonZerosA, vectorsB, nonZerosB, getPairBufferSize());
+    }
+
+    /**
+     * @return the estimated memory held by the running chunk pairs compared
+     *      with the heap actually used, or an empty string when there is no
+     *      memory budget
+     */
+    private String memoryReport() {
+        if (memory == null)
+            return "";
+        return MessageFormat.format(
+                " (estimated {0} of {1} budget in use; heap used {2})",
+                MiscUtil.humanReadableBytes(memory.getUsed()),
+                MiscUtil.humanReadableBytes(memory.getCapacity()),
+                MiscUtil.humanReadableBytes(MemoryBudget.heapUsed()));
+    }
+
+    private static int[] entryIds(Chunk<Indexed<SparseDoubleVector>> chunk)
+            throws IOException {
+        final Chunk<Indexed<SparseDoubleVector>> copy = chunk.clone();
+        final IntArrayList ids = new IntArrayList();
+        while (copy.hasNext()) {
+            ids.add(copy.read().key());
+        }
+        final int[] result = ids.toIntArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * The entries of a chunk whose neighbours are waiting to be written.
+     */
+    private static final class PendingNeighbours {
+
+        final int chunkId;
+
+        final int[] entryIds;
+
+        PendingNeighbours(int chunkId, int[] entryIds) {
+            this.chunkId = chunkId;
+            this.entryIds = entryIds;
+        }
+
+    }
+
+    /**
+     * A chunk pair whose output is being written to a segment of the journal.
+     */
+    private static final class JournalEntry {
+
+        final AllPairsJournal journal;
+
+        final int chunkIdA;
+
+        final int chunkIdB;
+
+        final SortedPairRuns segment;
+
+        JournalEntry(AllPairsJournal journal, int chunkIdA, int chunkIdB) {
+            this.journal = journal;
+            this.chunkIdA = chunkIdA;
+            this.chunkIdB = chunkIdB;
+            this.segment = journal.newSegment();
+        }
+
+        void commit() throws IOException {
+            journal.commit(chunkIdA, chunkIdB, segment);
+        }
+
+    }
+
+    private SortedPairRuns spillRuns(JournalEntry entry) {
+        return entry != null ? entry.segment : getSpillRuns();
+    }
+
+    /**
+     * Instantiate the inner algorithm to compare the given sources, with the
+     * same parameterisation as this task.
+     */
+    private NaiveApssTask<Integer> newInnerTask(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> sourceA,
+            SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> sourceB,
+            boolean mirrored, SharedInvertedIndex sharedIndex,
+            SortedPairRuns spillRuns, String label)
+            throws InstantiationException, IllegalAccessException {
+        @SuppressWarnings("unchecked")
+        NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
+        task.setSourceA(sourceA);
+        task.setSourceB(sourceB);
+        task.setMeasure(getMeasure());
+        task.setProducatePair(getProducatePair());
+        task.setMinSimilarity(getMinSimilarity());
+        task.setProcessRecord(getProcessRecord());
+        task.setNeighbourCollector(getNeighbourCollector());
+        task.setSpillRuns(spillRuns);
+        // Tables covering the whole of both sources are built once, during
+        // initialisation, and shared by every inner task.
+        task.setPrecalcs(getPrecalcA(), getPrecalcB());
+        task.setMirrored(mirrored);
+        task.setTransposed(isTransposed());
+        if (task instanceof LshApssTask) {
+            ((LshApssTask<Integer>) task).setSignatures(lshSignatures);
+            ((LshApssTask<Integer>) task).setRecallSample(recallSample);
+        }
+        if (sharedIndex != null) {
+            sharedIndex.retain();
+            task.setSharedIndex(sharedIndex);
+        }
+        task.setSink(getSink());
+        task.setStats(getStats());
+        task.setProperty("chunkPair", label);
+        return task;
+    }
+
+    /**
+     * Queue a chunk pair on the fork/join pool. The entries of chunk B are
+     * split recursively into ranges of similar estimated cost, so that idle
+     * workers can steal part of an expensive chunk pair. The root action
+     * reports its own completion, rather than being polled.
+     * <p/>
+     * Every range is compared against the whole of chunk A, so when no index
+     * of chunk A is shared between chunk pairs, one is created for this
+     * chunk pair alone; otherwise each range would rebuild it.
+     */
+    private void forkChunkPair(
+            Chunk<Indexed<SparseDoubleVector>> chunkA,
+            Chunk<Indexed<SparseDoubleVector>> chunkB,
+            boolean mirrored, SharedInvertedIndex sharedIndex,
+            int[] dependentChunks, JournalEntry entry, String label)
+            throws IOException, InterruptedException {
+        final long footprint = memory == null ? 0 : footprint(chunkA, chunkB);
+
+        throttle.acquire();
+        if (memory != null) {
+            try {
+                memory.acquire(footprint);
+            } catch (InterruptedException e) {
+                throttle.release();
+                throw e;
+            }
+        }
+
+        // The pair holds a reference to the index until it completes
+        final SharedInvertedIndex pairIndex;
+        if (sharedIndex != null) {
+            sharedIndex.retain();
+            pairIndex = sharedIndex;
+        } else {
+            pairIndex = new SharedInvertedIndex();
+        }
+        boolean started = false;
+        try {
+            final ChunkPair pair = new ChunkPair(
+                    chunkA.clone(), readAll(chunkB), mirrored, pairIndex,
+                    dependentChunks, entry, label, footprint);
+            if (dependentChunks != null)
+                chunksStarted(dependentChunks);
+            started = true;
+            ((ForkJoinPool) getExecutor()).execute(
+                    new ChunkPairAction(pair, 0, pair.entriesB.size(), true));
+        } catch (IOException e) {
+            abandonChunkPair(pairIndex, started ? dependentChunks : null,
+                             footprint);
+            throw e;
+        } catch (RuntimeException e) {
+            abandonChunkPair(pairIndex, started ? dependentChunks : null,
+                             footprint);
+            throw e;
+        }
+    }
+
+    /**
+     * Undo the reservations made for a chunk pair that could not be queued.
+     */
+    private void abandonChunkPair(SharedInvertedIndex pairIndex,
+                                  int[] dependentChunks, long footprint) {
+        pairIndex.release();
+        if (dependentChunks != null)
+            chunksCompleted(dependentChunks);
+        release(footprint);
+    }
+
+    private static List<Indexed<SparseDoubleVector>> readAll(
+            Chunk<Indexed<SparseDoubleVector>> chunk) throws IOException {
+        final Chunk<Indexed<SparseDoubleVector>> copy = chunk.clone();
+        final List<Indexed<SparseDoubleVector>> result =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        while (copy.hasNext()) {
+            result.add(copy.read());
+        }
+        return result;
+    }
+
+    /**
+     * Called by the root action of each chunk pair, once all of its ranges
+     * have completed (successfully or otherwise.)
+     */
+    private void chunkPairCompleted(ChunkPair pair) {
+        try {
+            synchronized (this) {
+                ++completedCount;
+            }
+            // Only commit the chunk pair if none of its ranges failed
+            if (pair.entry != null && failure.get() == null)
+                pair.entry.commit();
+            if (pair.dependentChunks != null) {
+                chunksCompleted(pair.dependentChunks);
+                flushCompletedNeighbours();
+            }
+
+            progress.startAdjusting();
+            progress.setMessage("Completed chunk pair " + pair.label
+                    + memoryReport());
+            updateProgress();
+            progress.endAdjusting();
+        } catch (Exception e) {
+            failed(e);
+        } finally {
+            pair.sharedIndex.release();
+            if (memory != null)
+                memory.release(pair.footprint);
+            throttle.release();
+        }
+    }
+
+    private void failed(Exception e) {
+        failure.compareAndSet(null, e);
+    }
+
+    /**
+     * Throw the first exception raised by a fork/join action, if any.
+     */
+    private void checkFailure() throws Exception {
+        final Exception e = failure.get();
+        if (e != null)
+            throw e;
+    }
+
+    /**
+     * The parameters of a chunk pair shared by all the ranges it is split
+     * into.
+     */
+    private static final class ChunkPair {
+
+        final Chunk<Indexed<SparseDoubleVector>> chunkA;
+
+        final List<Indexed<SparseDoubleVector>> entriesB;
+
+        /**
+         * Cumulative estimated cost of the B entries, where the cost of an
+         * entry is its number of non-zero features; the cost of the range
+         * [from, to) is costs[to] - costs[from].
+         */
+        final long[] costs;
+
+        final boolean mirrored;
+
+        final SharedInvertedIndex sharedIndex;
+
+        final int[] dependentChunks;
+
+        final JournalEntry entry;
+
+        final String label;
+
+        /**
+         * Estimated bytes of heap held while the chunk pair is running.
+         */
+        final long footprint;
+
+        ChunkPair(Chunk<Indexed<SparseDoubleVector>> chunkA,
+                  List<Indexed<SparseDoubleVector>> entriesB,
+                  boolean mirrored, SharedInvertedIndex sharedIndex,
+                  int[] dependentChunks, JournalEntry entry, String label,
+                  long footprint) {
+            this.chunkA = chunkA;
+            this.entriesB = entriesB;
+            this.mirrored = mirrored;
+            this.sharedIndex = sharedIndex;
+            this.dependentChunks = dependentChunks;
+            this.entry = entry;
+            this.label = label;
+            this.footprint = footprint;
+            costs = new long[entriesB.size() + 1];
+            for (int i = 0; i < entriesB.size(); i++) {
+                costs[i + 1] = costs[i] + entriesB.get(i).value().size;
+            }
+        }
+
+        long cost(int from, int to) {
+            return costs[to] - costs[from];
+        }
+
+        /**
+         * @return index that divides the range [from, to) into two non-empty
+         *      ranges of roughly equal cost
+         */
+        int split(int from, int to) {
+            final long target = costs[from] + cost(from, to) / 2;
+            int mid = Arrays.binarySearch(costs, from + 1, to, target);
+            if (mid < 0)
+                mid = -mid - 1;
+            return Math.max(from + 1, Math.min(to - 1, mid));
+        }
+
+    }
+
+    /**
+     * Compares a range of the B entries of a chunk pair with all of chunk A,
+     * forking into two halves while the range is estimated to be expensive.
+     */
+    private final class ChunkPairAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkPair pair;
+
+        private final int from;
+
+        private final int to;
+
+        private final boolean root;
+
+        ChunkPairAction(ChunkPair pair, int from, int to, boolean root) {
+            this.pair = pair;
+            this.from = from;
+            this.to = to;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (failure.get() != null)
+                    return;
+                if (to - from > 1 && pair.cost(from, to) > forkThreshold) {
+                    final int mid = pair.split(from, to);
+                    invokeAll(new ChunkPairAction(pair, from, mid, false),
+                              new ChunkPairAction(pair, mid, to, false));
+                } else {
+                    final NaiveApssTask<Integer> task = newInnerTask(
+                            pair.chunkA.clone(),
+                            ObjectIO.asSource(pair.entriesB.subList(from, to)),
+                            pair.mirrored, pair.sharedIndex,
+                            spillRuns(pair.entry), pair.label);
+                    task.run();
+                    while (task.isExceptionTrapped()) {
+                        task.throwTrappedException();
+                    }
+                }
+            } catch (Exception e) {
+                failed(e);
+            } finally {
+                if (root)
+                    chunkPairCompleted(pair);
+            }
+        }
+
+    }
+
     @Override
     protected void finaliseTask() throws Exception {
+        pendingNeighbours = null;
+        outstandingTasks = null;
+        taskChunks = null;
+        taskEntries = null;
+        recallSample = null;
         if (getExecutor() != null) {
             getExecutor().shutdownNow();
         }
         super.finaliseTask();
     }
 
-    protected <T extends Task> Future<T> queueTask(final T task) throws InterruptedException {
+    /**
+     * Queue the task once a thread is available for it, and once its
+     * estimated footprint is available within the memory budget (if any.)
+     *
+     * @param task task to queue
+     * @param footprint estimated bytes of heap held by the task while it runs
+     */
+    protected <T extends Task> Future<T> queueTask(
+            final T task, final long footprint) throws InterruptedException {
         if (task == null) {
             throw new NullPointerException("task is null");
         }
 
         throttle.acquire();
+        if (memory != null) {
+            try {
+                memory.acquire(footprint);
+            } catch (InterruptedException e) {
+                throttle.release();
+                throw e;
+            }
+        }
         final Runnable wrapper = new Runnable() {
 
             @Override
             public void run() {
                 try {
                     progress.startAdjusting();
-                    progress.setMessage("Starting chunk pair " + task.getProperty("chunkPair"));
+                    progress.setMessage("Starting chunk pair " + task.getProperty("chunkPair")
+                            + memoryReport());
                     updateProgress();
                     progress.endAdjusting();
 
                     task.run();
                 } finally {
-                    throttle.release();
+                    release(footprint);
                 }
             }
 
@@ -308,14 +1365,20 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
             getFutureQueue().offer(future);
             return future;
         } catch (RejectedExecutionException e) {
-            throttle.release();
+            release(footprint);
             throw e;
         } catch (RuntimeException e) {
-            throttle.release();
+            release(footprint);
             throw e;
         }
     }
 
+    private void release(long footprint) {
+        if (memory != null)
+            memory.release(footprint);
+        throttle.release();
+    }
+
     public final int getNumThreads() {
         return nThreads;
     }
@@ -347,7 +1410,17 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
                 add("executor", executor).
                 add("futureQueue", futureQueue).
                 add("maxChunkSize", maxChunkSize).
-                add("throttle", throttle);
+                add("maxChunkNonZeros", maxChunkNonZeros).
+                add("costOrdered", costOrdered).
+                add("memoryBudget", memoryBudget).
+                add("symmetric", symmetric).
+                add("workStealing", workStealing).
+                add("forkThreshold", forkThreshold).
+                add("journal", journal).
+                add("shard", shard).
+                add("lshSignatures", lshSignatures).
+                add("throttle", throttle).
+                add("memory", memory);
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.Chunk;
+import uk.ac.susx.mlcl.lib.io.Chunker;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Divides a source of vectors into chunks that are closed either when they
+ * reach a maximum number of entries, or when the total number of non-zero
+ * features in their vectors reaches a budget.
+ * <p/>
+ * Both the time taken to compare a chunk, and the memory it occupies, are
+ * roughly proportional to its number of non-zeros rather than its number of
+ * entries. On Zipfian data a few entries hold most of the non-zeros, so
+ * chunks of a fixed number of entries vary wildly in cost; a non-zero
+ * budget keeps them comparable. (Each non-zero occupies about 12 bytes, as
+ * an int key and a double value, so a memory budget can be converted to a
+ * non-zero budget.)
+ * <p/>
+ * Every chunk contains at least one entry, and a chunk is closed as soon as
+ * its total reaches the budget, so a chunk may exceed the budget by the
+ * size of its last vector.
+ *
+ * @param <S> Type of "tell" object used to seek into the data source.
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class VectorChunker<S>
+        implements SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> {
+
+    private final SeekableObjectSource<Indexed<SparseDoubleVector>, S> inner;
+
+    private final int maxChunkSize;
+
+    private final long maxChunkNonZeros;
+
+    private VectorChunker(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> inner,
+            int maxChunkSize, long maxChunkNonZeros) {
+        this.inner = inner;
+        this.maxChunkSize = maxChunkSize;
+        this.maxChunkNonZeros = maxChunkNonZeros;
+    }
+
+    /**
+     * @param source vectors to divide into chunks
+     * @param maxChunkSize maximum number of entries in each chunk
+     * @param maxChunkNonZeros budget of non-zero features in each chunk, or
+     *      0 for chunks limited only by their number of entries
+     * @return source of chunks
+     */
+    static <S> SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> newInstance(
+            SeekableObjectSource<Indexed<SparseDoubleVector>, S> source,
+            int maxChunkSize, long maxChunkNonZeros) {
+        Checks.checkNotNull("source", source);
+        Checks.checkRangeIncl("maxChunkSize", maxChunkSize,
+                              1, Integer.MAX_VALUE);
+        Checks.checkRangeIncl("maxChunkNonZeros", maxChunkNonZeros,
+                              0, Long.MAX_VALUE);
+        return maxChunkNonZeros == 0
+               ? Chunker.newSeekableInstance(source, maxChunkSize)
+               : new VectorChunker<S>(source, maxChunkSize, maxChunkNonZeros);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return inner.hasNext();
+    }
+
+    @Override
+    public Chunk<Indexed<SparseDoubleVector>> read() throws IOException {
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        long nonZeros = 0;
+        while (inner.hasNext() && entries.size() < maxChunkSize
+                && nonZeros < maxChunkNonZeros) {
+            final Indexed<SparseDoubleVector> entry = inner.read();
+            entries.add(entry);
+            nonZeros += entry.value().size;
+        }
+        return new Chunk<Indexed<SparseDoubleVector>>(entries);
+    }
+
+    @Override
+    public S position() throws IOException {
+        return inner.position();
+    }
+
+    @Override
+    public void position(S offset) throws IOException {
+        inner.position(offset);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("inner", inner).
+                add("maxChunkSize", maxChunkSize).
+                add("maxChunkNonZeros", maxChunkNonZeros).
+                toString();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.tasks.Shard;
+import uk.ac.susx.mlcl.byblo.tasks.ShardHeader;
+import uk.ac.susx.mlcl.byblo.tasks.SortedPairRuns;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AllPairsMergeCommandTest {
+
+    private static final String FINGERPRINT = "events=1 measure=Lin";
+
+    @Test
+    public void testCompleteShards() throws Exception {
+        System.out.println("Testing shard headers of a complete search");
+        final List<File> files = Arrays.asList(
+                shardFile("b", 2, 3, FINGERPRINT),
+                shardFile("a", 1, 3, FINGERPRINT),
+                shardFile("c", 3, 3, FINGERPRINT));
+        final List<ShardHeader> headers =
+                AllPairsMergeCommand.readShardHeaders(files);
+        assertEquals(3, headers.size());
+        assertEquals(new Shard(2, 3), headers.get(0).getShard());
+        assertEquals(new Shard(1, 3), headers.get(1).getShard());
+        assertEquals(new Shard(3, 3), headers.get(2).getShard());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingShard() throws Exception {
+        System.out.println("Testing shard headers with a missing shard");
+        AllPairsMergeCommand.readShardHeaders(Arrays.asList(
+                shardFile("a", 1, 3, FINGERPRINT),
+                shardFile("c", 3, 3, FINGERPRINT)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedShard() throws Exception {
+        System.out.println("Testing shard headers with a repeated shard");
+        AllPairsMergeCommand.readShardHeaders(Arrays.asList(
+                shardFile("a", 1, 2, FINGERPRINT),
+                shardFile("b", 2, 2, FINGERPRINT),
+                shardFile("c", 2, 2, FINGERPRINT)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentCounts() throws Exception {
+        System.out.println("Testing shard headers with different counts");
+        AllPairsMergeCommand.readShardHeaders(Arrays.asList(
+                shardFile("a", 1, 2, FINGERPRINT),
+                shardFile("b", 2, 3, FINGERPRINT)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentSearches() throws Exception {
+        System.out.println("Testing shard headers from different searches");
+        AllPairsMergeCommand.readShardHeaders(Arrays.asList(
+                shardFile("a", 1, 2, FINGERPRINT),
+                shardFile("b", 2, 2, FINGERPRINT + " topK=5")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotShardFile() throws Exception {
+        System.out.println("Testing shard headers of a file without one");
+        final File file = new File(TEST_TMP_DIR, "merge-plain.run");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[16]);
+        } finally {
+            out.close();
+        }
+        AllPairsMergeCommand.readShardHeaders(Arrays.asList(file));
+    }
+
+    private static File shardFile(String name, int number, int count,
+                                  String fingerprint) throws IOException {
+        final File file = new File(TEST_TMP_DIR, "merge-" + name + ".run");
+        ((Closeable) SortedPairRuns.openRunSink(
+                file, new ShardHeader(new Shard(number, count), fingerprint))).
+                close();
+        return file;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerator;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ReenumerateCommandTest {
+
+    private static final String SUBJECT = ReenumerateCommand.class.getName();
+
+    @Test
+    public void testReenumerateFeatures() throws Exception {
+        System.out.println("Testing " + SUBJECT + ": renumbering features.");
+        testReenumerate("features", false);
+    }
+
+    @Test
+    public void testReenumerateEntriesAndFeatures() throws Exception {
+        System.out.println("Testing " + SUBJECT + ": renumbering entries and features.");
+        testReenumerate("entries-features", true);
+    }
+
+    private void testReenumerate(String name, boolean entries) throws Exception {
+        final File entriesOut = new File(TEST_OUTPUT_DIR,
+                                         TEST_FRUIT_INDEXED_ENTRIES.getName() + "." + name);
+        final File featuresOut = new File(TEST_OUTPUT_DIR,
+                                          TEST_FRUIT_INDEXED_FEATURES.getName() + "." + name);
+        final File eventsOut = new File(TEST_OUTPUT_DIR,
+                                        TEST_FRUIT_INDEXED_EVENTS.getName() + "." + name);
+        final File entryIndexOut = new File(TEST_OUTPUT_DIR,
+                                            TEST_FRUIT_ENTRY_INDEX.getName() + "." + name);
+        final File featureIndexOut = new File(TEST_OUTPUT_DIR,
+                                              TEST_FRUIT_FEATURE_INDEX.getName() + "." + name);
+        entriesOut.delete();
+        featuresOut.delete();
+        eventsOut.delete();
+        entryIndexOut.delete();
+        featureIndexOut.delete();
+
+        final DoubleEnumerating inIdx = new DoubleEnumeratingDeligate(
+                EnumeratorType.Memory, true, true,
+                TEST_FRUIT_ENTRY_INDEX, TEST_FRUIT_FEATURE_INDEX);
+
+        ReenumerateCommand cmd = new ReenumerateCommand(
+                TEST_FRUIT_INDEXED_ENTRIES, TEST_FRUIT_INDEXED_FEATURES,
+                TEST_FRUIT_INDEXED_EVENTS, entriesOut, featuresOut, eventsOut,
+                DEFAULT_CHARSET, inIdx);
+        cmd.setReenumerateEntries(entries);
+        cmd.setOutputEntryEnumeratorFile(entryIndexOut);
+        cmd.setOutputFeatureEnumeratorFile(featureIndexOut);
+        cmd.setTempFiles(new TempFileFactory(TEST_TMP_DIR));
+        cmd.runCommand();
+
+        final DoubleEnumerating outIdx = new DoubleEnumeratingDeligate(
+                EnumeratorType.Memory, true, true,
+                entries ? entryIndexOut : TEST_FRUIT_ENTRY_INDEX,
+                featureIndexOut);
+
+        // The events must be unchanged when viewed as strings
+        assertEquals(readEventStrings(TEST_FRUIT_INDEXED_EVENTS, inIdx),
+                     readEventStrings(eventsOut, outIdx));
+
+        final List<Weighted<TokenPair>> events = readEvents(eventsOut, outIdx);
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(TokenPair.indexOrder().compare(
+                    events.get(i - 1).record(), events.get(i).record()) < 0);
+        }
+
+        final Int2IntMap entryDocFreqs = new Int2IntOpenHashMap();
+        final Int2IntMap featureDocFreqs = new Int2IntOpenHashMap();
+        for (Weighted<TokenPair> event : events) {
+            entryDocFreqs.put(event.record().id1(),
+                              entryDocFreqs.get(event.record().id1()) + 1);
+            featureDocFreqs.put(event.record().id2(),
+                                featureDocFreqs.get(event.record().id2()) + 1);
+        }
+
+        assertDescendingFrequency(
+                BybloIO.openFeaturesSource(featuresOut, DEFAULT_CHARSET, outIdx),
+                featureDocFreqs);
+        if (entries) {
+            assertDescendingFrequency(
+                    BybloIO.openEntriesSource(entriesOut, DEFAULT_CHARSET, outIdx),
+                    entryDocFreqs);
+        }
+
+        inIdx.closeEnumerator();
+        outIdx.closeEnumerator();
+    }
+
+    private static void assertDescendingFrequency(
+            WeightedTokenSource source, Int2IntMap docFreqs)
+            throws IOException {
+        int prevId = -1;
+        int prevDocFreq = Integer.MAX_VALUE;
+        while (source.hasNext()) {
+            final Weighted<Token> record = source.read();
+            final int id = record.record().id();
+            assertTrue(id > prevId);
+            if (id != FilterCommand.FILTERED_ID) {
+                assertTrue(docFreqs.get(id) <= prevDocFreq);
+                prevDocFreq = docFreqs.get(id);
+            }
+            prevId = id;
+        }
+        source.close();
+    }
+
+    private static List<Weighted<TokenPair>> readEvents(
+            File file, DoubleEnumerating idx) throws IOException {
+        final List<Weighted<TokenPair>> events =
+                new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairSource source = BybloIO.openEventsSource(
+                file, DEFAULT_CHARSET, idx);
+        while (source.hasNext())
+            events.add(source.read());
+        source.close();
+        return events;
+    }
+
+    private static Set<String> readEventStrings(
+            File file, DoubleEnumerating idx) throws IOException {
+        final Enumerator<String> entryEnumerator = idx.getEntryEnumerator();
+        final Enumerator<String> featureEnumerator = idx.getFeatureEnumerator();
+        final Set<String> strings = new HashSet<String>();
+        for (Weighted<TokenPair> event : readEvents(file, idx)) {
+            strings.add(entryEnumerator.valueOf(event.record().id1())
+                    + "\t" + featureEnumerator.valueOf(event.record().id2())
+                    + "\t" + event.weight());
+        }
+        return strings;
+    }
+
+}
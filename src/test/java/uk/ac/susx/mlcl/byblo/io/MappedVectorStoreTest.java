@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedVectorStoreTest {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        System.out.println("Testing write and read of mapped vector store");
+        final List<Indexed<SparseDoubleVector>> expected = randomVectors(200);
+        final File file = new File(TEST_OUTPUT_DIR, "vectors.bin");
+
+        assertEquals(expected.size(),
+                     MappedVectorStore.write(ObjectIO.asSource(expected), file));
+        final MappedVectorStore store = MappedVectorStore.open(file);
+        assertEquals(expected.size(), store.size());
+
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> source =
+                store.openSource();
+        final List<Indexed<SparseDoubleVector>> actual =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        while (source.hasNext())
+            actual.add(source.read());
+        assertVectorsEqual(expected, actual);
+
+        // Seek back part way through, while another source is also reading
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> other =
+                store.openSource();
+        source.position(150);
+        other.position(10);
+        for (int i = 0; i < 50; i++) {
+            assertVectorsEqual(expected.subList(150 + i, 151 + i),
+                               Arrays.asList(source.read()));
+            assertVectorsEqual(expected.subList(10 + i, 11 + i),
+                               Arrays.asList(other.read()));
+        }
+        assertFalse(source.hasNext());
+        assertEquals(60, (int) other.position());
+
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        System.out.println("Testing empty mapped vector store");
+        final File file = new File(TEST_OUTPUT_DIR, "vectors-empty.bin");
+        MappedVectorStore.write(ObjectIO.asSource(
+                new ArrayList<Indexed<SparseDoubleVector>>()), file);
+        final MappedVectorStore store = MappedVectorStore.open(file);
+        assertEquals(0, store.size());
+        assertFalse(store.openSource().hasNext());
+        assertTrue(file.delete());
+    }
+
+    private static List<Indexed<SparseDoubleVector>> randomVectors(int n) {
+        final Random rand = new Random(0);
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id = 0; id < n; id++) {
+            SparseDoubleVector v = new SparseDoubleVector(1000);
+            for (int i = rand.nextInt(50); i > 0; i--)
+                v.set(rand.nextInt(1000), rand.nextDouble());
+            v.compact();
+            vectors.add(new Indexed<SparseDoubleVector>(id * 3, v));
+        }
+        return vectors;
+    }
+
+    private static void assertVectorsEqual(
+            List<Indexed<SparseDoubleVector>> expected,
+            List<Indexed<SparseDoubleVector>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final SparseDoubleVector e = expected.get(i).value();
+            final SparseDoubleVector a = actual.get(i).value();
+            assertEquals(expected.get(i).key(), actual.get(i).key());
+            assertEquals(e.cardinality, a.cardinality);
+            assertEquals(e.size, a.size);
+            assertEquals(e.sum, a.sum, 0);
+            assertArrayEquals(Arrays.copyOf(e.keys, e.size),
+                              Arrays.copyOf(a.keys, a.size));
+            for (int j = 0; j < e.size; j++)
+                assertEquals(e.values[j], a.values[j], 0);
+        }
+    }
+
+}
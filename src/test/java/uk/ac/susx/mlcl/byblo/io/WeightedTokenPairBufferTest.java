@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class WeightedTokenPairBufferTest {
+
+    @Test
+    public void testSortIndex() {
+        System.out.println("Testing sort of pair buffer into index order");
+        testSort(WeightedTokenPairBuffer.Order.INDEX,
+                 new Comparator<Weighted<TokenPair>>() {
+
+            @Override
+            public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                int c = a.record().id1() - b.record().id1();
+                return c != 0 ? c : a.record().id2() - b.record().id2();
+            }
+
+        });
+    }
+
+    @Test
+    public void testSortNeighbours() {
+        System.out.println("Testing sort of pair buffer into neighbours order");
+        testSort(WeightedTokenPairBuffer.Order.NEIGHBOURS,
+                 new Comparator<Weighted<TokenPair>>() {
+
+            @Override
+            public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                int c = a.record().id1() - b.record().id1();
+                if (c != 0)
+                    return c;
+                c = Double.compare(b.weight(), a.weight());
+                return c != 0 ? c : a.record().id2() - b.record().id2();
+            }
+
+        });
+    }
+
+    private static void testSort(WeightedTokenPairBuffer.Order order,
+                                 Comparator<Weighted<TokenPair>> comparator) {
+        final Random rand = new Random(0);
+        // Start small so the buffer must grow
+        final WeightedTokenPairBuffer instance = new WeightedTokenPairBuffer(1);
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 5000; i++) {
+            // Second ids are unique, so both orders are total
+            final int id1 = rand.nextInt(50);
+            final double weight = rand.nextInt(10);
+            instance.add(id1, i, weight);
+            expected.add(new Weighted<TokenPair>(
+                    new TokenPair(id1, i), weight));
+        }
+        assertEquals(expected.size(), instance.size());
+
+        instance.sort(order);
+        Collections.sort(expected, comparator);
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).record().id1(), instance.id1(i));
+            assertEquals(expected.get(i).record().id2(), instance.id2(i));
+            assertEquals(expected.get(i).weight(), instance.weight(i), 0);
+        }
+
+        instance.clear();
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void testPredicates() {
+        System.out.println("Testing primitive pair predicates");
+        List<WeightedTokenPairPredicate> components =
+                new ArrayList<WeightedTokenPairPredicate>();
+        components.add(WeightedTokenPairPredicate.weightAtLeast(0.2));
+        components.add(WeightedTokenPairPredicate.weightAtMost(0.8));
+        components.add(WeightedTokenPairPredicate.notIdentity());
+        final WeightedTokenPairPredicate instance =
+                WeightedTokenPairPredicate.and(components);
+
+        assertTrue(instance.apply(1, 2, 0.5));
+        assertFalse(instance.apply(1, 1, 0.5));
+        assertFalse(instance.apply(1, 2, 0.1));
+        assertFalse(instance.apply(1, 2, 0.9));
+        assertTrue(instance.apply(new Weighted<TokenPair>(
+                new TokenPair(1, 2), 0.2)));
+
+        final WeightedTokenPairPredicate adapted = WeightedTokenPairPredicate.of(
+                Weighted.<TokenPair>greaterThan(0.5));
+        assertTrue(adapted.apply(1, 1, 0.6));
+        assertFalse(adapted.apply(1, 1, 0.5));
+        assertSame(instance, WeightedTokenPairPredicate.of(instance));
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.byblo.measures.RandomVectors.*;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class BatchProximityTest {
+
+    private static final int CARDINALITY = 500;
+
+    @Test
+    public void testJaccard() {
+        System.out.println("Testing batched Jaccard");
+        testMatchesShared(new Jaccard());
+    }
+
+    @Test
+    public void testLee() {
+        System.out.println("Testing batched Lee");
+        testMatchesShared(new Lee());
+    }
+
+    @Test
+    public void testLpInfinity() {
+        System.out.println("Testing batched Lp with p = infinity");
+        Lp lp = new Lp();
+        lp.setP(Double.POSITIVE_INFINITY);
+        testMatchesShared(lp);
+    }
+
+    @Test
+    public void testCrMi() {
+        System.out.println("Testing batched CrMi");
+        testMatchesShared(withFrequencies(new CrMi()));
+    }
+
+    @Test
+    public void testConfusion() {
+        System.out.println("Testing batched Confusion");
+        testMatchesShared(withFrequencies(new Confusion()));
+    }
+
+    @Test
+    public void testReversed() {
+        System.out.println("Testing batched ReversedProximity");
+        testMatchesShared(new ReversedProximity(withFrequencies(new Lin())));
+        testMatchesShared(new ReversedProximity(new Jensen()));
+    }
+
+    private static void testMatchesShared(BatchProximity prox) {
+        final Random rand = new Random(0);
+        for (int trial = 0; trial < 20; trial++) {
+            final SparseDoubleVector fixed =
+                    vector(rand, 1 + rand.nextInt(100), CARDINALITY);
+            final int count = 1 + rand.nextInt(30);
+            final SparseDoubleVector[] others = new SparseDoubleVector[count];
+            for (int i = 0; i < count; i++)
+                others[i] = vector(rand, 1 + rand.nextInt(200), CARDINALITY);
+
+            final double[] out = new double[count];
+            prox.sharedMany(fixed, others, count, out);
+            for (int i = 0; i < count; i++)
+                assertEquals(prox.shared(fixed, others[i]), out[i], 0);
+
+            prox.sharedMany(others, fixed, count, out);
+            for (int i = 0; i < count; i++)
+                assertEquals(prox.shared(others[i], fixed), out[i], 0);
+        }
+    }
+
+    private static <T extends AbstractMIProximity> T withFrequencies(T prox) {
+        final Random rand = new Random(1);
+        final double[] frequencies = new double[CARDINALITY];
+        double sum = 0;
+        for (int i = 0; i < CARDINALITY; i++) {
+            frequencies[i] = 1 + rand.nextInt(100);
+            sum += frequencies[i];
+        }
+        prox.setFeatureFrequencies(frequencies);
+        prox.setFeatureFrequencySum(sum);
+        prox.setOccuringFeatureCount(CARDINALITY);
+        return prox;
+    }
+}
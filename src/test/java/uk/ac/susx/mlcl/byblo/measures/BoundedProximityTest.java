@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.byblo.measures.RandomVectors.*;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class BoundedProximityTest {
+
+    private static final int CARDINALITY = 500;
+
+    @Test
+    public void testJensen() {
+        System.out.println("Testing bounded Jensen");
+        testBounded(new Jensen());
+    }
+
+    @Test
+    public void testJensenFiltered() {
+        System.out.println("Testing bounded Jensen with a filtered feature");
+        final Jensen jensen = new Jensen();
+        jensen.setFilteredFeatureId(3);
+        testBounded(jensen);
+    }
+
+    @Test
+    public void testLp() {
+        for (double p : new double[]{0, 0.5, 1, 2, 3,
+                                     Double.POSITIVE_INFINITY}) {
+            System.out.println("Testing bounded Lp with p = " + p);
+            final Lp lp = new Lp();
+            lp.setP(p);
+            testBounded(lp);
+            lp.setFilteredFeatureId(3);
+            testBounded(lp);
+        }
+    }
+
+    @Test
+    public void testUnbounded() {
+        System.out.println("Testing bounded Jensen without a minimum");
+        final Jensen jensen = new Jensen();
+        final Random rand = new Random(2);
+        for (int trial = 0; trial < 100; trial++) {
+            final SparseDoubleVector A =
+                    vector(rand, 1 + rand.nextInt(50), CARDINALITY);
+            final SparseDoubleVector B =
+                    vector(rand, 1 + rand.nextInt(50), CARDINALITY);
+            assertEquals(jensen.shared(A, B),
+                         jensen.sharedBounded(A, B, 0), 0);
+            assertEquals(jensen.shared(A, B),
+                         jensen.sharedBounded(A, B,
+                                              Double.NEGATIVE_INFINITY), 0);
+        }
+    }
+
+    private static void testBounded(BoundedProximity prox) {
+        final Random rand = new Random(0);
+        int abandoned = 0;
+        for (int trial = 0; trial < 1000; trial++) {
+            final SparseDoubleVector A =
+                    vector(rand, 1 + rand.nextInt(50), CARDINALITY);
+            final SparseDoubleVector B =
+                    vector(rand, 1 + rand.nextInt(50), CARDINALITY);
+            final double shared = prox.shared(A, B);
+            final double sim = prox.combine(
+                    shared, prox.left(A), prox.right(B));
+            final double minSimilarity = sim * (0.5 + rand.nextDouble());
+
+            final double bounded = prox.sharedBounded(A, B, minSimilarity);
+            if (bounded != Double.POSITIVE_INFINITY || shared == bounded) {
+                assertEquals(shared, bounded, 0);
+            } else {
+                assertTrue(sim < minSimilarity);
+                assertEquals(0, prox.combine(
+                        bounded, prox.left(A), prox.right(B)), 0);
+                ++abandoned;
+            }
+        }
+        assertTrue(abandoned > 0);
+    }
+}
@@ -31,11 +31,20 @@
 package uk.ac.susx.mlcl.byblo.measures;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import static org.junit.Assert.*;
 import org.junit.Ignore;
 import org.junit.Test;
 import static uk.ac.susx.mlcl.TestConstants.*;
+import static uk.ac.susx.mlcl.byblo.measures.RandomVectors.*;
 import uk.ac.susx.mlcl.byblo.Tools;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.*;
 
 /**
@@ -108,4 +117,233 @@ public class KendallTauTest {
 //        assertTrue(WeightedTokenPairSource.equal(output1, output2,
 //                                                 DEFAULT_CHARSET, false, false));
     }
+
+    @Test
+    public void testPerfectAgreement() {
+        System.out.println("Testing KendalTau of identical and reversed rankings.");
+        KendallTau instance = new KendallTau();
+        instance.setNumFeatures(3);
+        SparseDoubleVector a = new SparseDoubleVector(
+                new int[]{0, 1, 2}, new double[]{1, 2, 3}, 3, 3);
+        SparseDoubleVector b = new SparseDoubleVector(
+                new int[]{0, 1, 2}, new double[]{3, 2, 1}, 3, 3);
+        assertEquals(1, instance.shared(a, a), 0);
+        assertEquals(-1, instance.shared(a, b), 0);
+    }
+
+    @Test
+    public void testSharedMatchesPairwise() throws Exception {
+        System.out.println("Testing KendalTau against the pairwise calculation.");
+
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource source = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        List<SparseDoubleVector> vectors = new ArrayList<SparseDoubleVector>();
+        int numFeatures = 2;
+        while (source.hasNext()) {
+            SparseDoubleVector vector = source.read().value();
+            vectors.add(vector);
+            if (vector.size > 0)
+                numFeatures = Math.max(numFeatures,
+                                       vector.keys[vector.size - 1] + 1);
+        }
+        assertTrue(!vectors.isEmpty());
+
+        KendallTau instance = new KendallTau();
+        instance.setNumFeatures(numFeatures);
+        for (int i = 0; i < vectors.size(); i++) {
+            for (int j = i; j < vectors.size(); j++) {
+                SparseDoubleVector a = vectors.get(i);
+                SparseDoubleVector b = vectors.get(j);
+                double expected = pairwise(a, b, numFeatures);
+                assertEquals(expected, instance.shared(a, b), 0);
+                assertEquals(expected, instance.shared(b, a), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomMatchesPairwise() {
+        System.out.println("Testing KendalTau of random vectors against the "
+                + "pairwise calculation.");
+        final Random rand = new Random(0);
+        for (int trial = 0; trial < 5000; trial++) {
+            final int numFeatures = 2 + rand.nextInt(100);
+            final int maxSize = Math.min(numFeatures, 40);
+            // A small pool of values produces many ties, and explicit zeros
+            // that must not be confused with the features that do not occur.
+            final int pool = 1 + rand.nextInt(6);
+            final SparseDoubleVector a = vector(
+                    rand, rand.nextInt(maxSize + 1), numFeatures, -1, pool - 2);
+            final SparseDoubleVector b = rand.nextInt(10) == 0 ? a : vector(
+                    rand, rand.nextInt(maxSize + 1), numFeatures, -1, pool - 2);
+
+            final KendallTau instance = new KendallTau();
+            instance.setNumFeatures(numFeatures);
+            assertEquals(pairwise(a, b, numFeatures), instance.shared(a, b), 0);
+            assertEquals(pairwise(b, a, numFeatures), instance.shared(b, a), 0);
+        }
+    }
+
+    /**
+     * The original quadratic implementation of
+     * {@link KendallTau#shared(SparseDoubleVector, SparseDoubleVector)},
+     * retained as a reference for the current one.
+     */
+    private static double pairwise(SparseDoubleVector A, SparseDoubleVector B,
+                                   int numFeatures) {
+        int sum = 0;
+        int intersectionSize = 0;
+        int unionSize = 0;
+        int ai = 0;
+        int bi = 0;
+
+        while (ai < A.size && bi < B.size) {
+            ++unionSize;
+            if (A.keys[ai] < B.keys[bi]) {
+                int aj = ai + 1;
+                int bj = bi;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        --sum;
+                        ++bj;
+                    } else {
+                        if (A.values[ai] < A.values[aj])
+                            ++sum;
+                        else if (A.values[ai] > A.values[aj])
+                            --sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                sum -= B.size - bj;
+                ++ai;
+            } else if (A.keys[ai] > B.keys[bi]) {
+                int aj = ai;
+                int bj = bi + 1;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        --sum;
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        ++bj;
+                    } else {
+                        if (B.values[bi] < B.values[bj])
+                            ++sum;
+                        else if (B.values[bi] > B.values[bj])
+                            --sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                sum -= A.size - aj;
+                ++bi;
+            } else {
+                ++intersectionSize;
+                int aj = ai + 1;
+                int bj = bi + 1;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        if (A.values[ai] < A.values[aj])
+                            --sum;
+                        else if (A.values[ai] > A.values[aj])
+                            ++sum;
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        if (B.values[bi] < B.values[bj])
+                            --sum;
+                        else if (B.values[bi] > B.values[bj])
+                            ++sum;
+                        ++bj;
+                    } else {
+                        final double diff = (A.values[ai] - A.values[aj])
+                                * (B.values[bi] - B.values[bj]);
+                        if (diff < 0)
+                            --sum;
+                        else if (diff > 0)
+                            ++sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                while (aj < A.size) {
+                    if (A.values[ai] < A.values[aj])
+                        --sum;
+                    else if (A.values[ai] > A.values[aj])
+                        ++sum;
+                    ++aj;
+                }
+                while (bj < B.size) {
+                    if (B.values[bi] < B.values[bj])
+                        --sum;
+                    else if (B.values[bi] > B.values[bj])
+                        ++sum;
+                    ++bj;
+                }
+                ++ai;
+                ++bi;
+            }
+        }
+        while (ai < A.size) {
+            ++unionSize;
+            int aj = ai + 1;
+            int bj = bi;
+            while (aj < A.size && bj < B.size) {
+                if (A.keys[aj] < B.keys[bj]) {
+                    ++aj;
+                } else if (A.keys[aj] > B.keys[bj]) {
+                    --sum;
+                    ++bj;
+                } else {
+                    if (A.values[ai] < A.values[aj])
+                        ++sum;
+                    else if (A.values[ai] > A.values[aj])
+                        --sum;
+                    ++aj;
+                    ++bj;
+                }
+            }
+            sum -= B.size - bj;
+            ++ai;
+        }
+        while (bi < B.size) {
+            ++unionSize;
+            int aj = ai;
+            int bj = bi + 1;
+            while (aj < A.size && bj < B.size) {
+                if (A.keys[aj] < B.keys[bj]) {
+                    --sum;
+                    ++aj;
+                } else if (A.keys[aj] > B.keys[bj]) {
+                    ++bj;
+                } else {
+                    if (B.values[bi] < B.values[bj])
+                        ++sum;
+                    else if (B.values[bi] > B.values[bj])
+                        --sum;
+                    ++aj;
+                    ++bj;
+                }
+            }
+            sum -= A.size - aj;
+            ++bi;
+        }
+
+        // Comparisons are only done in one direction so double the result
+        sum <<= 1;
+
+        // Features that don't occur in either vector are a similarity
+        // between the two sets. For each feature that they both have there
+        // should be an addition +2 to the sum.
+        // The relationship between these and disjoint features
+        sum += 2 * ((numFeatures - unionSize) * intersectionSize);
+        //
+        double sim = (double) (sum) / (double) (numFeatures * (numFeatures - 1));
+
+        return sim;
+    }
 }
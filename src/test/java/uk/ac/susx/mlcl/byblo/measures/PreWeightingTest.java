@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.byblo.measures.RandomVectors.*;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PreWeightingTest {
+
+    private static final int CARDINALITY = 200;
+
+    @Test
+    public void testPreWeightedMatchesRaw() {
+        System.out.println("Testing pre-weighted MI measures");
+        final Random rand = new Random(0);
+        final SparseDoubleVector[] vectors = new SparseDoubleVector[50];
+        final double[] frequencies = new double[CARDINALITY];
+        double sum = 0;
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = vector(rand, 1 + rand.nextInt(30), CARDINALITY);
+            for (int j = 0; j < vectors[i].size; j++) {
+                frequencies[vectors[i].keys[j]] += vectors[i].values[j];
+                sum += vectors[i].values[j];
+            }
+        }
+
+        final AbstractMIProximity[] raws = {
+            new Lin(), new CosineMi(), new DiceMi(), new JaccardMi(),
+            new RecallMi(), new CrMi()};
+        final AbstractMIProximity[] pres = {
+            new Lin(), new CosineMi(), new DiceMi(), new JaccardMi(),
+            new RecallMi(), new CrMi()};
+        for (int m = 0; m < raws.length; m++) {
+            final AbstractMIProximity raw = raws[m];
+            final AbstractMIProximity pre = pres[m];
+            raw.setFeatureFrequencies(frequencies);
+            raw.setFeatureFrequencySum(sum);
+            pre.setFeatureFrequencies(frequencies);
+            pre.setFeatureFrequencySum(sum);
+            pre.setPreWeighted(true);
+
+            final SparseDoubleVector[] weighted =
+                    new SparseDoubleVector[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                weighted[i] = raw.positiveInformation(vectors[i]);
+                assertArrayEquals(vectors[i].keys, weighted[i].keys);
+                double weightedSum = 0;
+                for (int j = 0; j < weighted[i].size; j++)
+                    weightedSum += weighted[i].values[j];
+                assertEquals(weightedSum, weighted[i].sum, 0);
+                assertEquals(raw.left(vectors[i]), pre.left(weighted[i]), 0);
+            }
+
+            for (int i = 0; i < vectors.length; i++) {
+                for (int j = 0; j < vectors.length; j++) {
+                    assertEquals(
+                            raw.getClass().getSimpleName(),
+                            similarity(raw, vectors[i], vectors[j]),
+                            similarity(pre, weighted[i], weighted[j]), 0);
+                }
+            }
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testHindleUnsupported() {
+        System.out.println("Testing pre-weighted Hindle is unsupported");
+        new Hindle().setPreWeighted(true);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testConfusionUnsupported() {
+        System.out.println("Testing pre-weighted Confusion is unsupported");
+        new Confusion().setPreWeighted(true);
+    }
+
+    private static double similarity(Proximity prox, SparseDoubleVector A,
+                                     SparseDoubleVector B) {
+        return prox.combine(prox.shared(A, B), prox.left(A), prox.right(B));
+    }
+}
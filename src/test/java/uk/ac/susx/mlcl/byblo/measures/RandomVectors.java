@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import java.util.TreeMap;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Random sparse vectors for the measure tests.
+ * <p/>
+ * Every vector has its sum set explicitly to the sum of its values, taken in
+ * key order, rather than relying on the vector constructor to compute it.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class RandomVectors {
+
+    private RandomVectors() {
+    }
+
+    /**
+     * @param rand source of randomness
+     * @param size number of non-zero features
+     * @param cardinality number of possible features
+     * @return vector of distinct random features, with integer values from
+     *      1 to 5
+     */
+    static SparseDoubleVector vector(Random rand, int size, int cardinality) {
+        return vector(rand, size, cardinality, false, 1, 5);
+    }
+
+    /**
+     * @param rand source of randomness
+     * @param size number of non-zero features
+     * @param cardinality number of possible features
+     * @param contiguous true if the features should be a run of consecutive
+     *      ids, starting at a random id, rather than scattered
+     * @return vector of random features, with integer values from 1 to 5
+     */
+    static SparseDoubleVector vector(Random rand, int size, int cardinality,
+                                     boolean contiguous) {
+        return vector(rand, size, cardinality, contiguous, 1, 5);
+    }
+
+    /**
+     * @param rand source of randomness
+     * @param size number of features
+     * @param cardinality number of possible features
+     * @param minValue smallest value, inclusive
+     * @param maxValue largest value, inclusive
+     * @return vector of distinct random features, with integer values drawn
+     *      uniformly from the given range
+     */
+    static SparseDoubleVector vector(Random rand, int size, int cardinality,
+                                     int minValue, int maxValue) {
+        return vector(rand, size, cardinality, false, minValue, maxValue);
+    }
+
+    private static SparseDoubleVector vector(Random rand, int size,
+                                             int cardinality,
+                                             boolean contiguous,
+                                             int minValue, int maxValue) {
+        final TreeMap<Integer, Double> features =
+                new TreeMap<Integer, Double>();
+        final int start = contiguous ? rand.nextInt(cardinality - size) : 0;
+        while (features.size() < size) {
+            final int key = contiguous
+                            ? start + features.size()
+                            : rand.nextInt(cardinality);
+            features.put(key, (double) (minValue
+                    + rand.nextInt(maxValue - minValue + 1)));
+        }
+        final int[] keys = new int[size];
+        final double[] values = new double[size];
+        double sum = 0;
+        int i = 0;
+        for (Integer key : features.keySet()) {
+            keys[i] = key;
+            values[i] = features.get(key);
+            sum += values[i];
+            ++i;
+        }
+        final SparseDoubleVector vector =
+                new SparseDoubleVector(keys, values, cardinality, size);
+        vector.sum = sum;
+        return vector;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.byblo.measures.RandomVectors.*;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SparseIntersectionTest {
+
+    /**
+     * Sums the product of the shared values, checking that features are
+     * visited in ascending order.
+     */
+    private static final class ProductVisitor
+            implements SparseIntersection.Visitor {
+
+        int lastKey = Integer.MIN_VALUE;
+
+        int count = 0;
+
+        @Override
+        public double visit(SparseDoubleVector A, int i,
+                            SparseDoubleVector B, int j) {
+            assertEquals(A.keys[i], B.keys[j]);
+            assertTrue(A.keys[i] > lastKey);
+            lastKey = A.keys[i];
+            ++count;
+            return A.values[i] * B.values[j];
+        }
+
+    }
+
+    /**
+     * Sums the product of the shared values, for any number of pairs.
+     */
+    private static final SparseIntersection.Visitor PRODUCT =
+            new SparseIntersection.Visitor() {
+
+                @Override
+                public double visit(SparseDoubleVector A, int i,
+                                    SparseDoubleVector B, int j) {
+                    assertEquals(A.keys[i], B.keys[j]);
+                    return A.values[i] * B.values[j];
+                }
+
+            };
+
+    @Test
+    public void testGallop() {
+        System.out.println("Testing SparseIntersection.gallop()");
+        final int[] keys = {1, 3, 5, 7, 9, 11, 13, 15, 17, 19};
+        for (int from = 0; from <= keys.length; from++) {
+            for (int key = 0; key <= 21; key++) {
+                int expected = from;
+                while (expected < keys.length && keys[expected] < key)
+                    ++expected;
+                assertEquals(expected,
+                             SparseIntersection.gallop(keys, from, keys.length, key));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        System.out.println("Testing SparseIntersection.sum() with empty vectors");
+        SparseDoubleVector empty = vector(new Random(0), 0, 100, false);
+        SparseDoubleVector other = vector(new Random(1), 10, 100, false);
+        assertEquals(0, SparseIntersection.sum(empty, other, new ProductVisitor()), 0);
+        assertEquals(0, SparseIntersection.sum(other, empty, new ProductVisitor()), 0);
+    }
+
+    @Test
+    public void testStrategiesMatchMerge() {
+        System.out.println("Testing SparseIntersection.sum() strategies");
+        final Random rand = new Random(0);
+        final int[][] sizes = {
+            {10, 10}, {10, 79}, {10, 80}, {80, 10}, {3, 2000}, {2000, 3},
+            {1, 5000}};
+        for (int[] size : sizes) {
+            for (int contiguous = 0; contiguous < 4; contiguous++) {
+                for (int trial = 0; trial < 20; trial++) {
+                    SparseDoubleVector a = vector(
+                            rand, size[0], 10000, (contiguous & 1) != 0);
+                    SparseDoubleVector b = vector(
+                            rand, size[1], 10000, (contiguous & 2) != 0);
+                    ProductVisitor visitor = new ProductVisitor();
+                    double actual = SparseIntersection.sum(a, b, visitor);
+                    assertEquals(merge(a, b), actual, 0);
+                    assertEquals(count(a, b), visitor.count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testComponents() {
+        System.out.println("Testing SparseIntersection.components()");
+        final Random rand = new Random(0);
+        final Cosine cosine = new Cosine();
+        final SparseIntersection.Visitor components =
+                SparseIntersection.components(cosine);
+        for (int trial = 0; trial < 20; trial++) {
+            SparseDoubleVector a = vector(rand, 5, 1000, false);
+            SparseDoubleVector b = vector(rand, 500, 1000, false);
+            assertEquals(cosine.shared(a, b),
+                         SparseIntersection.sum(a, b, components), 0);
+        }
+    }
+
+    @Test
+    public void testSumManyMatchesSum() {
+        System.out.println("Testing SparseIntersection.sumMany()");
+        final Random rand = new Random(0);
+        // Fixed vectors whose lookup tables are direct, dense and hashed
+        final int[][] shapes = {{50, 1000, 1}, {50, 100, 0}, {20, 10000, 0}};
+        for (int[] shape : shapes) {
+            for (int trial = 0; trial < 20; trial++) {
+                final SparseDoubleVector fixed = vector(
+                        rand, shape[0], shape[1], shape[2] != 0);
+                final int count = 1 + rand.nextInt(40);
+                final SparseDoubleVector[] others =
+                        new SparseDoubleVector[count];
+                for (int i = 0; i < count; i++) {
+                    others[i] = vector(rand, rand.nextInt(Math.min(
+                            shape[1] - 1, 1000)), shape[1], rand.nextBoolean());
+                }
+
+                final double[] out = new double[count];
+                SparseIntersection.sumMany(
+                        fixed, others, count, PRODUCT, out);
+                for (int i = 0; i < count; i++)
+                    assertEquals(merge(fixed, others[i]), out[i], 0);
+
+                SparseIntersection.sumMany(
+                        others, fixed, count, PRODUCT, out);
+                for (int i = 0; i < count; i++)
+                    assertEquals(merge(others[i], fixed), out[i], 0);
+            }
+        }
+    }
+
+    private static double merge(SparseDoubleVector A, SparseDoubleVector B) {
+        double sum = 0;
+        int i = 0;
+        int j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                ++i;
+            } else if (A.keys[i] > B.keys[j]) {
+                ++j;
+            } else {
+                sum += A.values[i] * B.values[j];
+                ++i;
+                ++j;
+            }
+        }
+        return sum;
+    }
+
+    private static int count(SparseDoubleVector A, SparseDoubleVector B) {
+        int count = 0;
+        for (int i = 0; i < A.size; i++) {
+            for (int j = 0; j < B.size; j++) {
+                if (A.keys[i] == B.keys[j])
+                    ++count;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AllPairsJournalTest {
+
+    private static final Comparator<Weighted<TokenPair>> ORDER =
+            Weighted.recordOrder(TokenPair.indexOrder());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static File newJournalDir(String name) {
+        final File dir = new File(TEST_TMP_DIR, name);
+        if (dir.exists()) {
+            for (File file : dir.listFiles())
+                file.delete();
+        }
+        return dir;
+    }
+
+    @Test
+    public void testCommitAndResume() throws Exception {
+        System.out.println("Testing journal commit and resume");
+        final File dir = newJournalDir("journal-resume");
+
+        AllPairsJournal journal = new AllPairsJournal(
+                dir, "test", WeightedTokenPairBuffer.Order.INDEX);
+        assertEquals(0, journal.getCompletedCount());
+
+        final SortedPairRuns segment = journal.newSegment();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        pairs.add(2, 1, 0.5);
+        pairs.add(1, 2, 0.5);
+        segment.write(pairs);
+        journal.commit(1, 2, segment);
+
+        // Output of a chunk pair that was in progress when the run died
+        journal.newSegment().write(pairs);
+        journal.close();
+
+        journal = new AllPairsJournal(
+                dir, "test", WeightedTokenPairBuffer.Order.INDEX);
+        assertEquals(1, journal.getCompletedCount());
+        assertTrue(journal.isCompleted(1, 2));
+        assertFalse(journal.isCompleted(2, 1));
+
+        final SortedPairRuns other = journal.newSegment();
+        final WeightedTokenPairBuffer more = new WeightedTokenPairBuffer();
+        more.add(1, 3, 0.25);
+        other.write(more);
+        journal.commit(2, 1, other);
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        journal.mergeTo(ObjectIO.asSink(actual),
+                        new TempFileFactory(TEST_TMP_DIR), 1);
+        assertEquals(3, actual.size());
+        assertEquals(new TokenPair(1, 2), actual.get(0).record());
+        assertEquals(new TokenPair(1, 3), actual.get(1).record());
+        assertEquals(new TokenPair(2, 1), actual.get(2).record());
+
+        journal.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void testFingerprintMismatch() throws Exception {
+        System.out.println("Testing journal is discarded for a different run");
+        final File dir = newJournalDir("journal-mismatch");
+
+        AllPairsJournal journal = new AllPairsJournal(
+                dir, "first", WeightedTokenPairBuffer.Order.INDEX);
+        final SortedPairRuns segment = journal.newSegment();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        pairs.add(1, 2, 0.5);
+        segment.write(pairs);
+        journal.commit(1, 1, segment);
+        journal.close();
+
+        journal = new AllPairsJournal(
+                dir, "second", WeightedTokenPairBuffer.Order.INDEX);
+        assertEquals(0, journal.getCompletedCount());
+        assertFalse(segment.getRunFiles().get(0).exists());
+        journal.close();
+
+        journal = new AllPairsJournal(
+                dir, "second", WeightedTokenPairBuffer.Order.NEIGHBOURS);
+        assertEquals(0, journal.getCompletedCount());
+        journal.delete();
+    }
+
+    @Test
+    public void testPartialEntry() throws Exception {
+        System.out.println("Testing partially written journal entry is ignored");
+        final File dir = newJournalDir("journal-partial");
+
+        AllPairsJournal journal = new AllPairsJournal(
+                dir, "test", WeightedTokenPairBuffer.Order.INDEX);
+        journal.commit(1, 1, journal.newSegment());
+        journal.close();
+        Files.append("1 2", new File(dir, "journal"), UTF8);
+
+        journal = new AllPairsJournal(
+                dir, "test", WeightedTokenPairBuffer.Order.INDEX);
+        assertTrue(journal.isCompleted(1, 1));
+        assertFalse(journal.isCompleted(1, 2));
+        journal.delete();
+    }
+
+    @Test
+    public void testThreadedResume() throws Exception {
+        System.out.println("Testing resumed threaded all-pairs");
+        final List<Weighted<TokenPair>> expected = runAllPairs(null);
+        Collections.sort(expected, ORDER);
+
+        final File dir = newJournalDir("journal-threaded");
+        AllPairsJournal journal = new AllPairsJournal(
+                dir, "fruit", WeightedTokenPairBuffer.Order.INDEX);
+        assertTrue(runAllPairs(journal).isEmpty());
+        final int nChunkPairs = journal.getCompletedCount();
+        assertTrue(nChunkPairs > 2);
+        journal.close();
+
+        // Forget the last few chunk pairs, as though the run had died
+        final File journalFile = new File(dir, "journal");
+        final List<String> lines = Files.readLines(journalFile, UTF8);
+        final StringBuilder truncated = new StringBuilder();
+        for (String line : lines.subList(0, lines.size() - 2))
+            truncated.append(line).append('\n');
+        Files.write(truncated, journalFile, UTF8);
+
+        journal = new AllPairsJournal(
+                dir, "fruit", WeightedTokenPairBuffer.Order.INDEX);
+        assertEquals(nChunkPairs - 2, journal.getCompletedCount());
+        assertTrue(runAllPairs(journal).isEmpty());
+        assertEquals(nChunkPairs, journal.getCompletedCount());
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        journal.mergeTo(ObjectIO.asSink(actual),
+                        new TempFileFactory(TEST_TMP_DIR), 2);
+        journal.delete();
+
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            AllPairsJournal journal) throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>();
+        instance.setNumThreads(3);
+        instance.setMaxChunkSize(7);
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setJournal(journal);
+        instance.setMeasure(new Cosine());
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+}
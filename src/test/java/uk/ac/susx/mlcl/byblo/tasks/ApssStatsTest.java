@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ApssStatsTest {
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        System.out.println("Testing concurrent updates of stats");
+        final ApssStats instance = new ApssStats();
+        final int nThreads = 8;
+        final int nUpdates = 100000;
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < nUpdates; i++) {
+                        instance.incrementCandidatesCount();
+                        instance.incrementComparisonCount();
+                    }
+                    instance.addProductionCount(nUpdates);
+                    instance.addSourceReads(2);
+                }
+
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals((long) nThreads * nUpdates, instance.getCandidatesCount());
+        assertEquals((long) nThreads * nUpdates, instance.getComparisonCount());
+        assertEquals((long) nThreads * nUpdates, instance.getProductionCount());
+        assertEquals(2L * nThreads, instance.getSourceReads());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        System.out.println("Testing serialization of stats");
+        final ApssStats instance = new ApssStats();
+        instance.addCandidatesCount(1);
+        instance.addComparisonCount(2);
+        instance.addProductionCount(3);
+        instance.addSourceReads(4);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(instance);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        ApssStats copy = (ApssStats) in.readObject();
+        in.close();
+
+        assertEquals(1, copy.getCandidatesCount());
+        assertEquals(2, copy.getComparisonCount());
+        assertEquals(3, copy.getProductionCount());
+        assertEquals(4, copy.getSourceReads());
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.Chunk;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkCostsTest {
+
+    /**
+     * Vectors with Zipfian feature frequencies, and a few entries that hold
+     * far more features than the rest.
+     */
+    private static List<Indexed<SparseDoubleVector>> skewedVectors(
+            Random rand, int n, int nFeatures) {
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id = 0; id < n; id++) {
+            final int size = rand.nextInt(10) == 0 ? 50 : 1 + rand.nextInt(5);
+            final boolean[] present = new boolean[nFeatures];
+            for (int k = 0; k < size; k++) {
+                present[(int) (nFeatures * Math.pow(rand.nextDouble(), 3))] =
+                        true;
+            }
+            int nnz = 0;
+            for (boolean p : present) {
+                if (p)
+                    ++nnz;
+            }
+            final int[] keys = new int[nnz];
+            final double[] values = new double[nnz];
+            int i = 0;
+            for (int f = 0; f < nFeatures; f++) {
+                if (present[f]) {
+                    keys[i] = f;
+                    values[i] = 1;
+                    ++i;
+                }
+            }
+            final SparseDoubleVector vec =
+                    new SparseDoubleVector(keys, values, nFeatures, nnz);
+            vec.sum = nnz;
+            vectors.add(new Indexed<SparseDoubleVector>(id, vec));
+        }
+        return vectors;
+    }
+
+    private static List<List<Indexed<SparseDoubleVector>>> readChunks(
+            SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, Integer> chunker)
+            throws Exception {
+        final List<List<Indexed<SparseDoubleVector>>> chunks =
+                new ArrayList<List<Indexed<SparseDoubleVector>>>();
+        while (chunker.hasNext()) {
+            final Chunk<Indexed<SparseDoubleVector>> chunk = chunker.read();
+            final List<Indexed<SparseDoubleVector>> entries =
+                    new ArrayList<Indexed<SparseDoubleVector>>();
+            while (chunk.hasNext()) {
+                entries.add(chunk.read());
+            }
+            chunks.add(entries);
+        }
+        return chunks;
+    }
+
+    private static long nonZeros(List<Indexed<SparseDoubleVector>> chunk) {
+        long n = 0;
+        for (Indexed<SparseDoubleVector> entry : chunk) {
+            n += entry.value().size;
+        }
+        return n;
+    }
+
+    @Test
+    public void testNonZeroBudget() throws Exception {
+        System.out.println("Testing chunking by non-zero budget");
+        final List<Indexed<SparseDoubleVector>> vectors =
+                skewedVectors(new Random(0), 500, 100);
+        final long budget = 200;
+        final List<List<Indexed<SparseDoubleVector>>> chunks = readChunks(
+                VectorChunker.newInstance(ObjectIO.asSource(vectors), 100,
+                                          budget));
+        int total = 0;
+        for (List<Indexed<SparseDoubleVector>> chunk : chunks) {
+            assertTrue(!chunk.isEmpty());
+            assertTrue(chunk.size() <= 100);
+            // Closed as soon as the budget is reached
+            final long last = chunk.get(chunk.size() - 1).value().size;
+            assertTrue(nonZeros(chunk) - last < budget);
+            total += chunk.size();
+        }
+        assertEquals(vectors.size(), total);
+
+        // Without a budget, chunks are limited only by entry count
+        final List<List<Indexed<SparseDoubleVector>>> unbudgeted = readChunks(
+                VectorChunker.newInstance(ObjectIO.asSource(vectors), 100, 0));
+        assertEquals(5, unbudgeted.size());
+    }
+
+    @Test
+    public void testOverlapProduct() throws Exception {
+        System.out.println("Testing chunk pair cost estimation");
+        final List<Indexed<SparseDoubleVector>> vectors =
+                skewedVectors(new Random(1), 300, 80);
+        final SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, Integer> chunker =
+                VectorChunker.newInstance(ObjectIO.asSource(vectors), 40, 150);
+        final List<Integer> starts = new ArrayList<Integer>();
+        final ChunkCosts.Profile profile = ChunkCosts.profile(chunker, starts);
+        final List<List<Indexed<SparseDoubleVector>>> chunks =
+                readChunks(chunker);
+        assertEquals(chunks.size(), profile.getChunkCount());
+        assertEquals(chunks.size(), starts.size());
+
+        for (boolean symmetric : new boolean[]{false, true}) {
+            final ChunkCosts costs =
+                    ChunkCosts.estimate(profile, profile, symmetric);
+            for (int a = 0; a < chunks.size(); a++) {
+                assertEquals(nonZeros(chunks.get(a)),
+                             profile.getNonZeros()[a]);
+                for (int b = 0; b < chunks.size(); b++) {
+                    // The number of postings visited by an inverted search
+                    long expected = 0;
+                    if (!symmetric || b >= a) {
+                        for (Indexed<SparseDoubleVector> x : chunks.get(a)) {
+                            for (Indexed<SparseDoubleVector> y : chunks.get(b)) {
+                                expected += shared(x.value(), y.value());
+                            }
+                        }
+                    }
+                    assertEquals(expected, costs.cost(a + 1, b + 1), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSortByDecreasingCost() {
+        System.out.println("Testing chunk ordering by cost");
+        final int[] ids = {1, 2, 3, 4, 5};
+        ChunkCosts.sortByDecreasingCost(ids, new double[]{3, 9, 3, 0, 12});
+        assertArrayEquals(new int[]{5, 2, 1, 3, 4}, ids);
+    }
+
+    private static int shared(SparseDoubleVector x, SparseDoubleVector y) {
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < x.size && j < y.size) {
+            if (x.keys[i] < y.keys[j]) {
+                ++i;
+            } else if (x.keys[i] > y.keys[j]) {
+                ++j;
+            } else {
+                ++n;
+                ++i;
+                ++j;
+            }
+        }
+        return n;
+    }
+
+}
@@ -32,6 +32,7 @@ package uk.ac.susx.mlcl.byblo.tasks;
 
 import com.google.common.base.Predicate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -42,6 +43,7 @@ import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
 import uk.ac.susx.mlcl.byblo.measures.Jaccard;
 import uk.ac.susx.mlcl.byblo.measures.Proximity;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
@@ -90,4 +92,51 @@ public class InvertedApssTaskTest {
         assertTrue(!result.isEmpty());
     }
 
+    /**
+     * Score accumulation over the inverted index should produce exactly the
+     * same pairs as the naive algorithm for decomposable measures.
+     */
+    @Test
+    public void testAccumulatingMatchesNaive() throws Exception {
+        System.out.println("Testing accumulating inverted vs naive");
+
+        List<Weighted<TokenPair>> naiveResult =
+                runAllPairs(new NaiveApssTask<Tell>(), new Cosine());
+        List<Weighted<TokenPair>> invertedResult =
+                runAllPairs(new InvertedApssTask<Tell>(), new Cosine());
+
+        assertTrue(!naiveResult.isEmpty());
+        assertEquals(naiveResult, invertedResult);
+        for (int i = 0; i < naiveResult.size(); i++) {
+            assertEquals(naiveResult.get(i).weight(),
+                         invertedResult.get(i).weight(), 0);
+        }
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure) throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.setProducatePair(PAIR_FILTER);
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
 }
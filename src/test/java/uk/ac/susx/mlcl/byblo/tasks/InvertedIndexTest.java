@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class InvertedIndexTest {
+
+    private static Indexed<SparseDoubleVector> vec(int id, int[] keys,
+                                                   double[] values) {
+        return new Indexed<SparseDoubleVector>(id,
+                new SparseDoubleVector(keys, values, 100, keys.length));
+    }
+
+    @Test
+    public void testBuild() {
+        System.out.println("Testing build()");
+
+        List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        entries.add(vec(10, new int[]{1, 5, 7}, new double[]{1, 2, 3}));
+        entries.add(vec(11, new int[]{5}, new double[]{4}));
+        entries.add(vec(12, new int[]{2, 7, 9}, new double[]{5, 6, 7}));
+
+        InvertedIndex index = InvertedIndex.build(entries);
+
+        assertEquals(3, index.size());
+        assertEquals(5, index.featureCount());
+        assertEquals(7, index.postingsCount());
+        assertArrayEquals(new int[]{1, 2, 5, 7, 9}, index.features());
+        assertArrayEquals(new int[]{0, 1, 2, 4, 6, 7}, index.offsets());
+        assertArrayEquals(new int[]{0, 2, 0, 1, 0, 2, 2}, index.slots());
+        assertArrayEquals(new double[]{1, 5, 2, 4, 3, 6, 7},
+                          index.weights(), 0);
+        assertEquals(11, index.entry(1).key());
+
+        assertEquals(3, index.findRow(7, 0));
+        assertEquals(3, index.findRow(7, 3));
+        assertTrue(index.findRow(6, 0) < 0);
+    }
+
+    @Test
+    public void testBuildEmpty() {
+        System.out.println("Testing build() with no entries");
+        InvertedIndex index = InvertedIndex.build(
+                new ArrayList<Indexed<SparseDoubleVector>>());
+        assertEquals(0, index.size());
+        assertEquals(0, index.featureCount());
+        assertEquals(0, index.postingsCount());
+    }
+
+}
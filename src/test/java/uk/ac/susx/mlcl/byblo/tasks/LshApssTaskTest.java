@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.byblo.measures.ReversedProximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class LshApssTaskTest {
+
+    private static Indexed<SparseDoubleVector> vector(int id, int... keys) {
+        final double[] values = new double[keys.length];
+        double sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = 1 + (keys[i] % 3);
+            sum += values[i];
+        }
+        final SparseDoubleVector vec =
+                new SparseDoubleVector(keys, values, 100, keys.length);
+        vec.sum = sum;
+        return new Indexed<SparseDoubleVector>(id, vec);
+    }
+
+    @Test
+    public void testSchemeForMeasure() {
+        System.out.println("Testing LSH scheme selection");
+        assertEquals(LshSignatures.Scheme.HYPERPLANE,
+                     LshSignatures.Scheme.forMeasure(new Cosine()));
+        assertEquals(LshSignatures.Scheme.HYPERPLANE,
+                     LshSignatures.Scheme.forMeasure(
+                new ReversedProximity(new Cosine())));
+        assertEquals(LshSignatures.Scheme.MINHASH,
+                     LshSignatures.Scheme.forMeasure(new Jaccard()));
+    }
+
+    @Test
+    public void testSignatures() {
+        System.out.println("Testing LSH signatures");
+        for (Proximity measure : new Proximity[]{new Cosine(), new Jaccard()}) {
+            final LshSignatures first = LshSignatures.forMeasure(measure);
+            final LshSignatures second = LshSignatures.forMeasure(measure);
+
+            final long[] a = first.get(vector(1, 2, 5, 17, 40));
+            assertEquals(first.getBands(), a.length);
+            // Identical vectors collide in every band, independent of id
+            assertArrayEquals(a, first.get(vector(2, 2, 5, 17, 40)));
+            // Signatures depend only on the seed
+            assertArrayEquals(a, second.get(vector(1, 2, 5, 17, 40)));
+
+            final long[] b = first.get(vector(3, 60, 71, 83, 99));
+            int collisions = 0;
+            for (int band = 0; band < a.length; band++) {
+                if (a[band] == b[band])
+                    ++collisions;
+            }
+            assertTrue(collisions < a.length);
+
+            assertNull(first.get(vector(4)));
+        }
+    }
+
+    @Test
+    public void testCosineSubsetOfInverted() throws Exception {
+        System.out.println("Testing LSH all-pairs with Cosine");
+        compareWithInverted(new Cosine(), 0.3);
+    }
+
+    @Test
+    public void testJaccardSubsetOfInverted() throws Exception {
+        System.out.println("Testing LSH all-pairs with Jaccard");
+        compareWithInverted(new Jaccard(), 0.1);
+    }
+
+    @Test
+    public void testTopKRecall() throws Exception {
+        System.out.println("Testing LSH recall of the k nearest neighbours");
+        final Random rand = new Random(0);
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        for (int id = 0; id < 200; id++) {
+            final Set<Integer> features = new TreeSet<Integer>();
+            final int size = 1 + rand.nextInt(10);
+            while (features.size() < size)
+                features.add(rand.nextInt(60));
+            final int[] keys = new int[size];
+            int i = 0;
+            for (Integer feature : features)
+                keys[i++] = feature;
+            entries.add(vector(id, keys));
+        }
+
+        final Proximity measure = new Jaccard();
+        for (int k : new int[]{5, 20}) {
+            final NaiveApssTask<Integer> inverted =
+                    new InvertedApssTask<Integer>();
+            inverted.setK(k);
+            final Set<Weighted<TokenPair>> expected =
+                    new HashSet<Weighted<TokenPair>>(
+                    runAllPairs(inverted, measure, entries));
+
+            final LshSignatures signatures = new LshSignatures(
+                    LshSignatures.Scheme.MINHASH, 2, 4,
+                    LshSignatures.DEFAULT_SEED, 1.0, measure);
+
+            final ApssStats stats = new ApssStats();
+            final LshApssTask<Integer> lsh = new LshApssTask<Integer>();
+            lsh.setSignatures(signatures);
+            lsh.setStats(stats);
+            lsh.setK(k);
+            assertRecall(expected, runAllPairs(lsh, measure, entries), stats);
+
+            // The neighbours of each sampled entry are ranked over every
+            // chunk pair, not just within each
+            final ApssStats threadedStats = new ApssStats();
+            final ThreadedApssTask<Integer> threaded =
+                    new ThreadedApssTask<Integer>();
+            threaded.setInnerAlgorithm(LshApssTask.class);
+            threaded.setLshSignatures(signatures);
+            threaded.setNumThreads(2);
+            threaded.setMaxChunkSize(30);
+            threaded.setStats(threadedStats);
+            threaded.setK(k);
+            assertRecall(expected, runAllPairs(threaded, measure, entries),
+                         threadedStats);
+        }
+    }
+
+    /**
+     * With every entry sampled, the estimate is the true recall.
+     */
+    private static void assertRecall(Set<Weighted<TokenPair>> expected,
+                                     List<Weighted<TokenPair>> actual,
+                                     ApssStats stats) {
+        int found = 0;
+        for (Weighted<TokenPair> pair : actual) {
+            if (expected.contains(pair))
+                ++found;
+        }
+        assertTrue(found < expected.size());
+        assertEquals(expected.size(), stats.getRecallSampleExactCount());
+        assertEquals(found, stats.getRecallSampleFoundCount());
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Integer> instance, Proximity measure,
+            List<Indexed<SparseDoubleVector>> entries) throws Exception {
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(ObjectIO.asSource(entries));
+        instance.setSourceB(ObjectIO.asSource(entries));
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+    private static void compareWithInverted(Proximity measure,
+                                            double minSimilarity)
+            throws Exception {
+        List<Weighted<TokenPair>> expected = runAllPairs(
+                new InvertedApssTask<Tell>(), measure, minSimilarity);
+
+        ApssStats stats = new ApssStats();
+        LshApssTask<Tell> lsh = new LshApssTask<Tell>();
+        lsh.setStats(stats);
+        lsh.setSignatures(new LshSignatures(
+                LshSignatures.Scheme.forMeasure(measure),
+                LshSignatures.DEFAULT_BANDS,
+                LshSignatures.Scheme.forMeasure(measure).getDefaultRows(),
+                LshSignatures.DEFAULT_SEED, 1.0, measure));
+        List<Weighted<TokenPair>> actual =
+                runAllPairs(lsh, measure, minSimilarity);
+
+        // Every pair found is exact, though some may be missed
+        assertTrue(!expected.isEmpty());
+        assertTrue(new HashSet<Weighted<TokenPair>>(expected).containsAll(
+                actual));
+        assertEquals(actual.size(),
+                     new HashSet<Weighted<TokenPair>>(actual).size());
+
+        // With every entry sampled, the estimate is the true recall
+        assertEquals(expected.size(), stats.getRecallSampleExactCount());
+        assertEquals(actual.size(), stats.getRecallSampleFoundCount());
+        assertEquals((double) actual.size() / expected.size(),
+                     stats.getRecallEstimate(), 1e-9);
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure,
+            double minSimilarity) throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.setProducatePair(
+                Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void testBlocksUntilReleased() throws Exception {
+        System.out.println("Testing memory budget blocks until released");
+        final MemoryBudget instance = new MemoryBudget(100);
+        instance.acquire(60);
+        instance.acquire(40);
+        assertEquals(100, instance.getUsed());
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> future = executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        instance.acquire(50);
+                        admitted.countDown();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+            });
+
+            assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+            // Releasing too little does not admit the waiting task
+            instance.release(40);
+            assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+            instance.release(60);
+            assertTrue(admitted.await(10, TimeUnit.SECONDS));
+            future.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(50, instance.getUsed());
+        assertEquals(100, instance.getPeakUsed());
+        assertTrue(instance.getPeakHeapUsed() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testOversizedAdmittedAlone() throws Exception {
+        System.out.println("Testing oversized footprint is admitted alone");
+        final MemoryBudget instance = new MemoryBudget(100);
+        instance.acquire(1000);
+        assertEquals(1000, instance.getUsed());
+        instance.release(1000);
+        assertEquals(0, instance.getUsed());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testOversizedWaitsForOthers() throws Exception {
+        System.out.println("Testing oversized footprint waits for others");
+        final MemoryBudget instance = new MemoryBudget(100);
+        instance.acquire(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        instance.acquire(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+            }).get(100, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEstimateFootprint() {
+        System.out.println("Testing footprint estimate");
+        assertEquals(0, MemoryBudget.estimateFootprint(0, 0, 0, 0, 0));
+        final long small = MemoryBudget.estimateFootprint(10, 100, 10, 100, 0);
+        final long denseA = MemoryBudget.estimateFootprint(10, 1000, 10, 100, 0);
+        final long denseB = MemoryBudget.estimateFootprint(10, 100, 10, 1000, 0);
+        assertTrue(small < denseB);
+        // Chunk A is also indexed, so its non-zeros cost more
+        assertTrue(denseB < denseA);
+        assertEquals(small + 1000 * MemoryBudget.PAIR_BYTES,
+                     MemoryBudget.estimateFootprint(10, 100, 10, 100, 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseTooMuch() throws Exception {
+        System.out.println("Testing release of more than was acquired");
+        final MemoryBudget instance = new MemoryBudget(100);
+        instance.acquire(10);
+        instance.release(20);
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Lin;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class NeighbourCollectorTest {
+
+    /**
+     * Neighbours file order; ascending entry id, then descending weight, with
+     * ties broken by ascending neighbour id.
+     */
+    private static final Comparator<Weighted<TokenPair>> NEIGHBOURS_ORDER =
+            new Comparator<Weighted<TokenPair>>() {
+
+                @Override
+                public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                    int c = a.record().id1() - b.record().id1();
+                    if (c != 0)
+                        return c;
+                    c = Double.compare(b.weight(), a.weight());
+                    if (c != 0)
+                        return c;
+                    return a.record().id2() - b.record().id2();
+                }
+
+            };
+
+    @Test
+    public void testOfferAndFlush() throws Exception {
+        System.out.println("Testing offer and flush");
+        final int k = 5;
+        final Random rand = new Random(0);
+        final List<Weighted<TokenPair>> pairs =
+                new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 1000; i++) {
+            // Few distinct weights so that ties are common
+            pairs.add(new Weighted<TokenPair>(
+                    new TokenPair(rand.nextInt(20), rand.nextInt(100)),
+                    rand.nextInt(10)));
+        }
+
+        final NeighbourCollector instance = new NeighbourCollector(k);
+        instance.offerAll(pairs);
+        for (Weighted<TokenPair> pair : pairs) {
+            assertTrue(instance.floor(pair.record().id1()) <= 9);
+        }
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        instance.flushAll(ObjectIO.asSink(actual));
+
+        assertEquals(firstK(pairs, k), actual);
+        assertEquals(0, instance.size());
+        assertEquals(Double.NEGATIVE_INFINITY, instance.floor(0), 0);
+    }
+
+    @Test
+    public void testInvertedCosine() throws Exception {
+        System.out.println("Testing top-k inverted all-pairs with Cosine");
+        compareWithFullSearch(new InvertedApssTask<Tell>(), new Cosine(), 5);
+    }
+
+    @Test
+    public void testThreadedCosine() throws Exception {
+        System.out.println("Testing top-k threaded all-pairs with Cosine");
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>();
+        instance.setNumThreads(3);
+        instance.setMaxChunkSize(7);
+        compareWithFullSearch(instance, new Cosine(), 5);
+    }
+
+    @Test
+    public void testThreadedPrefixFilterLin() throws Exception {
+        System.out.println("Testing top-k threaded prefix filtering with Lin");
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>();
+        instance.setInnerAlgorithm(PrefixFilterApssTask.class);
+        instance.setNumThreads(3);
+        instance.setMaxChunkSize(7);
+        compareWithFullSearch(instance, new Lin(), 3);
+    }
+
+    private static void compareWithFullSearch(
+            NaiveApssTask<Tell> instance, Proximity measure, int k)
+            throws Exception {
+        List<Weighted<TokenPair>> all =
+                runAllPairs(new InvertedApssTask<Tell>(), measure);
+        List<Weighted<TokenPair>> expected = firstK(all, k);
+
+        instance.setK(k);
+        List<Weighted<TokenPair>> actual = runAllPairs(instance, measure);
+
+        assertTrue(!expected.isEmpty());
+        assertTrue(expected.size() < all.size());
+        assertEquals(expected, actual);
+    }
+
+    private static List<Weighted<TokenPair>> firstK(
+            List<Weighted<TokenPair>> pairs, int k) {
+        List<Weighted<TokenPair>> sorted =
+                new ArrayList<Weighted<TokenPair>>(pairs);
+        Collections.sort(sorted, NEIGHBOURS_ORDER);
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        int count = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i == 0 || sorted.get(i).record().id1()
+                    != sorted.get(i - 1).record().id1())
+                count = 0;
+            if (count++ < k)
+                result.add(sorted.get(i));
+        }
+        return result;
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure) throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PrecalcTableTest {
+
+    @Test
+    public void testDense() {
+        System.out.println("Testing dense precalculation table");
+        final int[] ids = {5, 3, 4, 7, 6};
+        final double[] values = {0.5, 0.3, 0.4, 0.7, 0.6, 99};
+        final PrecalcTable instance = PrecalcTable.of(ids, values, ids.length);
+
+        assertTrue(instance.isDense());
+        assertEquals(ids.length, instance.size());
+        for (int i = 0; i < ids.length; i++)
+            assertEquals(values[i], instance.get(ids[i]), 0);
+        assertEquals(0, instance.get(2), 0);
+        assertEquals(0, instance.get(8), 0);
+        assertEquals(0, instance.get(-1), 0);
+    }
+
+    @Test
+    public void testSparse() {
+        System.out.println("Testing sparse precalculation table");
+        final int[] ids = {1000000, 3, Integer.MAX_VALUE, 0};
+        final double[] values = {1, 2, 3, 4};
+        final PrecalcTable instance = PrecalcTable.of(ids, values, ids.length);
+
+        assertFalse(instance.isDense());
+        assertEquals(ids.length, instance.size());
+        for (int i = 0; i < ids.length; i++)
+            assertEquals(values[i], instance.get(ids[i]), 0);
+        assertEquals(0, instance.get(1), 0);
+    }
+
+    @Test
+    public void testEmpty() {
+        System.out.println("Testing empty precalculation table");
+        final PrecalcTable instance =
+                PrecalcTable.of(new int[0], new double[0], 0);
+        assertEquals(0, instance.size());
+        assertEquals(0, instance.get(0), 0);
+    }
+
+}
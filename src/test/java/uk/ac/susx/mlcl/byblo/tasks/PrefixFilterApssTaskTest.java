@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PrefixFilterApssTaskTest {
+
+    @Test
+    public void testCosineMatchesInverted() throws Exception {
+        System.out.println("Testing prefix filtering with Cosine");
+        compareWithInverted(new Cosine(), 0.3);
+    }
+
+    @Test
+    public void testJaccardMatchesInverted() throws Exception {
+        System.out.println("Testing prefix filtering with Jaccard");
+        compareWithInverted(new Jaccard(), 0.1);
+    }
+
+    private static void compareWithInverted(Proximity measure,
+                                            double minSimilarity)
+            throws Exception {
+        ApssStats invertedStats = new ApssStats();
+        InvertedApssTask<Tell> inverted = new InvertedApssTask<Tell>();
+        inverted.setStats(invertedStats);
+        List<Weighted<TokenPair>> expected =
+                runAllPairs(inverted, measure, minSimilarity);
+
+        ApssStats prefixStats = new ApssStats();
+        PrefixFilterApssTask<Tell> prefix = new PrefixFilterApssTask<Tell>();
+        prefix.setStats(prefixStats);
+        prefix.setMinSimilarity(minSimilarity);
+        List<Weighted<TokenPair>> actual =
+                runAllPairs(prefix, measure, minSimilarity);
+
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, actual);
+        assertTrue(prefixStats.getComparisonCount()
+                <= invertedStats.getComparisonCount());
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, Proximity measure,
+            double minSimilarity) throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setMeasure(measure);
+        instance.setProducatePair(
+                Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ShardPlanTest {
+
+    private static long[] randomCosts(Random rand, int n) {
+        final long[] costs = new long[n];
+        for (int i = 0; i < n; i++) {
+            costs[i] = 1 + rand.nextInt(1000);
+        }
+        return costs;
+    }
+
+    @Test
+    public void testParse() {
+        System.out.println("Testing shard parsing");
+        assertEquals(new Shard(2, 4), Shard.parse("2/4"));
+        assertEquals(new Shard(1, 1), Shard.parse(" 1 / 1 "));
+        assertEquals(1, Shard.parse("2/4").getIndex());
+        assertEquals("3/5", new Shard(3, 5).toString());
+        assertTrue(Shard.ALL.isAll());
+        for (String bad : new String[]{"0/4", "5/4", "4", "a/b", "-1/2"}) {
+            try {
+                Shard.parse(bad);
+                fail("Expected exception parsing " + bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testAsymmetric() {
+        System.out.println("Testing asymmetric shard plan");
+        final Random rand = new Random(0);
+        final long[] costsA = randomCosts(rand, 13);
+        final long[] costsB = randomCosts(rand, 7);
+        final ShardPlan plan = ShardPlan.build(costsA, costsB, false, 4);
+
+        final double[] loads = new double[4];
+        for (int a = 1; a <= costsA.length; a++) {
+            for (int b = 1; b <= costsB.length; b++) {
+                final int s = plan.shardOf(a, b);
+                assertTrue(s >= 0 && s < 4);
+                loads[s] += (double) costsA[a - 1] * costsB[b - 1];
+            }
+        }
+        double total = 0;
+        for (int s = 0; s < 4; s++) {
+            assertEquals(loads[s], plan.getLoad(s), 1e-6);
+            total += loads[s];
+        }
+        for (int s = 0; s < 4; s++) {
+            assertEquals(0.25, loads[s] / total, 0.05);
+        }
+    }
+
+    @Test
+    public void testSymmetric() {
+        System.out.println("Testing symmetric shard plan");
+        final long[] costs = randomCosts(new Random(1), 20);
+        final ShardPlan plan = ShardPlan.build(costs, costs, true, 3);
+        for (int a = 1; a <= costs.length; a++) {
+            for (int b = 1; b <= costs.length; b++) {
+                if (b < a)
+                    assertEquals(-1, plan.shardOf(a, b));
+                else
+                    assertTrue(plan.shardOf(a, b) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void testDeterministic() {
+        System.out.println("Testing shard plan is deterministic");
+        final long[] costs = new long[30];
+        java.util.Arrays.fill(costs, 10);
+        final ShardPlan first = ShardPlan.build(costs, costs, false, 5);
+        final ShardPlan second = ShardPlan.build(
+                costs.clone(), costs.clone(), false, 5);
+        for (int a = 1; a <= costs.length; a++) {
+            for (int b = 1; b <= costs.length; b++) {
+                assertEquals(first.shardOf(a, b), second.shardOf(a, b));
+            }
+        }
+    }
+
+}
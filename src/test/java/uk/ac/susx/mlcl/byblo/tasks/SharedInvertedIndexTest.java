@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SharedInvertedIndexTest {
+
+    @Test
+    public void testBuiltOnce() throws Exception {
+        System.out.println("Testing shared index is built once");
+        final int nTasks = 8;
+        final AtomicInteger builds = new AtomicInteger(0);
+        final SharedInvertedIndex instance = new SharedInvertedIndex();
+        final SharedInvertedIndex.Builder builder =
+                new SharedInvertedIndex.Builder() {
+
+                    @Override
+                    public InvertedIndex build() throws IOException {
+                        builds.incrementAndGet();
+                        return InvertedIndex.build(
+                                new ArrayList<Indexed<SparseDoubleVector>>());
+                    }
+
+                };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<InvertedIndex>> futures =
+                    new ArrayList<Future<InvertedIndex>>();
+            for (int i = 0; i < nTasks; i++) {
+                instance.retain();
+                futures.add(executor.submit(new Callable<InvertedIndex>() {
+
+                    @Override
+                    public InvertedIndex call() throws Exception {
+                        try {
+                            return instance.get(builder);
+                        } finally {
+                            instance.release();
+                        }
+                    }
+
+                }));
+            }
+            InvertedIndex first = futures.get(0).get();
+            for (Future<InvertedIndex> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, builds.get());
+        assertTrue(instance.isBuilt());
+        assertFalse(instance.isReleased());
+
+        instance.release();
+        assertTrue(instance.isReleased());
+        assertFalse(instance.isBuilt());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRetainAfterRelease() {
+        System.out.println("Testing retain after release");
+        SharedInvertedIndex instance = new SharedInvertedIndex();
+        instance.release();
+        instance.retain();
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDeligate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SortedPairRunsTest {
+
+    private static final Comparator<Weighted<TokenPair>> ORDER =
+            Weighted.recordOrder(TokenPair.indexOrder());
+
+    @Test
+    public void testMerge() throws Exception {
+        System.out.println("Testing merge of sorted pair runs");
+        final Random rand = new Random(0);
+        final SortedPairRuns runs = new SortedPairRuns(
+                new TempFileFactory(TEST_TMP_DIR),
+                WeightedTokenPairBuffer.Order.INDEX);
+        runs.setMaxFanIn(3);
+
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>();
+        for (int r = 0; r < 10; r++) {
+            WeightedTokenPairBuffer run = new WeightedTokenPairBuffer(16);
+            for (int i = rand.nextInt(100); i > 0; i--) {
+                run.add(rand.nextInt(50), rand.nextInt(50), rand.nextDouble());
+                expected.add(run.get(run.size() - 1));
+            }
+            runs.write(run);
+        }
+        Collections.sort(expected, ORDER);
+
+        assertEquals(10, runs.getRunCount());
+        assertEquals(expected.size(), runs.getPairCount());
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        runs.mergeTo(ObjectIO.asSink(actual), 2);
+
+        assertEquals(expected, actual);
+        assertEquals(0, runs.getRunCount());
+    }
+
+    @Test
+    public void testShardRuns() throws Exception {
+        System.out.println("Testing merge of shard run files");
+        final Random rand = new Random(1);
+        final SortedPairRuns runs = new SortedPairRuns(
+                new TempFileFactory(TEST_TMP_DIR),
+                WeightedTokenPairBuffer.Order.INDEX);
+
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>();
+        final List<File> files = new ArrayList<File>();
+        for (int s = 1; s <= 3; s++) {
+            final List<Weighted<TokenPair>> pairs =
+                    new ArrayList<Weighted<TokenPair>>();
+            for (int i = rand.nextInt(100); i > 0; i--) {
+                pairs.add(new Weighted<TokenPair>(
+                        new TokenPair(rand.nextInt(50), rand.nextInt(50)),
+                        rand.nextDouble()));
+            }
+            Collections.sort(pairs, ORDER);
+            expected.addAll(pairs);
+
+            final File file = new File(TEST_TMP_DIR, "shard" + s + ".run");
+            final ShardHeader header = new ShardHeader(
+                    new Shard(s, 3), "events=1 measure=Cosine");
+            final ObjectSink<Weighted<TokenPair>> sink =
+                    SortedPairRuns.openRunSink(file, header);
+            for (Weighted<TokenPair> pair : pairs) {
+                sink.write(pair);
+            }
+            ((Closeable) sink).close();
+
+            assertEquals(header, ShardHeader.read(file));
+            runs.addRun(file, ShardHeader.read(file));
+            files.add(file);
+        }
+        Collections.sort(expected, ORDER);
+        assertEquals(expected.size(), runs.getPairCount());
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        runs.mergeTo(ObjectIO.asSink(actual), 2);
+
+        assertEquals(expected, actual);
+        for (File file : files) {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testThreadedSpill() throws Exception {
+        System.out.println("Testing threaded all-pairs with spilled runs");
+        final List<Weighted<TokenPair>> expected =
+                runAllPairs(new ThreadedApssTask<Tell>(), null);
+        Collections.sort(expected, ORDER);
+
+        final SortedPairRuns runs = new SortedPairRuns(
+                new TempFileFactory(TEST_TMP_DIR),
+                WeightedTokenPairBuffer.Order.INDEX);
+        runs.setMaxFanIn(2);
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>();
+        instance.setNumThreads(3);
+        instance.setMaxChunkSize(7);
+        assertTrue(runAllPairs(instance, runs).isEmpty());
+        assertTrue(runs.getRunCount() > 2);
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        runs.mergeTo(ObjectIO.asSink(actual), 3);
+
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    private static List<Weighted<TokenPair>> runAllPairs(
+            NaiveApssTask<Tell> instance, SortedPairRuns runs)
+            throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+        WeightedTokenPairVectorSource vsb = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false).
+                getVectorSource();
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(result));
+        instance.setSpillRuns(runs);
+        instance.setMeasure(new Cosine());
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        return result;
+    }
+
+}
@@ -388,4 +388,105 @@ public class ThreadedApssTaskTest {
         assertEquals(threadedResults, nonThreadedResults);
     }
 
+    @Test
+    public void compareSymmetric() throws Exception {
+        System.out.println(
+                "Testing " + subject + " comparing symmetric and asymmetric");
+
+        ApssStats asymmetricStats = new ApssStats();
+        List<Weighted<TokenPair>> asymmetricResults =
+                runInverted(false, asymmetricStats);
+
+        ApssStats symmetricStats = new ApssStats();
+        List<Weighted<TokenPair>> symmetricResults =
+                runInverted(true, symmetricStats);
+
+        assertTrue(!asymmetricResults.isEmpty());
+        assertEquals(asymmetricResults, symmetricResults);
+        assertTrue(symmetricStats.getComparisonCount()
+                < asymmetricStats.getComparisonCount());
+    }
+
+    @Test
+    public void compareWorkStealing() throws Exception {
+        System.out.println(
+                "Testing " + subject + " comparing fork/join and fixed pool");
+
+        List<Weighted<TokenPair>> fixedResults =
+                runInverted(false, false, new ApssStats());
+        List<Weighted<TokenPair>> forkJoinResults =
+                runInverted(false, true, new ApssStats());
+
+        assertTrue(!fixedResults.isEmpty());
+        assertEquals(fixedResults, forkJoinResults);
+    }
+
+    @Test
+    public void compareStreaming() throws Exception {
+        System.out.println(
+                "Testing " + subject + " comparing streaming and chunk pairs");
+
+        List<Weighted<TokenPair>> gridResults =
+                runInverted(false, false, new ApssStats());
+        List<Weighted<TokenPair>> streamingResults =
+                runInverted(false, false, true, false, new ApssStats());
+        List<Weighted<TokenPair>> transposedResults =
+                runInverted(false, true, true, true, new ApssStats());
+
+        assertTrue(!gridResults.isEmpty());
+        assertEquals(gridResults, streamingResults);
+        assertEquals(gridResults, transposedResults);
+    }
+
+    private static List<Weighted<TokenPair>> runInverted(
+            boolean symmetric, ApssStats stats) throws Exception {
+        return runInverted(symmetric, false, stats);
+    }
+
+    private static List<Weighted<TokenPair>> runInverted(
+            boolean symmetric, boolean workStealing, ApssStats stats)
+            throws Exception {
+        return runInverted(symmetric, workStealing, false, false, stats);
+    }
+
+    private static List<Weighted<TokenPair>> runInverted(
+            boolean symmetric, boolean workStealing, boolean streaming,
+            boolean transposed, ApssStats stats)
+            throws Exception {
+        DoubleEnumeratingDeligate del = new DoubleEnumeratingDeligate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        ObjectSink<Weighted<TokenPair>> sink = ObjectIO.asSink(result);
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                vsa, vsb, sink);
+
+        instance.setInnerAlgorithm(InvertedApssTask.class);
+        instance.setMeasure(MEASURE);
+        instance.setProducatePair(PAIR_FILTER);
+        instance.setMaxChunkSize(10);
+        instance.setSymmetric(symmetric);
+        instance.setWorkStealing(workStealing);
+        instance.setStreaming(streaming);
+        instance.setTransposed(transposed);
+        // Small enough that chunk pairs are split
+        instance.setForkThreshold(50);
+        instance.setStats(stats);
+
+        instance.run();
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+
+        Collections.sort(result);
+        return result;
+    }
 }